@@ -18,6 +18,7 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.nio.file.Paths;
+import java.util.List;
 import java.util.Properties;
 import java.util.Set;
 
@@ -26,6 +27,7 @@ import static java.lang.Boolean.parseBoolean;
 import static java.util.Collections.singletonList;
 import static java.util.Optional.ofNullable;
 import static java.util.concurrent.TimeUnit.SECONDS;
+import static java.util.stream.Collectors.toList;
 import static org.icij.datashare.PropertiesProvider.MAP_NAME_OPTION;
 import static org.icij.datashare.cli.DatashareCliOptions.*;
 import static org.icij.datashare.text.nlp.Pipeline.Type.parseAll;
@@ -122,9 +124,14 @@ class CliApp {
         }
 
         if (pipeline.has(DatashareCli.Stage.NLP)) {
-            for (Pipeline.Type nlp : nlpPipelines) {
-                Pipeline pipelineClass = injector.getInstance(PipelineRegistry.class).get(nlp);
-                taskManager.startTask(taskFactory.createNlpTask(nullUser(), pipelineClass));
+            if (parseBoolean(properties.getProperty(NLP_COMBINED_OPT, "false"))) {
+                List<Pipeline> pipelines = nlpPipelines.stream().map(injector.getInstance(PipelineRegistry.class)::get).collect(toList());
+                taskManager.startTask(taskFactory.createCombinedNlpTask(nullUser(), pipelines));
+            } else {
+                for (Pipeline.Type nlp : nlpPipelines) {
+                    Pipeline pipelineClass = injector.getInstance(PipelineRegistry.class).get(nlp);
+                    taskManager.startTask(taskFactory.createNlpTask(nullUser(), pipelineClass));
+                }
             }
             if (resume(properties)) {
                 taskManager.startTask(taskFactory.createResumeNlpTask(nullUser(), nlpPipelines));
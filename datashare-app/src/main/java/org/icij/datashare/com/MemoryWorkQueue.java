@@ -0,0 +1,178 @@
+package org.icij.datashare.com;
+
+import org.icij.datashare.PropertiesProvider;
+import org.icij.datashare.time.DatashareTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+
+import static java.lang.Integer.parseInt;
+import static java.lang.String.valueOf;
+import static org.icij.datashare.cli.DatashareCliOptions.NLP_GROUP_TTL_OPT;
+import static org.icij.datashare.cli.DatashareCliOptions.NLP_MAX_ATTEMPTS_OPT;
+import static org.icij.datashare.cli.DatashareCliOptions.NLP_VISIBILITY_TIMEOUT_OPT;
+
+/**
+ * in memory stand-in of the redis work queue for local/embedded modes.
+ * Messages are not persisted across JVM restarts.
+ */
+public class MemoryWorkQueue implements WorkQueue {
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    public final String queueName;
+    private final long visibilityTimeoutMillis;
+    private final int maxAttempts;
+    private final long groupTtlMillis;
+    private final Map<String, Group> groups = new ConcurrentHashMap<>();
+    private final List<Message> unassigned = new ArrayList<>();
+
+    public MemoryWorkQueue(PropertiesProvider propertiesProvider, String queueName) {
+        this.queueName = queueName;
+        this.visibilityTimeoutMillis = parseInt(propertiesProvider.get(NLP_VISIBILITY_TIMEOUT_OPT).orElse(valueOf(DEFAULT_VISIBILITY_TIMEOUT_SECONDS))) * 1000L;
+        this.maxAttempts = parseInt(propertiesProvider.get(NLP_MAX_ATTEMPTS_OPT).orElse(valueOf(DEFAULT_MAX_ATTEMPTS)));
+        this.groupTtlMillis = parseInt(propertiesProvider.get(NLP_GROUP_TTL_OPT).orElse(valueOf(DEFAULT_GROUP_TTL_HOURS))) * 60 * 60 * 1000L;
+    }
+
+    @Override
+    public void createGroup(String group) {
+        register(group).seen();
+    }
+
+    @Override
+    public synchronized void publish(Message message) {
+        if (groupTtlMillis > 0) {
+            long expiredBefore = DatashareTime.getInstance().currentTimeMillis() - groupTtlMillis;
+            groups.entrySet().removeIf(e -> e.getValue().lastSeen < expiredBefore && e.getValue().isEmpty());
+        }
+        if (groups.isEmpty()) {
+            logger.info("no consumer group registered for {}, message {} is kept for the first group", queueName, message);
+            unassigned.add(message);
+        }
+        groups.forEach((name, group) -> group.pending.offer(new Delivery(UUID.randomUUID().toString(), name, message, 0)));
+    }
+
+    @Override
+    public Delivery poll(String groupName, long timeout, TimeUnit unit) throws InterruptedException {
+        requeueExpired(groupName);
+        Group group = register(groupName);
+        group.seen();
+        Delivery delivery = group.pending.poll(timeout, unit);
+        if (delivery != null) {
+            group.inFlight.put(delivery.id, new Lease(delivery, DatashareTime.getInstance().currentTimeMillis() + visibilityTimeoutMillis));
+        }
+        return delivery;
+    }
+
+    @Override
+    public void ack(Delivery delivery) {
+        if (getGroup(delivery.group).inFlight.remove(delivery.id) == null) {
+            logger.warn("ack for {} but lease has expired (message may be processed twice)", delivery);
+        }
+    }
+
+    @Override
+    public void nack(Delivery delivery) {
+        Group group = getGroup(delivery.group);
+        Lease lease = group.inFlight.remove(delivery.id);
+        if (lease != null) {
+            retry(group, lease.delivery);
+        }
+    }
+
+    @Override
+    public int requeueExpired(String groupName) {
+        Group group = groups.get(groupName);
+        if (group == null) return 0;
+        long now = DatashareTime.getInstance().currentTimeMillis();
+        int nbExpired = 0;
+        for (Lease lease : group.inFlight.values()) {
+            if (lease.deadline <= now && group.inFlight.remove(lease.delivery.id, lease)) {
+                retry(group, lease.delivery);
+                nbExpired++;
+            }
+        }
+        return nbExpired;
+    }
+
+    @Override
+    public long size(String groupName) {
+        Group group = groups.get(groupName);
+        return group == null ? 0 : group.pending.size() + group.inFlight.size();
+    }
+
+    @Override
+    public long deadLetterSize(String groupName) {
+        Group group = groups.get(groupName);
+        return group == null ? 0 : group.dead.size();
+    }
+
+    @Override
+    public void delete(String groupName) {
+        groups.remove(groupName);
+    }
+
+    @Override
+    public void close() {}
+
+    private Group register(String groupName) {
+        Group group = groups.get(groupName);
+        return group != null ? group : registerNew(groupName);
+    }
+
+    private synchronized Group registerNew(String groupName) {
+        return groups.computeIfAbsent(groupName, g -> {
+            Group group = new Group();
+            unassigned.forEach(message -> group.pending.offer(new Delivery(UUID.randomUUID().toString(), groupName, message, 0)));
+            unassigned.clear();
+            return group;
+        });
+    }
+
+    private void retry(Group group, Delivery delivery) {
+        Delivery retried = new Delivery(delivery.id, delivery.group, delivery.message, delivery.attempts + 1);
+        if (retried.attempts >= maxAttempts) {
+            logger.error("{} reached max attempts ({}), moving it to dead letters", delivery, maxAttempts);
+            group.dead.add(retried);
+        } else {
+            group.pending.offer(retried);
+        }
+    }
+
+    private Group getGroup(String groupName) {
+        Group group = groups.get(groupName);
+        if (group == null) throw new IllegalArgumentException("unknown consumer group " + groupName);
+        return group;
+    }
+
+    private static class Group {
+        final LinkedBlockingDeque<Delivery> pending = new LinkedBlockingDeque<>();
+        final Map<String, Lease> inFlight = new ConcurrentHashMap<>();
+        final List<Delivery> dead = new CopyOnWriteArrayList<>();
+        volatile long lastSeen = DatashareTime.getInstance().currentTimeMillis();
+
+        void seen() {
+            lastSeen = DatashareTime.getInstance().currentTimeMillis();
+        }
+
+        boolean isEmpty() {
+            return pending.isEmpty() && inFlight.isEmpty();
+        }
+    }
+
+    private static class Lease {
+        final Delivery delivery;
+        final long deadline;
+
+        Lease(Delivery delivery, long deadline) {
+            this.delivery = delivery;
+            this.deadline = deadline;
+        }
+    }
+}
@@ -0,0 +1,251 @@
+package org.icij.datashare.com;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.inject.Inject;
+import org.icij.datashare.PropertiesProvider;
+import org.icij.datashare.time.DatashareTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.params.sortedset.ZAddParams;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static java.lang.Integer.parseInt;
+import static java.lang.String.valueOf;
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static org.icij.datashare.cli.DatashareCliOptions.NLP_GROUP_TTL_OPT;
+import static org.icij.datashare.cli.DatashareCliOptions.NLP_MAX_ATTEMPTS_OPT;
+import static org.icij.datashare.cli.DatashareCliOptions.NLP_VISIBILITY_TIMEOUT_OPT;
+
+/**
+ * Redis reliable queue. For each consumer group it uses :
+ *
+ * - a pending list (LPUSH on publish, RPOPLPUSH on poll)
+ * - a processing list holding leased messages
+ * - a sorted set with the lease deadline of each processing message
+ * - a dead letters list
+ *
+ * The groups are in a set, and the date when each group was last created or polled is in a sorted set.
+ * The messages published while there is no group are kept in an unassigned list, moved to the first group registered.
+ * Publish (with group expiration), registration, lease, requeue and dead-lettering are done with lua scripts
+ * so a worker crash cannot lose a message.
+ *
+ * Groups with no pending nor processing message expire after nlpGroupTtlHours without consumer.
+ * To remove a stale group by hand, stop its consumers then delete it with {@link #delete(String)},
+ * or in redis-cli (here for the EMAIL group of the default queue) :
+ *
+ * SREM ds:nlp:queue:groups EMAIL
+ * ZREM ds:nlp:queue:groups:seen EMAIL
+ * DEL ds:nlp:queue:EMAIL ds:nlp:queue:EMAIL:processing ds:nlp:queue:EMAIL:deadlines ds:nlp:queue:EMAIL:dead
+ */
+public class RedisWorkQueue implements WorkQueue {
+    private static final Logger logger = LoggerFactory.getLogger(RedisWorkQueue.class);
+    private static final long POLL_INTERVAL_MILLIS = 100;
+    private static final String REGISTER_SCRIPT =
+            "if redis.call('SADD', KEYS[1], ARGV[1]) == 1 then " +
+            "  while redis.call('RPOPLPUSH', KEYS[3], KEYS[4]) do end " +
+            "end " +
+            "redis.call('ZADD', KEYS[2], ARGV[2], ARGV[1]) ";
+    private static final String POLL_SCRIPT = REGISTER_SCRIPT +
+            "local e = redis.call('RPOPLPUSH', KEYS[4], KEYS[5]) " +
+            "if e then redis.call('ZADD', KEYS[6], ARGV[3], e) end " +
+            "return e";
+    private static final String ACK_SCRIPT =
+            "if redis.call('ZREM', KEYS[1], ARGV[1]) == 1 then " +
+            "  redis.call('LREM', KEYS[2], 1, ARGV[1]) return 1 " +
+            "end " +
+            "return 0";
+    private static final String REQUEUE_SCRIPT =
+            "local expired = redis.call('ZRANGEBYSCORE', KEYS[1], '-inf', ARGV[1]) " +
+            "for _, e in ipairs(expired) do " +
+            "  redis.call('ZREM', KEYS[1], e) " +
+            "  redis.call('LREM', KEYS[2], 1, e) " +
+            "  local d = cjson.decode(e) " +
+            "  d['attempts'] = d['attempts'] + 1 " +
+            "  if d['attempts'] >= tonumber(ARGV[2]) then redis.call('LPUSH', KEYS[4], cjson.encode(d)) " +
+            "  else redis.call('LPUSH', KEYS[3], cjson.encode(d)) end " +
+            "end " +
+            "return #expired";
+    private static final String PUBLISH_SCRIPT =
+            "local result = {0} " +
+            "for _, g in ipairs(redis.call('SMEMBERS', KEYS[1])) do " +
+            "  local k = ARGV[4] .. ':' .. g " +
+            "  local seen = redis.call('ZSCORE', KEYS[2], g) " +
+            "  if not seen then redis.call('ZADD', KEYS[2], ARGV[1], g) seen = ARGV[1] end " +
+            "  if tonumber(seen) < tonumber(ARGV[2]) and redis.call('LLEN', k) == 0 and redis.call('LLEN', k .. ':processing') == 0 then " +
+            "    redis.call('DEL', k, k .. ':processing', k .. ':deadlines', k .. ':dead') " +
+            "    redis.call('SREM', KEYS[1], g) " +
+            "    redis.call('ZREM', KEYS[2], g) " +
+            "    table.insert(result, g) " +
+            "  else " +
+            "    redis.call('LPUSH', k, ARGV[3]) " +
+            "    result[1] = result[1] + 1 " +
+            "  end " +
+            "end " +
+            "if result[1] == 0 then redis.call('LPUSH', KEYS[3], ARGV[3]) end " +
+            "return result";
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final JedisPool redis;
+    private final String queueName;
+    private final long visibilityTimeoutMillis;
+    private final int maxAttempts;
+    private final long groupTtlMillis;
+
+    @Inject
+    public RedisWorkQueue(PropertiesProvider propertiesProvider) {
+        this(propertiesProvider, DEFAULT_QUEUE_NAME);
+    }
+
+    public RedisWorkQueue(PropertiesProvider propertiesProvider, String queueName) {
+        this.redis = new JedisPool(propertiesProvider.get("messageBusAddress").orElse("redis://redis:6379"));
+        this.queueName = queueName;
+        this.visibilityTimeoutMillis = parseInt(propertiesProvider.get(NLP_VISIBILITY_TIMEOUT_OPT).orElse(valueOf(DEFAULT_VISIBILITY_TIMEOUT_SECONDS))) * 1000L;
+        this.maxAttempts = parseInt(propertiesProvider.get(NLP_MAX_ATTEMPTS_OPT).orElse(valueOf(DEFAULT_MAX_ATTEMPTS)));
+        this.groupTtlMillis = parseInt(propertiesProvider.get(NLP_GROUP_TTL_OPT).orElse(valueOf(DEFAULT_GROUP_TTL_HOURS))) * 60 * 60 * 1000L;
+    }
+
+    @Override
+    public void createGroup(String group) {
+        try (Jedis jedis = redis.getResource()) {
+            jedis.eval(REGISTER_SCRIPT, asList(groupsKey(), seenKey(), unassignedKey(), pendingKey(group)),
+                    asList(group, valueOf(DatashareTime.getInstance().currentTimeMillis())));
+        }
+    }
+
+    /**
+     * copies the message to each group, or to the unassigned list if there is no group, and removes the empty groups
+     * that have not been seen for the group time to live (the groups registered before the seen dates were kept are given the current date).
+     */
+    @Override
+    public void publish(Message message) {
+        long now = DatashareTime.getInstance().currentTimeMillis();
+        try (Jedis jedis = redis.getResource()) {
+            List<?> result = (List<?>) jedis.eval(PUBLISH_SCRIPT, asList(groupsKey(), seenKey(), unassignedKey()),
+                    asList(valueOf(now), valueOf(groupTtlMillis > 0 ? now - groupTtlMillis : 0),
+                            serialize(UUID.randomUUID().toString(), 0, message), queueName));
+            if (result.size() > 1) {
+                logger.info("removed group(s) {} of {} without consumer for {}h", result.subList(1, result.size()), queueName, groupTtlMillis / (60 * 60 * 1000));
+            }
+            if (Long.valueOf(0).equals(result.get(0))) {
+                logger.info("no consumer group registered for {}, message {} is kept for the first group", queueName, message);
+            }
+        }
+    }
+
+    @Override
+    public Delivery poll(String group, long timeout, TimeUnit unit) throws InterruptedException {
+        requeueExpired(group);
+        long deadline = System.currentTimeMillis() + unit.toMillis(timeout);
+        do {
+            try (Jedis jedis = redis.getResource()) {
+                long now = DatashareTime.getInstance().currentTimeMillis();
+                Object payload = jedis.eval(POLL_SCRIPT, asList(groupsKey(), seenKey(), unassignedKey(), pendingKey(group), processingKey(group), deadlinesKey(group)),
+                        asList(group, valueOf(now), valueOf(now + visibilityTimeoutMillis)));
+                if (payload != null) {
+                    return deserialize(group, (String) payload);
+                }
+            }
+            Thread.sleep(Math.max(0, Math.min(POLL_INTERVAL_MILLIS, deadline - System.currentTimeMillis())));
+        } while (System.currentTimeMillis() < deadline);
+        return null;
+    }
+
+    @Override
+    public void ack(Delivery delivery) {
+        try (Jedis jedis = redis.getResource()) {
+            Object acked = jedis.eval(ACK_SCRIPT, asList(deadlinesKey(delivery.group), processingKey(delivery.group)), singletonList(delivery.payload));
+            if (Long.valueOf(0).equals(acked)) {
+                logger.warn("ack for {} but lease has expired (message may be processed twice)", delivery);
+            }
+        }
+    }
+
+    @Override
+    public void nack(Delivery delivery) {
+        try (Jedis jedis = redis.getResource()) {
+            jedis.zadd(deadlinesKey(delivery.group), 0, delivery.payload, ZAddParams.zAddParams().xx());
+        }
+        requeueExpired(delivery.group);
+    }
+
+    @Override
+    public int requeueExpired(String group) {
+        try (Jedis jedis = redis.getResource()) {
+            Long nbExpired = (Long) jedis.eval(REQUEUE_SCRIPT,
+                    asList(deadlinesKey(group), processingKey(group), pendingKey(group), deadKey(group)),
+                    asList(valueOf(DatashareTime.getInstance().currentTimeMillis()), valueOf(maxAttempts)));
+            if (nbExpired > 0) {
+                logger.info("requeued {} expired message(s) for {}", nbExpired, pendingKey(group));
+            }
+            return nbExpired.intValue();
+        }
+    }
+
+    @Override
+    public long size(String group) {
+        try (Jedis jedis = redis.getResource()) {
+            return jedis.llen(pendingKey(group)) + jedis.llen(processingKey(group));
+        }
+    }
+
+    @Override
+    public long deadLetterSize(String group) {
+        try (Jedis jedis = redis.getResource()) {
+            return jedis.llen(deadKey(group));
+        }
+    }
+
+    @Override
+    public void delete(String group) {
+        try (Jedis jedis = redis.getResource()) {
+            jedis.del(pendingKey(group), processingKey(group), deadlinesKey(group), deadKey(group));
+            jedis.srem(groupsKey(), group);
+            jedis.zrem(seenKey(), group);
+        }
+    }
+
+    @Override
+    public void close() {
+        redis.close();
+    }
+
+    private String serialize(String id, int attempts, Message message) {
+        Map<String, Object> envelope = new HashMap<>();
+        envelope.put("id", id);
+        envelope.put("attempts", attempts);
+        envelope.put("message", message.toJson());
+        try {
+            return mapper.writeValueAsString(envelope);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private Delivery deserialize(String group, String payload) {
+        try {
+            HashMap envelope = mapper.readValue(payload, HashMap.class);
+            Message message = new Message(mapper.readValue((String) envelope.get("message"), HashMap.class));
+            return new Delivery((String) envelope.get("id"), group, message, ((Number) envelope.get("attempts")).intValue(), payload);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private String groupsKey() { return queueName + ":groups";}
+    private String seenKey() { return groupsKey() + ":seen";}
+    private String unassignedKey() { return queueName + ":unassigned";}
+    private String pendingKey(String group) { return queueName + ":" + group;}
+    private String processingKey(String group) { return pendingKey(group) + ":processing";}
+    private String deadlinesKey(String group) { return pendingKey(group) + ":deadlines";}
+    private String deadKey(String group) { return pendingKey(group) + ":dead";}
+}
@@ -0,0 +1,106 @@
+package org.icij.datashare.com;
+
+import java.io.Closeable;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Durable work queue with at-least-once delivery.
+ *
+ * Each published message is copied once for every consumer group (one group per NLP pipeline),
+ * so that pipelines keep receiving every message like with the pub/sub channel, while the workers
+ * of a same group (threads or hosts) share the group backlog.
+ *
+ * A polled message is leased for a visibility timeout. It must be acknowledged when processed,
+ * else it is redelivered (on nack or when the lease expires) until it reaches the max attempts
+ * and is moved to the group dead letters.
+ *
+ * The messages published while there is no group are kept, and given to the first group registered.
+ *
+ * A group is seen each time it is created or polled. The groups that are not seen for nlpGroupTtlHours
+ * (no consumer is running for them) and have no pending nor in flight message are removed at the next publish,
+ * so the messages are not copied forever to groups of pipelines that are not run anymore. A group with a backlog
+ * is kept until it is processed or deleted. A consumer polling an expired group registers it again.
+ */
+public interface WorkQueue extends Closeable {
+    String DEFAULT_QUEUE_NAME = "ds:nlp:queue";
+    int DEFAULT_VISIBILITY_TIMEOUT_SECONDS = 600;
+    int DEFAULT_MAX_ATTEMPTS = 3;
+    int DEFAULT_GROUP_TTL_HOURS = 24 * 7;
+
+    /**
+     * registers a consumer group. Messages published before the group exists are not received, except the ones
+     * published while there was no group at all.
+     * Groups are kept (durable) when there is no consumer, until they expire.
+     */
+    void createGroup(String group);
+
+    void publish(Message message);
+
+    /**
+     * @return the next delivery for the group or null if none is available before the timeout
+     */
+    Delivery poll(String group, long timeout, TimeUnit unit) throws InterruptedException;
+
+    void ack(Delivery delivery);
+
+    /**
+     * gives a delivery back to the queue. It is redelivered or moved to dead letters if max attempts is reached.
+     */
+    void nack(Delivery delivery);
+
+    /**
+     * requeues (or dead-letters) the deliveries of the group whose lease has expired
+     * @return the number of expired deliveries
+     */
+    int requeueExpired(String group);
+
+    /**
+     * @return number of pending and in flight messages for the group
+     */
+    long size(String group);
+
+    long deadLetterSize(String group);
+
+    /**
+     * removes the group with its pending, in flight and dead messages. The consumers of the group must be stopped
+     * before, else their next poll registers the group again.
+     */
+    void delete(String group);
+
+    class Delivery {
+        public final String id;
+        public final String group;
+        public final Message message;
+        public final int attempts;
+        final String payload;
+
+        Delivery(String id, String group, Message message, int attempts, String payload) {
+            this.id = id;
+            this.group = group;
+            this.message = message;
+            this.attempts = attempts;
+            this.payload = payload;
+        }
+
+        Delivery(String id, String group, Message message, int attempts) {
+            this(id, group, message, attempts, null);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Delivery delivery = (Delivery) o;
+            return id.equals(delivery.id) && group.equals(delivery.group);
+        }
+
+        @Override
+        public int hashCode() { return Objects.hash(id, group);}
+
+        @Override
+        public String toString() {
+            return "Delivery{id=" + id + ", group=" + group + ", attempts=" + attempts + ", message=" + message + '}';
+        }
+    }
+}
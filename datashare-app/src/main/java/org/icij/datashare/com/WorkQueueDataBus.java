@@ -0,0 +1,48 @@
+package org.icij.datashare.com;
+
+import java.util.function.Consumer;
+
+import static org.icij.datashare.com.Message.Type.EXTRACT_NLP;
+
+/**
+ * Data bus sending NLP extraction messages to a durable {@link WorkQueue} instead of the pub/sub channel.
+ * Control messages (monitoring, shutdown) are still broadcast with the wrapped bus.
+ */
+public class WorkQueueDataBus implements Publisher, DataBus {
+    private final DataBus dataBus;
+    private final WorkQueue workQueue;
+
+    public WorkQueueDataBus(DataBus dataBus, WorkQueue workQueue) {
+        this.dataBus = dataBus;
+        this.workQueue = workQueue;
+    }
+
+    @Override
+    public void publish(Channel channel, Message message) {
+        if (channel == Channel.NLP && message.type == EXTRACT_NLP) {
+            workQueue.publish(message);
+        } else {
+            dataBus.publish(channel, message);
+        }
+    }
+
+    @Override
+    public int subscribe(Consumer<Message> subscriber, Channel... channels) {
+        return dataBus.subscribe(subscriber, channels);
+    }
+
+    @Override
+    public int subscribe(Consumer<Message> subscriber, Runnable subscriptionCallback, Channel... channels) {
+        return dataBus.subscribe(subscriber, subscriptionCallback, channels);
+    }
+
+    @Override
+    public void unsubscribe(Consumer<Message> subscriber) {
+        dataBus.unsubscribe(subscriber);
+    }
+
+    @Override
+    public boolean getHealth() {
+        return dataBus.getHealth();
+    }
+}
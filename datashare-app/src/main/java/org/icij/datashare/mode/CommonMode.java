@@ -21,12 +21,17 @@ import org.icij.datashare.com.DataBus;
 import org.icij.datashare.com.MemoryDataBus;
 import org.icij.datashare.com.Publisher;
 import org.icij.datashare.com.RedisDataBus;
+import org.icij.datashare.com.MemoryWorkQueue;
+import org.icij.datashare.com.RedisWorkQueue;
+import org.icij.datashare.com.WorkQueue;
+import org.icij.datashare.com.WorkQueueDataBus;
 import org.icij.datashare.db.RepositoryFactoryImpl;
 import org.icij.datashare.extension.ExtensionLoader;
 import org.icij.datashare.extension.PipelineRegistry;
 import org.icij.datashare.extract.RedisUserDocumentQueue;
 import org.icij.datashare.extract.RedisUserReportMap;
 import org.icij.datashare.nlp.EmailPipeline;
+import org.icij.datashare.nlp.NlpApp;
 import org.icij.datashare.nlp.OptimaizeLanguageGuesser;
 import org.icij.datashare.tasks.DocumentCollectionFactory;
 import org.icij.datashare.tasks.MemoryDocumentCollectionFactory;
@@ -54,8 +59,12 @@ import java.util.concurrent.BlockingQueue;
 import java.util.function.Consumer;
 
 import static com.fasterxml.jackson.databind.DeserializationFeature.ACCEPT_EMPTY_STRING_AS_NULL_OBJECT;
+import static java.lang.Boolean.parseBoolean;
 import static java.util.Optional.ofNullable;
 import static org.icij.datashare.PluginService.PLUGINS_BASE_URL;
+import static org.icij.datashare.cli.DatashareCliOptions.NLP_COMBINED_OPT;
+import static org.icij.datashare.cli.DatashareCliOptions.NLP_PIPELINES_OPT;
+import static org.icij.datashare.text.nlp.Pipeline.Type.parseAll;
 import static org.icij.datashare.text.indexing.elasticsearch.ElasticsearchConfiguration.createESClient;
 
 public class CommonMode extends AbstractModule {
@@ -116,13 +125,26 @@ public class CommonMode extends AbstractModule {
                     build(DocumentCollectionFactory.class));
         }
         DataBus dataBus;
+        WorkQueue workQueue;
         if ("memory".equals(propertiesProvider.getProperties().get("busType"))) {
             dataBus = new MemoryDataBus();
+            workQueue = new MemoryWorkQueue(propertiesProvider, WorkQueue.DEFAULT_QUEUE_NAME);
         } else {
             dataBus = new RedisDataBus(propertiesProvider);
+            workQueue = new RedisWorkQueue(propertiesProvider, WorkQueue.DEFAULT_QUEUE_NAME);
         }
-        bind(DataBus.class).toInstance(dataBus);
-        bind(Publisher.class).toInstance(dataBus);
+        // groups are created before indexing so that no message is lost if NLP workers start later
+        propertiesProvider.get(NLP_PIPELINES_OPT).ifPresent(p -> {
+            if (parseBoolean(propertiesProvider.get(NLP_COMBINED_OPT).orElse("false"))) {
+                workQueue.createGroup(NlpApp.workQueueGroup(parseAll(p)));
+            } else {
+                parseAll(p).forEach(t -> workQueue.createGroup(t.name()));
+            }
+        });
+        WorkQueueDataBus workQueueDataBus = new WorkQueueDataBus(dataBus, workQueue);
+        bind(WorkQueue.class).toInstance(workQueue);
+        bind(DataBus.class).toInstance(workQueueDataBus);
+        bind(Publisher.class).toInstance(workQueueDataBus);
 
         PipelineRegistry pipelineRegistry = new PipelineRegistry(propertiesProvider);
         pipelineRegistry.register(EmailPipeline.class);
@@ -0,0 +1,43 @@
+package org.icij.datashare.nlp;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * LRU in memory cache for local/embedded modes. It is not persisted across JVM restarts.
+ */
+public class MemoryNamedEntityCache implements NamedEntityCache {
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+    private final Map<String, List<CachedEntity>> entries;
+
+    public MemoryNamedEntityCache(int maxEntries) {
+        this.entries = new LinkedHashMap<String, List<CachedEntity>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, List<CachedEntity>> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    @Override
+    public synchronized Optional<List<CachedEntity>> get(String key) {
+        List<CachedEntity> cached = entries.get(key);
+        (cached == null ? misses : hits).incrementAndGet();
+        return Optional.ofNullable(cached);
+    }
+
+    @Override
+    public synchronized void put(String key, List<CachedEntity> namedEntities) {
+        entries.put(key, namedEntities);
+    }
+
+    public synchronized int size() { return entries.size();}
+
+    @Override public long hits() { return hits.get();}
+    @Override public long misses() { return misses.get();}
+    @Override public void close() {}
+}
@@ -0,0 +1,88 @@
+package org.icij.datashare.nlp;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.hash.Hashing;
+import org.icij.datashare.PropertiesProvider;
+import org.icij.datashare.text.Document;
+import org.icij.datashare.text.Language;
+import org.icij.datashare.text.NamedEntity;
+import org.icij.datashare.text.nlp.Pipeline;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.Optional;
+import java.util.Properties;
+
+import static java.lang.Integer.parseInt;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Optional.ofNullable;
+import static java.util.stream.Collectors.toList;
+import static org.icij.datashare.cli.DatashareCliOptions.NLP_CACHE_SIZE_OPT;
+
+/**
+ * Cache of named entities keyed by a digest of the processed text (a document or a document chunk),
+ * the pipeline, the language and the pipeline version (see {@link PipelineVersion}). Entity offsets are stored relative to the
+ * beginning of the text, so that entities can be copied to any document with the same content.
+ */
+public interface NamedEntityCache extends Closeable {
+    Optional<List<CachedEntity>> get(String key);
+
+    void put(String key, List<CachedEntity> entities);
+
+    long hits();
+
+    long misses();
+
+    /**
+     * @return the cache configured with nlpCacheSize (redis when busType is redis), or null if the size is 0
+     */
+    static NamedEntityCache create(Properties properties) {
+        int maxEntries = parseInt(ofNullable(properties.getProperty(NLP_CACHE_SIZE_OPT)).orElse("0"));
+        if (maxEntries <= 0) {
+            return null;
+        }
+        if ("memory".equals(properties.getProperty("busType"))) {
+            return new MemoryNamedEntityCache(maxEntries);
+        }
+        return new RedisNamedEntityCache(new PropertiesProvider(properties), RedisNamedEntityCache.DEFAULT_CACHE_NAME, maxEntries);
+    }
+
+    static String key(String content, Pipeline pipeline, Language language) {
+        return String.join(":", pipeline.getType().name(), language.iso6391Code(), PipelineVersion.of(pipeline, language),
+                Hashing.sha256().hashString(content, UTF_8).toString());
+    }
+
+    /**
+     * the entities are cached by content, so the pipelines that also read the document metadata cannot be cached
+     * (the email pipeline finds addresses in the email headers).
+     */
+    static boolean isCacheable(Pipeline pipeline, Document doc) {
+        return !(pipeline.getType() == Pipeline.Type.EMAIL && "message/rfc822".equals(doc.getContentType()));
+    }
+
+    static List<CachedEntity> relative(List<NamedEntity> namedEntities, int contentOffset) {
+        return namedEntities.stream().map(ne -> new CachedEntity(ne.getCategory().getAbbreviation(), ne.getMention(),
+                ne.getOffsets().stream().map(o -> o - contentOffset).collect(toList()))).collect(toList());
+    }
+
+    static List<NamedEntity> absolute(List<CachedEntity> entities, Document doc, Pipeline.Type type, int contentOffset) {
+        return entities.stream().map(e -> NamedEntity.create(NamedEntity.Category.parse(e.category), e.mention,
+                e.offsets.stream().map(o -> o + contentOffset).collect(toList()),
+                doc.getId(), doc.getRootDocument(), type, doc.getLanguage())).collect(toList());
+    }
+
+    class CachedEntity {
+        public final String category;
+        public final String mention;
+        public final List<Long> offsets;
+
+        @JsonCreator
+        public CachedEntity(@JsonProperty("category") String category, @JsonProperty("mention") String mention,
+                            @JsonProperty("offsets") List<Long> offsets) {
+            this.category = category;
+            this.mention = mention;
+            this.offsets = offsets;
+        }
+    }
+}
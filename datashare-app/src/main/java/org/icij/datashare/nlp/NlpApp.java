@@ -9,6 +9,7 @@ import org.icij.datashare.PropertiesProvider;
 import org.icij.datashare.com.DataBus;
 import org.icij.datashare.com.Message;
 import org.icij.datashare.com.ShutdownMessage;
+import org.icij.datashare.com.WorkQueue;
 import org.icij.datashare.monitoring.Monitorable;
 import org.icij.datashare.text.indexing.Indexer;
 import org.icij.datashare.text.nlp.AbstractPipeline;
@@ -18,6 +19,8 @@ import org.icij.datashare.user.UserTask;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Collection;
+import java.util.List;
 import java.util.Properties;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
@@ -26,55 +29,84 @@ import java.util.concurrent.LinkedBlockingQueue;
 
 import static java.lang.Integer.parseInt;
 import static java.lang.Integer.toHexString;
+import static java.util.Collections.singletonList;
 import static java.util.Optional.ofNullable;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.stream.Collectors.joining;
 import static java.util.stream.Collectors.toList;
 import static java.util.stream.Stream.generate;
 import static org.icij.datashare.cli.DatashareCliOptions.NLP_PARALLELISM_OPT;
 
 public class NlpApp implements Runnable, Monitorable, UserTask {
     private static final long DEFAULT_TIMEOUT_MILLIS = 30 * 60 * 1000;
+    private static final long WORK_QUEUE_WAIT_MILLIS = 1000;
+    /** messages forwarded from the data bus and waiting for a consumer, per consumer thread */
+    static final int QUEUE_CAPACITY_PER_CONSUMER = 100;
     private final Logger logger = LoggerFactory.getLogger(getClass());
-    private final Pipeline pipeline;
+    private final List<Pipeline> pipelines;
+    private final String name;
     private final Indexer indexer;
     private final long shutdownTimeoutMillis;
     private final boolean cleanShutdown;
     private final BlockingQueue<Message> queue;
     private final int parallelism;
     private final NlpForwarder forwarder;
+    private final WorkQueue workQueue;
+    private final NamedEntityCache cache;
     private final User user;
     private ExecutorService threadPool = null;
 
     @AssistedInject
-    public NlpApp(final DataBus dataBus, final Indexer indexer, final PropertiesProvider propertiesProvider, @Assisted final Pipeline pipeline, @Assisted final User user) {
-        this(dataBus, indexer, pipeline, propertiesProvider.getProperties(), () -> {}, 0, false, user);
+    public NlpApp(final DataBus dataBus, final WorkQueue workQueue, final Indexer indexer, final PropertiesProvider propertiesProvider, @Assisted final Pipeline pipeline, @Assisted final User user) {
+        this(dataBus, workQueue, indexer, pipeline, propertiesProvider.getProperties(), () -> {}, 0, false, user);
     }
 
     @AssistedInject
-    public NlpApp(final DataBus dataBus, final Indexer indexer, @Assisted final Pipeline pipeline, @Assisted final Properties properties,
+    public NlpApp(final DataBus dataBus, final WorkQueue workQueue, final Indexer indexer, final PropertiesProvider propertiesProvider, @Assisted final List<Pipeline> pipelines, @Assisted final User user) {
+        this(dataBus, workQueue, indexer, pipelines, propertiesProvider.getProperties(), () -> {}, 0, false, user);
+    }
+
+    @AssistedInject
+    public NlpApp(final DataBus dataBus, final WorkQueue workQueue, final Indexer indexer, @Assisted final Pipeline pipeline, @Assisted final Properties properties,
                   @Assisted final User user, @Assisted final Runnable subscribeCb) {
-        this(dataBus, indexer, pipeline, properties, subscribeCb, 0, false, user);
+        this(dataBus, workQueue, indexer, pipeline, properties, subscribeCb, 0, false, user);
     }
 
     NlpApp(final DataBus dataBus, final Indexer indexer, final Pipeline pipeline, final Properties properties,
            Runnable subscribedCb, long shutdownTimeoutMillis, boolean cleanShutdown, User user) {
-        this.pipeline = pipeline;
+        this(dataBus, null, indexer, pipeline, properties, subscribedCb, shutdownTimeoutMillis, cleanShutdown, user);
+    }
+
+    NlpApp(final DataBus dataBus, final WorkQueue workQueue, final Indexer indexer, final Pipeline pipeline, final Properties properties,
+           Runnable subscribedCb, long shutdownTimeoutMillis, boolean cleanShutdown, User user) {
+        this(dataBus, workQueue, indexer, singletonList(pipeline), properties, subscribedCb, shutdownTimeoutMillis, cleanShutdown, user);
+    }
+
+    NlpApp(final DataBus dataBus, final WorkQueue workQueue, final Indexer indexer, final List<Pipeline> pipelines, final Properties properties,
+           Runnable subscribedCb, long shutdownTimeoutMillis, boolean cleanShutdown, User user) {
+        this.pipelines = pipelines;
+        this.name = workQueueGroup(pipelines.stream().map(Pipeline::getType).collect(toList()));
+        this.workQueue = workQueue;
         this.indexer = indexer;
         this.shutdownTimeoutMillis = shutdownTimeoutMillis == 0 ? DEFAULT_TIMEOUT_MILLIS : shutdownTimeoutMillis;
         this.cleanShutdown = cleanShutdown;
-        this.queue = new LinkedBlockingQueue<>();
         this.user = user;
 
         parallelism = parseInt(ofNullable(properties.getProperty(NLP_PARALLELISM_OPT)).orElse("1"));
+        this.queue = new LinkedBlockingQueue<>(parallelism * QUEUE_CAPACITY_PER_CONSUMER);
         forwarder = new NlpForwarder(dataBus, queue, subscribedCb);
+        cache = NamedEntityCache.create(properties);
+        if (workQueue != null) {
+            workQueue.createGroup(name);
+        }
     }
 
     public void run() {
         try {
-            logger.info("running NlpApp for {} pipeline with {} thread(s)", pipeline.getType(), parallelism);
+            logger.info("running NlpApp for {} pipeline(s) with {} thread(s)", name, parallelism);
             this.threadPool = Executors.newFixedThreadPool(parallelism,
-                    new ThreadFactoryBuilder().setNameFormat(pipeline.getType().name() + "-%d").build());
-            generate(() -> new NlpConsumer(pipeline, indexer, queue)).limit(parallelism).forEach(l -> threadPool.submit(l));
+                    new ThreadFactoryBuilder().setNameFormat(name + "-%d").build());
+            generate(() -> new NlpConsumer(pipelines, indexer, queue, workQueue, forwarder::acknowledged, cache)).limit(parallelism).forEach(l -> threadPool.submit(l));
             forwarder.call();
             logger.info("forwarder exited waiting for consumer(s) to finish");
             shutdown();
@@ -105,9 +137,18 @@ public class NlpApp implements Runnable, Monitorable, UserTask {
                 break;
             }
         }
+        pipelines.forEach(p -> logger.info("{} pipeline after consumers exit : {}", p.getType(), p));
+        if (cache != null) {
+            cache.close();
+        }
     }
 
     private void waitForQueueToBeEmpty() throws InterruptedException {
+        if (workQueue != null) {
+            while (workQueue.size(name) > 0) {
+                Thread.sleep(WORK_QUEUE_WAIT_MILLIS);
+            }
+        }
         if (! queue.isEmpty()) {
             synchronized (queue) {
                 queue.wait();
@@ -122,7 +163,15 @@ public class NlpApp implements Runnable, Monitorable, UserTask {
 
     @Override
     public String toString() {
-        return getClass().getName() + "[" + pipeline.getType() + "]@" + toHexString(hashCode());
+        return getClass().getName() + "[" + name + "]@" + toHexString(hashCode());
+    }
+
+    /**
+     * @return the work queue consumer group of the pipelines : the pipeline name,
+     * or the sorted pipeline names joined with "+" for the combined mode
+     */
+    public static String workQueueGroup(Collection<Pipeline.Type> types) {
+        return types.stream().map(Enum::name).sorted().collect(joining("+"));
     }
 
     @Override
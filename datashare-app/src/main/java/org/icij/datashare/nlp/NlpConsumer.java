@@ -2,19 +2,27 @@ package org.icij.datashare.nlp;
 
 import com.google.inject.Inject;
 import org.icij.datashare.com.Message;
+import org.icij.datashare.com.WorkQueue;
 import org.icij.datashare.text.Document;
 import org.icij.datashare.text.NamedEntity;
 import org.icij.datashare.text.indexing.Indexer;
+import org.icij.datashare.text.indexing.elasticsearch.ElasticsearchIndexer;
 import org.icij.datashare.text.nlp.DatashareListener;
 import org.icij.datashare.text.nlp.Pipeline;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 
+import static java.util.Collections.singletonList;
+import static java.util.stream.Collectors.toList;
 import static org.icij.datashare.com.Message.Field.*;
 
 public class NlpConsumer implements DatashareListener {
@@ -22,22 +30,64 @@ public class NlpConsumer implements DatashareListener {
     private final Indexer indexer;
     private final int maxContentLengthChars;
     private final BlockingQueue<Message> messageQueue;
-    private final Pipeline nlpPipeline;
+    private final WorkQueue workQueue;
+    private final Runnable ackCallback;
+    private final NamedEntityCache cache;
+    private final List<Pipeline> nlpPipelines;
+    private final String group;
     private final Logger logger = LoggerFactory.getLogger(getClass());
 
     @Inject
     public NlpConsumer(Pipeline pipeline, Indexer indexer, BlockingQueue<Message> messageQueue) {
-        this.indexer = indexer;
-        this.messageQueue = messageQueue;
-        this.nlpPipeline = pipeline;
-        this.maxContentLengthChars = DEFAULT_MAX_CONTENT_LENGTH;
+        this(pipeline, indexer, messageQueue, null, () -> {});
+    }
+
+    /**
+     * @param messageQueue local queue for control messages (and messages forwarded from the data bus)
+     * @param workQueue durable queue polled for the pipeline group, null to only use the local queue
+     * @param ackCallback called each time a work queue message has been processed and acknowledged
+     */
+    public NlpConsumer(Pipeline pipeline, Indexer indexer, BlockingQueue<Message> messageQueue, WorkQueue workQueue, Runnable ackCallback) {
+        this(singletonList(pipeline), indexer, messageQueue, workQueue, ackCallback);
+    }
+
+    /**
+     * combined mode : each document is fetched once and processed by all the pipelines.
+     * The pipelines are run in parallel, they must be thread safe (as they already are when nlpParallelism > 1).
+     */
+    public NlpConsumer(List<Pipeline> pipelines, Indexer indexer, BlockingQueue<Message> messageQueue, WorkQueue workQueue, Runnable ackCallback) {
+        this(pipelines, indexer, messageQueue, workQueue, ackCallback, null);
+    }
+
+    /**
+     * @param cache named entities cache used to skip the pipelines for already processed contents, null to disable
+     */
+    public NlpConsumer(List<Pipeline> pipelines, Indexer indexer, BlockingQueue<Message> messageQueue, WorkQueue workQueue, Runnable ackCallback, NamedEntityCache cache) {
+        this(pipelines, indexer, messageQueue, workQueue, ackCallback, cache, DEFAULT_MAX_CONTENT_LENGTH);
     }
 
     NlpConsumer(Pipeline pipeline, Indexer indexer, int maxContentLengthBytes) {
+        this(singletonList(pipeline), indexer, maxContentLengthBytes);
+    }
+
+    NlpConsumer(List<Pipeline> pipelines, Indexer indexer, int maxContentLengthBytes) {
+        this(pipelines, indexer, null, maxContentLengthBytes);
+    }
+
+    NlpConsumer(List<Pipeline> pipelines, Indexer indexer, NamedEntityCache cache, int maxContentLengthBytes) {
+        this(pipelines, indexer, null, null, () -> {}, cache, maxContentLengthBytes);
+    }
+
+    private NlpConsumer(List<Pipeline> pipelines, Indexer indexer, BlockingQueue<Message> messageQueue, WorkQueue workQueue, Runnable ackCallback,
+                        NamedEntityCache cache, int maxContentLengthChars) {
         this.indexer = indexer;
-        this.messageQueue = null;
-        this.nlpPipeline = pipeline;
-        this.maxContentLengthChars = maxContentLengthBytes;
+        this.cache = cache;
+        this.messageQueue = messageQueue;
+        this.workQueue = workQueue;
+        this.ackCallback = ackCallback;
+        this.nlpPipelines = pipelines;
+        this.group = workQueue == null ? null : NlpApp.workQueueGroup(pipelines.stream().map(Pipeline::getType).collect(toList()));
+        this.maxContentLengthChars = maxContentLengthChars;
     }
 
     @Override
@@ -46,7 +96,10 @@ public class NlpConsumer implements DatashareListener {
         int nbMessages = 0;
         while (! exitAsked) {
             try {
-                Message message = messageQueue.poll(30, TimeUnit.SECONDS);
+                Message message = workQueue == null ? messageQueue.poll(30, TimeUnit.SECONDS) : messageQueue.poll();
+                if (message == null && workQueue != null && consumeWorkQueue()) {
+                    nbMessages++;
+                }
                 if (message != null) {
                     switch (message.type) {
                         case EXTRACT_NLP:
@@ -70,42 +123,145 @@ public class NlpConsumer implements DatashareListener {
                 logger.warn("error in consumer main loop", e);
             }
         }
+        if (cache != null) {
+            logger.info("named entities cache : {} hits / {} misses", cache.hits(), cache.misses());
+        }
         logger.info("exiting main loop");
         return nbMessages;
     }
 
-    void findNamedEntities(final String projectName, final String id, final String routing) throws InterruptedException {
+    private boolean consumeWorkQueue() throws InterruptedException {
+        WorkQueue.Delivery delivery = workQueue.poll(group, 1, TimeUnit.SECONDS);
+        if (delivery == null) {
+            return false;
+        }
+        boolean processed = false;
+        try {
+            processed = findNamedEntities(delivery.message.content.get(INDEX_NAME), delivery.message.content.get(DOC_ID), delivery.message.content.get(R_ID));
+        } finally {
+            if (processed) {
+                workQueue.ack(delivery);
+                ackCallback.run();
+            } else {
+                workQueue.nack(delivery);
+            }
+        }
+        return processed;
+    }
+
+    /**
+     * @return false if entities could not be extracted and the message should be processed again
+     */
+    boolean findNamedEntities(final String projectName, final String id, final String routing) throws InterruptedException {
         try {
             Document doc = indexer.get(projectName, id, routing);
             if (doc != null) {
-                logger.info("extracting {} entities for document {}", nlpPipeline.getType(), doc.getId());
-                if (nlpPipeline.initialize(doc.getLanguage())) {
-                    int nbEntities = 0;
-                    if (doc.getContent().length() < this.maxContentLengthChars) {
-                        List<NamedEntity> namedEntities = nlpPipeline.process(doc);
-                        indexer.bulkAdd(projectName, nlpPipeline.getType(), namedEntities, doc);
-                        nbEntities = namedEntities.size();
-                    } else {
-                        int nbChunks = doc.getContent().length() / this.maxContentLengthChars + 1;
-                        logger.info("document is too large, extracting entities for {} document chunks", nbChunks);
-                        for (int chunkIndex = 0; chunkIndex < nbChunks; chunkIndex++) {
-                            List<NamedEntity> namedEntities = nlpPipeline.process(doc, maxContentLengthChars, chunkIndex * maxContentLengthChars);
-                            if (chunkIndex < nbChunks - 1) {
-                                indexer.bulkAdd(projectName, namedEntities);
-                            } else {
-                                indexer.bulkAdd(projectName, nlpPipeline.getType(), namedEntities, doc);
-                            }
-                            nbEntities += namedEntities.size();
-                        }
-                    }
-                    logger.info("added {} named entities to document {}", nbEntities, doc.getId());
-                    nlpPipeline.terminate(doc.getLanguage());
+                if (nlpPipelines.size() == 1) {
+                    findNamedEntities(projectName, nlpPipelines.get(0), doc);
+                } else {
+                    findNamedEntities(projectName, nlpPipelines, doc);
                 }
             } else {
                 logger.warn("no document found in index with id " + id);
             }
         } catch (IOException e) {
             logger.error("cannot extract entities of doc " + id, e);
+            return false;
+        }
+        return true;
+    }
+
+    private void findNamedEntities(String projectName, Pipeline nlpPipeline, Document doc) throws InterruptedException, IOException {
+        logger.info("extracting {} entities for document {}", nlpPipeline.getType(), doc.getId());
+        if (nlpPipeline.initialize(doc.getLanguage())) {
+            int nbEntities = 0;
+            if (doc.getContent().length() < this.maxContentLengthChars) {
+                List<NamedEntity> namedEntities = process(nlpPipeline, doc, doc.getContent().length(), 0);
+                indexer.bulkAdd(projectName, nlpPipeline.getType(), namedEntities, doc);
+                nbEntities = namedEntities.size();
+            } else {
+                int nbChunks = doc.getContent().length() / this.maxContentLengthChars + 1;
+                logger.info("document is too large, extracting entities for {} document chunks", nbChunks);
+                for (int chunkIndex = 0; chunkIndex < nbChunks; chunkIndex++) {
+                    List<NamedEntity> namedEntities = process(nlpPipeline, doc, maxContentLengthChars, chunkIndex * maxContentLengthChars);
+                    if (chunkIndex < nbChunks - 1) {
+                        indexer.bulkAdd(projectName, namedEntities);
+                    } else {
+                        indexer.bulkAdd(projectName, nlpPipeline.getType(), namedEntities, doc);
+                    }
+                    nbEntities += namedEntities.size();
+                }
+            }
+            logger.info("added {} named entities to document {}", nbEntities, doc.getId());
+            nlpPipeline.terminate(doc.getLanguage());
+        }
+    }
+
+    private void findNamedEntities(String projectName, List<Pipeline> pipelines, Document doc) throws IOException {
+        List<Pipeline> pipelinesToRun = pipelines.stream().filter(p -> !doc.getNerTags().contains(p.getType())).collect(toList());
+        if (pipelinesToRun.isEmpty()) {
+            logger.info("document {} already has {} entities", doc.getId(), doc.getNerTags());
+            return;
+        }
+        logger.info("extracting {} entities for document {}", pipelinesToRun.stream().map(Pipeline::getType).collect(toList()), doc.getId());
+        Map<Pipeline.Type, List<NamedEntity>> namedEntities = new ConcurrentHashMap<>();
+        pipelinesToRun.parallelStream().forEach(p -> extractNamedEntities(p, doc).ifPresent(entities -> namedEntities.put(p.getType(), entities)));
+
+        if (indexer instanceof ElasticsearchIndexer) {
+            ((ElasticsearchIndexer) indexer).bulkAdd(projectName, namedEntities.keySet(),
+                    namedEntities.values().stream().flatMap(List::stream).collect(toList()), doc);
+        } else {
+            for (Map.Entry<Pipeline.Type, List<NamedEntity>> entry : namedEntities.entrySet()) {
+                indexer.bulkAdd(projectName, entry.getKey(), entry.getValue(), doc);
+            }
+        }
+        logger.info("added {} named entities to document {}", namedEntities.values().stream().mapToInt(List::size).sum(), doc.getId());
+    }
+
+    /**
+     * @return the entities found by the pipeline on the whole document content (chunked if too large),
+     * or empty if the pipeline could not be initialized for the document language
+     */
+    private Optional<List<NamedEntity>> extractNamedEntities(Pipeline nlpPipeline, Document doc) {
+        try {
+            if (!nlpPipeline.initialize(doc.getLanguage())) {
+                return Optional.empty();
+            }
+            List<NamedEntity> namedEntities = new ArrayList<>();
+            int nbChunks = doc.getContent().length() / this.maxContentLengthChars + 1;
+            if (nbChunks == 1) {
+                namedEntities.addAll(process(nlpPipeline, doc, doc.getContent().length(), 0));
+            } else {
+                for (int chunkIndex = 0; chunkIndex < nbChunks; chunkIndex++) {
+                    namedEntities.addAll(process(nlpPipeline, doc, maxContentLengthChars, chunkIndex * maxContentLengthChars));
+                }
+            }
+            nlpPipeline.terminate(doc.getLanguage());
+            return Optional.of(namedEntities);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while extracting " + nlpPipeline.getType() + " entities of " + doc.getId(), e);
+        }
+    }
+
+    /**
+     * runs the pipeline on the document content (or the content chunk if contentOffset > 0 or contentLength is lower than the content length)
+     * unless the entities for the same text are in the cache. The pipelines that read the document metadata are not cached.
+     */
+    private List<NamedEntity> process(Pipeline nlpPipeline, Document doc, int contentLength, int contentOffset) throws InterruptedException {
+        boolean wholeContent = contentOffset == 0 && contentLength >= doc.getContent().length();
+        if (cache == null || !NamedEntityCache.isCacheable(nlpPipeline, doc)) {
+            return wholeContent ? nlpPipeline.process(doc) : nlpPipeline.process(doc, contentLength, contentOffset);
+        }
+        String content = doc.getContent().substring(contentOffset, Math.min(contentOffset + contentLength, doc.getContent().length()));
+        String key = NamedEntityCache.key(content, nlpPipeline, doc.getLanguage());
+        Optional<List<NamedEntityCache.CachedEntity>> cached = cache.get(key);
+        if (cached.isPresent()) {
+            logger.info("found {} {} entities in cache for document {} (offset {})", cached.get().size(), nlpPipeline.getType(), doc.getId(), contentOffset);
+            return NamedEntityCache.absolute(cached.get(), doc, nlpPipeline.getType(), contentOffset);
         }
+        List<NamedEntity> namedEntities = wholeContent ? nlpPipeline.process(doc) : nlpPipeline.process(doc, contentLength, contentOffset);
+        cache.put(key, NamedEntityCache.relative(namedEntities, contentOffset));
+        return namedEntities;
     }
 }
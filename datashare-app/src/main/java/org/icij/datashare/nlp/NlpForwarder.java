@@ -42,14 +42,24 @@ public class NlpForwarder implements DatashareListener,Monitorable {
         }
         if (message.type == EXTRACT_NLP) {
             logger.debug("forwarding message {} to message queue", message);
-            if (messageQueue.offer(message)) {
+            try {
+                // the queue is bounded : the subscription waits for the consumers instead of growing the heap
+                messageQueue.put(message);
                 processed.incrementAndGet();
-            } else {
-                logger.warn("cannot offer message {} to queue, it must be reprocessed later", message);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                logger.warn("interrupted while forwarding message {}, it must be reprocessed later", message);
             }
         }
     }
 
+    /**
+     * called by consumers when a message of the durable work queue has been processed
+     */
+    void acknowledged() {
+        processed.incrementAndGet();
+    }
+
     public double getProgressRate() {
         return totalToProcess.get() == 0 ? -1 : (double)(processed.get() - messageQueue.size()) / totalToProcess.get();
     }
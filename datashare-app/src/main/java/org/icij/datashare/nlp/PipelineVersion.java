@@ -0,0 +1,77 @@
+package org.icij.datashare.nlp;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import org.icij.datashare.text.Language;
+import org.icij.datashare.text.nlp.Pipeline;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.CodeSource;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Version of a pipeline used in the named entities cache keys: the implementation version of the pipeline jar
+ * (or a fingerprint of its jar/classes directory for the builds without version) and a fingerprint of the
+ * model files downloaded in dist/models/&lt;pipeline&gt; (names, sizes and dates). A new pipeline build or
+ * new models give new keys, so the entities found with previous versions are not reused.
+ *
+ * The versions are computed once per pipeline and language as the models are loaded once.
+ */
+class PipelineVersion {
+    private static final Logger logger = LoggerFactory.getLogger(PipelineVersion.class);
+    static final Path MODELS_DIR = Paths.get("dist", "models");
+    private static final Map<String, String> versions = new ConcurrentHashMap<>();
+
+    private PipelineVersion() {}
+
+    static String of(Pipeline pipeline, Language language) {
+        return versions.computeIfAbsent(pipeline.getClass().getName() + ":" + language.iso6391Code(),
+                k -> codeVersion(pipeline.getClass()) + "-" + fingerprint(MODELS_DIR.resolve(pipeline.getType().name().toLowerCase())));
+    }
+
+    static String codeVersion(Class<?> pipelineClass) {
+        String implementationVersion = pipelineClass.getPackage() == null ? null : pipelineClass.getPackage().getImplementationVersion();
+        if (implementationVersion != null && !implementationVersion.isEmpty()) {
+            return implementationVersion;
+        }
+        CodeSource codeSource = pipelineClass.getProtectionDomain().getCodeSource();
+        try {
+            return codeSource == null || codeSource.getLocation() == null ? "" : fingerprint(Paths.get(codeSource.getLocation().toURI()));
+        } catch (URISyntaxException | IllegalArgumentException e) {
+            logger.warn("cannot get code source of {}", pipelineClass, e);
+            return "";
+        }
+    }
+
+    /**
+     * @return a hash of the relative names, sizes and modification dates of the files under path, or an empty string if path doesn't exist
+     */
+    static String fingerprint(Path path) {
+        if (!Files.exists(path)) {
+            return "";
+        }
+        Hasher hasher = Hashing.sha256().newHasher();
+        try (Stream<Path> files = Files.walk(path)) {
+            files.filter(Files::isRegularFile).sorted().map(Path::toFile).forEach(file ->
+                    hasher.putString(path.relativize(file.toPath()).toString(), UTF_8).putLong(file.length()).putLong(file.lastModified()));
+        } catch (IOException e) {
+            logger.warn("cannot compute fingerprint of {}", path, e);
+            return "";
+        }
+        return hasher.hash().toString().substring(0, 12);
+    }
+
+    static void clear() {
+        versions.clear();
+    }
+}
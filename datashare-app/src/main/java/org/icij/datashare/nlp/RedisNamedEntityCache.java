@@ -0,0 +1,121 @@
+package org.icij.datashare.nlp;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.icij.datashare.PropertiesProvider;
+import org.icij.datashare.time.DatashareTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Pipeline;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+
+import static java.util.Optional.ofNullable;
+
+/**
+ * Redis cache shared by all the NLP workers. Each entry is a json string, the access time of the entries
+ * is kept in a sorted set used to evict the least recently used entries when the max number of entries is reached.
+ * Hits and misses are counted in redis so they are global to the cluster.
+ */
+public class RedisNamedEntityCache implements NamedEntityCache {
+    static final String DEFAULT_CACHE_NAME = "ds:ner:cache";
+    private static final Logger logger = LoggerFactory.getLogger(RedisNamedEntityCache.class);
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final JedisPool redis;
+    private final String cacheName;
+    private final int maxEntries;
+
+    public RedisNamedEntityCache(PropertiesProvider propertiesProvider, String cacheName, int maxEntries) {
+        this.redis = new JedisPool(propertiesProvider.get("messageBusAddress").orElse("redis://redis:6379"));
+        this.cacheName = cacheName;
+        this.maxEntries = maxEntries;
+    }
+
+    @Override
+    public Optional<List<CachedEntity>> get(String key) {
+        try (Jedis jedis = redis.getResource()) {
+            String json = jedis.get(entryKey(key));
+            if (json == null) {
+                jedis.incr(missesKey());
+                return Optional.empty();
+            }
+            Pipeline pipeline = jedis.pipelined();
+            pipeline.zadd(lruKey(), DatashareTime.getInstance().currentTimeMillis(), key);
+            pipeline.incr(hitsKey());
+            pipeline.sync();
+            return Optional.of(mapper.readValue(json, new TypeReference<List<CachedEntity>>() {}));
+        } catch (IOException e) {
+            logger.warn("cannot read cache entry {}", key, e);
+            return Optional.empty();
+        }
+    }
+
+    @Override
+    public void put(String key, List<CachedEntity> entities) {
+        try (Jedis jedis = redis.getResource()) {
+            Pipeline pipeline = jedis.pipelined();
+            pipeline.set(entryKey(key), mapper.writeValueAsString(entities));
+            pipeline.zadd(lruKey(), DatashareTime.getInstance().currentTimeMillis(), key);
+            pipeline.sync();
+            long nbToEvict = jedis.zcard(lruKey()) - maxEntries;
+            if (nbToEvict > 0) {
+                evict(jedis, jedis.zrange(lruKey(), 0, nbToEvict - 1));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void evict(Jedis jedis, Set<String> keys) {
+        if (keys.isEmpty()) return;
+        logger.debug("evicting {} entries from {}", keys.size(), cacheName);
+        Pipeline pipeline = jedis.pipelined();
+        keys.forEach(k -> pipeline.del(entryKey(k)));
+        pipeline.zrem(lruKey(), keys.toArray(new String[0]));
+        pipeline.sync();
+    }
+
+    public long size() {
+        try (Jedis jedis = redis.getResource()) {
+            return jedis.zcard(lruKey());
+        }
+    }
+
+    @Override
+    public long hits() { return counter(hitsKey());}
+
+    @Override
+    public long misses() { return counter(missesKey());}
+
+    /**
+     * removes all the cache entries and counters
+     */
+    public void clear() {
+        try (Jedis jedis = redis.getResource()) {
+            evict(jedis, jedis.zrange(lruKey(), 0, -1));
+            jedis.del(hitsKey(), missesKey());
+        }
+    }
+
+    @Override
+    public void close() {
+        redis.close();
+    }
+
+    private long counter(String counterKey) {
+        try (Jedis jedis = redis.getResource()) {
+            return ofNullable(jedis.get(counterKey)).map(Long::parseLong).orElse(0L);
+        }
+    }
+
+    private String entryKey(String key) { return cacheName + ":" + key;}
+    private String lruKey() { return cacheName + ":lru";}
+    private String hitsKey() { return cacheName + ":hits";}
+    private String missesKey() { return cacheName + ":misses";}
+}
@@ -1,35 +1,216 @@
 package org.icij.datashare.tasks;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import org.icij.datashare.HumanReadableSize;
+import org.icij.datashare.PropertiesProvider;
 import org.icij.datashare.batch.BatchDownload;
+import org.icij.datashare.cli.DatashareCliOptions;
 import org.icij.datashare.time.DatashareTime;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
 
 import static java.util.Arrays.stream;
-import static java.util.Objects.requireNonNull;
+import static java.util.Optional.ofNullable;
 import static java.util.regex.Pattern.compile;
 
+/**
+ * Deletes the batch download archives when they are older than the time to live, and the oldest archives
+ * when the archives are bigger than the disk quota (0 for no quota).
+ *
+ * The download directory is listed only once, at the first run. Then the archives are kept in an index
+ * ordered by modification date, and a run only looks at the head of the index. There is one cleaner per process:
+ * the batch download runners of the process (in the batch download loop, or in the web server in LOCAL mode)
+ * add the archives they write with {@link #add(File)}. The archives written in the same directory by other
+ * processes after the first run are not indexed, they are cleaned by their own process.
+ *
+ * {@link #start()} runs the cleaner and schedules the next runs when the oldest archive expires
+ * (see {@link #nextRunDelayMillis()}). It is started by the batch download loop, or by the first archive added.
+ */
+@Singleton
 public class BatchDownloadCleaner implements Runnable {
+    public static final Path DOWNLOAD_DIR = Paths.get(System.getProperty("user.dir")).resolve("app/tmp");
+    static final String DEFAULT_BATCH_DOWNLOAD_ZIP_TTL = "24";
+    /** minimum delay between two cleanups, to group the archives that expire at the same time */
+    static final long MIN_CLEAN_DELAY_MILLIS = 1000;
     private final Logger logger = LoggerFactory.getLogger(getClass());
     private final Pattern filePattern = compile(BatchDownload.ZIP_FORMAT.replace("%s", "[a-z0-9\\.:Z\\-\\[GMT\\]]+"));
     private final Path downloadDir;
     private final int ttlHour;
+    private final long maxSize;
+    private final TreeSet<Archive> archives = new TreeSet<>(Comparator.comparingLong((Archive a) -> a.lastModified).thenComparing(a -> a.path));
+    private final Map<Path, Archive> archivesByPath = new HashMap<>();
+    private long totalSize = 0;
+    private boolean loaded = false;
+    private ScheduledExecutorService scheduler;
+
+    @Inject
+    public BatchDownloadCleaner(PropertiesProvider propertiesProvider) {
+        this(DOWNLOAD_DIR,
+                Integer.parseInt(propertiesProvider.get(DatashareCliOptions.BATCH_DOWNLOAD_ZIP_TTL).orElse(DEFAULT_BATCH_DOWNLOAD_ZIP_TTL)),
+                HumanReadableSize.parse(propertiesProvider.get(DatashareCliOptions.BATCH_DOWNLOAD_DIR_MAX_SIZE).orElse("0")));
+    }
 
     public BatchDownloadCleaner(Path downloadDir, int ttlHour) {
+        this(downloadDir, ttlHour, 0);
+    }
+
+    public BatchDownloadCleaner(Path downloadDir, int ttlHour, long maxSize) {
         this.downloadDir = downloadDir;
         this.ttlHour = ttlHour;
+        this.maxSize = maxSize;
     }
 
     @Override
-    public void run() {
-        logger.debug("deleting temporary zip files from {}", downloadDir);
-        stream(requireNonNull(downloadDir.toFile().listFiles()))
-                .filter(f -> filePattern.matcher(f.getName()).matches())
-                .filter(f -> DatashareTime.getInstance().currentTimeMillis() - f.lastModified() >= ttlHour * 1000L * 60 * 60)
-                .forEach(File::delete);
+    public synchronized void run() {
+        if (!loaded) {
+            load();
+        }
+        long now = DatashareTime.getInstance().currentTimeMillis();
+        while (!archives.isEmpty() && now - archives.first().lastModified >= ttlMillis()) {
+            delete(archives.first());
+        }
+        deleteOverQuota();
+    }
+
+    /**
+     * indexes the download directory and deletes the expired archives, then schedules the next runs.
+     * Does nothing if the cleaner is already started.
+     */
+    public void start() {
+        synchronized (this) {
+            if (scheduler != null) {
+                return;
+            }
+            scheduler = Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactoryBuilder().setNameFormat("batch-download-cleaner-%d").setDaemon(true).build());
+        }
+        runAndSchedule(scheduler);
+    }
+
+    /**
+     * stops the scheduled runs.
+     */
+    public synchronized void close() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    /**
+     * indexes an archive produced by a batch download, and starts the cleaner if it is not started.
+     * The oldest archives are deleted if the quota is exceeded.
+     */
+    public void add(File archive) {
+        if (archive == null || !archive.isFile()) {
+            return;
+        }
+        synchronized (this) {
+            if (!loaded) {
+                load();
+            }
+            remove(archivesByPath.get(archive.toPath()));
+            index(new Archive(archive.toPath(), archive.lastModified(), archive.length()));
+            deleteOverQuota();
+        }
+        start();
+    }
+
+    /**
+     * @return the delay until the oldest archive expires, or the time to live if there is no archive
+     */
+    public synchronized long nextRunDelayMillis() {
+        if (archives.isEmpty()) {
+            return ttlMillis();
+        }
+        return Math.max(0, archives.first().lastModified + ttlMillis() - DatashareTime.getInstance().currentTimeMillis());
+    }
+
+    synchronized long size() {
+        return totalSize;
+    }
+
+    private void runAndSchedule(ScheduledExecutorService scheduler) {
+        try {
+            run();
+        } catch (RuntimeException ex) {
+            logger.error("error while deleting temporary zip files", ex);
+        }
+        try {
+            scheduler.schedule(() -> runAndSchedule(scheduler),
+                    Math.max(MIN_CLEAN_DELAY_MILLIS, nextRunDelayMillis()), TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException ex) {
+            logger.debug("batch download cleaner stopped");
+        }
+    }
+
+    private void load() {
+        logger.info("indexing temporary zip files from {}", downloadDir);
+        stream(ofNullable(downloadDir.toFile().listFiles()).orElse(new File[0]))
+                .filter(f -> f.isFile() && filePattern.matcher(f.getName()).matches())
+                .forEach(f -> index(new Archive(f.toPath(), f.lastModified(), f.length())));
+        loaded = true;
+    }
+
+    private void deleteOverQuota() {
+        while (maxSize > 0 && totalSize > maxSize && !archives.isEmpty()) {
+            logger.info("batch downloads size {} is over quota {}, deleting oldest zip", totalSize, maxSize);
+            delete(archives.first());
+        }
+    }
+
+    private void delete(Archive archive) {
+        logger.debug("deleting temporary zip file {}", archive.path);
+        try {
+            Files.deleteIfExists(archive.path);
+        } catch (IOException e) {
+            logger.warn("cannot delete temporary zip file {}", archive.path, e);
+        }
+        remove(archive);
+    }
+
+    private void index(Archive archive) {
+        archives.add(archive);
+        archivesByPath.put(archive.path, archive);
+        totalSize += archive.size;
+    }
+
+    private void remove(Archive archive) {
+        if (archive != null && archives.remove(archive)) {
+            archivesByPath.remove(archive.path);
+            totalSize -= archive.size;
+        }
+    }
+
+    private long ttlMillis() {
+        return ttlHour * 1000L * 60 * 60;
+    }
+
+    private static class Archive {
+        final Path path;
+        final long lastModified;
+        final long size;
+
+        Archive(Path path, long lastModified, long size) {
+            this.path = path;
+            this.lastModified = lastModified;
+            this.size = size;
+        }
     }
 }
@@ -0,0 +1,52 @@
+package org.icij.datashare.tasks;
+
+import org.icij.datashare.text.indexing.elasticsearch.DocumentsSize;
+
+import static java.lang.Math.min;
+
+/**
+ * Pre-flight sizing of a batch download, computed with the number of documents matching the query and the sum
+ * of their content lengths, before any extraction.
+ *
+ * When the documents don't fit in the limits, the download is truncated: the documents are zipped
+ * from the smallest to the biggest, and the number of files is estimated with their average size
+ * (more files can fit as the smallest are zipped first).
+ */
+public class BatchDownloadEstimate {
+    public final long nbDocuments;
+    public final long size;
+    public final long nbFiles;
+    public final long zipSize;
+    public final long durationSeconds;
+    public final boolean truncated;
+
+    public BatchDownloadEstimate(long nbDocuments, long size, long nbFiles, long zipSize, long durationSeconds, boolean truncated) {
+        this.nbDocuments = nbDocuments;
+        this.size = size;
+        this.nbFiles = nbFiles;
+        this.zipSize = zipSize;
+        this.durationSeconds = durationSeconds;
+        this.truncated = truncated;
+    }
+
+    /**
+     * @param bytesPerSecond estimated extraction throughput of the download
+     */
+    static BatchDownloadEstimate of(DocumentsSize documentsSize, int maxNbFiles, long maxZipSize, long bytesPerSecond) {
+        boolean truncated = documentsSize.count > maxNbFiles || documentsSize.contentLength > maxZipSize;
+        long nbFiles = min(documentsSize.count, maxNbFiles);
+        if (documentsSize.contentLength > maxZipSize) {
+            long averageSize = documentsSize.contentLength / documentsSize.count;
+            nbFiles = min(nbFiles, averageSize == 0 ? documentsSize.count : maxZipSize / averageSize + 1);
+        }
+        long zipSize = nbFiles == documentsSize.count ? documentsSize.contentLength : documentsSize.contentLength / documentsSize.count * nbFiles;
+        return new BatchDownloadEstimate(documentsSize.count, documentsSize.contentLength, nbFiles, zipSize,
+                (zipSize + bytesPerSecond - 1) / bytesPerSecond, truncated);
+    }
+
+    @Override
+    public String toString() {
+        return "BatchDownloadEstimate{nbDocuments=" + nbDocuments + ", size=" + size + ", nbFiles=" + nbFiles +
+                ", zipSize=" + zipSize + ", durationSeconds=" + durationSeconds + ", truncated=" + truncated + '}';
+    }
+}
@@ -12,7 +12,6 @@ import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.util.HashMap;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.TimeUnit;
@@ -22,29 +21,34 @@ import static org.icij.datashare.text.Project.project;
 
 public class BatchDownloadLoop {
     public static final BatchDownload POISON = new BatchDownload(singletonList(project("")), User.nullUser(), "");
-    private final Path DOWNLOAD_DIR = Paths.get(System.getProperty("user.dir")).resolve("app/tmp");
-    private final static String DEFAULT_BATCH_DOWNLOAD_ZIP_TTL = "24";
     private final int ttlHour;
     private final Logger logger = LoggerFactory.getLogger(getClass());
     private final BlockingQueue<BatchDownload> batchDownloadQueue;
     private final TaskFactory factory;
     private final TaskManager manager;
+    private final BatchDownloadCleaner cleaner;
 
-    @Inject
     public BatchDownloadLoop(PropertiesProvider propertiesProvider, BlockingQueue<BatchDownload> batchDownloadQueue, TaskFactory factory, TaskManager manager) {
+        this(propertiesProvider, batchDownloadQueue, factory, manager, new BatchDownloadCleaner(propertiesProvider));
+    }
+
+    @Inject
+    public BatchDownloadLoop(PropertiesProvider propertiesProvider, BlockingQueue<BatchDownload> batchDownloadQueue, TaskFactory factory, TaskManager manager, BatchDownloadCleaner cleaner) {
         this.batchDownloadQueue = batchDownloadQueue;
         this.factory = factory;
         this.manager = manager;
-        ttlHour = Integer.parseInt(propertiesProvider.get(DatashareCliOptions.BATCH_DOWNLOAD_ZIP_TTL).orElse(DEFAULT_BATCH_DOWNLOAD_ZIP_TTL));
+        this.cleaner = cleaner;
+        ttlHour = Integer.parseInt(propertiesProvider.get(DatashareCliOptions.BATCH_DOWNLOAD_ZIP_TTL).orElse(BatchDownloadCleaner.DEFAULT_BATCH_DOWNLOAD_ZIP_TTL));
     }
 
     public void run() {
         logger.info("Datashare running in batch mode. Waiting batch from ds:batchdownload.queue ({})", batchDownloadQueue.getClass());
+        BatchDownloadCleaner cleaner = createDownloadCleaner(BatchDownloadCleaner.DOWNLOAD_DIR, ttlHour);
+        cleaner.start();
         BatchDownload currentBatch = null;
         while (!POISON.equals(currentBatch)) {
             try {
                 currentBatch = batchDownloadQueue.poll(60, TimeUnit.SECONDS);
-                createDownloadCleaner(DOWNLOAD_DIR, ttlHour).run();
 
                 HashMap<String, Object> taskProperties = new HashMap<>();
                 taskProperties.put("batchDownload", currentBatch);
@@ -59,6 +63,7 @@ public class BatchDownloadLoop {
                 logger.error("error in loop", ex);
             }
         }
+        cleaner.close();
     }
 
     public void enqueuePoison() {
@@ -71,7 +76,10 @@ public class BatchDownloadLoop {
         }
     }
 
-    public BatchDownloadCleaner createDownloadCleaner(Path downloadDir, int delaySeconds) {
-        return new BatchDownloadCleaner(downloadDir, delaySeconds);
+    /**
+     * @return the cleaner of the process, that indexes the archives written by the batch download runners
+     */
+    public BatchDownloadCleaner createDownloadCleaner(Path downloadDir, int ttlHour) {
+        return cleaner;
     }
 }
@@ -1,10 +1,16 @@
 package org.icij.datashare.tasks;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.Inject;
 import com.google.inject.assistedinject.Assisted;
 import net.lingala.zip4j.io.outputstream.ZipOutputStream;
 import net.lingala.zip4j.model.ZipParameters;
+import net.lingala.zip4j.model.enums.CompressionMethod;
 import net.lingala.zip4j.model.enums.EncryptionMethod;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.CloseShieldOutputStream;
 import org.apache.commons.lang3.RandomStringUtils;
 import org.icij.datashare.Entity;
 import org.icij.datashare.HumanReadableSize;
@@ -17,6 +23,7 @@ import org.icij.datashare.monitoring.Monitorable;
 import org.icij.datashare.text.Document;
 import org.icij.datashare.text.Project;
 import org.icij.datashare.text.indexing.Indexer;
+import org.icij.datashare.text.indexing.elasticsearch.ElasticsearchIndexer;
 import org.icij.datashare.text.indexing.elasticsearch.ExtractException;
 import org.icij.datashare.text.indexing.elasticsearch.SourceExtractor;
 import org.icij.datashare.user.User;
@@ -26,72 +33,188 @@ import org.jetbrains.annotations.NotNull;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.ZipEntry;
 import java.util.zip.ZipException;
 
+import static java.lang.Integer.max;
 import static java.lang.Integer.min;
 import static java.lang.Integer.parseInt;
 import static java.lang.String.valueOf;
+import static java.util.Collections.singletonMap;
+import static java.util.function.Function.identity;
+import static java.util.stream.Collectors.groupingBy;
 import static java.util.stream.Collectors.toList;
+import static java.util.stream.Collectors.toMap;
 import static org.icij.datashare.cli.DatashareCliOptions.*;
 
+/**
+ * Creates the zip file of a batch download, or streams the zip to an HTTP response (see {@link #streamingTo(OutputStream)}).
+ *
+ * The sources of the documents are extracted by a pool of batchDownloadParallelism threads, in memory for small
+ * documents and in temporary files for the others. The calling thread writes the extracted sources in the zip in the
+ * order of the search results, so the zip content and the limits (number of files and zip size) are the same as with
+ * a sequential extraction. The sources extracted and not yet zipped are limited to batchDownloadBufferSize bytes
+ * (estimated with the content length of the documents).
+ *
+ * The embedded documents of a scroll page that have the same root document are extracted together, with one parse
+ * of the root document, when their estimated size fits in the buffer. The sources of such a group are extracted when
+ * its first document is reached, so the group can be extracted ahead of the buffer limit.
+ *
+ * The sources that would not shrink (see {@link CompressionProbe}) are stored in the zip. The others are deflated
+ * by the extraction threads and copied as raw entries by the zip writer, except for the encrypted downloads where
+ * zip4j deflates and encrypts the entries with AES while writing them.
+ *
+ * Before the scroll, a pre-flight count and sum of the content lengths of the results (see {@link #estimate()})
+ * tells if the download fits in the limits. If it doesn't, the documents are zipped from the smallest to the biggest.
+ */
 public class BatchDownloadRunner implements Callable<File>, Monitorable, UserTask {
     private final static Logger logger = LoggerFactory.getLogger(BatchDownloadRunner.class);
     static final int MAX_SCROLL_SIZE = 3500;
     static final int MAX_BATCH_RESULT_SIZE = 10000;
+    static final int MAX_MEMORY_SOURCE_SIZE = 1024 * 1024;
+    static final int UNKNOWN_SOURCE_SIZE = 1024 * 1024;
+    /** extraction throughput of one thread, for the duration estimates */
+    static final long EXTRACTION_BYTES_PER_SECOND = 10 * 1024 * 1024;
     volatile long docsToProcessSize = 0;
     private final AtomicInteger numberOfResults = new AtomicInteger(0);
+    private long zippedFilesSize = 0;
+    private long extractedBytes = 0;
 
     private final Indexer indexer;
     private final PropertiesProvider propertiesProvider;
     private final BatchDownload batchDownload;
     private final Function<TaskView<File>, Void> updateCallback;
     private final Function<URI, MailSender> mailSenderSupplier;
+    private final BatchDownloadCleaner cleaner;
+    private volatile OutputStream output;
 
     @Inject
-    public BatchDownloadRunner(Indexer indexer, PropertiesProvider propertiesProvider, @Assisted BatchDownload batchDownload, @Assisted Function<TaskView<File>, Void> updateCallback) {
+    public BatchDownloadRunner(Indexer indexer, PropertiesProvider propertiesProvider, BatchDownloadCleaner cleaner, @Assisted BatchDownload batchDownload, @Assisted Function<TaskView<File>, Void> updateCallback) {
+        this(indexer, propertiesProvider, batchDownload, updateCallback, MailSender::new, cleaner);
+    }
+
+    public BatchDownloadRunner(Indexer indexer, PropertiesProvider propertiesProvider, BatchDownload batchDownload, Function<TaskView<File>, Void> updateCallback) {
         this(indexer, propertiesProvider, batchDownload, updateCallback, MailSender::new);
     }
 
     BatchDownloadRunner(Indexer indexer, PropertiesProvider provider, BatchDownload batchDownload, Function<TaskView<File>, Void> updateCallback, Function<URI, MailSender> mailSenderSupplier) {
+        this(indexer, provider, batchDownload, updateCallback, mailSenderSupplier, null);
+    }
+
+    /**
+     * @param cleaner indexes the archives written by the runner so that they are deleted when they expire (null for no cleaner)
+     */
+    BatchDownloadRunner(Indexer indexer, PropertiesProvider provider, BatchDownload batchDownload, Function<TaskView<File>, Void> updateCallback,
+                        Function<URI, MailSender> mailSenderSupplier, BatchDownloadCleaner cleaner) {
         this.indexer = indexer;
         this.propertiesProvider = provider;
         this.batchDownload = batchDownload;
         this.updateCallback = updateCallback;
         this.mailSenderSupplier = mailSenderSupplier;
+        this.cleaner = cleaner;
+    }
+
+    /**
+     * the zip is written to the output stream while it is created, without temporary file, and call() returns null.
+     * The output stream is not closed. The encrypted downloads must be created on disk because the password
+     * is sent by mail.
+     */
+    public BatchDownloadRunner streamingTo(OutputStream output) {
+        if (batchDownload.encrypted) {
+            throw new IllegalStateException("encrypted batch download " + batchDownload.uuid + " cannot be streamed");
+        }
+        this.output = output;
+        return this;
     }
 
     @Override
     public File call() throws Exception {
+        if (output != null) {
+            stream(output);
+            return null;
+        }
+        if (!zip(() -> createZipper(batchDownload, propertiesProvider, mailSenderSupplier))) {
+            return null;
+        }
+        logger.info("created batch download file {} ({} bytes/{} entries) for user {}",
+                batchDownload.filename, Files.size(batchDownload.filename), numberOfResults, batchDownload.user.getId());
+        if (cleaner != null) {
+            cleaner.add(batchDownload.filename.toFile());
+        }
+        return batchDownload.filename.toFile();
+    }
+
+    private void stream(OutputStream output) throws Exception {
+        Callable<ZipArchiveOutputStream> zipOutputStream = () -> new ZipArchiveOutputStream(
+                new BufferedOutputStream(new CloseShieldOutputStream(output), Zipper.BUFFER_SIZE));
+        if (!zip(() -> new RawEntriesZipper(batchDownload, zipOutputStream.call()))) {
+            zipOutputStream.call().close();
+        }
+        logger.info("streamed batch download {} ({} bytes/{} entries) for user {}",
+                batchDownload.uuid, zippedFilesSize, numberOfResults, batchDownload.user.getId());
+    }
+
+    /**
+     * @return false if there is no result (the zipper is not created)
+     */
+    private boolean zip(Callable<Zipper> zipperFactory) throws Exception {
         int throttleMs = parseInt(propertiesProvider.get(BATCH_THROTTLE).orElse("0"));
         int maxResultSize = parseInt(propertiesProvider.get(BATCH_DOWNLOAD_MAX_NB_FILES).orElse(valueOf(MAX_BATCH_RESULT_SIZE)));
         int scrollSize = min(parseInt(propertiesProvider.get(SCROLL_SIZE).orElse("1000")), MAX_SCROLL_SIZE);
         long maxZipSizeBytes = HumanReadableSize.parse(propertiesProvider.get(BATCH_DOWNLOAD_MAX_SIZE).orElse("100M"));
-        long zippedFilesSize = 0;
+        int parallelism = max(1, parseInt(propertiesProvider.get(BATCH_DOWNLOAD_PARALLELISM).orElse("1")));
+        long bufferSize = HumanReadableSize.parse(propertiesProvider.get(BATCH_DOWNLOAD_BUFFER_SIZE).orElse("64M"));
 
         logger.info("running batch download for user {} on project {} with throttle {}ms and scroll size of {}",
                 batchDownload.user.getId(), batchDownload.projects, throttleMs, scrollSize);
-        Indexer.Searcher searcher = indexer.search(batchDownload.projects.stream().map(Project::getId).collect(toList()), Document.class).withoutSource("content").limit(scrollSize);
-        if (batchDownload.isJsonQuery()) {
-            searcher.set(batchDownload.queryAsJson());
-        } else {
-            searcher.with(batchDownload.query);
+        Indexer.Searcher searcher = createSearcher().limit(scrollSize);
+        if (indexer instanceof ElasticsearchIndexer) {
+            BatchDownloadEstimate estimate = estimate(searcher);
+            logger.info("batch download {} pre-flight : {}", batchDownload.uuid, estimate);
+            if (estimate.nbDocuments == 0) {
+                logger.warn("no results for batchDownload {}", batchDownload.uuid);
+                return false;
+            }
+            if (estimate.truncated) {
+                // the smallest documents first, to zip as many documents as possible within the limits
+                searcher = ((ElasticsearchIndexer) indexer).smallestFirst(searcher);
+            }
         }
         List<? extends Entity> docsToProcess = searcher.scroll().collect(toList());
         if (docsToProcess.size() == 0) {
             logger.warn("no results for batchDownload {}", batchDownload.uuid);
-            return null;
+            return false;
         }
         docsToProcessSize = searcher.totalHits();
         if (docsToProcessSize > maxResultSize) {
@@ -99,32 +222,194 @@ public class BatchDownloadRunner implements Callable<File>, Monitorable, UserTas
                     maxResultSize, batchDownload.uuid, batchDownload.user);
         }
 
-        try (Zipper zipper = createZipper(batchDownload, propertiesProvider, mailSenderSupplier)) {
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism,
+                new ThreadFactoryBuilder().setNameFormat("batch-download-" + batchDownload.uuid + "-%d").build());
+        Deque<PendingSource> pendingSources = new ArrayDeque<>();
+        boolean deflate = !batchDownload.encrypted;
+        List<Future<Map<String, ExtractedSource>>> extractions = new ArrayList<>();
+        try (Zipper zipper = zipperFactory.call()) {
             HashMap<String, Object> taskProperties = new HashMap<>();
             taskProperties.put("batchDownload", batchDownload);
-            while (docsToProcess.size() != 0) {
-                for (int i = 0; i < docsToProcess.size() && numberOfResults.get() < maxResultSize && zippedFilesSize <= maxZipSizeBytes; i++) {
-                    Entity doc = docsToProcess.get(i);
-                    int addedBytes = zipper.add((Document) doc);
-                    if (addedBytes > 0) {
-                        zippedFilesSize += addedBytes;
-                        numberOfResults.incrementAndGet();
-                        batchDownload.setZipSize(zippedFilesSize);
-                        updateCallback.apply(new TaskView<>(new MonitorableFutureTask<>(this, taskProperties)));
+            while (docsToProcess.size() != 0 && !limitReached(maxResultSize, maxZipSizeBytes)) {
+                Map<String, List<Document>> rootGroups = groupByRoot(docsToProcess, bufferSize);
+                Map<String, Future<Map<String, ExtractedSource>>> groupExtractions = new HashMap<>();
+                for (int i = 0; i < docsToProcess.size() && !limitReached(maxResultSize, maxZipSizeBytes); i++) {
+                    Document doc = (Document) docsToProcess.get(i);
+                    long size = estimatedSize(doc);
+                    // the extracted sources that may not be zipped are not extracted
+                    while (!pendingSources.isEmpty() && (extractedBytes + size > bufferSize ||
+                            numberOfResults.get() + pendingSources.size() >= maxResultSize ||
+                            zippedFilesSize + extractedBytes > maxZipSizeBytes)) {
+                        zipNext(zipper, pendingSources.poll(), maxResultSize, maxZipSizeBytes, taskProperties);
+                    }
+                    if (!limitReached(maxResultSize, maxZipSizeBytes)) {
+                        extractedBytes += size;
+                        List<Document> group = rootGroups.get(rootKey(doc));
+                        Future<Map<String, ExtractedSource>> extraction = group == null ? null : groupExtractions.get(rootKey(doc));
+                        if (extraction == null) {
+                            extraction = group == null ?
+                                    executor.submit(() -> extract(doc, deflate)) :
+                                    executor.submit(() -> extract(doc.getProject(), group, deflate));
+                            extractions.add(extraction);
+                            if (group != null) groupExtractions.put(rootKey(doc), extraction);
+                        }
+                        pendingSources.add(new PendingSource(doc, size, extraction));
                     }
                 }
                 docsToProcess = searcher.scroll().collect(toList());
             }
+            while (!pendingSources.isEmpty()) {
+                zipNext(zipper, pendingSources.poll(), maxResultSize, maxZipSizeBytes, taskProperties);
+            }
+        } finally {
+            shutdown(executor, extractions);
+        }
+        return true;
+    }
+
+    /**
+     * pre-flight sizing of the download with a count and a sum of the content lengths of the query results
+     *
+     * @return null if the indexer cannot aggregate the content lengths
+     */
+    public BatchDownloadEstimate estimate() throws IOException {
+        return indexer instanceof ElasticsearchIndexer ? estimate(createSearcher()) : null;
+    }
+
+    private BatchDownloadEstimate estimate(Indexer.Searcher searcher) throws IOException {
+        int maxResultSize = parseInt(propertiesProvider.get(BATCH_DOWNLOAD_MAX_NB_FILES).orElse(valueOf(MAX_BATCH_RESULT_SIZE)));
+        long maxZipSizeBytes = HumanReadableSize.parse(propertiesProvider.get(BATCH_DOWNLOAD_MAX_SIZE).orElse("100M"));
+        int parallelism = max(1, parseInt(propertiesProvider.get(BATCH_DOWNLOAD_PARALLELISM).orElse("1")));
+        return BatchDownloadEstimate.of(((ElasticsearchIndexer) indexer).documentsSize(searcher),
+                maxResultSize, maxZipSizeBytes, EXTRACTION_BYTES_PER_SECOND * parallelism);
+    }
+
+    private Indexer.Searcher createSearcher() {
+        List<String> indexes = batchDownload.projects.stream().map(Project::getId).collect(toList());
+        Indexer.Searcher searcher = indexer instanceof ElasticsearchIndexer ?
+                ((ElasticsearchIndexer) indexer).searchDocumentProjection(indexes) :
+                indexer.search(indexes, Document.class).withoutSource("content");
+        if (batchDownload.isJsonQuery()) {
+            searcher.set(batchDownload.queryAsJson());
+        } else {
+            searcher.with(batchDownload.query);
+        }
+        return searcher;
+    }
+
+    private boolean limitReached(int maxResultSize, long maxZipSizeBytes) {
+        return numberOfResults.get() >= maxResultSize || zippedFilesSize > maxZipSizeBytes;
+    }
+
+    /**
+     * @return the embedded documents of the page grouped by root document, for the groups of several documents
+     * that fit in the extraction buffer
+     */
+    private static Map<String, List<Document>> groupByRoot(List<? extends Entity> docs, long bufferSize) {
+        Map<String, List<Document>> groups = docs.stream().map(Document.class::cast).filter(doc -> !doc.isRootDocument())
+                .collect(groupingBy(BatchDownloadRunner::rootKey, LinkedHashMap::new, toList()));
+        groups.values().removeIf(group -> group.size() < 2 ||
+                group.stream().mapToLong(BatchDownloadRunner::estimatedSize).sum() > bufferSize);
+        return groups;
+    }
+
+    private static String rootKey(Document doc) {
+        return doc.getProject().getId() + "/" + doc.getRootDocument();
+    }
+
+    private static long estimatedSize(Document doc) {
+        return doc.getContentLength() == null ? UNKNOWN_SOURCE_SIZE : doc.getContentLength();
+    }
+
+    /**
+     * writes the next extracted source in the zip if the limits are not reached.
+     * A source is zipped as long as the zip size is below the max size, so the last file can exceed it.
+     */
+    private void zipNext(Zipper zipper, PendingSource pendingSource, int maxResultSize, long maxZipSizeBytes, HashMap<String, Object> taskProperties) throws Exception {
+        extractedBytes -= pendingSource.estimatedSize;
+        ExtractedSource source = get(pendingSource.extraction).remove(pendingSource.document.getId());
+        if (source == null) {
+            return;
+        }
+        try {
+            if (!limitReached(maxResultSize, maxZipSizeBytes)) {
+                long addedBytes = zipper.add(pendingSource.document, source);
+                if (addedBytes > 0) {
+                    zippedFilesSize += addedBytes;
+                    numberOfResults.incrementAndGet();
+                    batchDownload.setZipSize(zippedFilesSize);
+                    updateCallback.apply(new TaskView<>(new MonitorableFutureTask<>(this, taskProperties)));
+                }
+            }
+        } finally {
+            source.delete();
+        }
+    }
+
+    private static Map<String, ExtractedSource> get(Future<Map<String, ExtractedSource>> extraction) throws Exception {
+        try {
+            return extraction.get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+    }
+
+    /**
+     * @return the source of the document by id, or an empty map if it cannot be extracted (the document is skipped).
+     * The map is mutable as zipNext removes the zipped sources from it.
+     */
+    private static Map<String, ExtractedSource> extract(Document doc, boolean deflate) throws IOException {
+        try (InputStream from = new SourceExtractor().getSource(doc.getProject(), doc)) {
+            return new HashMap<>(singletonMap(doc.getId(), ExtractedSource.create(doc, from, deflate)));
+        } catch (ExtractException|ZipException|ContentNotFoundException zex) {
+            logger.warn("exception during extract. skipping entry for doc " + doc.getId(), zex);
+            return new HashMap<>();
+        }
+    }
+
+    /**
+     * @return the sources of the embedded documents of the same root document by id, without the documents
+     * that cannot be extracted
+     */
+    private static Map<String, ExtractedSource> extract(Project project, List<Document> documents, boolean deflate) throws IOException {
+        Map<String, Document> documentsById = documents.stream().collect(toMap(Document::getId, identity(), (d1, d2) -> d1));
+        Map<String, ExtractedSource> sources = new HashMap<>();
+        try {
+            new SourceExtractor().getEmbeddedSources(project, documents,
+                    (id, from) -> sources.put(id, ExtractedSource.create(documentsById.get(id), from, deflate)));
+        } catch (ZipException zex) {
+            logger.warn("exception during extract. skipping remaining entries for root doc " + documents.get(0).getRootDocument(), zex);
+        } catch (IOException | RuntimeException e) {
+            sources.values().forEach(ExtractedSource::delete);
+            throw e;
+        }
+        return sources;
+    }
+
+    /**
+     * the sources extracted and not zipped (when the call is interrupted by an error or when the limits are reached
+     * before the end of a root document group) are deleted
+     */
+    private void shutdown(ExecutorService executor, List<Future<Map<String, ExtractedSource>>> extractions) throws InterruptedException {
+        executor.shutdownNow();
+        if (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+            logger.warn("some sources of batch download {} are still extracted after shutdown", batchDownload.uuid);
+        }
+        for (Future<Map<String, ExtractedSource>> extraction : extractions) {
+            if (extraction.isDone() && !extraction.isCancelled()) {
+                try {
+                    extraction.get().values().forEach(ExtractedSource::delete);
+                } catch (ExecutionException e) {
+                    logger.debug("extraction failed for batch download {}", batchDownload.uuid, e);
+                }
+            }
         }
-        logger.info("created batch download file {} ({} bytes/{} entries) for user {}",
-                batchDownload.filename, Files.size(batchDownload.filename), numberOfResults, batchDownload.user.getId());
-        return batchDownload.filename.toFile();
     }
 
     private Zipper createZipper(BatchDownload batchDownload, PropertiesProvider propertiesProvider, Function<URI, MailSender> mailSenderSupplier) throws URISyntaxException, IOException {
         return batchDownload.encrypted ?
                 new ZipperWithPassword(batchDownload, mailSenderSupplier.apply(new URI(propertiesProvider.get("smtpUrl").orElse("smtp://localhost:25")))):
-                new Zipper(batchDownload);
+                new RawEntriesZipper(batchDownload);
     }
 
     @Override
@@ -142,47 +427,185 @@ public class BatchDownloadRunner implements Callable<File>, Monitorable, UserTas
         return getClass().getName() + "@" + batchDownload.uuid;
     }
 
-    private static class Zipper implements AutoCloseable {
-        protected final BatchDownload batchDownload;
-        protected final ZipOutputStream zipOutputStream;
+    private static class PendingSource {
+        final Document document;
+        final long estimatedSize;
+        final Future<Map<String, ExtractedSource>> extraction;
 
-        protected Zipper(BatchDownload batchDownload) throws IOException {
-            this(batchDownload, new ZipOutputStream(new FileOutputStream(batchDownload.filename.toFile())));
+        PendingSource(Document document, long estimatedSize, Future<Map<String, ExtractedSource>> extraction) {
+            this.document = document;
+            this.estimatedSize = estimatedSize;
+            this.extraction = extraction;
         }
+    }
 
-        protected Zipper(BatchDownload batchDownload, ZipOutputStream zipOutputStream) {
-            this.batchDownload = batchDownload;
-            this.zipOutputStream = zipOutputStream;
+    /**
+     * source of a document extracted in memory or in a temporary file, with its CRC and its compressibility.
+     * When the download is not encrypted, the compressible sources are also deflated by the extraction thread,
+     * so the zip entries are deflated in parallel and the zip writer only copies them.
+     */
+    private static class ExtractedSource {
+        final Buffer content;
+        final Buffer deflated;
+        final long crc;
+        final boolean compressible;
+
+        private ExtractedSource(Buffer content, Buffer deflated, long crc, boolean compressible) {
+            this.content = content;
+            this.deflated = deflated;
+            this.crc = crc;
+            this.compressible = compressible;
         }
 
-        public int add(Document doc) throws IOException {
-            try (InputStream from = new SourceExtractor().getSource(doc.getProject(), doc)) {
-                int zippedSize = 0;
-                zipOutputStream.putNextEntry(createEntry(getEntryName(doc)));
-                byte[] buffer = new byte[4096];
-                int len;
-                while ((len = from.read(buffer)) > 0) {
-                    zipOutputStream.write(buffer, 0, len);
-                    zippedSize += len;
+        static ExtractedSource create(Document doc, InputStream from, boolean deflate) throws IOException {
+            CRC32 crc = new CRC32();
+            Buffer content = Buffer.write(doc.getContentLength() == null ? -1 : doc.getContentLength(),
+                    out -> IOUtils.copy(new CheckedInputStream(from, crc), out));
+            try {
+                boolean compressible;
+                try (InputStream head = content.openStream()) {
+                    compressible = CompressionProbe.isCompressible(doc.getContentType(), head);
+                }
+                Buffer deflated = deflate && compressible ? Buffer.write(content.size, out -> {
+                    Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+                    try (InputStream in = content.openStream();
+                         DeflaterOutputStream deflaterOut = new DeflaterOutputStream(out, deflater, Zipper.BUFFER_SIZE)) {
+                        IOUtils.copy(in, deflaterOut);
+                    } finally {
+                        deflater.end();
+                    }
+                }) : null;
+                if (deflated != null && deflated.size >= content.size) {
+                    deflated.delete();
+                    deflated = null;
+                }
+                return new ExtractedSource(content, deflated, crc.getValue(), compressible);
+            } catch (IOException | RuntimeException e) {
+                content.delete();
+                throw e;
+            }
+        }
+
+        long size() {
+            return content.size;
+        }
+
+        void delete() {
+            content.delete();
+            if (deflated != null) deflated.delete();
+        }
+    }
+
+    /**
+     * bytes in memory for the small contents, in a temporary file for the others
+     */
+    private static class Buffer {
+        private byte[] bytes;
+        private final Path file;
+        final long size;
+
+        private Buffer(byte[] bytes, Path file, long size) {
+            this.bytes = bytes;
+            this.file = file;
+            this.size = size;
+        }
+
+        /**
+         * @param expectedSize the size of the content or -1 if unknown
+         */
+        static Buffer write(long expectedSize, ContentWriter writer) throws IOException {
+            if (expectedSize >= 0 && expectedSize <= MAX_MEMORY_SOURCE_SIZE) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream((int) expectedSize);
+                writer.writeTo(out);
+                return new Buffer(out.toByteArray(), null, out.size());
+            }
+            Path file = Files.createTempFile("datashare-batch-download-", ".src");
+            try {
+                try (OutputStream out = Files.newOutputStream(file)) {
+                    writer.writeTo(out);
+                }
+                return new Buffer(null, file, Files.size(file));
+            } catch (IOException | RuntimeException e) {
+                Files.deleteIfExists(file);
+                throw e;
+            }
+        }
+
+        InputStream openStream() throws IOException {
+            return bytes != null ? new ByteArrayInputStream(bytes) : Files.newInputStream(file);
+        }
+
+        void delete() {
+            bytes = null;
+            if (file != null) {
+                try {
+                    Files.deleteIfExists(file);
+                } catch (IOException e) {
+                    logger.warn("cannot delete temporary source {}", file, e);
                 }
-                zipOutputStream.closeEntry();
-                return zippedSize;
-            } catch (ExtractException|ZipException|ContentNotFoundException zex) {
-                logger.warn("exception during extract/zip. skipping entry for doc " + doc.getId(), zex);
-                return 0;
             }
         }
+    }
+
+    private interface ContentWriter {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    /**
+     * zip entries are added with the uncompressed size of the source, that is returned by add
+     */
+    private abstract static class Zipper implements AutoCloseable {
+        static final int BUFFER_SIZE = 64 * 1024;
+        protected final BatchDownload batchDownload;
+
+        protected Zipper(BatchDownload batchDownload) {
+            this.batchDownload = batchDownload;
+        }
 
-        protected ZipParameters createEntry(String entryName) {
-            ZipParameters zipParams = new ZipParameters();
-            zipParams.setFileNameInZip(entryName);
-            return zipParams;
+        public long add(Document doc, ExtractedSource source) throws IOException {
+            try {
+                addEntry(getEntryName(doc), source);
+                return source.size();
+            } catch (ZipException zex) {
+                logger.warn("exception during zip. skipping entry for doc " + doc.getId(), zex);
+                return 0;
+            }
         }
 
+        protected abstract void addEntry(String entryName, ExtractedSource source) throws IOException;
+
         @NotNull
         private String getEntryName(Document doc) {
             return doc.getPath().isAbsolute() ? doc.getPath().toString().substring(1) : doc.getPath().toString();
         }
+    }
+
+    /**
+     * copies the sources deflated by the extraction threads as raw entries, and stores the incompressible ones
+     */
+    private static class RawEntriesZipper extends Zipper {
+        private final ZipArchiveOutputStream zipOutputStream;
+
+        RawEntriesZipper(BatchDownload batchDownload) throws IOException {
+            this(batchDownload, new ZipArchiveOutputStream(batchDownload.filename.toFile()));
+        }
+
+        RawEntriesZipper(BatchDownload batchDownload, ZipArchiveOutputStream zipOutputStream) {
+            super(batchDownload);
+            this.zipOutputStream = zipOutputStream;
+        }
+
+        @Override
+        protected void addEntry(String entryName, ExtractedSource source) throws IOException {
+            ZipArchiveEntry entry = new ZipArchiveEntry(entryName);
+            entry.setMethod(source.deflated == null ? ZipEntry.STORED : ZipEntry.DEFLATED);
+            entry.setSize(source.size());
+            entry.setCompressedSize(source.deflated == null ? source.size() : source.deflated.size);
+            entry.setCrc(source.crc);
+            try (InputStream raw = (source.deflated == null ? source.content : source.deflated).openStream()) {
+                zipOutputStream.addRawArchiveEntry(entry, raw);
+            }
+        }
 
         @Override
         public void close() throws Exception {
@@ -190,7 +613,12 @@ public class BatchDownloadRunner implements Callable<File>, Monitorable, UserTas
         }
     }
 
+    /**
+     * zip4j deflates and encrypts the entries with AES on the writer thread. The incompressible sources are
+     * only encrypted.
+     */
     private static class ZipperWithPassword extends Zipper {
+        private final ZipOutputStream zipOutputStream;
         private final String password;
         private final MailSender passwordSender;
 
@@ -199,17 +627,27 @@ public class BatchDownloadRunner implements Callable<File>, Monitorable, UserTas
         }
 
         public ZipperWithPassword(BatchDownload batchDownload, MailSender mailSender, String password) throws IOException {
-            super(batchDownload, new ZipOutputStream(new FileOutputStream(batchDownload.filename.toFile()), password.toCharArray()));
+            super(batchDownload);
+            this.zipOutputStream = new ZipOutputStream(new FileOutputStream(batchDownload.filename.toFile()), password.toCharArray());
             this.password = password;
             this.passwordSender = mailSender;
         }
 
         @Override
-        protected ZipParameters createEntry(String entryName) {
-            ZipParameters entry = super.createEntry(entryName);
+        protected void addEntry(String entryName, ExtractedSource source) throws IOException {
+            ZipParameters entry = new ZipParameters();
+            entry.setFileNameInZip(entryName);
             entry.setEncryptFiles(true);
             entry.setEncryptionMethod(EncryptionMethod.AES);
-            return entry;
+            if (!source.compressible) {
+                entry.setCompressionMethod(CompressionMethod.STORE);
+                entry.setEntrySize(source.size());
+            }
+            zipOutputStream.putNextEntry(entry);
+            try (InputStream from = source.content.openStream()) {
+                IOUtils.copy(from, zipOutputStream);
+            }
+            zipOutputStream.closeEntry();
         }
 
         @Override
@@ -0,0 +1,14 @@
+package org.icij.datashare.tasks;
+
+/**
+ * Result consumers implementing this interface keep track of the queries that have been fully run,
+ * so that a batch search that is queued again (cancelled or reclaimed) only runs the remaining queries.
+ */
+public interface BatchSearchCheckpoints {
+    boolean isDone(String query);
+
+    /**
+     * called when all the results of the query have been given to the consumer
+     */
+    void queryDone(String query);
+}
@@ -1,87 +1,282 @@
 package org.icij.datashare.tasks;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.Inject;
+import org.icij.datashare.PropertiesProvider;
 import org.icij.datashare.batch.BatchSearch;
 import org.icij.datashare.batch.BatchSearchRecord;
 import org.icij.datashare.batch.BatchSearchRepository;
 import org.icij.datashare.batch.SearchException;
 import org.icij.datashare.db.JooqBatchSearchRepository;
+import org.icij.datashare.function.TerFunction;
+import org.icij.datashare.text.Document;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import sun.misc.Signal;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.util.List;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicReference;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import static java.util.Optional.ofNullable;
+import static java.lang.Integer.parseInt;
+import static java.util.stream.Collectors.toList;
+import static java.util.stream.IntStream.range;
+import static org.icij.datashare.cli.DatashareCliOptions.*;
 
+/**
+ * Runs the batch searches posted in the batch search queue with <code>batchSearchWorkers</code> worker threads.
+ *
+ * With a database repository, several loops (in one or several processes) can share the same queue :
+ * each worker claims the batch search in the database before running it, and sends heartbeats while it is running.
+ * The batch searches of workers that stopped sending heartbeats are queued again by the other loops.
+ * The queries are checkpointed when they are done, so a batch search queued again is resumed from its remaining queries.
+ *
+ * A batch search of a user that has already batchSearchMaxRunningPerUser running batch searches stays QUEUED in the
+ * database. It is put back in the queue when a batch search of this loop is done, or at the next heartbeat
+ * (for the batch searches done by other loops).
+ */
 public class BatchSearchLoop {
     private final Logger logger = LoggerFactory.getLogger(getClass());
     final BlockingQueue<String> batchSearchQueue;
     private final TaskFactory factory;
-    final AtomicReference<BatchSearchRunner> currentBatchSearchRunner = new AtomicReference<>();
+    final Map<String, RunningBatchSearch> runningBatchSearches = new ConcurrentHashMap<>();
+    private final Set<String> reclaimedBatchSearches = ConcurrentHashMap.newKeySet();
+    private final Set<String> deferredBatchSearches = ConcurrentHashMap.newKeySet();
     private static final String POISON = "poison";
     private final BatchSearchRepository repository;
     private final CountDownLatch waitForMainLoopCalled; // for tests only
+    private final int nbWorkers;
+    private final int maxRunningPerUser;
+    private final long heartbeatTimeoutMillis;
+    private final AtomicInteger activeWorkers = new AtomicInteger(0);
+    private final Set<Thread> loopThreads = ConcurrentHashMap.newKeySet();
     private volatile boolean exitAsked = false;
-    private volatile Thread loopThread;
 
     @Inject
+    public BatchSearchLoop(BatchSearchRepository batchSearchRepository, BlockingQueue<String> batchSearchQueue, TaskFactory factory, PropertiesProvider propertiesProvider) {
+        this(batchSearchRepository, batchSearchQueue, factory, propertiesProvider, new CountDownLatch(1));
+    }
+
     public BatchSearchLoop(BatchSearchRepository batchSearchRepository, BlockingQueue<String> batchSearchQueue, TaskFactory factory) {
-        this(batchSearchRepository, batchSearchQueue, factory, new CountDownLatch(1));
+        this(batchSearchRepository, batchSearchQueue, factory, new PropertiesProvider());
     }
 
     BatchSearchLoop(BatchSearchRepository repository, BlockingQueue<String> batchSearchQueue, TaskFactory factory, CountDownLatch countDownLatch) {
+        this(repository, batchSearchQueue, factory, new PropertiesProvider(), countDownLatch);
+    }
+
+    BatchSearchLoop(BatchSearchRepository repository, BlockingQueue<String> batchSearchQueue, TaskFactory factory,
+                    PropertiesProvider propertiesProvider, CountDownLatch countDownLatch) {
         this.repository = repository;
         this.batchSearchQueue = batchSearchQueue;
         this.factory = factory;
         this.waitForMainLoopCalled = countDownLatch;
+        this.nbWorkers = Math.max(1, parseInt(propertiesProvider.get(BATCH_SEARCH_WORKERS).orElse("1")));
+        this.maxRunningPerUser = parseInt(propertiesProvider.get(BATCH_SEARCH_MAX_RUNNING_PER_USER).orElse("0"));
+        this.heartbeatTimeoutMillis = parseInt(propertiesProvider.get(BATCH_SEARCH_HEARTBEAT_TIMEOUT).orElse("60")) * 1000L;
         Signal.handle(new Signal("TERM"), signal -> {
             exitAsked = true;
-            ofNullable(currentBatchSearchRunner.get()).ifPresent(BatchSearchRunner::cancel);
-            ofNullable(loopThread).ifPresent(Thread::interrupt); // for interrupting poll
+            runningBatchSearches.values().forEach(running -> running.runner.cancel());
+            loopThreads.forEach(Thread::interrupt); // for interrupting poll
         });
     }
 
     public void run() {
-        logger.info("Datashare running in batch mode. Waiting batch from ds:batchsearch.queue ({})", batchSearchQueue.getClass());
-        String currentBatchId = null;
+        logger.info("Datashare running in batch mode with {} worker(s). Waiting batch from ds:batchsearch.queue ({})", nbWorkers, batchSearchQueue.getClass());
+        if (nbWorkers == 1) {
+            loopThreads.add(Thread.currentThread());
+        }
         waitForMainLoopCalled.countDown();
-        loopThread = Thread.currentThread();
+        ScheduledExecutorService heartbeats = startHeartbeats();
+        activeWorkers.set(nbWorkers);
+        String workerPrefix = ManagementFactory.getRuntimeMXBean().getName();
+        if (nbWorkers == 1) {
+            workerLoop(workerPrefix + "-0");
+        } else {
+            List<Thread> workers = range(0, nbWorkers).mapToObj(i ->
+                    new Thread(() -> workerLoop(workerPrefix + "-" + i), "batch-search-worker-" + i)).collect(toList());
+            workers.forEach(Thread::start);
+            for (Thread worker : workers) {
+                try {
+                    worker.join();
+                } catch (InterruptedException e) {
+                    logger.warn("interrupted while waiting for {}", worker.getName());
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+        if (heartbeats != null) {
+            heartbeats.shutdownNow();
+        }
+        logger.info("exiting main loop");
+    }
+
+    private void workerLoop(String workerId) {
+        loopThreads.add(Thread.currentThread());
+        String currentBatchId = null;
         while (!POISON.equals(currentBatchId) && !exitAsked) {
+            boolean done = false;
             try {
                 currentBatchId = batchSearchQueue.poll(60, TimeUnit.SECONDS);
                 if (currentBatchId != null && !POISON.equals(currentBatchId)) {
-                    BatchSearch batchSearch = repository.get(currentBatchId);
-                    if (batchSearch.state == BatchSearchRecord.State.QUEUED) {
-                        repository.setState(batchSearch.uuid, BatchSearchRecord.State.RUNNING);
-                        currentBatchSearchRunner.set(factory.createBatchSearchRunner(batchSearch, repository::saveResults));
-                        currentBatchSearchRunner.get().call();
-                        currentBatchSearchRunner.set(null);
-                        repository.setState(batchSearch.uuid, BatchSearchRecord.State.SUCCESS);
-                    } else {
-                        logger.warn("batch search {} not ran because in state {}", batchSearch.uuid, batchSearch.state);
-                    }
+                    done = runBatchSearch(currentBatchId, workerId);
                 }
             } catch (JooqBatchSearchRepository.BatchNotFoundException notFound) {
                 logger.warn("batch was not executed : {}", notFound.toString());
             } catch (BatchSearchRunner.CancelException cancelEx) {
-                logger.info("cancelling batch search {}", currentBatchId);
-                batchSearchQueue.offer(currentBatchId);
-                repository.reset(currentBatchId);
+                if (reclaimedBatchSearches.remove(currentBatchId)) {
+                    logger.warn("batch search {} has been reclaimed by another worker, it has been stopped", currentBatchId);
+                } else {
+                    logger.info("cancelling batch search {}", currentBatchId);
+                    requeue(currentBatchId);
+                    batchSearchQueue.offer(currentBatchId);
+                }
+                done = true;
             } catch (SearchException sex) {
                 logger.error("exception while running batch " + currentBatchId, sex);
                 repository.setState(currentBatchId, sex);
+                done = true;
             } catch (InterruptedException e) {
                 logger.warn("main loop interrupted");
             }
+            if (done) {
+                queueDeferred();
+            }
+        }
+        loopThreads.remove(Thread.currentThread());
+        if (activeWorkers.decrementAndGet() > 0 && POISON.equals(currentBatchId)) {
+            enqueuePoison(); // for the other workers
+        }
+    }
+
+    /**
+     * @return true if the batch search has been run
+     */
+    private boolean runBatchSearch(String batchId, String workerId) {
+        BatchSearch batchSearch = repository.get(batchId);
+        if (batchSearch.state != BatchSearchRecord.State.QUEUED) {
+            logger.warn("batch search {} not ran because in state {}", batchSearch.uuid, batchSearch.state);
+            return false;
+        }
+        if (!claim(batchSearch, workerId)) {
+            return false;
+        }
+        BatchSearchResultWriter writer = null;
+        if (repository instanceof JooqBatchSearchRepository) {
+            writer = new BatchSearchResultWriter(batchId, (JooqBatchSearchRepository) repository);
+        }
+        TerFunction<String, String, List<Document>, Boolean> resultConsumer = writer == null ? repository::saveResults : writer;
+        try {
+            BatchSearchRunner batchSearchRunner = factory.createBatchSearchRunner(batchSearch, resultConsumer);
+            runningBatchSearches.put(batchId, new RunningBatchSearch(batchSearchRunner, workerId));
+            batchSearchRunner.call();
+        } catch (BatchSearchRunner.CancelException cancelEx) {
+            if (writer != null) {
+                if (reclaimedBatchSearches.contains(batchId)) {
+                    writer.abort(); // the batch search is owned by another worker
+                } else {
+                    closeWriter(writer, cancelEx); // saves the done queries for the next run
+                }
+            }
+            throw cancelEx;
+        } catch (RuntimeException ex) {
+            if (writer != null) closeWriter(writer, ex);
+            throw ex;
+        } finally {
+            runningBatchSearches.remove(batchId);
+        }
+        if (writer != null) writer.close();
+        repository.setState(batchSearch.uuid, BatchSearchRecord.State.SUCCESS);
+        return true;
+    }
+
+    private void closeWriter(BatchSearchResultWriter writer, RuntimeException runEx) {
+        try {
+            writer.close();
+        } catch (SearchException writeEx) {
+            runEx.addSuppressed(writeEx);
+        }
+    }
+
+    /**
+     * with a database repository, the done queries and their results are kept : the batch search
+     * is resumed from its remaining queries. Else it is run again from the beginning.
+     */
+    private void requeue(String batchId) {
+        if (repository instanceof JooqBatchSearchRepository) {
+            ((JooqBatchSearchRepository) repository).requeue(batchId);
+        } else {
+            repository.reset(batchId);
+        }
+    }
+
+    private boolean claim(BatchSearch batchSearch, String workerId) {
+        if (!(repository instanceof JooqBatchSearchRepository)) {
+            repository.setState(batchSearch.uuid, BatchSearchRecord.State.RUNNING);
+            return true;
+        }
+        switch (((JooqBatchSearchRepository) repository).claim(batchSearch.uuid, workerId, maxRunningPerUser)) {
+            case CLAIMED:
+                return true;
+            case USER_LIMIT_REACHED:
+                logger.info("user {} has {} running batch searches, batch search {} stays queued",
+                        batchSearch.user.id, maxRunningPerUser, batchSearch.uuid);
+                deferredBatchSearches.add(batchSearch.uuid);
+                return false;
+            default:
+                logger.warn("batch search {} has already been claimed by another worker", batchSearch.uuid);
+                return false;
         }
-        logger.info("exiting main loop");
+    }
+
+    /**
+     * puts back in the queue the batch searches that were not claimed because of the user limit
+     */
+    private void queueDeferred() {
+        for (String batchId : deferredBatchSearches) {
+            if (deferredBatchSearches.remove(batchId)) {
+                batchSearchQueue.offer(batchId);
+            }
+        }
+    }
+
+    private ScheduledExecutorService startHeartbeats() {
+        if (!(repository instanceof JooqBatchSearchRepository)) {
+            return null;
+        }
+        JooqBatchSearchRepository jooqRepository = (JooqBatchSearchRepository) repository;
+        long periodMillis = Math.max(1000, heartbeatTimeoutMillis / 3);
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("batch-search-heartbeat-%d").setDaemon(true).build());
+        scheduler.scheduleAtFixedRate(() -> {
+            try {
+                sendHeartbeats(jooqRepository);
+                List<String> reclaimed = jooqRepository.reclaimExpired(heartbeatTimeoutMillis);
+                if (!reclaimed.isEmpty()) {
+                    logger.info("queuing again batch searches {} without heartbeat for {}ms", reclaimed, heartbeatTimeoutMillis);
+                    batchSearchQueue.addAll(reclaimed);
+                }
+                queueDeferred();
+            } catch (RuntimeException ex) {
+                logger.error("error while sending batch search heartbeats", ex);
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+        return scheduler;
+    }
+
+    private void sendHeartbeats(JooqBatchSearchRepository jooqRepository) {
+        runningBatchSearches.forEach((batchId, running) -> {
+            if (!jooqRepository.heartbeat(batchId, running.workerId)) {
+                logger.error("batch search {} is not owned by {} anymore, cancelling it", batchId, running.workerId);
+                reclaimedBatchSearches.add(batchId);
+                running.runner.cancelAsked = true;
+            }
+        });
     }
 
     public Integer requeueDatabaseBatches() {
@@ -101,4 +296,14 @@ public class BatchSearchLoop {
         }
         repository.close();
     }
+
+    static class RunningBatchSearch {
+        final BatchSearchRunner runner;
+        final String workerId;
+
+        RunningBatchSearch(BatchSearchRunner runner, String workerId) {
+            this.runner = runner;
+            this.workerId = workerId;
+        }
+    }
 }
@@ -0,0 +1,24 @@
+package org.icij.datashare.tasks;
+
+/**
+ * Result consumers implementing this interface can reuse the results of a query already done by another
+ * batch search with the same cache key, instead of running the query again.
+ */
+public interface BatchSearchResultCache extends BatchSearchCheckpoints {
+    /**
+     * @return the number of cached results for this key or -1 if there are none
+     */
+    int cachedResultsCount(String cacheKey);
+
+    /**
+     * copies the cached results for the query and marks it as done
+     *
+     * @return the number of copied results or -1 if there are none
+     */
+    int copyCachedResults(String query, String cacheKey);
+
+    /**
+     * marks the query as done, and its results as reusable with the given cache key
+     */
+    void queryDone(String query, String cacheKey);
+}
@@ -0,0 +1,221 @@
+package org.icij.datashare.tasks;
+
+import org.icij.datashare.batch.SearchException;
+import org.icij.datashare.db.JooqBatchSearchRepository;
+import org.icij.datashare.db.JooqBatchSearchRepository.ResultPage;
+import org.icij.datashare.function.TerFunction;
+import org.icij.datashare.text.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.BiFunction;
+
+/**
+ * Result consumer of a batch search that saves the results in a dedicated thread, so that
+ * the next scroll is not waiting for the database.
+ *
+ * Pages are queued in a bounded queue (the search is blocked when it is full). The writer thread
+ * takes all the queued pages up to maxDocumentsPerFlush documents and saves them in one call.
+ * A write error is thrown to the search at its next page, and by close().
+ *
+ * The done query markers go through the same queue, so a query is checkpointed with its last results.
+ * When it is created with the repository, the results of the queries done by other batch searches
+ * can be copied in the database (see BatchSearchResultCache), and the batch search can be run incrementally
+ * from a previous one : its results are merged with the new results of each query when it is done.
+ */
+public class BatchSearchResultWriter implements TerFunction<String, String, List<Document>, Boolean>, BatchSearchResultCache, IncrementalBatchSearch {
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    static final int DEFAULT_QUEUE_CAPACITY = 16;
+    static final int DEFAULT_MAX_DOCUMENTS_PER_FLUSH = 10000;
+    private static final ResultPage END = new ResultPage(null, new ArrayList<>());
+
+    private final String batchSearchId;
+    private final BiFunction<String, List<ResultPage>, Boolean> saveFunction;
+    private final int maxDocumentsPerFlush;
+    private final BlockingQueue<ResultPage> pages;
+    private final Thread writerThread;
+    private final Set<String> doneQueries;
+    private final JooqBatchSearchRepository repository;
+    private final String previousBatchId;
+    private final Date previousHighWaterMark;
+    private volatile Date highWaterMark;
+    private volatile boolean aborted = false;
+    private volatile SearchException error;
+
+    public BatchSearchResultWriter(String batchSearchId, BiFunction<String, List<ResultPage>, Boolean> saveFunction) {
+        this(batchSearchId, saveFunction, new HashSet<>());
+    }
+
+    public BatchSearchResultWriter(String batchSearchId, BiFunction<String, List<ResultPage>, Boolean> saveFunction, Set<String> doneQueries) {
+        this(batchSearchId, saveFunction, doneQueries, DEFAULT_QUEUE_CAPACITY, DEFAULT_MAX_DOCUMENTS_PER_FLUSH);
+    }
+
+    public BatchSearchResultWriter(String batchSearchId, JooqBatchSearchRepository repository) {
+        this(batchSearchId, repository::saveResultPages, repository, repository.getDoneQueries(batchSearchId), DEFAULT_QUEUE_CAPACITY, DEFAULT_MAX_DOCUMENTS_PER_FLUSH);
+    }
+
+    BatchSearchResultWriter(String batchSearchId, BiFunction<String, List<ResultPage>, Boolean> saveFunction, int queueCapacity, int maxDocumentsPerFlush) {
+        this(batchSearchId, saveFunction, new HashSet<>(), queueCapacity, maxDocumentsPerFlush);
+    }
+
+    BatchSearchResultWriter(String batchSearchId, BiFunction<String, List<ResultPage>, Boolean> saveFunction, Set<String> doneQueries, int queueCapacity, int maxDocumentsPerFlush) {
+        this(batchSearchId, saveFunction, null, doneQueries, queueCapacity, maxDocumentsPerFlush);
+    }
+
+    private BatchSearchResultWriter(String batchSearchId, BiFunction<String, List<ResultPage>, Boolean> saveFunction, JooqBatchSearchRepository repository,
+                                    Set<String> doneQueries, int queueCapacity, int maxDocumentsPerFlush) {
+        this.batchSearchId = batchSearchId;
+        this.repository = repository;
+        String previousId = repository == null ? null : repository.getPreviousBatchSearch(batchSearchId);
+        this.previousHighWaterMark = previousId == null ? null : repository.getHighWaterMark(previousId);
+        this.previousBatchId = previousHighWaterMark == null ? null : previousId;
+        this.doneQueries = ConcurrentHashMap.newKeySet();
+        this.doneQueries.addAll(doneQueries);
+        this.saveFunction = saveFunction;
+        this.maxDocumentsPerFlush = maxDocumentsPerFlush;
+        this.pages = new LinkedBlockingQueue<>(queueCapacity);
+        this.writerThread = new Thread(this::writeLoop, "batch-search-writer-" + batchSearchId);
+        this.writerThread.start();
+    }
+
+    @Override
+    public Boolean apply(String batchSearchId, String query, List<Document> documents) {
+        if (error != null) {
+            throw error;
+        }
+        put(new ResultPage(query, documents));
+        return true;
+    }
+
+    @Override
+    public boolean isDone(String query) {
+        return doneQueries.contains(query);
+    }
+
+    @Override
+    public void queryDone(String query) {
+        queryDone(query, null);
+    }
+
+    @Override
+    public void queryDone(String query, String cacheKey) {
+        if (error != null) {
+            throw error;
+        }
+        if (doneQueries.add(query)) {
+            put(ResultPage.queryDone(query, cacheKey, previousBatchId));
+        }
+    }
+
+    @Override
+    public Date previousHighWaterMark() {
+        return previousHighWaterMark;
+    }
+
+    /**
+     * the high-water mark is saved by close() when all the results have been written
+     */
+    @Override
+    public void highWaterMark(Date highWaterMark) {
+        this.highWaterMark = highWaterMark;
+    }
+
+    @Override
+    public int cachedResultsCount(String cacheKey) {
+        return repository == null ? -1 : repository.cachedResultsCount(batchSearchId, cacheKey);
+    }
+
+    /**
+     * the results are copied by the calling thread : they don't depend on the pages queued for the other queries
+     */
+    @Override
+    public int copyCachedResults(String query, String cacheKey) {
+        if (repository == null) {
+            return -1;
+        }
+        int nbResults = repository.copyCachedResults(batchSearchId, query, cacheKey);
+        if (nbResults >= 0) {
+            doneQueries.add(query);
+        }
+        return nbResults;
+    }
+
+    private void put(ResultPage page) {
+        try {
+            pages.put(page);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SearchException(page.query, e);
+        }
+    }
+
+    /**
+     * waits for all the queued pages to be saved, then saves the high-water mark of the run
+     */
+    public void close() {
+        stopWriter();
+        if (error != null) {
+            throw error;
+        }
+        if (repository != null && highWaterMark != null && !aborted) {
+            repository.setHighWaterMark(batchSearchId, highWaterMark);
+        }
+    }
+
+    /**
+     * drops the queued pages and waits for the write in progress (if any) to end
+     */
+    public void abort() {
+        aborted = true;
+        pages.clear();
+        stopWriter();
+    }
+
+    private void stopWriter() {
+        try {
+            if (writerThread.isAlive()) {
+                pages.put(END);
+            }
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.warn("interrupted while waiting for the results of {} to be written", batchSearchId);
+        }
+    }
+
+    private void writeLoop() {
+        boolean end = false;
+        while (!end) {
+            List<ResultPage> toSave = new ArrayList<>();
+            try {
+                ResultPage page = pages.take();
+                int nbDocuments = 0;
+                while (page != null && page != END) {
+                    toSave.add(page);
+                    nbDocuments += page.documents.size();
+                    page = nbDocuments < maxDocumentsPerFlush ? pages.poll() : null;
+                }
+                end = page == END;
+            } catch (InterruptedException e) {
+                logger.warn("writer of {} interrupted", batchSearchId);
+                end = true;
+            }
+            if (!toSave.isEmpty() && !aborted && error == null) {
+                try {
+                    saveFunction.apply(batchSearchId, toSave);
+                } catch (RuntimeException ex) {
+                    logger.error("cannot save results of batch search {}", batchSearchId, ex);
+                    error = new SearchException(toSave.get(0).query, ex);
+                }
+            }
+        }
+    }
+}
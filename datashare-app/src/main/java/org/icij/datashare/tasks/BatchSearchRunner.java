@@ -1,5 +1,8 @@
 package org.icij.datashare.tasks;
 
+import com.google.common.collect.Lists;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.Inject;
 import com.google.inject.assistedinject.Assisted;
 import org.elasticsearch.ElasticsearchStatusException;
@@ -14,6 +17,7 @@ import org.icij.datashare.monitoring.Monitorable;
 import org.icij.datashare.text.Document;
 import org.icij.datashare.text.Project;
 import org.icij.datashare.text.indexing.Indexer;
+import org.icij.datashare.text.indexing.elasticsearch.ElasticsearchIndexer;
 import org.icij.datashare.time.DatashareTime;
 import org.icij.datashare.user.User;
 import org.icij.datashare.user.UserTask;
@@ -21,15 +25,28 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Date;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
+import static java.lang.Integer.max;
 import static java.lang.Integer.min;
 import static java.lang.Integer.parseInt;
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.Arrays.stream;
 import static java.util.stream.Collectors.toList;
 import static org.icij.datashare.cli.DatashareCliOptions.*;
@@ -46,13 +63,25 @@ public class BatchSearchRunner implements Callable<Integer>, Monitorable, UserTa
      */
     static final int MAX_SCROLL_SIZE = 3500;
     static final int MAX_BATCH_RESULT_SIZE = 60000;
+    /** number of queries sent in a single multi search request */
+    static final int MULTI_SEARCH_SIZE = 100;
+    /** size of the first pages fetched with the multi search, so a worker holds at most MULTI_SEARCH_SIZE * FIRST_PAGE_SIZE documents */
+    static final int FIRST_PAGE_SIZE = 100;
 
     private final Indexer indexer;
     private final PropertiesProvider propertiesProvider;
     private final BatchSearch batchSearch;
     private final TerFunction<String, String, List<Document>, Boolean> resultConsumer;
     private final CountDownLatch callWaiterLatch;
-    private int totalProcessed = 0;
+    private final AtomicInteger totalProcessed = new AtomicInteger(0);
+    private final AtomicInteger numberOfResults = new AtomicInteger(0);
+    private final Set<String> truncatedQueries = ConcurrentHashMap.newKeySet();
+    private final Set<String> runningQueries = ConcurrentHashMap.newKeySet();
+    private long nextPageTime = 0;
+    private String indexGeneration;
+    private Date extractedAfter;
+    private Date highWaterMark;
+    private volatile boolean aborted = false;
     protected volatile boolean cancelAsked = false;
     protected volatile Thread callThread;
 
@@ -73,43 +102,300 @@ public class BatchSearchRunner implements Callable<Integer>, Monitorable, UserTa
 
     @Override
     public Integer call() throws SearchException {
-        int numberOfResults = 0;
         int throttleMs = parseInt(propertiesProvider.get(BATCH_THROTTLE).orElse("0"));
         int maxTimeSeconds = parseInt(propertiesProvider.get(BATCH_SEARCH_MAX_TIME).orElse("100000"));
         int scrollSize = min(parseInt(propertiesProvider.get(SCROLL_SIZE).orElse("1000")), MAX_SCROLL_SIZE);
+        int parallelism = max(1, min(parseInt(propertiesProvider.get(BATCH_SEARCH_PARALLELISM).orElse("1")), batchSearch.queries.size()));
         callThread = Thread.currentThread();
         callWaiterLatch.countDown(); // for tests
-        logger.info("running {} queries for batch search {} on projects {} with throttle {}ms and scroll size of {}",
+        logger.info("running {} queries for batch search {} on projects {} with throttle {}ms, scroll size of {} and {} concurrent queries",
                 batchSearch.queries.size(), batchSearch.uuid, batchSearch.projects.stream().map(Project::getId).collect(Collectors.joining(", "))
-                , throttleMs, scrollSize);
+                , throttleMs, scrollSize, parallelism);
 
-        String query = null;
+        indexGeneration = indexGeneration();
+        extractedAfter = extractedAfter();
+        List<String> queriesToRun = queriesToRun();
+        List<List<String>> queryGroups = Lists.partition(queriesToRun,
+                max(1, min(MULTI_SEARCH_SIZE, (queriesToRun.size() + parallelism - 1) / parallelism)));
+        if (parallelism == 1) {
+            for (List<String> queries : queryGroups) {
+                runQueries(queries, scrollSize, throttleMs, maxTimeSeconds);
+            }
+        } else {
+            runQueriesConcurrently(queryGroups, parallelism, scrollSize, throttleMs, maxTimeSeconds);
+        }
+        saveHighWaterMark(queriesToRun.size() == batchSearch.queries.size());
+        logger.info("done batch search {} with success", batchSearch.uuid);
+        return numberOfResults.get();
+    }
+
+    /**
+     * the queries done by a previous run of the batch search (when it has been queued again) are skipped :
+     * their results are already saved, and are counted in the results of this run.
+     */
+    private List<String> queriesToRun() {
+        if (!(resultConsumer instanceof BatchSearchCheckpoints)) {
+            return new ArrayList<>(batchSearch.queries.keySet());
+        }
+        BatchSearchCheckpoints checkpoints = (BatchSearchCheckpoints) resultConsumer;
+        List<String> queries = new ArrayList<>();
+        batchSearch.queries.forEach((query, nbResults) -> {
+            if (checkpoints.isDone(query)) {
+                numberOfResults.addAndGet(nbResults == null ? 0 : nbResults);
+                totalProcessed.incrementAndGet();
+            } else {
+                queries.add(query);
+            }
+        });
+        if (totalProcessed.get() > 0) {
+            logger.info("skipping {} queries already done for batch search {}", totalProcessed.get(), batchSearch.uuid);
+        }
+        return queries;
+    }
+
+    /**
+     * the results of a query can be copied from another batch search only if the searched indexes have not changed
+     * since it was run. The generation of the indexes (number of documents and last extraction date) is part of
+     * the cache key, so re-indexing a project invalidates the cached results of its queries.
+     *
+     * @return null if the results cannot be cached
+     */
+    private String indexGeneration() {
+        if (!(resultConsumer instanceof BatchSearchResultCache) || !(indexer instanceof ElasticsearchIndexer) ||
+                !Boolean.parseBoolean(propertiesProvider.get(BATCH_SEARCH_RESULT_CACHE).orElse("true"))) {
+            return null;
+        }
+        try {
+            return ((ElasticsearchIndexer) indexer).indexGeneration(batchSearch.projects.stream().map(Project::getId).collect(toList()));
+        } catch (IOException | ElasticsearchStatusException ex) {
+            logger.warn("cannot get index generation for batch search {}, running queries without cache", batchSearch.uuid, ex);
+            return null;
+        }
+    }
+
+    /**
+     * the high-water mark of this run is read before searching, so the documents extracted during the run
+     * are searched again by the next incremental run (they are not duplicated when the results are merged).
+     *
+     * @return the high-water mark of the previous batch search for an incremental run, null otherwise
+     */
+    private Date extractedAfter() {
+        if (!(resultConsumer instanceof IncrementalBatchSearch) || !(indexer instanceof ElasticsearchIndexer)) {
+            return null;
+        }
+        IncrementalBatchSearch incremental = (IncrementalBatchSearch) resultConsumer;
+        try {
+            highWaterMark = ((ElasticsearchIndexer) indexer).lastExtractionDate(batchSearch.projects.stream().map(Project::getId).collect(toList()));
+        } catch (IOException | ElasticsearchStatusException ex) {
+            logger.warn("cannot get last extraction date for batch search {}", batchSearch.uuid, ex);
+        }
+        Date previousHighWaterMark = incremental.previousHighWaterMark();
+        if (previousHighWaterMark != null) {
+            logger.info("incremental batch search {} on documents extracted after {}", batchSearch.uuid, previousHighWaterMark);
+        }
+        return previousHighWaterMark;
+    }
+
+    /**
+     * an incremental run merges the previous results of each query with its new results : the high-water mark
+     * is only given when this run has all the results of all its queries. It is not given when results have been
+     * truncated at MAX_BATCH_RESULT_SIZE, or when the run resumes queries done by a previous run (they were searched
+     * before this mark). A copy of this batch search is then run as a full search.
+     */
+    private void saveHighWaterMark(boolean allQueriesRun) {
+        if (highWaterMark == null) {
+            return;
+        }
+        if (truncatedQueries.isEmpty() && allQueriesRun) {
+            ((IncrementalBatchSearch) resultConsumer).highWaterMark(highWaterMark);
+        } else {
+            logger.info("batch search {} has truncated or resumed results, it cannot be run incrementally", batchSearch.uuid);
+        }
+    }
+
+    String cacheKey(String query) {
+        return Hashing.sha256().hashString(String.join("\n",
+                query.trim().replaceAll("\\s+", " "),
+                String.valueOf(batchSearch.fuzziness),
+                String.valueOf(batchSearch.phraseMatches),
+                batchSearch.fileTypes.stream().sorted().collect(Collectors.joining(",")),
+                batchSearch.paths.stream().sorted().collect(Collectors.joining(",")),
+                batchSearch.projects.stream().map(Project::getId).sorted().collect(Collectors.joining(",")),
+                indexGeneration), UTF_8).toString();
+    }
+
+    /**
+     * copies the results of the queries found in the cache. A query is only copied if all its cached results
+     * fit in MAX_BATCH_RESULT_SIZE, else it is run (and truncated) like the queries that are not cached.
+     *
+     * @return the queries that must be run
+     */
+    private List<String> queriesNotCached(List<String> queries) {
+        if (indexGeneration == null) {
+            return queries;
+        }
+        BatchSearchResultCache cache = (BatchSearchResultCache) resultConsumer;
+        List<String> notCached = new ArrayList<>();
+        for (String query : queries) {
+            String cacheKey = cacheKey(query);
+            int nbResults = cache.cachedResultsCount(cacheKey);
+            if (nbResults >= 0 && reserveCachedResults(nbResults)) {
+                int nbCopied = cache.copyCachedResults(query, cacheKey);
+                numberOfResults.addAndGet((nbCopied < 0 ? 0 : nbCopied) - nbResults);
+                if (nbCopied >= 0) {
+                    totalProcessed.incrementAndGet();
+                    continue;
+                }
+            }
+            notCached.add(query);
+        }
+        if (notCached.size() < queries.size()) {
+            logger.info("copied results of {} queries from cache for batch search {}", queries.size() - notCached.size(), batchSearch.uuid);
+        }
+        return notCached;
+    }
+
+    /**
+     * each group of queries is run by one worker, and each query from its first to its last scroll, so the results
+     * of a query are given to the result consumer in scroll order. The first failing query aborts the others.
+     */
+    private void runQueriesConcurrently(List<List<String>> queryGroups, int parallelism, int scrollSize, int throttleMs, int maxTimeSeconds) throws SearchException {
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism,
+                new ThreadFactoryBuilder().setNameFormat("batch-search-" + batchSearch.uuid + "-%d").build());
+        CompletionService<List<String>> completionService = new ExecutorCompletionService<>(executor);
         try {
-            for (String s : batchSearch.queries.keySet()) {
-                query = s;
-                Indexer.Searcher searcher = indexer.search(batchSearch.projects.stream().map(Project::getId).collect(toList()), Document.class).
-                        with(query, batchSearch.fuzziness, batchSearch.phraseMatches).
-                        withFieldValues("contentType", batchSearch.fileTypes.toArray(new String[]{})).
-                        withPrefixQuery("dirname", batchSearch.paths.toArray(new String[]{})).
-                        withoutSource("content").limit(scrollSize);
-                List<? extends Entity> docsToProcess = searcher.scroll().collect(toList());
-
-                long beforeScrollLoop = DatashareTime.getInstance().currentTimeMillis();
-                while (docsToProcess.size() != 0 && numberOfResults < MAX_BATCH_RESULT_SIZE - MAX_SCROLL_SIZE) {
-                    if (cancelAsked) {
-                        throw new CancelException();
+            for (List<String> queries : queryGroups) {
+                completionService.submit(() -> {
+                    runQueries(queries, scrollSize, throttleMs, maxTimeSeconds);
+                    return queries;
+                });
+            }
+            for (int i = 0; i < queryGroups.size(); i++) {
+                try {
+                    completionService.take().get();
+                } catch (ExecutionException e) {
+                    // the workers already throw search exceptions with their failing query
+                    if (e.getCause() instanceof RuntimeException) {
+                        throw (RuntimeException) e.getCause();
                     }
-                    resultConsumer.apply(batchSearch.uuid, query, (List<Document>) docsToProcess);
-                    if (DatashareTime.getInstance().currentTimeMillis() - beforeScrollLoop < maxTimeSeconds * 1000) {
-                        DatashareTime.getInstance().sleep(throttleMs);
-                    } else {
+                    throw new SearchException(runningQueries.stream().findFirst().orElse(null), e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SearchException(runningQueries.stream().findFirst().orElse(null), e);
+        } finally {
+            aborted = true;
+            executor.shutdownNow();
+            awaitTermination(executor);
+        }
+    }
+
+    /**
+     * the first pages of the queries are fetched with one multi search, with FIRST_PAGE_SIZE documents
+     * (or the scroll size if it is smaller). Most of the queries have less hits : they are done with their first page,
+     * that is released when it is consumed. Only the queries with a full first page are run with a scroll, so
+     * at most FIRST_PAGE_SIZE documents are fetched twice for them. The first pages must be consumed within
+     * maxTimeSeconds after the multi search is sent.
+     */
+    private void runQueries(List<String> groupQueries, int scrollSize, int throttleMs, int maxTimeSeconds) throws SearchException {
+        List<String> queries = queriesNotCached(groupQueries);
+        int firstPageSize = min(FIRST_PAGE_SIZE, scrollSize);
+        long beforeMultiSearch = DatashareTime.getInstance().currentTimeMillis();
+        List<List<? extends Entity>> firstPages = firstPages(queries, firstPageSize);
+        for (int i = 0; i < queries.size() && !aborted; i++) {
+            if (cancelAsked) {
+                throw new CancelException();
+            }
+            String query = queries.get(i);
+            List<? extends Entity> firstPage = firstPages.set(i, null);
+            runningQueries.add(query);
+            try {
+                if (firstPage != null && firstPage.size() < firstPageSize) {
+                    if (DatashareTime.getInstance().currentTimeMillis() - beforeMultiSearch >= maxTimeSeconds * 1000L) {
                         throw new SearchException(query, new TimeoutException("Batch timed out after " + maxTimeSeconds + "s"));
                     }
-                    numberOfResults += docsToProcess.size();
-                    docsToProcess = searcher.scroll().collect(toList());
+                    consumeFirstPage(query, firstPage, throttleMs);
+                } else {
+                    runQuery(query, scrollSize, throttleMs, maxTimeSeconds);
+                }
+            } catch (SearchException | CancelException e) {
+                throw e;
+            } catch (RuntimeException e) {
+                throw new SearchException(query, e);
+            } finally {
+                runningQueries.remove(query);
+            }
+        }
+    }
+
+    private List<List<? extends Entity>> firstPages(List<String> queries, int firstPageSize) {
+        if (queries.size() > 1 && indexer instanceof ElasticsearchIndexer) {
+            try {
+                return new ArrayList<>(((ElasticsearchIndexer) indexer).multiSearch(queries.stream().map(q -> searcher(q, firstPageSize)).collect(toList())));
+            } catch (IOException | ElasticsearchStatusException ex) {
+                logger.warn("multi search failed for batch search {}, running queries with scrolls", batchSearch.uuid, ex);
+            }
+        }
+        return new ArrayList<>(Collections.nCopies(queries.size(), null));
+    }
+
+    private void consumeFirstPage(String query, List<? extends Entity> firstPage, int throttleMs) throws SearchException {
+        try {
+            if (firstPage.size() != 0) {
+                if (reserveResults(firstPage.size())) {
+                    resultConsumer.apply(batchSearch.uuid, query, (List<Document>) firstPage);
+                    throttle(throttleMs);
+                } else {
+                    truncatedQueries.add(query);
                 }
-                searcher.clearScroll();
-                totalProcessed += 1;
+            }
+            queryDone(query);
+        } catch (InterruptedException ex) {
+            throw new SearchException(query, ex);
+        }
+    }
+
+    /**
+     * with elasticsearch, only the fields saved in the results are read from the index,
+     * and only the documents extracted after the previous run for an incremental batch search
+     */
+    private Indexer.Searcher searcher(String query, int scrollSize) {
+        List<String> indexes = batchSearch.projects.stream().map(Project::getId).collect(toList());
+        Indexer.Searcher searcher = indexer instanceof ElasticsearchIndexer ?
+                ((ElasticsearchIndexer) indexer).searchDocumentProjection(indexes, extractedAfter) :
+                indexer.search(indexes, Document.class).withoutSource("content");
+        return searcher.with(query, batchSearch.fuzziness, batchSearch.phraseMatches).
+                withFieldValues("contentType", batchSearch.fileTypes.toArray(new String[]{})).
+                withPrefixQuery("dirname", batchSearch.paths.toArray(new String[]{})).
+                limit(scrollSize);
+    }
+
+    private void runQuery(String query, int scrollSize, int throttleMs, int maxTimeSeconds) throws SearchException {
+        try {
+            Indexer.Searcher searcher = searcher(query, scrollSize);
+            List<? extends Entity> docsToProcess = searcher.scroll().collect(toList());
+
+            long beforeScrollLoop = DatashareTime.getInstance().currentTimeMillis();
+            while (docsToProcess.size() != 0 && !aborted) {
+                if (cancelAsked) {
+                    throw new CancelException();
+                }
+                if (!reserveResults(docsToProcess.size())) {
+                    truncatedQueries.add(query);
+                    break;
+                }
+                resultConsumer.apply(batchSearch.uuid, query, (List<Document>) docsToProcess);
+                if (DatashareTime.getInstance().currentTimeMillis() - beforeScrollLoop < maxTimeSeconds * 1000) {
+                    throttle(throttleMs);
+                } else {
+                    throw new SearchException(query, new TimeoutException("Batch timed out after " + maxTimeSeconds + "s"));
+                }
+                docsToProcess = searcher.scroll().collect(toList());
+            }
+            searcher.clearScroll();
+            if (!aborted) {
+                queryDone(query);
             }
         } catch (ElasticsearchStatusException esEx) {
             throw new SearchException(query,
@@ -117,13 +403,77 @@ public class BatchSearchRunner implements Callable<Integer>, Monitorable, UserTa
         } catch (IOException|InterruptedException ex) {
             throw new SearchException(query, ex);
         }
-        logger.info("done batch search {} with success", batchSearch.uuid);
-        return numberOfResults;
+    }
+
+    /**
+     * only the queries with all their results can be reused from the cache
+     */
+    private void queryDone(String query) {
+        if (indexGeneration != null && !truncatedQueries.contains(query)) {
+            ((BatchSearchResultCache) resultConsumer).queryDone(query, cacheKey(query));
+        } else if (resultConsumer instanceof BatchSearchCheckpoints) {
+            ((BatchSearchCheckpoints) resultConsumer).queryDone(query);
+        }
+        totalProcessed.incrementAndGet();
+    }
+
+    /**
+     * the result counter is shared by all the queries : a page is only consumed if
+     * the counter is still below the limit when it is added, so the total stays below MAX_BATCH_RESULT_SIZE.
+     */
+    private boolean reserveResults(int nbResults) {
+        int current;
+        do {
+            current = numberOfResults.get();
+            if (current >= MAX_BATCH_RESULT_SIZE - MAX_SCROLL_SIZE) {
+                return false;
+            }
+        } while (!numberOfResults.compareAndSet(current, current + nbResults));
+        return true;
+    }
+
+    /**
+     * the cached results are copied in one statement, so they are only reserved if the total with all of them
+     * stays below MAX_BATCH_RESULT_SIZE.
+     */
+    private boolean reserveCachedResults(int nbResults) {
+        int current;
+        do {
+            current = numberOfResults.get();
+            if (current + nbResults > MAX_BATCH_RESULT_SIZE) {
+                return false;
+            }
+        } while (!numberOfResults.compareAndSet(current, current + nbResults));
+        return true;
+    }
+
+    /**
+     * throttle is applied to the whole batch and not to each worker :
+     * pages are spaced by at least throttleMs whatever the number of concurrent queries.
+     */
+    private void throttle(int throttleMs) throws InterruptedException {
+        long waitMs;
+        synchronized (this) {
+            long now = DatashareTime.getInstance().currentTimeMillis();
+            nextPageTime = Math.max(now, nextPageTime) + throttleMs;
+            waitMs = nextPageTime - now;
+        }
+        DatashareTime.getInstance().sleep(waitMs);
+    }
+
+    private void awaitTermination(ExecutorService executor) {
+        try {
+            if (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                logger.warn("some queries of batch search {} are still running after shutdown", batchSearch.uuid);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 
     @Override
     public double getProgressRate() {
-        return (double) totalProcessed / batchSearch.queries.size();
+        return (double) totalProcessed.get() / batchSearch.queries.size();
     }
 
     @Override
@@ -0,0 +1,75 @@
+package org.icij.datashare.tasks;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashSet;
+import java.util.Set;
+
+import static java.util.Arrays.asList;
+
+/**
+ * Tells if a zip entry is worth deflating.
+ *
+ * The media types that are already compressed (images, audio, video, archives, office open xml...) are stored.
+ * For the other types, the byte entropy of the beginning of the content is computed: a content close to
+ * 8 bits per byte (compressed or encrypted data) is stored too.
+ */
+public class CompressionProbe {
+    static final int PROBE_SIZE = 64 * 1024;
+    static final double MAX_ENTROPY = 7.5;
+    private static final Set<String> COMPRESSED_PREFIXES = new HashSet<>(asList("image/", "audio/", "video/"));
+    private static final Set<String> COMPRESSED_TYPES = new HashSet<>(asList(
+            "application/pdf", "application/zip", "application/gzip", "application/x-gzip", "application/x-bzip2",
+            "application/x-xz", "application/x-7z-compressed", "application/x-rar-compressed", "application/vnd.rar",
+            "application/java-archive", "application/epub+zip", "application/vnd.ms-cab-compressed",
+            "application/vnd.openxmlformats-officedocument.wordprocessingml.document",
+            "application/vnd.openxmlformats-officedocument.spreadsheetml.sheet",
+            "application/vnd.openxmlformats-officedocument.presentationml.presentation",
+            "application/vnd.oasis.opendocument.text", "application/vnd.oasis.opendocument.spreadsheet",
+            "application/vnd.oasis.opendocument.presentation"));
+    private static final Set<String> UNCOMPRESSED_IMAGES = new HashSet<>(asList("image/svg+xml", "image/bmp", "image/tiff"));
+
+    private CompressionProbe() {}
+
+    public static boolean isCompressible(String contentType, InputStream content) throws IOException {
+        if (contentType != null && isCompressedType(contentType)) {
+            return false;
+        }
+        byte[] head = new byte[PROBE_SIZE];
+        int length = 0;
+        int read;
+        while (length < head.length && (read = content.read(head, length, head.length - length)) > 0) {
+            length += read;
+        }
+        return entropy(head, length) < MAX_ENTROPY;
+    }
+
+    static boolean isCompressedType(String contentType) {
+        String mediaType = contentType.split(";")[0].trim().toLowerCase();
+        if (UNCOMPRESSED_IMAGES.contains(mediaType)) {
+            return false;
+        }
+        return COMPRESSED_TYPES.contains(mediaType) || COMPRESSED_PREFIXES.stream().anyMatch(mediaType::startsWith);
+    }
+
+    /**
+     * @return the Shannon entropy of the bytes in bits per byte (0 for an empty content)
+     */
+    static double entropy(byte[] bytes, int length) {
+        if (length == 0) {
+            return 0;
+        }
+        int[] counts = new int[256];
+        for (int i = 0; i < length; i++) {
+            counts[bytes[i] & 0xff]++;
+        }
+        double entropy = 0;
+        for (int count : counts) {
+            if (count > 0) {
+                double p = (double) count / length;
+                entropy -= p * Math.log(p) / Math.log(2);
+            }
+        }
+        return entropy;
+    }
+}
@@ -0,0 +1,21 @@
+package org.icij.datashare.tasks;
+
+import java.util.Date;
+
+/**
+ * Result consumers implementing this interface record the high-water mark of a batch search (the last
+ * extraction date of the searched documents), so that a later copy of the batch search only searches
+ * the documents extracted after this mark, and merges the new results with the previous ones.
+ */
+public interface IncrementalBatchSearch {
+    /**
+     * @return the high-water mark of the previous batch search, or null if all the documents must be searched
+     */
+    Date previousHighWaterMark();
+
+    /**
+     * gives the high-water mark of the run when it has searched all the results of all its queries.
+     * It must only be saved if the results are saved without error.
+     */
+    void highWaterMark(Date highWaterMark);
+}
@@ -17,13 +17,16 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.Callable;
 
+import static java.lang.Boolean.parseBoolean;
 import static java.lang.String.valueOf;
 import static java.util.Collections.singletonList;
 import static java.util.stream.Collectors.toList;
+import static org.icij.datashare.cli.DatashareCliOptions.NLP_COMBINED_OPT;
 
 public class ResumeNlpTask implements Callable<Long>, UserTask {
     Logger logger = LoggerFactory.getLogger(getClass());
@@ -33,6 +36,8 @@ public class ResumeNlpTask implements Callable<Long>, UserTask {
     private final Publisher publisher;
     private final Indexer indexer;
 
+    private final boolean combined;
+
     @Inject
     public ResumeNlpTask(final Publisher publisher, final Indexer indexer, final PropertiesProvider propertiesProvider,
                          @Assisted final User user, @Assisted final Set<Pipeline.Type> nlpPipelines) {
@@ -41,32 +46,60 @@ public class ResumeNlpTask implements Callable<Long>, UserTask {
         this.nlpPipelines = nlpPipelines;
         this.user = user;
         this.projectName = propertiesProvider.get("defaultProject").orElse("local-datashare");
+        this.combined = parseBoolean(propertiesProvider.get(NLP_COMBINED_OPT).orElse("false"));
     }
 
     @Override
     public Long call() throws IOException {
-        Indexer.Searcher searcher = indexer.search(singletonList(projectName), Document.class).withSource("rootDocument").without(nlpPipelines.toArray(new Pipeline.Type[] {}));
-        logger.info("resuming NLP name finding for index {} and {} : {} documents found", projectName, nlpPipelines, searcher.totalHits());
-        List<? extends Entity> docsToProcess = searcher.scroll().collect(toList());
-        long totalHits = searcher.totalHits();
+        List<Indexer.Searcher> searchers = combined ? combinedSearchers() : singletonList(searcher().without(nlpPipelines.toArray(new Pipeline.Type[] {})));
+        long totalHits = 0;
+        for (Indexer.Searcher searcher : searchers) {
+            totalHits += searcher.totalHits();
+        }
+        logger.info("resuming NLP name finding for index {} and {}{} : {} documents found", projectName, nlpPipelines, combined ? " (combined)" : "", totalHits);
         this.publisher.publish(Channel.NLP, new Message(Message.Type.INIT_MONITORING).add(Message.Field.VALUE, valueOf(totalHits)));
 
-        do {
-            docsToProcess.forEach(doc -> this.publisher.publish(Channel.NLP,
-                    new Message(Message.Type.EXTRACT_NLP)
-                            .add(Message.Field.INDEX_NAME, projectName)
-                            .add(Message.Field.DOC_ID, doc.getId())
-                            .add(Message.Field.R_ID, ((Document) doc).getRootDocument())));
-            docsToProcess = searcher.scroll().collect(toList());
-        } while (docsToProcess.size() != 0);
+        for (Indexer.Searcher searcher : searchers) {
+            List<? extends Entity> docsToProcess = searcher.scroll().collect(toList());
+            while (docsToProcess.size() != 0) {
+                docsToProcess.forEach(doc -> this.publisher.publish(Channel.NLP,
+                        new Message(Message.Type.EXTRACT_NLP)
+                                .add(Message.Field.INDEX_NAME, projectName)
+                                .add(Message.Field.DOC_ID, doc.getId())
+                                .add(Message.Field.R_ID, ((Document) doc).getRootDocument())));
+                docsToProcess = searcher.scroll().collect(toList());
+            }
+            searcher.clearScroll();
+        }
         logger.info("sent {} message for {} files without {} pipeline tags", Message.Type.EXTRACT_NLP, totalHits, nlpPipelines);
 
-        searcher.clearScroll();
         this.publisher.publish(Channel.NLP, new ShutdownMessage());
 
         return totalHits;
     }
 
+    /**
+     * In combined mode a document must be sent if it lacks at least one of the pipelines, and only once
+     * (the consumer runs only the missing pipelines). The documents are partitioned with one search per pipeline :
+     * documents without the pipeline i having all the pipelines before i.
+     */
+    private List<Indexer.Searcher> combinedSearchers() {
+        List<Pipeline.Type> types = nlpPipelines.stream().sorted().collect(toList());
+        List<Indexer.Searcher> searchers = new ArrayList<>();
+        for (int i = 0; i < types.size(); i++) {
+            Indexer.Searcher searcher = searcher().without(types.get(i));
+            for (Pipeline.Type previous : types.subList(0, i)) {
+                searcher = searcher.with(previous);
+            }
+            searchers.add(searcher);
+        }
+        return searchers;
+    }
+
+    private Indexer.Searcher searcher() {
+        return indexer.search(singletonList(projectName), Document.class).withSource("rootDocument");
+    }
+
     @Override
     public User getUser() { return user;}
 }
@@ -19,6 +19,7 @@ public interface TaskFactory {
     ResumeNlpTask createResumeNlpTask(final User user, Set<Pipeline.Type> pipelines);
     NlpApp createNlpTask(User user, Pipeline pipeline, Properties properties, Runnable subscribedCb);
     NlpApp createNlpTask(User user, Pipeline pipeline);
+    NlpApp createCombinedNlpTask(User user, List<Pipeline> pipelines);
     BatchSearchLoop createBatchSearchLoop();
     BatchDownloadLoop createBatchDownloadLoop();
     BatchSearchRunner createBatchSearchRunner(BatchSearch batchSearch, TerFunction<String, String, List<Document>, Boolean> resultConsumer);
@@ -8,27 +8,34 @@ import net.codestory.http.annotations.*;
 import net.codestory.http.errors.NotFoundException;
 import net.codestory.http.errors.UnauthorizedException;
 import net.codestory.http.payload.Payload;
+import net.codestory.http.payload.StreamingOutput;
 import org.icij.datashare.PropertiesProvider;
 import org.icij.datashare.batch.BatchSearch;
 import org.icij.datashare.batch.BatchSearchRecord;
 import org.icij.datashare.batch.BatchSearchRepository;
 import org.icij.datashare.batch.SearchResult;
+import org.icij.datashare.db.BatchSearchResultCursor;
 import org.icij.datashare.db.JooqBatchSearchRepository;
 import org.icij.datashare.session.DatashareUser;
 import org.icij.datashare.text.Project;
 import org.icij.datashare.user.User;
 
-import java.io.IOException;
+import java.io.*;
 import java.util.*;
 import java.util.concurrent.BlockingQueue;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
+import java.util.zip.GZIPOutputStream;
 
 import static java.lang.Boolean.*;
 import static java.lang.Integer.parseInt;
 import static java.lang.String.format;
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.Arrays.stream;
+import static java.util.Optional.ofNullable;
 import static net.codestory.http.payload.Payload.*;
 import static org.icij.datashare.CollectionUtils.asSet;
+import static org.icij.datashare.cli.DatashareCliOptions.BATCH_SEARCH_RESULTS_FETCH_SIZE;
 import static org.icij.datashare.text.Project.project;
 
 @Singleton
@@ -38,6 +45,8 @@ public class BatchSearchResource {
     private final BlockingQueue<String> batchSearchQueue;
     private final PropertiesProvider propertiesProvider;
     private final int MAX_BATCH_SIZE = 60000;
+    private static final int CSV_BUFFER_SIZE = 64 * 1024;
+    static final String NEXT_CURSOR_HEADER = "X-Next-Cursor";
 
     @Inject
     public BatchSearchResource(final BatchSearchRepository batchSearchRepository, BlockingQueue<String> batchSearchQueue, PropertiesProvider propertiesProvider) {
@@ -263,6 +272,9 @@ public class BatchSearchResource {
      *
      * it returns 404 if the source BatchSearch object is not found in the repository.
      *
+     * With <code>"incremental": true</code> in the body, the new batch search only searches the documents extracted
+     * after the source batch search was run, and the results of the source batch search are merged with the new ones.
+     *
      * @param sourceBatchId: the id of BatchSearch to copy
      * @param context : the context of request (containing body)
      * @return 200 or 404
@@ -276,8 +288,12 @@ public class BatchSearchResource {
         if (sourceBatchSearch == null) {
             throw new NotFoundException();
         }
-        BatchSearch copy = new BatchSearch(sourceBatchSearch, context.extract(HashMap.class));
+        HashMap body = context.extract(HashMap.class);
+        BatchSearch copy = new BatchSearch(sourceBatchSearch, body);
         boolean isSaved = batchSearchRepository.save(copy);
+        if (isSaved && Boolean.parseBoolean(String.valueOf(body.get("incremental"))) && batchSearchRepository instanceof JooqBatchSearchRepository) {
+            ((JooqBatchSearchRepository) batchSearchRepository).setPreviousBatchSearch(copy.uuid, sourceBatchId);
+        }
         if (isSaved) batchSearchQueue.put(copy.uuid);
         return copy.uuid;
     }
@@ -294,16 +310,36 @@ public class BatchSearchResource {
      * - order: "asc" or "desc" (default "asc")
      *
      * If from/size are not given their default values are 0, meaning that all the results are returned.
+     *
+     * When the results are paginated, the response has a <code>X-Next-Cursor</code> header with the cursor
+     * of the next page. It can be given with the <code>cursor</code> URL parameter (instead of from) to get
+     * the next page without the cost of an offset. The cursor is only available with the default sort or the
+     * "query", "doc_nb", "doc_id", "root_id" and "doc_path" sort fields.
+     *
      * @param batchId
      * @param webQuery
-     * @return 200
+     * @return 200, or 400 if the cursor is invalid
      *
      * Example :
      * $(curl -XPOST localhost:8080/api/batch/search/result/b7bee2d8-5ede-4c56-8b69-987629742146 -d "{\"from\":0, \"size\": 2}")
+     * $(curl -XPOST "localhost:8080/api/batch/search/result/b7bee2d8-5ede-4c56-8b69-987629742146?cursor=AAJxMQAAAAEABGRvYzE" -d "{\"size\": 2}")
      */
     @Post("/search/result/:batchid")
-    public List<SearchResult> getResult(String batchId, BatchSearchRepository.WebQuery webQuery, Context context) {
-        return getResultsOrThrowUnauthorized(batchId, (User) context.currentUser(), webQuery);
+    public Payload getResult(String batchId, BatchSearchRepository.WebQuery webQuery, Context context) {
+        User user = (User) context.currentUser();
+        if (!(batchSearchRepository instanceof JooqBatchSearchRepository)) {
+            return new Payload(getResultsOrThrowUnauthorized(batchId, user, webQuery));
+        }
+        try {
+            JooqBatchSearchRepository.ResultsWithCursor page = ((JooqBatchSearchRepository) batchSearchRepository).
+                    getResults(user, batchId, webQuery, context.get("cursor"));
+            Payload payload = new Payload("application/json", page.results);
+            return page.nextCursor == null ? payload : payload.withHeader(NEXT_CURSOR_HEADER, page.nextCursor);
+        } catch (JooqBatchSearchRepository.UnauthorizedUserException unauthorized) {
+            throw new UnauthorizedException();
+        } catch (BatchSearchResultCursor.InvalidCursorException invalidCursor) {
+            return badRequest();
+        }
     }
 
     /**
@@ -311,6 +347,9 @@ public class BatchSearchResource {
      *
      * The search request is by default all results of the batch search.
      *
+     * The CSV is streamed from the database while it is written (see <code>batchSearchResultsFetchSize</code>),
+     * and it is gzipped if the client accepts it.
+     *
      * @param batchId
      * @return 200 and the CSV file as attached file
      *
@@ -319,24 +358,52 @@ public class BatchSearchResource {
      */
     @Get("/search/result/csv/:batchid")
     public Payload getResultAsCsv(String batchId, Context context) {
-        StringBuilder builder = new StringBuilder("\"query\", \"documentUrl\", \"documentId\",\"rootId\",\"contentType\",\"contentLength\",\"documentPath\",\"creationDate\",\"documentNumber\"\n");
-        BatchSearch batchSearch = batchSearchRepository.get((User) context.currentUser(), batchId);
+        User user = (User) context.currentUser();
+        BatchSearch batchSearch = batchSearchRepository.get(user, batchId);
         String url = propertiesProvider.get("rootHost").orElse(context.header("Host"));
+        Consumer<Consumer<SearchResult>> results;
+        if (batchSearchRepository instanceof JooqBatchSearchRepository) {
+            if (!user.id.equals(batchSearch.user.id) && !batchSearch.published) {
+                throw new UnauthorizedException();
+            }
+            int fetchSize = parseInt(propertiesProvider.get(BATCH_SEARCH_RESULTS_FETCH_SIZE).orElse("1000"));
+            results = consumer -> ((JooqBatchSearchRepository) batchSearchRepository).streamResults(user, batchId, fetchSize, consumer);
+        } else {
+            results = getResultsOrThrowUnauthorized(batchId, user, new BatchSearchRepository.WebQuery())::forEach;
+        }
+        boolean gzip = ofNullable(context.header("Accept-Encoding")).orElse("").contains("gzip");
 
-        getResultsOrThrowUnauthorized(batchId, (User) context.currentUser(), new BatchSearchRepository.WebQuery()).forEach(result -> builder.
-                append("\"").append(result.query).append("\"").append(",").
-                append("\"").append(docUrl(url, batchSearch.projects, result.documentId, result.rootId)).append("\"").append(",").
-                append("\"").append(result.documentId).append("\"").append(",").
-                append("\"").append(result.rootId).append("\"").append(",").
-                append("\"").append(result.contentType).append("\"").append(",").
-                append("\"").append(result.contentLength).append("\"").append(",").
-                append("\"").append(result.documentPath).append("\"").append(",").
-                append("\"").append(result.creationDate).append("\"").append(",").
-                append("\"").append(result.documentNumber).append("\"").append("\n")
-        );
+        Payload payload = new Payload("text/csv", (StreamingOutput) output -> {
+            OutputStream out = gzip ? new GZIPOutputStream(output, CSV_BUFFER_SIZE) : output;
+            Writer writer = new BufferedWriter(new OutputStreamWriter(out, UTF_8), CSV_BUFFER_SIZE);
+            writer.write("\"query\", \"documentUrl\", \"documentId\",\"rootId\",\"contentType\",\"contentLength\",\"documentPath\",\"creationDate\",\"documentNumber\"\n");
+            try {
+                results.accept(result -> writeCsvLine(writer, url, batchSearch.projects, result));
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            writer.flush();
+            if (out instanceof GZIPOutputStream) {
+                ((GZIPOutputStream) out).finish();
+            }
+        }).withHeader("Content-Disposition", "attachment;filename=\"" + batchId + ".csv\"");
+        return gzip ? payload.withHeader("Content-Encoding", "gzip") : payload;
+    }
 
-        return new Payload("text/csv", builder.toString()).
-                withHeader("Content-Disposition", "attachment;filename=\"" + batchId + ".csv\"");
+    private void writeCsvLine(Writer writer, String url, List<Project> projects, SearchResult result) {
+        try {
+            writer.append("\"").append(result.query).append("\"").append(",").
+                    append("\"").append(docUrl(url, projects, result.documentId, result.rootId)).append("\"").append(",").
+                    append("\"").append(result.documentId).append("\"").append(",").
+                    append("\"").append(result.rootId).append("\"").append(",").
+                    append("\"").append(result.contentType).append("\"").append(",").
+                    append("\"").append(String.valueOf(result.contentLength)).append("\"").append(",").
+                    append("\"").append(String.valueOf(result.documentPath)).append("\"").append(",").
+                    append("\"").append(String.valueOf(result.creationDate)).append("\"").append(",").
+                    append("\"").append(String.valueOf(result.documentNumber)).append("\"").append("\n");
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
     }
 
     /**
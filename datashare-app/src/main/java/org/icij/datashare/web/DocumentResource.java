@@ -8,7 +8,6 @@ import net.codestory.http.Context;
 import net.codestory.http.annotations.*;
 import net.codestory.http.errors.BadRequestException;
 import net.codestory.http.errors.ForbiddenException;
-import net.codestory.http.io.InputStreams;
 import net.codestory.http.payload.Payload;
 import net.codestory.http.types.ContentTypes;
 import org.icij.datashare.Repository;
@@ -19,13 +18,14 @@ import org.icij.datashare.text.FileExtension;
 import org.icij.datashare.text.Tag;
 import org.icij.datashare.text.indexing.ExtractedText;
 import org.icij.datashare.text.indexing.Indexer;
+import org.icij.datashare.text.indexing.elasticsearch.EmbeddedSourceCache;
 import org.icij.datashare.text.indexing.elasticsearch.SourceExtractor;
 import org.icij.datashare.user.User;
 import ucar.httpservices.HTTPException;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
+import java.nio.file.NoSuchFileException;
 import java.util.List;
 import java.util.Set;
 import java.util.stream.Collectors;
@@ -42,11 +42,17 @@ import static org.icij.datashare.text.Project.project;
 public class DocumentResource {
     private final Repository repository;
     private final Indexer indexer;
+    private final EmbeddedSourceCache sourceCache;
 
-    @Inject
     public DocumentResource(Repository repository, Indexer indexer) {
+        this(repository, indexer, null);
+    }
+
+    @Inject
+    public DocumentResource(Repository repository, Indexer indexer, EmbeddedSourceCache sourceCache) {
         this.repository = repository;
         this.indexer = indexer;
+        this.sourceCache = sourceCache;
     }
 
     /**
@@ -73,7 +79,7 @@ public class DocumentResource {
         boolean inline = context.request().query().getBoolean("inline");
         if (((DatashareUser)context.currentUser()).isGranted(project) &&
                 isAllowed(repository.getProject(project), context.request().clientAddress())) {
-            return routing == null ? getPayload(indexer.get(project, id), project, inline, parseBoolean(filterMetadata)) : getPayload(indexer.get(project, id, routing),project, inline, parseBoolean(filterMetadata));
+            return routing == null ? getPayload(indexer.get(project, id), project, inline, parseBoolean(filterMetadata), context) : getPayload(indexer.get(project, id, routing),project, inline, parseBoolean(filterMetadata), context);
         }
         throw new ForbiddenException();
     }
@@ -386,13 +392,32 @@ public class DocumentResource {
         return new Result<>(repository.unrecommend(project(projectId), (DatashareUser)context.currentUser(), docIds));
     }
 
-    private Payload getPayload(Document doc, String index, boolean inline, boolean filterMetadata) throws IOException {
-        try (InputStream from = new SourceExtractor(filterMetadata).getSource(project(index), doc)) {
+    /**
+     * the sources are streamed : root documents from their file, embedded documents from the source cache
+     * (or from their extraction buffer if the cache is disabled).
+     * The document id is a hash of the source so it is used as entity tag.
+     */
+    private Payload getPayload(Document doc, String index, boolean inline, boolean filterMetadata, Context context) throws IOException {
+        String etag = "\"" + doc.getId() + (filterMetadata ? "-filtered" : "") + "\"";
+        if (RangePayload.notModified(context, etag)) {
+            return RangePayload.notModifiedPayload(etag);
+        }
+        try {
             String contentType = ofNullable(doc.getContentType()).orElse(ContentTypes.get(doc.getPath().toFile().getName()));
-            Payload payload = new Payload(contentType, InputStreams.readBytes(from));
+            SourceExtractor sourceExtractor = new SourceExtractor(filterMetadata, sourceCache);
+            EmbeddedSourceCache.Lease cachedSource = sourceExtractor.getCachedSource(project(index), doc);
+            Payload payload;
+            if (doc.isRootDocument() && !filterMetadata) {
+                payload = RangePayload.of(context, contentType, doc.getPath(), etag);
+            } else if (cachedSource != null) {
+                // the lease is released when the file has been sent, so it cannot be evicted in the meantime
+                payload = RangePayload.of(context, contentType, cachedSource.getPath(), etag, cachedSource);
+            } else {
+                payload = RangePayload.of(context, contentType, sourceExtractor.getSourceContent(project(index), doc), etag);
+            }
             String fileName = doc.isRootDocument() ? doc.getName(): doc.getId().substring(0, 10) + "." + FileExtension.get(contentType);
             return inline ? payload: payload.withHeader("Content-Disposition", "attachment;filename=\"" + fileName + "\"");
-        } catch (FileNotFoundException fnf) {
+        } catch (FileNotFoundException | NoSuchFileException fnf) {
             return Payload.notFound();
         }
     }
@@ -1,33 +1,77 @@
 package org.icij.datashare.web;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
+import net.codestory.http.Context;
 import net.codestory.http.annotations.Get;
 import net.codestory.http.annotations.Post;
 import net.codestory.http.annotations.Prefix;
+import net.codestory.http.convert.TypeConvert;
+import net.codestory.http.payload.Payload;
+import net.codestory.http.payload.StreamingOutput;
+import org.icij.datashare.PropertiesProvider;
 import org.icij.datashare.extension.PipelineRegistry;
 import org.icij.datashare.text.DocumentBuilder;
 import org.icij.datashare.text.Language;
 import org.icij.datashare.text.NamedEntity;
 import org.icij.datashare.text.indexing.LanguageGuesser;
 import org.icij.datashare.text.nlp.Pipeline;
+import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 
+import static java.lang.Integer.parseInt;
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.Collections.emptyList;
+import static java.util.stream.Collectors.groupingBy;
+import static org.icij.datashare.cli.DatashareCliOptions.NLP_PARALLELISM_OPT;
 
 @Singleton
 @Prefix("/api/ner")
-public class NerResource {
+public class NerResource implements Closeable {
+    static final int BATCH_SIZE = 1000;
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+    private final ObjectMapper mapper = new ObjectMapper();
     private final PipelineRegistry pipelineRegistry;
     private final LanguageGuesser languageGuesser;
+    private final ExecutorService batchWorkers;
 
     @Inject
+    public NerResource(final PipelineRegistry pipelineRegistry, final LanguageGuesser languageGuesser, final PropertiesProvider propertiesProvider) {
+        this(pipelineRegistry, languageGuesser, parseInt(propertiesProvider.get(NLP_PARALLELISM_OPT).orElse("1")));
+    }
+
     public NerResource(final PipelineRegistry pipelineRegistry, final LanguageGuesser languageGuesser) {
+        this(pipelineRegistry, languageGuesser, 1);
+    }
+
+    NerResource(final PipelineRegistry pipelineRegistry, final LanguageGuesser languageGuesser, int batchParallelism) {
         this.pipelineRegistry = pipelineRegistry;
         this.languageGuesser = languageGuesser;
+        this.batchWorkers = Executors.newFixedThreadPool(batchParallelism,
+                new ThreadFactoryBuilder().setNameFormat("ner-worker-%d").setDaemon(true).build());
     }
 
     /**
@@ -62,4 +106,159 @@ public class NerResource {
         }
         return emptyList();
     }
+
+    /**
+     * Batch version of findNames. The request body is NDJSON with one text per line :
+     *
+     * {"id": "text id", "text": "text to analyse", "language": "ENGLISH"}
+     *
+     * The language is optional (it is guessed if missing). The body is read before the response is sent, then
+     * the texts are processed by batches of 1000, grouped by language (so that the pipeline is initialized once per
+     * language and batch) with the nlpParallelism threads shared by all the batch requests.
+     * The response is streamed as NDJSON, one line per text in the order of completion :
+     *
+     * {"id": "text id", "language": "ENGLISH", "entities": [...]} or {"id": "text id", "error": "message"}
+     *
+     * Lines that cannot be parsed, or that have no id or text, are answered with an error line. If the batch fails, the stream
+     * ends with an {"error": "message"} line.
+     *
+     * @param pipeline to use
+     * @return 200 and the NDJSON stream of named entities
+     *
+     * Example :
+     * $(curl -XPOST http://dsenv:8080/api/ner/findNames/CORENLP/batch --data-binary $'{"id":"1","text":"John Doe lives in Paris"}\n{"id":"2","text":"Jane Doe"}')
+     */
+    @Post("/findNames/:pipeline/batch")
+    public Payload getBatchAnnotations(final String pipeline, Context context) throws IOException {
+        Pipeline p = pipelineRegistry.get(Pipeline.Type.parse(pipeline));
+        List<NerItem> items = new ArrayList<>();
+        List<String> errors = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(context.request().inputStream(), UTF_8))) {
+            readItems(reader, items, errors);
+        }
+        return new Payload("application/x-ndjson;charset=UTF-8", (StreamingOutput) output -> processBatch(p, items, errors, output));
+    }
+
+    /**
+     * stops the batch workers (daemon threads shared by all the batch requests, that live as long as the resource).
+     */
+    @Override
+    public void close() {
+        batchWorkers.shutdownNow();
+    }
+
+    private void processBatch(Pipeline pipeline, List<NerItem> allItems, List<String> errors, OutputStream output) throws IOException {
+        ExecutorCompletionService<String> completionService = new ExecutorCompletionService<>(batchWorkers);
+        int pending = 0;
+        int nbItems = 0;
+        Writer writer = new OutputStreamWriter(output, UTF_8);
+        try {
+            for (String error : errors) {
+                writeLine(writer, error);
+            }
+            for (int from = 0; from < allItems.size(); from += BATCH_SIZE) {
+                List<NerItem> items = allItems.subList(from, Math.min(from + BATCH_SIZE, allItems.size()));
+                nbItems += items.size();
+                Map<Language, List<NerItem>> itemsByLanguage = items.stream().collect(groupingBy(i -> i.language));
+                for (Map.Entry<Language, List<NerItem>> entry : itemsByLanguage.entrySet()) {
+                    boolean initialized = pipeline.initialize(entry.getKey());
+                    for (NerItem item : entry.getValue()) {
+                        completionService.submit(() -> process(pipeline, initialized, item));
+                        pending++;
+                    }
+                }
+                for (; pending > BATCH_SIZE; pending--) {
+                    writeLine(writer, completionService.take().get());
+                }
+                for (Future<String> done; (done = completionService.poll()) != null; pending--) {
+                    writeLine(writer, done.get());
+                }
+                writer.flush();
+            }
+            for (; pending > 0; pending--) {
+                writeLine(writer, completionService.take().get());
+            }
+            logger.info("processed {} texts with {}", nbItems, pipeline.getType());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.warn("batch NER interrupted after {} texts", nbItems);
+            writeLine(writer, errorLine("batch interrupted"));
+        } catch (ExecutionException | RejectedExecutionException e) {
+            logger.error("error in batch NER after {} texts", nbItems, e);
+            writeLine(writer, errorLine(e.toString()));
+        } finally {
+            writer.flush();
+        }
+    }
+
+    /**
+     * reads all the items of the body. Lines that cannot be parsed, have no id or text, or whose language
+     * cannot be guessed are answered with an error line.
+     */
+    private void readItems(BufferedReader reader, List<NerItem> items, List<String> errors) throws IOException {
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+            NerItem item;
+            try {
+                item = mapper.readValue(line, NerItem.class);
+            } catch (IOException e) {
+                errors.add(errorLine("cannot parse line: " + e.getMessage()));
+                continue;
+            }
+            if (item == null || item.id == null || item.text == null) {
+                errors.add(errorLine(item == null ? null : item.id, "missing id or text in line: " + line));
+                continue;
+            }
+            try {
+                item.language = item.language == null ? languageGuesser.guess(item.text) : item.language;
+                items.add(item);
+            } catch (RuntimeException e) {
+                logger.error("cannot guess language of text {}", item.id, e);
+                errors.add(errorLine(item.id, "cannot guess language: " + e));
+            }
+        }
+    }
+
+    private String errorLine(String message) throws JsonProcessingException {
+        return mapper.writeValueAsString(new HashMap<String, String>() {{put("error", message);}});
+    }
+
+    private String errorLine(String id, String message) throws JsonProcessingException {
+        if (id == null) {
+            return errorLine(message);
+        }
+        Map<String, String> error = new LinkedHashMap<>();
+        error.put("id", id);
+        error.put("error", message);
+        return mapper.writeValueAsString(error);
+    }
+
+    private String process(Pipeline pipeline, boolean initialized, NerItem item) throws JsonProcessingException {
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("id", item.id);
+        result.put("language", item.language);
+        try {
+            result.put("entities", initialized ?
+                    pipeline.process(DocumentBuilder.createDoc(item.id).with(item.text).with(item.language).build()) : emptyList());
+        } catch (Exception e) {
+            logger.error("error finding names for text {}", item.id, e);
+            result.remove("entities");
+            result.put("error", e.toString());
+        }
+        return TypeConvert.toJson(result);
+    }
+
+    private static void writeLine(Writer writer, String json) throws IOException {
+        writer.write(json);
+        writer.write('\n');
+    }
+
+    static class NerItem {
+        public String id;
+        public String text;
+        public Language language;
+    }
 }
@@ -0,0 +1,158 @@
+package org.icij.datashare.web;
+
+import net.codestory.http.Context;
+import net.codestory.http.payload.Payload;
+import net.codestory.http.payload.StreamingOutput;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static java.lang.String.valueOf;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.util.Arrays.stream;
+
+/**
+ * Payloads of files and byte arrays that are streamed to the response (the files without being loaded in memory).
+ *
+ * They answer to the HTTP requests with a single range of bytes (Range and If-Range headers) with
+ * a 206 partial content, and to the conditional requests (If-None-Match header) with a 304 not modified.
+ * The files are read from the start of the range and streamed in chunks of CHUNK_SIZE bytes.
+ */
+class RangePayload {
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d*)-(\\d*)");
+    static final int CHUNK_SIZE = 64 * 1024;
+
+    private RangePayload() {}
+
+    static boolean notModified(Context context, String etag) {
+        String ifNoneMatch = context.header("If-None-Match");
+        return ifNoneMatch != null && stream(ifNoneMatch.split(",")).map(String::trim).
+                map(tag -> tag.startsWith("W/") ? tag.substring(2) : tag).
+                anyMatch(tag -> tag.equals("*") || tag.equals(etag));
+    }
+
+    static Payload notModifiedPayload(String etag) {
+        return new Payload(304).withHeader("ETag", etag);
+    }
+
+    static Payload of(Context context, String contentType, Path file, String etag) throws IOException {
+        return of(context, contentType, file, etag, () -> {});
+    }
+
+    /**
+     * @param release closed when the file has been sent (or when the response has no body), for example
+     *                to release a cached file that must not be deleted while it is read
+     */
+    static Payload of(Context context, String contentType, Path file, String etag, Closeable release) throws IOException {
+        long length;
+        try {
+            length = Files.size(file);
+        } catch (IOException e) {
+            release.close();
+            throw e;
+        }
+        return payload(context, contentType, length, etag, release, (output, start, count) -> {
+            try (Closeable released = release; FileChannel channel = FileChannel.open(file, READ)) {
+                InputStream input = Channels.newInputStream(channel.position(start));
+                byte[] chunk = new byte[(int) Math.min(CHUNK_SIZE, Math.max(1, count))];
+                long remaining = count;
+                while (remaining > 0) {
+                    int read = input.read(chunk, 0, (int) Math.min(chunk.length, remaining));
+                    if (read < 0) {
+                        throw new EOFException("file " + file + " is shorter than " + (start + count) + " bytes");
+                    }
+                    output.write(chunk, 0, read);
+                    remaining -= read;
+                }
+            }
+        });
+    }
+
+    static Payload of(Context context, String contentType, byte[] content, String etag) throws IOException {
+        return payload(context, contentType, content.length, etag, () -> {},
+                (output, start, count) -> output.write(content, (int) start, (int) count));
+    }
+
+    private static Payload payload(Context context, String contentType, long length, String etag, Closeable release, RangeWriter writer) throws IOException {
+        String ifRange = context.header("If-Range");
+        ByteRange range = ifRange == null || ifRange.equals(etag) ? ByteRange.parse(context.header("Range"), length) : null;
+        if (range == null) {
+            return new Payload(contentType, (StreamingOutput) output -> writer.write(output, 0, length)).
+                    withHeader("Content-Length", valueOf(length)).
+                    withHeader("Accept-Ranges", "bytes").
+                    withHeader("ETag", etag);
+        }
+        if (!range.isSatisfiable()) {
+            release.close();
+            return new Payload(416).
+                    withHeader("Content-Range", "bytes */" + length).
+                    withHeader("Accept-Ranges", "bytes");
+        }
+        return new Payload(contentType, (StreamingOutput) output -> writer.write(output, range.start, range.length())).
+                withCode(206).
+                withHeader("Content-Range", "bytes " + range.start + "-" + range.end + "/" + length).
+                withHeader("Content-Length", valueOf(range.length())).
+                withHeader("Accept-Ranges", "bytes").
+                withHeader("ETag", etag);
+    }
+
+    private interface RangeWriter {
+        void write(OutputStream output, long start, long count) throws IOException;
+    }
+
+    /**
+     * first and last positions (included) of a range of bytes
+     */
+    static class ByteRange {
+        static final ByteRange UNSATISFIABLE = new ByteRange(-1, -1);
+        final long start;
+        final long end;
+
+        ByteRange(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        /**
+         * @return null if there is no range header or if it cannot be served (several ranges or invalid header) :
+         * the whole content is sent.
+         */
+        static ByteRange parse(String header, long length) {
+            Matcher matcher = header == null ? null : RANGE.matcher(header.trim());
+            if (matcher == null || !matcher.matches() || matcher.group(1).isEmpty() && matcher.group(2).isEmpty()) {
+                return null;
+            }
+            try {
+                if (matcher.group(1).isEmpty()) {
+                    long suffixLength = Long.parseLong(matcher.group(2));
+                    return suffixLength == 0 || length == 0 ? UNSATISFIABLE : new ByteRange(Math.max(0, length - suffixLength), length - 1);
+                }
+                long start = Long.parseLong(matcher.group(1));
+                long end = matcher.group(2).isEmpty() ? Long.MAX_VALUE : Long.parseLong(matcher.group(2));
+                if (end < start) {
+                    return null;
+                }
+                return start >= length ? UNSATISFIABLE : new ByteRange(start, Math.min(end, length - 1));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        boolean isSatisfiable() {
+            return start >= 0;
+        }
+
+        long length() {
+            return end - start + 1;
+        }
+    }
+}
@@ -7,6 +7,8 @@ import net.codestory.http.Context;
 import net.codestory.http.annotations.*;
 import net.codestory.http.errors.ForbiddenException;
 import net.codestory.http.payload.Payload;
+import net.codestory.http.payload.StreamingOutput;
+import net.codestory.http.types.ContentTypes;
 import org.apache.commons.lang3.StringUtils;
 import org.icij.datashare.PropertiesProvider;
 import org.icij.datashare.batch.BatchDownload;
@@ -21,9 +23,14 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.util.*;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
 import java.util.regex.Pattern;
 
 import static java.lang.Boolean.parseBoolean;
@@ -95,6 +102,8 @@ public class TaskResource {
      *
      * @param id
      * @return 200 and the result,
+     *         206 and a part of the result file if a range is requested
+     *         304 if the result file has not changed (If-None-Match header)
      *         204 if there is no result
      *         404 if the tasks doesn't exist
      *         403 if the task is not belonging to current user
@@ -103,9 +112,12 @@ public class TaskResource {
      * $(curl localhost:8080/api/task/21148262/result)
      */
     @Get("/:id/result")
-    public Payload getTaskResult(String id, Context context) {
+    public Payload getTaskResult(String id, Context context) throws IOException {
         TaskView<?> task = forbiddenIfNotSameUser(context, notFoundIfNull(taskManager.get(id)));
         Object result = task.getResult();
+        if (result instanceof File && ((File) result).isFile()) {
+            return getFileResult((File) result, context);
+        }
         if (result instanceof File) {
             final Path appPath = ((File) result).isAbsolute() ?
                     get(System.getProperty("user.dir")).resolve(context.env().appFolder()) :
@@ -116,6 +128,25 @@ public class TaskResource {
         return result == null ? new Payload(204) : new Payload(result);
     }
 
+    /**
+     * the result files (batch download archives) are streamed in chunks (see RangePayload) and support
+     * range requests, so interrupted downloads can be resumed. The entity tag is made of the size
+     * and the modification date of the file.
+     */
+    private Payload getFileResult(File result, Context context) throws IOException {
+        Path resultPath = result.toPath();
+        try {
+            String etag = "\"" + Long.toHexString(Files.size(resultPath)) + "-" + Long.toHexString(Files.getLastModifiedTime(resultPath).toMillis()) + "\"";
+            if (RangePayload.notModified(context, etag)) {
+                return RangePayload.notModifiedPayload(etag);
+            }
+            return RangePayload.of(context, ContentTypes.get(resultPath.getFileName().toString()), resultPath, etag).
+                    withHeader("Content-Disposition", "attachment;filename=\"" + resultPath.getFileName() + "\"");
+        } catch (NoSuchFileException e) {
+            return Payload.notFound();
+        }
+    }
+
     @Options("/batchDownload")
     public Payload batchDownloadPreflight(final Context context) {
         return ok().withAllowMethods("OPTIONS", "POST").withAllowHeaders("Content-Type");
@@ -139,15 +170,86 @@ public class TaskResource {
      */
     @Post("/batchDownload")
     public TaskView<File> batchDownload(final OptionsWrapper<Object> optionsWrapper, Context context) throws JsonProcessingException {
-        Map<String, Object> options = optionsWrapper.getOptions();
+        BatchDownload batchDownload = createBatchDownload(optionsWrapper.getOptions(), context);
+        BatchDownloadRunner downloadTask = taskFactory.createDownloadRunner(batchDownload, v -> null);
+        return taskManager.startTask(downloadTask, new HashMap<String, Object>() {{ put("batchDownload", batchDownload);}});
+    }
+
+    @Options("/batchDownload/estimate")
+    public Payload estimateBatchDownloadPreflight(final Context context) {
+        return ok().withAllowMethods("OPTIONS", "POST").withAllowHeaders("Content-Type");
+    }
+
+    /**
+     * pre-flight sizing of a batch download : number of documents and sum of their sizes, estimated number of files,
+     * zip size and duration within the batch download limits, without extracting the documents.
+     * The parameters are the same as for /api/task/batchDownload.
+     *
+     * @param optionsWrapper wrapper for options json
+     *
+     * @return 200 and the json estimate (truncated is true if the documents don't fit in the limits)
+     *
+     * Example :
+     * $(curl -XPOST -H 'Content-Type: application/json' localhost:8080/api/task/batchDownload/estimate -d '{"options": {"projectIds": ["genapi-datashare"], "query": "*" }}')
+     */
+    @Post("/batchDownload/estimate")
+    public Payload estimateBatchDownload(final OptionsWrapper<Object> optionsWrapper, Context context) throws IOException {
+        BatchDownload batchDownload = createBatchDownload(optionsWrapper.getOptions(), context);
+        BatchDownloadEstimate estimate = taskFactory.createDownloadRunner(batchDownload, v -> null).estimate();
+        return estimate == null ? new Payload(204) : new Payload(estimate);
+    }
+
+    @Options("/batchDownload/stream")
+    public Payload streamBatchDownloadPreflight(final Context context) {
+        return ok().withAllowMethods("OPTIONS", "POST").withAllowHeaders("Content-Type");
+    }
+
+    /**
+     * download files from a search query, with the zip streamed in the response while it is created
+     * (no zip file is written on the server). The parameters are the same as for /api/task/batchDownload.
+     *
+     * The download task is listed with its progress in the tasks of the user while the zip is streamed.
+     * The encrypted batch downloads (batchDownloadEncrypt) cannot be streamed because the password is sent by mail.
+     *
+     * @param optionsWrapper wrapper for options json
+     *
+     * @return 200 and the zip file (chunked)
+     *         400 if the batch downloads are encrypted
+     *
+     * Example :
+     * $(curl -XPOST -H 'Content-Type: application/json' localhost:8080/api/task/batchDownload/stream -d '{"options": {"projectIds": ["genapi-datashare"], "query": "*" }}' -o download.zip)
+     */
+    @Post("/batchDownload/stream")
+    public Payload streamBatchDownload(final OptionsWrapper<Object> optionsWrapper, Context context) throws JsonProcessingException {
+        BatchDownload batchDownload = createBatchDownload(optionsWrapper.getOptions(), context);
+        if (batchDownload.encrypted) {
+            return new Payload(400);
+        }
+        BatchDownloadRunner downloadTask = taskFactory.createDownloadRunner(batchDownload, taskManager::save);
+        return new Payload("application/zip", (StreamingOutput) output -> {
+            MonitorableFutureTask<File> task = new MonitorableFutureTask<>(downloadTask.streamingTo(output),
+                    new HashMap<String, Object>() {{ put("batchDownload", batchDownload);}});
+            taskManager.save(new TaskView<>(task));
+            task.run();
+            taskManager.save(new TaskView<>(task));
+            try {
+                task.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("batch download " + batchDownload.uuid + " interrupted");
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+            }
+        }).withHeader("Content-Disposition", "attachment;filename=\"" + batchDownload.filename.getFileName() + "\"");
+    }
+
+    private BatchDownload createBatchDownload(Map<String, Object> options, Context context) throws JsonProcessingException {
         Path tmpPath = get(context.env().appFolder(), "tmp");
         if (!tmpPath.toFile().exists()) tmpPath.toFile().mkdirs();
         String query = options.get("query") instanceof Map ? JsonObjectMapper.MAPPER.writeValueAsString(options.get("query")): (String)options.get("query");
         boolean batchDownloadEncrypt = parseBoolean(propertiesProvider.get("batchDownloadEncrypt").orElse("false"));
         List<String> projectIds = (List<String>) options.get("projectIds");
-        BatchDownload batchDownload = new BatchDownload(projectIds.stream().map(Project::project).collect(toList()), (User) context.currentUser(), query, tmpPath, batchDownloadEncrypt);
-        BatchDownloadRunner downloadTask = taskFactory.createDownloadRunner(batchDownload, v -> null);
-        return taskManager.startTask(downloadTask, new HashMap<String, Object>() {{ put("batchDownload", batchDownload);}});
+        return new BatchDownload(projectIds.stream().map(Project::project).collect(toList()), (User) context.currentUser(), query, tmpPath, batchDownloadEncrypt);
     }
 
     /**
@@ -0,0 +1,168 @@
+package org.icij.datashare.com;
+
+import org.icij.datashare.PropertiesProvider;
+import org.icij.datashare.test.DatashareTimeRule;
+import org.icij.datashare.time.DatashareTime;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.util.Collection;
+import java.util.HashMap;
+
+import static java.util.Arrays.asList;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.fest.assertions.Assertions.assertThat;
+import static org.icij.datashare.cli.DatashareCliOptions.NLP_GROUP_TTL_OPT;
+import static org.icij.datashare.cli.DatashareCliOptions.NLP_MAX_ATTEMPTS_OPT;
+import static org.icij.datashare.cli.DatashareCliOptions.NLP_VISIBILITY_TIMEOUT_OPT;
+import static org.icij.datashare.com.Message.Field.DOC_ID;
+import static org.icij.datashare.com.Message.Type.EXTRACT_NLP;
+
+@RunWith(Parameterized.class)
+public class WorkQueueTest {
+    @Rule public DatashareTimeRule time = new DatashareTimeRule("2021-07-07T12:00:00Z");
+    private static final PropertiesProvider propertiesProvider = new PropertiesProvider(new HashMap<String, String>() {{
+        put(NLP_VISIBILITY_TIMEOUT_OPT, "10");
+        put(NLP_MAX_ATTEMPTS_OPT, "2");
+        put(NLP_GROUP_TTL_OPT, "1");
+    }});
+    private final WorkQueue workQueue;
+
+    @Parameterized.Parameters
+    public static Collection<Object[]> workQueues() {
+        return asList(new Object[][]{
+                {new MemoryWorkQueue(propertiesProvider, "test:queue")},
+                {new RedisWorkQueue(propertiesProvider, "test:queue")}
+        });
+    }
+
+    public WorkQueueTest(WorkQueue workQueue) { this.workQueue = workQueue;}
+
+    @Test
+    public void test_message_is_not_received_by_group_created_after_publish() throws Exception {
+        workQueue.publish(new Message(EXTRACT_NLP).add(DOC_ID, "doc_id"));
+        workQueue.createGroup("EMAIL");
+
+        assertThat(workQueue.poll("EMAIL", 10, MILLISECONDS)).isNull();
+        assertThat(workQueue.poll("CORENLP", 10, MILLISECONDS)).isNotNull();
+    }
+
+    @Test
+    public void test_message_published_without_group_is_received_by_next_group() throws Exception {
+        workQueue.delete("CORENLP");
+        workQueue.publish(new Message(EXTRACT_NLP).add(DOC_ID, "doc_id"));
+        workQueue.createGroup("EMAIL");
+
+        assertThat(workQueue.poll("EMAIL", 10, MILLISECONDS).message.content.get(DOC_ID)).isEqualTo("doc_id");
+        assertThat(workQueue.poll("CORENLP", 10, MILLISECONDS)).isNull();
+    }
+
+    @Test
+    public void test_publish_poll_ack() throws Exception {
+        Message message = new Message(EXTRACT_NLP).add(DOC_ID, "doc_id");
+        workQueue.publish(message);
+
+        WorkQueue.Delivery delivery = workQueue.poll("CORENLP", 10, MILLISECONDS);
+        assertThat(delivery.message).isEqualTo(message);
+        assertThat(delivery.attempts).isEqualTo(0);
+        assertThat(workQueue.size("CORENLP")).isEqualTo(1);
+
+        workQueue.ack(delivery);
+        assertThat(workQueue.size("CORENLP")).isEqualTo(0);
+        assertThat(workQueue.poll("CORENLP", 10, MILLISECONDS)).isNull();
+    }
+
+    @Test
+    public void test_each_group_receives_messages() throws Exception {
+        workQueue.createGroup("EMAIL");
+        workQueue.publish(new Message(EXTRACT_NLP).add(DOC_ID, "doc_id"));
+
+        assertThat(workQueue.poll("CORENLP", 10, MILLISECONDS).message.content.get(DOC_ID)).isEqualTo("doc_id");
+        assertThat(workQueue.poll("EMAIL", 10, MILLISECONDS).message.content.get(DOC_ID)).isEqualTo("doc_id");
+    }
+
+    @Test
+    public void test_nack_redelivers_then_dead_letters() throws Exception {
+        workQueue.publish(new Message(EXTRACT_NLP).add(DOC_ID, "doc_id"));
+
+        workQueue.nack(workQueue.poll("CORENLP", 10, MILLISECONDS));
+        WorkQueue.Delivery redelivered = workQueue.poll("CORENLP", 10, MILLISECONDS);
+        assertThat(redelivered.attempts).isEqualTo(1);
+        assertThat(redelivered.message.content.get(DOC_ID)).isEqualTo("doc_id");
+
+        workQueue.nack(redelivered);
+        assertThat(workQueue.poll("CORENLP", 10, MILLISECONDS)).isNull();
+        assertThat(workQueue.size("CORENLP")).isEqualTo(0);
+        assertThat(workQueue.deadLetterSize("CORENLP")).isEqualTo(1);
+    }
+
+    @Test
+    public void test_expired_lease_is_redelivered() throws Exception {
+        workQueue.publish(new Message(EXTRACT_NLP).add(DOC_ID, "doc_id"));
+        assertThat(workQueue.poll("CORENLP", 10, MILLISECONDS)).isNotNull();
+
+        DatashareTime.getInstance().addMilliseconds(5000);
+        assertThat(workQueue.requeueExpired("CORENLP")).isEqualTo(0);
+        DatashareTime.getInstance().addMilliseconds(5000);
+        assertThat(workQueue.requeueExpired("CORENLP")).isEqualTo(1);
+
+        assertThat(workQueue.poll("CORENLP", 10, MILLISECONDS).attempts).isEqualTo(1);
+    }
+
+    @Test
+    public void test_group_without_consumer_expires() throws Exception {
+        workQueue.createGroup("EMAIL");
+        workQueue.publish(new Message(EXTRACT_NLP).add(DOC_ID, "doc_id1"));
+        DatashareTime.getInstance().addMilliseconds(30 * 60 * 1000);
+        workQueue.ack(workQueue.poll("CORENLP", 10, MILLISECONDS));
+        workQueue.ack(workQueue.poll("EMAIL", 10, MILLISECONDS));
+        DatashareTime.getInstance().addMilliseconds(31 * 60 * 1000);
+        assertThat(workQueue.poll("CORENLP", 10, MILLISECONDS)).isNull();
+        DatashareTime.getInstance().addMilliseconds(30 * 60 * 1000);
+
+        workQueue.publish(new Message(EXTRACT_NLP).add(DOC_ID, "doc_id2"));
+
+        assertThat(workQueue.size("CORENLP")).isEqualTo(1);
+        assertThat(workQueue.size("EMAIL")).isEqualTo(0);
+    }
+
+    @Test
+    public void test_group_without_consumer_but_with_messages_does_not_expire() throws Exception {
+        workQueue.createGroup("EMAIL");
+        workQueue.publish(new Message(EXTRACT_NLP).add(DOC_ID, "doc_id1"));
+        workQueue.poll("CORENLP", 10, MILLISECONDS);
+        DatashareTime.getInstance().addMilliseconds(61 * 60 * 1000);
+
+        workQueue.publish(new Message(EXTRACT_NLP).add(DOC_ID, "doc_id2"));
+
+        assertThat(workQueue.size("CORENLP")).isEqualTo(2);
+        assertThat(workQueue.size("EMAIL")).isEqualTo(2);
+    }
+
+    @Test
+    public void test_expired_group_is_registered_again_when_polled() throws Exception {
+        workQueue.createGroup("EMAIL");
+        DatashareTime.getInstance().addMilliseconds(61 * 60 * 1000);
+        workQueue.publish(new Message(EXTRACT_NLP).add(DOC_ID, "doc_id1"));
+        assertThat(workQueue.poll("EMAIL", 10, MILLISECONDS).message.content.get(DOC_ID)).isEqualTo("doc_id1");
+
+        workQueue.publish(new Message(EXTRACT_NLP).add(DOC_ID, "doc_id2"));
+
+        assertThat(workQueue.poll("EMAIL", 10, MILLISECONDS).message.content.get(DOC_ID)).isEqualTo("doc_id2");
+    }
+
+    @Before
+    public void setUp() {
+        workQueue.createGroup("CORENLP");
+    }
+
+    @After
+    public void tearDown() {
+        workQueue.delete("CORENLP");
+        workQueue.delete("EMAIL");
+    }
+}
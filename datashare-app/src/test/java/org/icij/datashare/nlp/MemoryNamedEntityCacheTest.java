@@ -0,0 +1,34 @@
+package org.icij.datashare.nlp;
+
+import org.junit.Test;
+
+import static java.util.Collections.emptyList;
+import static java.util.Collections.singletonList;
+import static org.fest.assertions.Assertions.assertThat;
+
+public class MemoryNamedEntityCacheTest {
+    private final MemoryNamedEntityCache cache = new MemoryNamedEntityCache(2);
+
+    @Test
+    public void test_get_put_hits_misses() {
+        assertThat(cache.get("key").isPresent()).isFalse();
+        cache.put("key", singletonList(new NamedEntityCache.CachedEntity("PERS", "John Doe", singletonList(12L))));
+
+        assertThat(cache.get("key").get()).hasSize(1);
+        assertThat(cache.get("key").get().get(0).mention).isEqualTo("John Doe");
+        assertThat(cache.hits()).isEqualTo(2);
+        assertThat(cache.misses()).isEqualTo(1);
+    }
+
+    @Test
+    public void test_evicts_least_recently_used() {
+        cache.put("key1", emptyList());
+        cache.put("key2", emptyList());
+        cache.get("key1");
+        cache.put("key3", emptyList());
+
+        assertThat(cache.size()).isEqualTo(2);
+        assertThat(cache.get("key1").isPresent()).isTrue();
+        assertThat(cache.get("key2").isPresent()).isFalse();
+    }
+}
@@ -2,20 +2,28 @@ package org.icij.datashare.nlp;
 
 import org.icij.datashare.text.Document;
 import org.icij.datashare.text.Language;
+import org.icij.datashare.text.NamedEntity;
 import org.icij.datashare.text.indexing.Indexer;
 import org.icij.datashare.text.nlp.AbstractPipeline;
+import org.icij.datashare.text.nlp.Pipeline;
 import org.icij.datashare.user.DatashareApiKey;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
 import org.mockito.Mock;
 
+import java.util.Arrays;
 import java.util.List;
 
 import static java.util.Collections.emptyList;
+import static java.util.Collections.singletonList;
 import static org.fest.assertions.Assertions.assertThat;
 import static org.icij.datashare.text.DocumentBuilder.createDoc;
 import static org.icij.datashare.text.Language.ENGLISH;
+import static org.icij.datashare.text.NamedEntity.Category.PERSON;
+import static org.icij.datashare.text.nlp.Pipeline.Type.CORENLP;
+import static org.icij.datashare.text.nlp.Pipeline.Type.EMAIL;
 import static org.mockito.ArgumentCaptor.forClass;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
@@ -25,6 +33,7 @@ import static org.mockito.MockitoAnnotations.initMocks;
 public class NlpConsumerTest {
     @Mock private Indexer indexer;
     @Mock private AbstractPipeline pipeline;
+    @Captor private ArgumentCaptor<List<NamedEntity>> entitiesCaptor;
     private NlpConsumer nlpListener;
 
     @Before
@@ -76,4 +85,62 @@ public class NlpConsumerTest {
         verify(pipeline).process(doc, 32, 0);
         verify(pipeline).process(doc, 32, 32);
     }
+
+    @Test
+    public void test_combined_pipelines_fetch_document_once_and_skip_existing_tags() throws Exception {
+        AbstractPipeline emailPipeline = mock(AbstractPipeline.class);
+        when(pipeline.getType()).thenReturn(CORENLP);
+        when(emailPipeline.getType()).thenReturn(EMAIL);
+        when(pipeline.initialize(any())).thenReturn(true);
+        when(emailPipeline.initialize(any())).thenReturn(true);
+        Document doc = createDoc("content").with(EMAIL).build();
+        when(pipeline.process(doc)).thenReturn(emptyList());
+        when(indexer.get("projectName", doc.getId(), "routing")).thenReturn(doc);
+
+        assertThat(new NlpConsumer(Arrays.<Pipeline>asList(pipeline, emailPipeline), indexer, 32).findNamedEntities("projectName", doc.getId(), "routing")).isTrue();
+
+        verify(indexer, times(1)).get("projectName", doc.getId(), "routing");
+        verify(pipeline).process(doc);
+        verify(emailPipeline, never()).process(any());
+        verify(indexer).bulkAdd("projectName", CORENLP, emptyList(), doc);
+    }
+
+    @Test
+    public void test_cached_entities_are_copied_for_same_content() throws Exception {
+        when(pipeline.getType()).thenReturn(CORENLP);
+        when(pipeline.initialize(any())).thenReturn(true);
+        Document doc1 = createDoc("doc1").with("hello John").build();
+        Document doc2 = createDoc("doc2").with("hello John").build();
+        when(pipeline.process(doc1)).thenReturn(singletonList(NamedEntity.create(PERSON, "John", singletonList(6L), doc1.getId(), doc1.getRootDocument(), CORENLP, ENGLISH)));
+        when(indexer.get("projectName", doc1.getId(), "routing")).thenReturn(doc1);
+        when(indexer.get("projectName", doc2.getId(), "routing")).thenReturn(doc2);
+        NlpConsumer consumer = new NlpConsumer(singletonList((Pipeline) pipeline), indexer, new MemoryNamedEntityCache(10), 32);
+
+        consumer.findNamedEntities("projectName", doc1.getId(), "routing");
+        consumer.findNamedEntities("projectName", doc2.getId(), "routing");
+
+        verify(pipeline, times(1)).process(any());
+        verify(indexer).bulkAdd(eq("projectName"), eq(CORENLP), entitiesCaptor.capture(), eq(doc2));
+        assertThat(entitiesCaptor.getValue()).hasSize(1);
+        assertThat(entitiesCaptor.getValue().get(0).getDocumentId()).isEqualTo(doc2.getId());
+        assertThat(entitiesCaptor.getValue().get(0).getOffsets()).containsExactly(6L);
+    }
+
+    @Test
+    public void test_email_entities_are_not_cached_for_emails() throws Exception {
+        when(pipeline.getType()).thenReturn(EMAIL);
+        when(pipeline.initialize(any())).thenReturn(true);
+        Document email1 = createDoc("email1").with("same body").ofMimeType("message/rfc822").build();
+        Document email2 = createDoc("email2").with("same body").ofMimeType("message/rfc822").build();
+        when(pipeline.process(any())).thenReturn(emptyList());
+        when(indexer.get("projectName", email1.getId(), "routing")).thenReturn(email1);
+        when(indexer.get("projectName", email2.getId(), "routing")).thenReturn(email2);
+        NlpConsumer consumer = new NlpConsumer(singletonList((Pipeline) pipeline), indexer, new MemoryNamedEntityCache(10), 32);
+
+        consumer.findNamedEntities("projectName", email1.getId(), "routing");
+        consumer.findNamedEntities("projectName", email2.getId(), "routing");
+
+        verify(pipeline).process(email1);
+        verify(pipeline).process(email2);
+    }
 }
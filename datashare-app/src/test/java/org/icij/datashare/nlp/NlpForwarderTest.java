@@ -0,0 +1,37 @@
+package org.icij.datashare.nlp;
+
+import org.icij.datashare.com.DataBus;
+import org.icij.datashare.com.Message;
+import org.junit.Test;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.fest.assertions.Assertions.assertThat;
+import static org.icij.datashare.com.Message.Field.DOC_ID;
+import static org.icij.datashare.com.Message.Type.EXTRACT_NLP;
+import static org.mockito.Mockito.mock;
+
+public class NlpForwarderTest {
+    @Test(timeout = 5000)
+    public void test_forwarder_waits_for_consumers_when_queue_is_full() throws Exception {
+        BlockingQueue<Message> queue = new LinkedBlockingQueue<>(1);
+        NlpForwarder forwarder = new NlpForwarder(mock(DataBus.class), queue, () -> {});
+        forwarder.onMessage(new Message(EXTRACT_NLP).add(DOC_ID, "doc1"));
+        CountDownLatch forwarded = new CountDownLatch(1);
+
+        Thread subscriber = new Thread(() -> {
+            forwarder.onMessage(new Message(EXTRACT_NLP).add(DOC_ID, "doc2"));
+            forwarded.countDown();
+        });
+        subscriber.start();
+
+        assertThat(forwarded.await(200, MILLISECONDS)).isFalse();
+        assertThat(queue.take().content.get(DOC_ID)).isEqualTo("doc1");
+        assertThat(forwarded.await(1, SECONDS)).isTrue();
+        assertThat(queue.take().content.get(DOC_ID)).isEqualTo("doc2");
+    }
+}
@@ -0,0 +1,38 @@
+package org.icij.datashare.nlp;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class PipelineVersionTest {
+    @Rule public TemporaryFolder models = new TemporaryFolder();
+
+    @Test
+    public void test_fingerprint_of_missing_dir_is_empty() {
+        assertThat(PipelineVersion.fingerprint(models.getRoot().toPath().resolve("missing"))).isEmpty();
+    }
+
+    @Test
+    public void test_fingerprint_changes_with_model_files() throws Exception {
+        File model = models.newFile("model.bin");
+        Files.write(model.toPath(), new byte[] {1, 2});
+        String fingerprint = PipelineVersion.fingerprint(models.getRoot().toPath());
+
+        assertThat(PipelineVersion.fingerprint(models.getRoot().toPath())).isEqualTo(fingerprint);
+
+        models.newFolder("4-5-0");
+        Files.write(models.getRoot().toPath().resolve("4-5-0").resolve("model.bin"), new byte[] {1, 2, 3});
+
+        assertThat(PipelineVersion.fingerprint(models.getRoot().toPath())).isNotEqualTo(fingerprint);
+    }
+
+    @Test
+    public void test_code_version_without_implementation_version() {
+        assertThat(PipelineVersion.codeVersion(EmailPipeline.class)).isNotEmpty();
+    }
+}
@@ -10,6 +10,7 @@ import org.junit.rules.TemporaryFolder;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
 
 import static org.icij.datashare.batch.BatchDownload.createFilename;
 import static org.icij.datashare.text.Project.project;
@@ -49,4 +50,80 @@ public class BatchDownloadCleanerTest {
         batchDownloadCleaner.run();
         Assertions.assertThat(file).doesNotExist();
     }
-}
\ No newline at end of file
+
+    @Test
+    public void test_added_zip_file_is_removed_after_delay() throws IOException {
+        BatchDownloadCleaner batchDownloadCleaner = new BatchDownloadCleaner(downloadDir.getRoot().toPath(), 1);
+        batchDownloadCleaner.run();
+        File file = downloadDir.newFile(createFilename(User.local()).toString());
+        batchDownloadCleaner.add(file);
+        DatashareTime.getInstance().addMilliseconds(100);
+
+        batchDownloadCleaner.run();
+        Assertions.assertThat(file).exists();
+
+        DatashareTime.getInstance().addMilliseconds(1000 * 60 * 60);
+        batchDownloadCleaner.run();
+        Assertions.assertThat(file).doesNotExist();
+    }
+
+    @Test
+    public void test_next_run_delay_is_oldest_zip_expiration() throws IOException {
+        File file = downloadDir.newFile(createFilename(User.local()).toString());
+        BatchDownloadCleaner batchDownloadCleaner = new BatchDownloadCleaner(downloadDir.getRoot().toPath(), 1);
+        Assertions.assertThat(batchDownloadCleaner.nextRunDelayMillis()).isEqualTo(1000 * 60 * 60);
+
+        batchDownloadCleaner.run();
+
+        Assertions.assertThat(batchDownloadCleaner.nextRunDelayMillis()).isEqualTo(
+                file.lastModified() + 1000 * 60 * 60 - DatashareTime.getInstance().currentTimeMillis());
+    }
+
+    @Test
+    public void test_remove_oldest_zip_files_over_quota() throws IOException {
+        File oldest = zipFile("oldest", 10, 3);
+        File newest = zipFile("newest", 10, 2);
+        BatchDownloadCleaner batchDownloadCleaner = new BatchDownloadCleaner(downloadDir.getRoot().toPath(), 24, 25);
+        batchDownloadCleaner.run();
+        Assertions.assertThat(batchDownloadCleaner.size()).isEqualTo(20);
+
+        batchDownloadCleaner.add(zipFile("added", 10, 1));
+
+        Assertions.assertThat(oldest).doesNotExist();
+        Assertions.assertThat(newest).exists();
+        Assertions.assertThat(batchDownloadCleaner.size()).isEqualTo(20);
+    }
+
+    @Test
+    public void test_directory_is_listed_once() throws IOException {
+        zipFile("first", 10, 3);
+        BatchDownloadCleaner batchDownloadCleaner = new BatchDownloadCleaner(downloadDir.getRoot().toPath(), 24, 25);
+        batchDownloadCleaner.run();
+
+        File other = zipFile("other", 10, 2);
+        batchDownloadCleaner.run();
+        Assertions.assertThat(batchDownloadCleaner.size()).isEqualTo(10);
+
+        batchDownloadCleaner.add(other);
+        Assertions.assertThat(batchDownloadCleaner.size()).isEqualTo(20);
+    }
+
+    @Test
+    public void test_add_before_first_run_indexes_directory() throws IOException {
+        File first = zipFile("first", 10, 3);
+        BatchDownloadCleaner batchDownloadCleaner = new BatchDownloadCleaner(downloadDir.getRoot().toPath(), 24, 25);
+
+        batchDownloadCleaner.add(zipFile("added", 20, 1));
+
+        Assertions.assertThat(first).doesNotExist();
+        Assertions.assertThat(batchDownloadCleaner.size()).isEqualTo(20);
+        batchDownloadCleaner.close();
+    }
+
+    private File zipFile(String user, int size, int secondsAgo) throws IOException {
+        File file = downloadDir.newFile(createFilename(new User(user)).toString());
+        Files.write(file.toPath(), new byte[size]);
+        Assertions.assertThat(file.setLastModified(DatashareTime.getInstance().currentTimeMillis() - secondsAgo * 1000L)).isTrue();
+        return file;
+    }
+}
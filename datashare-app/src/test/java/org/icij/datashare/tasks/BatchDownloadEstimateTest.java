@@ -0,0 +1,45 @@
+package org.icij.datashare.tasks;
+
+import org.icij.datashare.text.indexing.elasticsearch.DocumentsSize;
+import org.junit.Test;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class BatchDownloadEstimateTest {
+    @Test
+    public void test_estimate_within_limits() {
+        BatchDownloadEstimate estimate = BatchDownloadEstimate.of(new DocumentsSize(10, 1000), 100, 10_000, 100);
+
+        assertThat(estimate.truncated).isFalse();
+        assertThat(estimate.nbFiles).isEqualTo(10);
+        assertThat(estimate.zipSize).isEqualTo(1000);
+        assertThat(estimate.durationSeconds).isEqualTo(10);
+    }
+
+    @Test
+    public void test_estimate_truncated_by_number_of_files() {
+        BatchDownloadEstimate estimate = BatchDownloadEstimate.of(new DocumentsSize(10, 1000), 5, 10_000, 100);
+
+        assertThat(estimate.truncated).isTrue();
+        assertThat(estimate.nbFiles).isEqualTo(5);
+        assertThat(estimate.zipSize).isEqualTo(500);
+    }
+
+    @Test
+    public void test_estimate_truncated_by_zip_size() {
+        BatchDownloadEstimate estimate = BatchDownloadEstimate.of(new DocumentsSize(10, 1000), 100, 300, 100);
+
+        assertThat(estimate.truncated).isTrue();
+        assertThat(estimate.nbFiles).isEqualTo(4);
+        assertThat(estimate.zipSize).isEqualTo(400);
+    }
+
+    @Test
+    public void test_estimate_no_documents() {
+        BatchDownloadEstimate estimate = BatchDownloadEstimate.of(new DocumentsSize(0, 0), 100, 300, 100);
+
+        assertThat(estimate.truncated).isFalse();
+        assertThat(estimate.nbFiles).isEqualTo(0);
+        assertThat(estimate.durationSeconds).isEqualTo(0);
+    }
+}
@@ -49,7 +49,8 @@ public class BatchDownloadLoopTest {
 
         verify(batchRunner).call();
         verify(manager).save(argCaptor.capture());
-        verify(batchDownloadCleaner, times(2)).run();
+        verify(batchDownloadCleaner).start();
+        verify(batchDownloadCleaner).close();
         assertThat(argCaptor.getValue().getState()).isEqualTo(TaskView.State.DONE);
     }
 
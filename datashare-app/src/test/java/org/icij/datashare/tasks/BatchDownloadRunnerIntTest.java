@@ -1,9 +1,12 @@
 package org.icij.datashare.tasks;
 
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
 import org.icij.datashare.PropertiesProvider;
 import org.icij.datashare.batch.BatchDownload;
 import org.icij.datashare.test.DatashareTimeRule;
 import org.icij.datashare.test.ElasticsearchRule;
+import org.icij.datashare.text.Document;
 import org.icij.datashare.text.Project;
 import org.icij.datashare.text.indexing.elasticsearch.ElasticsearchIndexer;
 import org.jetbrains.annotations.NotNull;
@@ -11,18 +14,27 @@ import org.junit.*;
 import org.junit.rules.TemporaryFolder;
 import org.mockito.Mock;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.function.Function;
+import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.Arrays.asList;
 import static org.elasticsearch.action.support.WriteRequest.RefreshPolicy.IMMEDIATE;
 import static org.fest.assertions.Assertions.assertThat;
 import static org.icij.datashare.test.ElasticsearchRule.TEST_INDEX;
 import static org.icij.datashare.test.ElasticsearchRule.TEST_INDEXES;
+import static org.icij.datashare.text.Document.Status.INDEXED;
+import static org.icij.datashare.text.Language.ENGLISH;
 import static org.icij.datashare.text.Project.project;
 import static org.icij.datashare.user.User.local;
 import static org.mockito.Matchers.any;
@@ -84,6 +96,81 @@ public class BatchDownloadRunnerIntTest {
         verify(updateCallback, times(2)).apply(any());
     }
 
+    @Test
+    public void test_compressible_entry_is_deflated() throws Exception {
+        String content = StringUtils.repeat("The quick brown fox jumps over the lazy dog. ", 100);
+        File file = new IndexerHelper(es.client).indexFile("mydoc.txt", content, fs);
+        BatchDownload bd = createBatchDownload("fox");
+
+        new BatchDownloadRunner(indexer, createProvider(), bd, updateCallback).call();
+
+        ZipEntry entry = new ZipFile(bd.filename.toFile()).getEntry(file.toString().substring(1));
+        assertThat(entry.getMethod()).isEqualTo(ZipEntry.DEFLATED);
+        assertThat(entry.getSize()).isEqualTo(content.length());
+        assertThat(entry.getCompressedSize()).isLessThan(content.length());
+    }
+
+    @Test
+    public void test_stream_zip_without_file() throws Exception {
+        String content = "The quick brown fox jumps over the lazy dog";
+        File file = new IndexerHelper(es.client).indexFile("mydoc.txt", content, fs);
+        BatchDownload bd = createBatchDownload("fox");
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+        assertThat(new BatchDownloadRunner(indexer, createProvider(), bd, updateCallback).streamingTo(output).call()).isNull();
+
+        assertThat(bd.filename.toFile()).doesNotExist();
+        try (ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(output.toByteArray()))) {
+            assertThat(zip.getNextEntry().getName()).isEqualTo(file.toString().substring(1));
+            assertThat(IOUtils.toString(zip, UTF_8)).isEqualTo(content);
+            assertThat(zip.getNextEntry()).isNull();
+        }
+        verify(updateCallback).apply(any());
+    }
+
+    @Test
+    public void test_stream_empty_zip_when_no_results() throws Exception {
+        BatchDownload bd = createBatchDownload("query");
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+        new BatchDownloadRunner(indexer, createProvider(), bd, updateCallback).streamingTo(output).call();
+
+        try (ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(output.toByteArray()))) {
+            assertThat(zip.getNextEntry()).isNull();
+        }
+    }
+
+    @Test
+    public void test_truncated_download_zips_smallest_documents_first() throws Exception {
+        File big = indexFileOfLength("big.txt", 100);
+        File small = indexFileOfLength("small.txt", 10);
+        File medium = indexFileOfLength("medium.txt", 20);
+        BatchDownload bd = createBatchDownload("*");
+
+        new BatchDownloadRunner(indexer, new PropertiesProvider(new HashMap<String, String>() {{
+            put("downloadFolder", fs.getRoot().toString());
+            put("batchDownloadMaxNbFiles", "2");
+        }}), bd, updateCallback).call();
+
+        ZipFile zip = new ZipFile(bd.filename.toFile());
+        assertThat(zip.size()).isEqualTo(2);
+        assertThat(zip.getEntry(small.toString().substring(1))).isNotNull();
+        assertThat(zip.getEntry(medium.toString().substring(1))).isNotNull();
+        assertThat(zip.getEntry(big.toString().substring(1))).isNull();
+    }
+
+    @Test
+    public void test_estimate() throws Exception {
+        indexFileOfLength("small.txt", 10);
+        indexFileOfLength("medium.txt", 20);
+
+        BatchDownloadEstimate estimate = new BatchDownloadRunner(indexer, createProvider(), createBatchDownload("*"), updateCallback).estimate();
+
+        assertThat(estimate.nbDocuments).isEqualTo(2);
+        assertThat(estimate.size).isEqualTo(30);
+        assertThat(estimate.truncated).isFalse();
+    }
+
     @Test
     public void test_update_batch_download_zip_size() throws Exception {
         new IndexerHelper(es.client).indexFile("doc1.txt", "The quick brown fox jumps over the lazy dog", fs);
@@ -194,6 +281,15 @@ public class BatchDownloadRunnerIntTest {
         es.removeAll();
     }
 
+    private File indexFileOfLength(String fileName, int length) throws IOException {
+        String content = StringUtils.repeat("a", length);
+        File file = fs.newFile(fileName);
+        Files.write(file.toPath(), content.getBytes(UTF_8));
+        indexer.add(TEST_INDEX, new Document(fileName, project(TEST_INDEX), file.toPath(), content, ENGLISH, UTF_8,
+                "text/plain", new HashMap<>(), INDEXED, new HashSet<>(), (long) length));
+        return file;
+    }
+
     @NotNull
     private PropertiesProvider createProvider() {
         return new PropertiesProvider(new HashMap<String, String>() {{
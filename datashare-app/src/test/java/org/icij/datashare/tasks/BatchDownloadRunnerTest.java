@@ -1,6 +1,7 @@
 package org.icij.datashare.tasks;
 
 import org.elasticsearch.ElasticsearchStatusException;
+import org.apache.commons.io.IOUtils;
 import org.elasticsearch.rest.RestStatus;
 import org.icij.datashare.PropertiesProvider;
 import org.icij.datashare.batch.BatchDownload;
@@ -15,26 +16,32 @@ import org.mockito.Mock;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.HashMap;
 import java.util.function.Function;
 import java.util.stream.IntStream;
+import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
 import static java.lang.String.valueOf;
 import static java.util.Collections.singletonList;
+import static java.util.stream.Collectors.toList;
 import static org.fest.assertions.Assertions.assertThat;
 import static org.icij.datashare.cli.DatashareCliOptions.*;
 import static org.icij.datashare.text.DocumentBuilder.createDoc;
 import static org.icij.datashare.text.Project.project;
+import static org.mockito.Mockito.verify;
 import static org.mockito.MockitoAnnotations.initMocks;
 
 public class BatchDownloadRunnerTest {
     @Rule public TemporaryFolder fs = new TemporaryFolder();
     @Mock Function<TaskView<File>, Void> updater;
     @Mock Indexer indexer;
+    @Mock BatchDownloadCleaner cleaner;
     MockSearch mockSearch;
 
     @Test
@@ -61,6 +68,59 @@ public class BatchDownloadRunnerTest {
         assertThat(new ZipFile(zip).size()).isEqualTo(4);
     }
 
+    @Test
+    public void test_max_zip_size_with_parallel_extraction() throws Exception {
+        Document[] documents = IntStream.range(0, 3).mapToObj(i -> createDoc("doc" + i).with(createFile(i)).with("hello world " + i).build()).toArray(Document[]::new);
+        mockSearch.willReturn(2, documents);
+        File zip = new BatchDownloadRunner(indexer, new PropertiesProvider(new HashMap<String, String>() {{
+            put(BATCH_DOWNLOAD_MAX_SIZE, valueOf("hello world 1".getBytes(StandardCharsets.UTF_8).length * 3));
+            put(BATCH_DOWNLOAD_PARALLELISM, "3");
+            put(SCROLL_SIZE, "3");
+        }}), new BatchDownload(singletonList(project("test-datashare")), User.local(), "query"), updater).call();
+
+        assertThat(new ZipFile(zip).size()).isEqualTo(4);
+    }
+
+    @Test
+    public void test_parallel_extraction_keeps_results_order() throws Exception {
+        Document[] documents = IntStream.range(0, 5).mapToObj(i -> createDoc("doc" + i).with(createFile(i)).build()).toArray(Document[]::new);
+        mockSearch.willReturn(1, documents);
+        File zip = new BatchDownloadRunner(indexer, new PropertiesProvider(new HashMap<String, String>() {{
+            put(BATCH_DOWNLOAD_PARALLELISM, "4");
+            put(BATCH_DOWNLOAD_BUFFER_SIZE, "20");
+            put(SCROLL_SIZE, "5");
+        }}), new BatchDownload(singletonList(project("test-datashare")), User.local(), "query"), updater).call();
+
+        assertThat(new ZipFile(zip).stream().map(e -> Paths.get(e.getName()).getFileName().toString()).collect(toList())).
+                containsExactly("src_file_0.txt", "src_file_1.txt", "src_file_2.txt", "src_file_3.txt", "src_file_4.txt");
+    }
+
+    @Test
+    public void test_documents_without_common_root_are_extracted_one_by_one() throws Exception {
+        Document[] documents = IntStream.range(0, 2).mapToObj(i -> createDoc("doc" + i).with(createFile(i)).build()).toArray(Document[]::new);
+        mockSearch.willReturn(1, documents);
+        File zip = new BatchDownloadRunner(indexer, new PropertiesProvider(new HashMap<String, String>() {{
+            put(SCROLL_SIZE, "2");
+        }}), new BatchDownload(singletonList(project("test-datashare")), User.local(), "query"), updater).call();
+
+        try (ZipFile zipFile = new ZipFile(zip)) {
+            assertThat(zipFile.size()).isEqualTo(2);
+            ZipEntry entry = zipFile.stream().filter(e -> e.getName().endsWith("src_file_1.txt")).findFirst().orElseThrow(AssertionError::new);
+            try (InputStream content = zipFile.getInputStream(entry)) {
+                assertThat(new String(IOUtils.toByteArray(content), StandardCharsets.UTF_8)).isEqualTo("hello world 1");
+            }
+        }
+    }
+
+    @Test
+    public void test_created_zip_is_added_to_cleaner() throws Exception {
+        mockSearch.willReturn(1, createDoc("doc0").with(createFile(0)).build());
+        File zip = new BatchDownloadRunner(indexer, new PropertiesProvider(), cleaner,
+                new BatchDownload(singletonList(project("test-datashare")), User.local(), "query"), updater).call();
+
+        verify(cleaner).add(zip);
+    }
+
     @Test(expected = ElasticsearchStatusException.class)
     public void test_elasticsearch_status_exception__should_be_sent() throws Exception {
         mockSearch.willThrow(new ElasticsearchStatusException("error", RestStatus.BAD_REQUEST, new RuntimeException()));
@@ -5,6 +5,7 @@ import org.icij.datashare.PropertiesProvider;
 import org.icij.datashare.batch.BatchSearch;
 import org.icij.datashare.batch.BatchSearchRepository;
 import org.icij.datashare.batch.SearchException;
+import org.icij.datashare.db.JooqBatchSearchRepository;
 import org.icij.datashare.tasks.BatchSearchLoop;
 import org.icij.datashare.tasks.BatchSearchRunner;
 import org.icij.datashare.tasks.TaskFactory;
@@ -21,6 +22,7 @@ import sun.misc.Signal;
 
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.concurrent.*;
 
 import static java.util.Arrays.asList;
@@ -158,6 +160,117 @@ public class BatchSearchLoopTestInt {
         verify(repository).reset(batchSearch.uuid);
     }
 
+    @Test
+    public void test_main_loop_exit_with_sigterm_requeues_database_batch_search_without_reset() throws InterruptedException {
+        JooqBatchSearchRepository jooqRepository = mock(JooqBatchSearchRepository.class);
+        when(jooqRepository.get(anyString())).thenReturn(batchSearch);
+        when(jooqRepository.claim(eq(batchSearch.uuid), anyString(), anyInt())).thenReturn(JooqBatchSearchRepository.Claim.CLAIMED);
+        SleepingBatchSearchRunner batchSearchRunner = new SleepingBatchSearchRunner(100);
+        when(factory.createBatchSearchRunner(any(), any())).thenReturn(batchSearchRunner);
+        BatchSearchLoop app = new BatchSearchLoop(jooqRepository, batchSearchQueue, factory);
+        batchSearchQueue.add(batchSearch.uuid);
+        executor.submit(app::run);
+        waitQueueToBeEmpty();
+
+        Signal.raise(new Signal("TERM"));
+        executor.shutdown();
+
+        assertThat(executor.awaitTermination(2,TimeUnit.SECONDS)).isTrue();
+        verify(jooqRepository).requeue(batchSearch.uuid);
+        verify(jooqRepository, never()).reset(batchSearch.uuid);
+        assertThat(batchSearchQueue).containsOnly(batchSearch.uuid);
+    }
+
+    @Test
+    public void test_main_loop_claims_batch_search_in_database() {
+        JooqBatchSearchRepository jooqRepository = mock(JooqBatchSearchRepository.class);
+        when(jooqRepository.get(anyString())).thenReturn(batchSearch);
+        when(jooqRepository.claim(eq(batchSearch.uuid), anyString(), anyInt())).thenReturn(JooqBatchSearchRepository.Claim.CLAIMED);
+        BatchSearchLoop app = new BatchSearchLoop(jooqRepository, batchSearchQueue, factory);
+        batchSearchQueue.add(batchSearch.uuid);
+        app.enqueuePoison();
+
+        app.run();
+
+        verify(batchSearchRunner).call();
+        verify(jooqRepository, never()).setState(batchSearch.uuid, BatchSearch.State.RUNNING);
+        verify(jooqRepository).setState(batchSearch.uuid, BatchSearch.State.SUCCESS);
+    }
+
+    @Test
+    public void test_main_loop_does_not_run_batch_search_claimed_by_another_worker() {
+        JooqBatchSearchRepository jooqRepository = mock(JooqBatchSearchRepository.class);
+        when(jooqRepository.get(anyString())).thenReturn(batchSearch);
+        when(jooqRepository.claim(eq(batchSearch.uuid), anyString(), anyInt())).thenReturn(JooqBatchSearchRepository.Claim.NOT_QUEUED);
+        BatchSearchLoop app = new BatchSearchLoop(jooqRepository, batchSearchQueue, factory);
+        batchSearchQueue.add(batchSearch.uuid);
+        app.enqueuePoison();
+
+        app.run();
+
+        verify(batchSearchRunner, never()).call();
+    }
+
+    @Test
+    public void test_main_loop_queues_again_batch_search_over_user_limit_when_a_batch_search_is_done() {
+        JooqBatchSearchRepository jooqRepository = mock(JooqBatchSearchRepository.class);
+        when(jooqRepository.get(anyString())).thenReturn(batchSearch);
+        when(jooqRepository.claim(eq(batchSearch.uuid), anyString(), eq(1))).
+                thenReturn(JooqBatchSearchRepository.Claim.USER_LIMIT_REACHED).thenReturn(JooqBatchSearchRepository.Claim.CLAIMED);
+        BatchSearchLoop app = new BatchSearchLoop(jooqRepository, batchSearchQueue, factory, new PropertiesProvider(new HashMap<String, String>() {{
+            put("batchSearchMaxRunningPerUser", "1");
+        }}), new CountDownLatch(1));
+        batchSearchQueue.add(batchSearch.uuid);
+        batchSearchQueue.add(batchSearch.uuid);
+        app.enqueuePoison();
+
+        app.run();
+
+        verify(jooqRepository, times(2)).claim(eq(batchSearch.uuid), anyString(), eq(1));
+        verify(batchSearchRunner).call();
+        assertThat(batchSearchQueue).containsOnly(batchSearch.uuid);
+    }
+
+    @Test
+    public void test_main_loop_keeps_batch_search_over_user_limit_queued_in_database() {
+        JooqBatchSearchRepository jooqRepository = mock(JooqBatchSearchRepository.class);
+        when(jooqRepository.get(anyString())).thenReturn(batchSearch);
+        when(jooqRepository.claim(eq(batchSearch.uuid), anyString(), eq(1))).thenReturn(JooqBatchSearchRepository.Claim.USER_LIMIT_REACHED);
+        BatchSearchLoop app = new BatchSearchLoop(jooqRepository, batchSearchQueue, factory, new PropertiesProvider(new HashMap<String, String>() {{
+            put("batchSearchMaxRunningPerUser", "1");
+        }}), new CountDownLatch(1));
+        batchSearchQueue.add(batchSearch.uuid);
+        app.enqueuePoison();
+
+        app.run();
+
+        verify(jooqRepository).claim(eq(batchSearch.uuid), anyString(), eq(1));
+        verify(jooqRepository, never()).setState(eq(batchSearch.uuid), any(BatchSearch.State.class));
+        verify(batchSearchRunner, never()).call();
+        assertThat(batchSearchQueue).isEmpty();
+    }
+
+    @Test
+    public void test_main_loop_with_several_workers() {
+        BatchSearch bs1 = new BatchSearch(singletonList(project("prj")), "name1", "desc", CollectionUtils.asSet("query1") , local());
+        BatchSearch bs2 = new BatchSearch(singletonList(project("prj")), "name2", "desc", CollectionUtils.asSet("query2") , local());
+        when(repository.get(bs1.uuid)).thenReturn(bs1);
+        when(repository.get(bs2.uuid)).thenReturn(bs2);
+        BatchSearchLoop app = new BatchSearchLoop(repository, batchSearchQueue, factory, new PropertiesProvider(new HashMap<String, String>() {{
+            put("batchSearchWorkers", "2");
+        }}), new CountDownLatch(1));
+        batchSearchQueue.add(bs1.uuid);
+        batchSearchQueue.add(bs2.uuid);
+        app.enqueuePoison();
+
+        app.run();
+
+        verify(batchSearchRunner, times(2)).call();
+        verify(repository).setState(bs1.uuid, BatchSearch.State.SUCCESS);
+        verify(repository).setState(bs2.uuid, BatchSearch.State.SUCCESS);
+        assertThat(batchSearchQueue).isEmpty();
+    }
+
     @Before
     public void setUp() {
         initMocks(this);
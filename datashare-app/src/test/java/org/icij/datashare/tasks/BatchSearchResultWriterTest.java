@@ -0,0 +1,143 @@
+package org.icij.datashare.tasks;
+
+import org.icij.datashare.batch.SearchException;
+import org.icij.datashare.db.JooqBatchSearchRepository.ResultPage;
+import org.icij.datashare.text.Document;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static java.util.stream.Collectors.toList;
+import static org.fest.assertions.Assertions.assertThat;
+import static org.icij.datashare.CollectionUtils.asSet;
+import static org.icij.datashare.text.DocumentBuilder.createDoc;
+import static org.junit.Assert.assertThrows;
+
+public class BatchSearchResultWriterTest {
+    private final List<List<ResultPage>> flushes = new CopyOnWriteArrayList<>();
+    private final Document doc1 = createDoc("doc1").build();
+    private final Document doc2 = createDoc("doc2").build();
+    private final Document doc3 = createDoc("doc3").build();
+
+    @Test
+    public void test_write_pages_in_order() {
+        BatchSearchResultWriter writer = new BatchSearchResultWriter("uuid", (uuid, pages) -> flushes.add(pages));
+
+        writer.apply("uuid", "query1", singletonList(doc1));
+        writer.apply("uuid", "query2", singletonList(doc2));
+        writer.close();
+
+        assertThat(flushes.stream().flatMap(List::stream).map(p -> p.query).collect(toList())).containsExactly("query1", "query2");
+    }
+
+    @Test
+    public void test_coalesce_queued_pages() throws Exception {
+        CountDownLatch firstFlushStarted = new CountDownLatch(1);
+        CountDownLatch releaseFirstFlush = new CountDownLatch(1);
+        BatchSearchResultWriter writer = new BatchSearchResultWriter("uuid", (uuid, pages) -> {
+            firstFlushStarted.countDown();
+            await(releaseFirstFlush);
+            return flushes.add(pages);
+        });
+
+        writer.apply("uuid", "query1", singletonList(doc1));
+        firstFlushStarted.await(1, TimeUnit.SECONDS);
+        writer.apply("uuid", "query1", singletonList(doc2));
+        writer.apply("uuid", "query2", singletonList(doc3));
+        releaseFirstFlush.countDown();
+        writer.close();
+
+        assertThat(flushes).hasSize(2);
+        assertThat(flushes.get(1).stream().map(p -> p.documents.get(0)).collect(toList())).containsExactly(doc2, doc3);
+    }
+
+    @Test
+    public void test_max_documents_per_flush() {
+        BatchSearchResultWriter writer = new BatchSearchResultWriter("uuid", (uuid, pages) -> flushes.add(pages), 16, 2);
+
+        writer.apply("uuid", "query", asList(doc1, doc2));
+        writer.apply("uuid", "query", singletonList(doc3));
+        writer.close();
+
+        assertThat(flushes.stream().allMatch(pages -> pages.stream().mapToInt(p -> p.documents.size()).sum() <= 2)).isTrue();
+    }
+
+    @Test
+    public void test_write_error_is_thrown_by_close_and_next_page() throws Exception {
+        CountDownLatch failed = new CountDownLatch(1);
+        BatchSearchResultWriter writer = new BatchSearchResultWriter("uuid", (uuid, pages) -> {
+            failed.countDown();
+            throw new IllegalStateException("db error");
+        });
+
+        writer.apply("uuid", "query1", singletonList(doc1));
+        failed.await(1, TimeUnit.SECONDS);
+        Thread.sleep(100);
+
+        assertThrows(SearchException.class, () -> writer.apply("uuid", "query2", singletonList(doc2)));
+        SearchException error = assertThrows(SearchException.class, writer::close);
+        assertThat(error.query).isEqualTo("query1");
+    }
+
+    @Test
+    public void test_abort_drops_queued_pages() throws Exception {
+        CountDownLatch firstFlushStarted = new CountDownLatch(1);
+        CountDownLatch releaseFirstFlush = new CountDownLatch(1);
+        BatchSearchResultWriter writer = new BatchSearchResultWriter("uuid", (uuid, pages) -> {
+            firstFlushStarted.countDown();
+            await(releaseFirstFlush);
+            return flushes.add(pages);
+        });
+
+        writer.apply("uuid", "query1", singletonList(doc1));
+        firstFlushStarted.await(1, TimeUnit.SECONDS);
+        writer.apply("uuid", "query2", singletonList(doc2));
+        writer.abort();
+
+        assertThat(flushes).hasSize(1);
+        assertThat(flushes.get(0).get(0).query).isEqualTo("query1");
+    }
+
+    @Test
+    public void test_query_done_marker_is_written_after_query_results() {
+        BatchSearchResultWriter writer = new BatchSearchResultWriter("uuid", (uuid, pages) -> flushes.add(pages), asSet("query0"));
+
+        writer.apply("uuid", "query1", singletonList(doc1));
+        writer.queryDone("query1");
+        writer.queryDone("query1");
+        writer.close();
+
+        List<ResultPage> pages = flushes.stream().flatMap(List::stream).collect(toList());
+        assertThat(pages).hasSize(2);
+        assertThat(pages.get(1).queryDone).isTrue();
+        assertThat(pages.get(1).query).isEqualTo("query1");
+        assertThat(writer.isDone("query0")).isTrue();
+        assertThat(writer.isDone("query1")).isTrue();
+    }
+
+    @Test
+    public void test_no_cached_results_without_repository() {
+        BatchSearchResultWriter writer = new BatchSearchResultWriter("uuid", (uuid, pages) -> flushes.add(pages));
+
+        assertThat(writer.cachedResultsCount("key")).isEqualTo(-1);
+        assertThat(writer.copyCachedResults("query1", "key")).isEqualTo(-1);
+        writer.queryDone("query1", "key");
+        writer.close();
+
+        assertThat(writer.isDone("query1")).isTrue();
+        assertThat(flushes.get(0).get(0).cacheKey).isEqualTo("key");
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -16,6 +16,7 @@ import org.junit.*;
 import org.mockito.Mock;
 
 import java.io.IOException;
+import java.util.HashMap;
 import java.util.List;
 
 import static java.util.Arrays.asList;
@@ -23,6 +24,7 @@ import static java.util.Collections.singletonList;
 import static org.elasticsearch.action.support.WriteRequest.RefreshPolicy.IMMEDIATE;
 import static org.fest.assertions.Assertions.assertThat;
 import static org.icij.datashare.CollectionUtils.asSet;
+import static org.icij.datashare.cli.DatashareCliOptions.SCROLL_SIZE;
 import static org.icij.datashare.test.ElasticsearchRule.TEST_INDEX;
 import static org.icij.datashare.text.DocumentBuilder.createDoc;
 import static org.icij.datashare.text.Project.project;
@@ -173,6 +175,36 @@ public class BatchSearchRunnerIntTest {
         assertThat(sex.toString()).contains("Failed to parse query [AND mydoc]");
     }
 
+    @Test
+    public void test_search_with_multi_search_and_scroll_for_full_pages() throws Exception {
+        Document mydoc1 = createDoc("docId1").with("mydoc one").build();
+        Document mydoc2 = createDoc("docId2").with("mydoc two").build();
+        Document mydoc3 = createDoc("docId3").with("mydoc three").build();
+        indexer.add(TEST_INDEX, mydoc1);
+        indexer.add(TEST_INDEX, mydoc2);
+        indexer.add(TEST_INDEX, mydoc3);
+        BatchSearch search = new BatchSearch(singletonList(project(TEST_INDEX)), "name", "desc", asSet("one", "mydoc", "unknown"), User.local());
+
+        assertThat(new BatchSearchRunner(indexer, new PropertiesProvider(new HashMap<String, String>() {{
+            put(SCROLL_SIZE, "2");
+        }}), search, resultConsumer).call()).isEqualTo(4);
+
+        verify(resultConsumer).apply(search.uuid, "one", singletonList(mydoc1));
+        verify(resultConsumer, times(2)).apply(eq(search.uuid), eq("mydoc"), anyList());
+        verify(resultConsumer, never()).apply(eq(search.uuid), eq("unknown"), anyList());
+    }
+
+    @Test
+    public void test_search_with_error_in_multi_search() throws Exception {
+        Document mydoc = createDoc("docId1").with("mydoc").build();
+        indexer.add(TEST_INDEX, mydoc);
+        BatchSearch search = new BatchSearch(singletonList(project(TEST_INDEX)), "name", "desc", asSet("mydoc", "AND mydoc"), User.local());
+
+        SearchException sex = assertThrows(SearchException.class,() -> new BatchSearchRunner(indexer, new PropertiesProvider(), search, resultConsumer).call());
+
+        assertThat(sex.toString()).contains("Failed to parse query [AND mydoc]");
+    }
+
     @Before
     public void setUp() { initMocks(this);}
 }
@@ -3,32 +3,41 @@ package org.icij.datashare.tasks;
 import org.icij.datashare.PropertiesProvider;
 import org.icij.datashare.batch.BatchSearch;
 import org.icij.datashare.batch.SearchException;
+import org.icij.datashare.db.JooqBatchSearchRepository;
 import org.icij.datashare.function.TerFunction;
 import org.icij.datashare.test.DatashareTimeRule;
 import org.icij.datashare.text.Document;
 import org.icij.datashare.text.indexing.Indexer;
+import org.icij.datashare.text.indexing.elasticsearch.ElasticsearchIndexer;
+import org.icij.datashare.time.DatashareTime;
 import org.icij.datashare.user.User;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 import static java.util.Arrays.asList;
 import static java.util.Collections.singletonList;
+import static java.util.stream.Collectors.toList;
 import static org.fest.assertions.Assertions.assertThat;
 import static org.icij.datashare.CollectionUtils.asSet;
 import static org.icij.datashare.cli.DatashareCliOptions.BATCH_SEARCH_MAX_TIME;
+import static org.icij.datashare.cli.DatashareCliOptions.BATCH_SEARCH_PARALLELISM;
 import static org.icij.datashare.cli.DatashareCliOptions.BATCH_THROTTLE;
+import static org.icij.datashare.tasks.BatchSearchRunner.FIRST_PAGE_SIZE;
 import static org.icij.datashare.tasks.BatchSearchRunner.MAX_BATCH_RESULT_SIZE;
 import static org.icij.datashare.tasks.BatchSearchRunner.MAX_SCROLL_SIZE;
 import static org.icij.datashare.text.DocumentBuilder.createDoc;
@@ -58,6 +67,132 @@ public class BatchSearchRunnerTest {
         verify(resultConsumer).apply("uuid1", "query1", asList(documents));
     }
 
+    @Test
+    public void test_run_batch_search_skips_done_queries() throws Exception {
+        Document[] documents = {createDoc("doc1").build(), createDoc("doc2").build()};
+        mockSearch.willReturn(1, documents);
+        BatchSearch search = new BatchSearch("uuid1", singletonList(project("test-datashare")), "name1", "desc1", asSet("query1", "query2"), new Date(), BatchSearch.State.QUEUED, User.local());
+        List<JooqBatchSearchRepository.ResultPage> saved = new CopyOnWriteArrayList<>();
+        BatchSearchResultWriter writer = new BatchSearchResultWriter("uuid1", (uuid, pages) -> saved.addAll(pages), asSet("query1"));
+
+        BatchSearchRunner batchSearchRunner = new BatchSearchRunner(indexer, new PropertiesProvider(), search, writer);
+        assertThat(batchSearchRunner.call()).isEqualTo(2);
+        writer.close();
+
+        assertThat(batchSearchRunner.getProgressRate()).isEqualTo(1.0);
+        assertThat(saved.stream().map(p -> p.query).distinct().collect(toList())).containsOnly("query2");
+        assertThat(saved.get(saved.size() - 1).queryDone).isTrue();
+        assertThat(writer.isDone("query2")).isTrue();
+    }
+
+    @Test
+    public void test_run_batch_search_copies_cached_results() throws Exception {
+        ElasticsearchIndexer esIndexer = mock(ElasticsearchIndexer.class);
+        when(esIndexer.indexGeneration(singletonList("test-datashare"))).thenReturn("test-datashare:2:1590401472000;");
+        JooqBatchSearchRepository repository = mock(JooqBatchSearchRepository.class);
+        when(repository.cachedResultsCount(eq("uuid1"), anyString())).thenReturn(2);
+        when(repository.copyCachedResults(eq("uuid1"), anyString(), anyString())).thenReturn(2);
+        BatchSearch search = new BatchSearch("uuid1", singletonList(project("test-datashare")), "name1", "desc1", asSet("query1", "query2"), new Date(), BatchSearch.State.QUEUED, User.local());
+        BatchSearchResultWriter writer = new BatchSearchResultWriter("uuid1", repository);
+
+        BatchSearchRunner batchSearchRunner = new BatchSearchRunner(esIndexer, new PropertiesProvider(), search, writer);
+        assertThat(batchSearchRunner.call()).isEqualTo(4);
+        writer.close();
+
+        assertThat(batchSearchRunner.getProgressRate()).isEqualTo(1.0);
+        assertThat(batchSearchRunner.cacheKey(" query1 ")).isEqualTo(batchSearchRunner.cacheKey("query1"));
+        verify(repository).copyCachedResults("uuid1", "query1", batchSearchRunner.cacheKey("query1"));
+        verify(repository).copyCachedResults("uuid1", "query2", batchSearchRunner.cacheKey("query2"));
+        verify(esIndexer, never()).searchDocumentProjection(any(), any());
+        verify(repository, never()).saveResultPages(anyString(), anyList());
+    }
+
+    @Test
+    public void test_run_batch_search_does_not_copy_cached_results_over_max_results() throws Exception {
+        ElasticsearchIndexer esIndexer = mock(ElasticsearchIndexer.class);
+        when(esIndexer.indexGeneration(singletonList("test-datashare"))).thenReturn("test-datashare:2:1590401472000;");
+        Indexer.Searcher searcher = mock(Indexer.Searcher.class);
+        when(searcher.with(any(), anyInt(), anyBoolean())).thenReturn(searcher);
+        when(searcher.withFieldValues(anyString())).thenReturn(searcher);
+        when(searcher.withPrefixQuery(anyString())).thenReturn(searcher);
+        when(searcher.limit(anyInt())).thenReturn(searcher);
+        when(searcher.scroll()).thenAnswer(a -> Stream.of(createDoc("doc1").build())).thenAnswer(a -> Stream.empty());
+        when(esIndexer.searchDocumentProjection(eq(singletonList("test-datashare")), any())).thenReturn(searcher);
+        JooqBatchSearchRepository repository = mock(JooqBatchSearchRepository.class);
+        int nbCachedResults = MAX_BATCH_RESULT_SIZE / 2 + 10000;
+        when(repository.cachedResultsCount(eq("uuid1"), anyString())).thenReturn(nbCachedResults);
+        when(repository.copyCachedResults(eq("uuid1"), anyString(), anyString())).thenReturn(nbCachedResults);
+        BatchSearch search = new BatchSearch("uuid1", singletonList(project("test-datashare")), "name1", "desc1", asSet("query1", "query2"), new Date(), BatchSearch.State.QUEUED, User.local());
+        BatchSearchResultWriter writer = new BatchSearchResultWriter("uuid1", repository);
+
+        BatchSearchRunner batchSearchRunner = new BatchSearchRunner(esIndexer, new PropertiesProvider(), search, writer);
+        assertThat(batchSearchRunner.call()).isEqualTo(nbCachedResults + 1);
+        writer.close();
+
+        verify(repository, times(1)).copyCachedResults(eq("uuid1"), anyString(), anyString());
+        verify(esIndexer, times(1)).searchDocumentProjection(eq(singletonList("test-datashare")), any());
+    }
+
+    @Test
+    public void test_run_batch_search_with_small_first_pages_from_multi_search() throws Exception {
+        ElasticsearchIndexer esIndexer = mock(ElasticsearchIndexer.class);
+        Indexer.Searcher searcher = projectionSearcher(esIndexer);
+        when(esIndexer.multiSearch(anyList())).thenReturn(asList(singletonList(createDoc("doc1").build()), singletonList(createDoc("doc2").build())));
+        BatchSearch search = new BatchSearch("uuid1", singletonList(project("test-datashare")), "name1", "desc1", asSet("query1", "query2"), new Date(), BatchSearch.State.QUEUED, User.local());
+
+        assertThat(new BatchSearchRunner(esIndexer, new PropertiesProvider(), search, resultConsumer).call()).isEqualTo(2);
+
+        verify(searcher, times(2)).limit(FIRST_PAGE_SIZE);
+        verify(searcher, never()).scroll();
+    }
+
+    @Test
+    public void test_run_batch_search_first_pages_time_out() throws Exception {
+        ElasticsearchIndexer esIndexer = mock(ElasticsearchIndexer.class);
+        projectionSearcher(esIndexer);
+        when(esIndexer.multiSearch(anyList())).thenAnswer(a -> {
+            DatashareTime.getInstance().addMilliseconds(2000);
+            return asList(singletonList(createDoc("doc1").build()), singletonList(createDoc("doc2").build()));
+        });
+        BatchSearch search = new BatchSearch("uuid1", singletonList(project("test-datashare")), "name1", "desc1", asSet("query1", "query2"), new Date(), BatchSearch.State.QUEUED, User.local());
+
+        assertThrows(SearchException.class, () -> new BatchSearchRunner(esIndexer, new PropertiesProvider(new HashMap<String, String>() {{
+            put(BATCH_SEARCH_MAX_TIME, "1");
+        }}), search, resultConsumer).call());
+
+        verify(resultConsumer, never()).apply(anyString(), anyString(), anyList());
+    }
+
+    @Test
+    public void test_run_batch_search_incrementally() throws Exception {
+        Date previousHighWaterMark = new Date(1000);
+        Date highWaterMark = new Date(2000);
+        ElasticsearchIndexer esIndexer = mock(ElasticsearchIndexer.class);
+        when(esIndexer.lastExtractionDate(singletonList("test-datashare"))).thenReturn(highWaterMark);
+        Indexer.Searcher searcher = mock(Indexer.Searcher.class);
+        when(searcher.with(any(), anyInt(), anyBoolean())).thenReturn(searcher);
+        when(searcher.withFieldValues(anyString())).thenReturn(searcher);
+        when(searcher.withPrefixQuery(anyString())).thenReturn(searcher);
+        when(searcher.limit(anyInt())).thenReturn(searcher);
+        when(searcher.scroll()).thenAnswer(a -> Stream.of(createDoc("doc1").build())).thenAnswer(a -> Stream.empty());
+        when(esIndexer.searchDocumentProjection(singletonList("test-datashare"), previousHighWaterMark)).thenReturn(searcher);
+        JooqBatchSearchRepository repository = mock(JooqBatchSearchRepository.class);
+        when(repository.getPreviousBatchSearch("uuid1")).thenReturn("uuid0");
+        when(repository.getHighWaterMark("uuid0")).thenReturn(previousHighWaterMark);
+        BatchSearch search = new BatchSearch("uuid1", singletonList(project("test-datashare")), "name1", "desc1", asSet("query1"), new Date(), BatchSearch.State.QUEUED, User.local());
+        BatchSearchResultWriter writer = new BatchSearchResultWriter("uuid1", repository);
+
+        assertThat(new BatchSearchRunner(esIndexer, new PropertiesProvider(), search, writer).call()).isEqualTo(1);
+        writer.close();
+
+        verify(repository).setHighWaterMark("uuid1", highWaterMark);
+        ArgumentCaptor<List<JooqBatchSearchRepository.ResultPage>> pages = ArgumentCaptor.forClass(List.class);
+        verify(repository, atLeastOnce()).saveResultPages(eq("uuid1"), pages.capture());
+        List<JooqBatchSearchRepository.ResultPage> saved = pages.getAllValues().stream().flatMap(List::stream).collect(toList());
+        assertThat(saved.get(saved.size() - 1).queryDone).isTrue();
+        assertThat(saved.get(saved.size() - 1).mergedFrom).isEqualTo("uuid0");
+    }
+
     @Test(expected = RuntimeException.class)
     public void test_run_batch_search_failure() throws Exception {
         Document[] documents = {createDoc("doc").build()};
@@ -78,6 +213,56 @@ public class BatchSearchRunnerTest {
         assertThat(new BatchSearchRunner(indexer, new PropertiesProvider(), batchSearch, resultConsumer).call()).isLessThan(60000);
     }
 
+    @Test
+    public void test_run_batch_search_queries_concurrently() throws Exception {
+        mockSearch.willReturn(3, createDoc("doc").build());
+        BatchSearch batchSearch = new BatchSearch("uuid1", singletonList(project("test-datashare")), "name", "desc", asSet("query1", "query2", "query3"), new Date(), BatchSearch.State.QUEUED, local());
+        CountDownLatch allQueriesStarted = new CountDownLatch(3);
+        List<String> queries = new CopyOnWriteArrayList<>();
+        List<Boolean> runConcurrently = new CopyOnWriteArrayList<>();
+
+        BatchSearchRunner batchSearchRunner = new BatchSearchRunner(indexer, new PropertiesProvider(new HashMap<String, String>() {{
+            put(BATCH_SEARCH_PARALLELISM, "3");
+        }}), batchSearch, (uuid, query, docs) -> {
+            queries.add(query);
+            runConcurrently.add(awaitOrFalse(allQueriesStarted));
+            return true;
+        });
+
+        assertThat(batchSearchRunner.call()).isEqualTo(3);
+        assertThat(queries).containsOnly("query1", "query2", "query3");
+        assertThat(runConcurrently).containsOnly(true);
+        assertThat(batchSearchRunner.getProgressRate()).isEqualTo(1.0);
+    }
+
+    @Test
+    public void test_run_batch_search_concurrently_failure_keeps_failing_query() throws Exception {
+        mockSearch.willReturn(3, createDoc("doc").build());
+        BatchSearch batchSearch = new BatchSearch("uuid1", singletonList(project("test-datashare")), "name", "desc", asSet("query1", "query2", "query3"), new Date(), BatchSearch.State.QUEUED, local());
+
+        SearchException searchException = assertThrows(SearchException.class, () -> new BatchSearchRunner(indexer, new PropertiesProvider(new HashMap<String, String>() {{
+            put(BATCH_SEARCH_PARALLELISM, "3");
+        }}), batchSearch, (uuid, query, docs) -> {
+            if ("query2".equals(query)) {
+                throw new IllegalStateException("consumer error");
+            }
+            return true;
+        }).call());
+
+        assertThat(searchException.query).isEqualTo("query2");
+    }
+
+    @Test
+    public void test_run_batch_search_concurrently_truncate_to_60k_max_results() throws Exception {
+        Document[] documents = IntStream.range(0, MAX_SCROLL_SIZE).mapToObj(i -> createDoc("doc" + i).build()).toArray(Document[]::new);
+        mockSearch.willReturn(MAX_BATCH_RESULT_SIZE/MAX_SCROLL_SIZE + 1, documents);
+        BatchSearch batchSearch = new BatchSearch("uuid1", singletonList(project("test-datashare")), "name", "desc", asSet("query1", "query2", "query3"), new Date(), BatchSearch.State.QUEUED, local());
+
+        assertThat(new BatchSearchRunner(indexer, new PropertiesProvider(new HashMap<String, String>() {{
+            put(BATCH_SEARCH_PARALLELISM, "3");
+        }}), batchSearch, resultConsumer).call()).isLessThan(60000);
+    }
+
     @Test
     public void test_run_batch_search_with_throttle() throws Exception {
         mockSearch.willReturn(1, createDoc("doc").build());
@@ -123,6 +308,25 @@ public class BatchSearchRunnerTest {
         assertThat(executor.awaitTermination(2, TimeUnit.SECONDS)).isTrue();
     }
 
+    private static boolean awaitOrFalse(CountDownLatch latch) {
+        latch.countDown();
+        try {
+            return latch.await(2, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            return false;
+        }
+    }
+
+    private static Indexer.Searcher projectionSearcher(ElasticsearchIndexer esIndexer) {
+        Indexer.Searcher searcher = mock(Indexer.Searcher.class);
+        when(searcher.with(any(), anyInt(), anyBoolean())).thenReturn(searcher);
+        when(searcher.withFieldValues(anyString())).thenReturn(searcher);
+        when(searcher.withPrefixQuery(anyString())).thenReturn(searcher);
+        when(searcher.limit(anyInt())).thenReturn(searcher);
+        when(esIndexer.searchDocumentProjection(eq(singletonList("test-datashare")), any())).thenReturn(searcher);
+        return searcher;
+    }
+
     @Before
     public void setUp() { initMocks(this); mockSearch = new MockSearch(indexer);}
 }
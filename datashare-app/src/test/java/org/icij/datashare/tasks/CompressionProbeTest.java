@@ -0,0 +1,48 @@
+package org.icij.datashare.tasks;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.util.Random;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.fest.assertions.Assertions.assertThat;
+import static org.icij.datashare.tasks.CompressionProbe.isCompressible;
+
+public class CompressionProbeTest {
+    @Test
+    public void test_compressed_content_types_are_not_compressible() throws Exception {
+        assertThat(isCompressible("image/jpeg", stream("text".getBytes(UTF_8)))).isFalse();
+        assertThat(isCompressible("application/pdf", stream("text".getBytes(UTF_8)))).isFalse();
+        assertThat(isCompressible("application/zip; charset=binary", stream("text".getBytes(UTF_8)))).isFalse();
+    }
+
+    @Test
+    public void test_uncompressed_images_are_compressible() throws Exception {
+        assertThat(isCompressible("image/bmp", stream(new byte[1024]))).isTrue();
+    }
+
+    @Test
+    public void test_text_is_compressible() throws Exception {
+        assertThat(isCompressible("text/plain", stream("The quick brown fox jumps over the lazy dog".getBytes(UTF_8)))).isTrue();
+        assertThat(isCompressible(null, stream("The quick brown fox jumps over the lazy dog".getBytes(UTF_8)))).isTrue();
+    }
+
+    @Test
+    public void test_random_content_is_not_compressible() throws Exception {
+        byte[] bytes = new byte[CompressionProbe.PROBE_SIZE];
+        new Random(42).nextBytes(bytes);
+        assertThat(isCompressible("application/octet-stream", stream(bytes))).isFalse();
+    }
+
+    @Test
+    public void test_entropy() {
+        assertThat(CompressionProbe.entropy(new byte[0], 0)).isEqualTo(0.0);
+        assertThat(CompressionProbe.entropy(new byte[] {0, 0, 0, 0}, 4)).isEqualTo(0.0);
+        assertThat(CompressionProbe.entropy(new byte[] {0, 1, 0, 1}, 4)).isEqualTo(1.0);
+    }
+
+    private static ByteArrayInputStream stream(byte[] bytes) {
+        return new ByteArrayInputStream(bytes);
+    }
+}
@@ -15,6 +15,8 @@ import java.util.HashMap;
 import java.util.HashSet;
 
 import static org.elasticsearch.action.support.WriteRequest.RefreshPolicy.IMMEDIATE;
+import static org.fest.assertions.Assertions.assertThat;
+import static org.icij.datashare.cli.DatashareCliOptions.NLP_COMBINED_OPT;
 import static org.icij.datashare.test.ElasticsearchRule.TEST_INDEX;
 import static org.icij.datashare.text.DocumentBuilder.createDoc;
 import static org.mockito.Matchers.any;
@@ -40,4 +42,22 @@ public class ResumeNlpTaskTest {
         resumeNlpTask.call();
         verify(publisher, times(22)).publish(any(), any());
     }
+
+    @Test
+    public void test_combined_mode_sends_documents_missing_one_of_the_pipelines() throws Exception {
+        for (int i = 0; i < 2; i++) {
+            indexer.add(TEST_INDEX, createDoc("corenlp" + i).with(Pipeline.Type.CORENLP).build());
+            indexer.add(TEST_INDEX, createDoc("opennlp" + i).with(Pipeline.Type.OPENNLP).build());
+            indexer.add(TEST_INDEX, createDoc("none" + i).build());
+        }
+        Publisher publisher = mock(Publisher.class);
+        ResumeNlpTask resumeNlpTask = new ResumeNlpTask(publisher, indexer,
+                new PropertiesProvider(new HashMap<String, String>() {{
+                    put("defaultProject", "test-datashare");
+                    put(NLP_COMBINED_OPT, "true");
+                }}), new User("test"), new HashSet<Pipeline.Type>() {{add(Pipeline.Type.OPENNLP); add(Pipeline.Type.CORENLP);}});
+
+        assertThat(resumeNlpTask.call()).isEqualTo(6);
+        verify(publisher, times(8)).publish(any(), any());
+    }
 }
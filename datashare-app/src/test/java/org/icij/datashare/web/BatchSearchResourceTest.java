@@ -6,6 +6,7 @@ import org.icij.datashare.batch.BatchSearch;
 import org.icij.datashare.batch.BatchSearchRecord;
 import org.icij.datashare.batch.BatchSearchRepository;
 import org.icij.datashare.batch.SearchResult;
+import org.icij.datashare.db.BatchSearchResultCursor;
 import org.icij.datashare.db.JooqBatchSearchRepository;
 import org.icij.datashare.function.Pair;
 import org.icij.datashare.session.LocalUserFilter;
@@ -21,11 +22,13 @@ import java.nio.file.Paths;
 import java.util.*;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
 import static java.lang.String.format;
 import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
 import static java.util.Collections.singletonList;
 import static java.util.stream.Collectors.toList;
 import static org.fest.assertions.Assertions.assertThat;
@@ -33,8 +36,7 @@ import static org.icij.datashare.CollectionUtils.asSet;
 import static org.icij.datashare.text.Project.project;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.eq;
-import static org.mockito.Mockito.verify;
-import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.*;
 import static org.mockito.MockitoAnnotations.initMocks;
 
 public class BatchSearchResourceTest extends AbstractProdWebServerTest {
@@ -299,6 +301,72 @@ public class BatchSearchResourceTest extends AbstractProdWebServerTest {
                 contain("\"http://foo.com:12345/#/d/prj/docId/rootId\",\"docId\",\"rootId\"");
     }
 
+    @Test
+    public void test_rerun_batch_search_incrementally() throws InterruptedException {
+        JooqBatchSearchRepository jooqRepository = mock(JooqBatchSearchRepository.class);
+        configure(routes -> routes.add(new BatchSearchResource(jooqRepository, batchSearchQueue, new PropertiesProvider())).
+                filter(new LocalUserFilter(new PropertiesProvider())));
+        BatchSearch sourceSearch = new BatchSearch(singletonList(project("prj")), "name", "description1", asSet("query 1", "query 2"), User.local());
+        when(jooqRepository.get(User.local(), sourceSearch.uuid)).thenReturn(sourceSearch);
+        when(jooqRepository.save(any())).thenReturn(true);
+
+        post("/api/batch/search/copy/" + sourceSearch.uuid,
+                "{\"name\": \"test\", \"description\": \"test description\", \"incremental\": true}").
+                should().respond(200);
+
+        String copyId = batchSearchQueue.take();
+        verify(jooqRepository).setPreviousBatchSearch(copyId, sourceSearch.uuid);
+    }
+
+    @Test
+    public void test_get_search_results_json_with_cursor() {
+        JooqBatchSearchRepository jooqRepository = mock(JooqBatchSearchRepository.class);
+        configure(routes -> routes.add(new BatchSearchResource(jooqRepository, batchSearchQueue, new PropertiesProvider())).
+                filter(new LocalUserFilter(new PropertiesProvider())));
+        SearchResult result = new SearchResult("q1", "docId1", "rootId1", Paths.get("/path/to/doc1"), new Date(), "content/type", 123L, 1);
+        when(jooqRepository.getResults(eq(User.local()), eq("batchSearchId"), any(), eq((String) null))).
+                thenReturn(new JooqBatchSearchRepository.ResultsWithCursor(singletonList(result), "next"));
+        when(jooqRepository.getResults(eq(User.local()), eq("batchSearchId"), any(), eq("next"))).
+                thenReturn(new JooqBatchSearchRepository.ResultsWithCursor(emptyList(), null));
+        when(jooqRepository.getResults(eq(User.local()), eq("batchSearchId"), any(), eq("bad"))).
+                thenThrow(new BatchSearchResultCursor.InvalidCursorException("bad"));
+
+        post("/api/batch/search/result/batchSearchId", "{\"size\":1}").should().respond(200).
+                haveHeader("X-Next-Cursor", "next").contain("\"documentId\":\"docId1\"");
+        post("/api/batch/search/result/batchSearchId?cursor=next", "{\"size\":1}").should().respond(200).contain("[]");
+        post("/api/batch/search/result/batchSearchId?cursor=bad", "{\"size\":1}").should().respond(400);
+    }
+
+    @Test
+    public void test_get_search_results_csv_streamed_from_database() {
+        JooqBatchSearchRepository jooqRepository = mock(JooqBatchSearchRepository.class);
+        configure(routes -> routes.add(new BatchSearchResource(jooqRepository, batchSearchQueue, new PropertiesProvider())).
+                filter(new LocalUserFilter(new PropertiesProvider())));
+        when(jooqRepository.get(User.local(), "batchSearchId")).thenReturn(new BatchSearch(singletonList(project("prj")), "name", "desc", asSet("q1", "q2"), User.local()));
+        doAnswer(invocation -> {
+            Consumer<SearchResult> consumer = (Consumer<SearchResult>) invocation.getArguments()[3];
+            consumer.accept(new SearchResult("q1", "docId1", "rootId1", Paths.get("/path/to/doc1"), new Date(), "content/type", 123L, 1));
+            consumer.accept(new SearchResult("q2", "docId2", "rootId2", Paths.get("/path/to/doc2"), new Date(), "content/type", 123L, 2));
+            return null;
+        }).when(jooqRepository).streamResults(eq(User.local()), eq("batchSearchId"), eq(1000), any());
+
+        get("/api/batch/search/result/csv/batchSearchId").
+                should().respond(200).haveType("text/csv").
+                contain(format("\"localhost:%d/#/d/prj/docId1/rootId1\",\"docId1\",\"rootId1\"", port())).
+                contain(format("\"localhost:%d/#/d/prj/docId2/rootId2\",\"docId2\",\"rootId2\"", port()));
+    }
+
+    @Test
+    public void test_get_search_results_csv_streamed_from_database_unauthorized_user() {
+        JooqBatchSearchRepository jooqRepository = mock(JooqBatchSearchRepository.class);
+        configure(routes -> routes.add(new BatchSearchResource(jooqRepository, batchSearchQueue, new PropertiesProvider())).
+                filter(new LocalUserFilter(new PropertiesProvider())));
+        when(jooqRepository.get(User.local(), "batchSearchId")).thenReturn(new BatchSearch(singletonList(project("prj")), "name", "desc", asSet("q1"), new User("owner")));
+
+        get("/api/batch/search/result/csv/batchSearchId").should().respond(401);
+        verify(jooqRepository, never()).streamResults(any(), any(), anyInt(), any());
+    }
+
     @Test
     public void test_get_search_results_unauthorized_user() {
         when(batchSearchRepository.getResults(User.local(), "batchSearchId", new BatchSearchRepository.WebQuery(0, 0))).
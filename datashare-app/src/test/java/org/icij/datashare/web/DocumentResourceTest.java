@@ -104,6 +104,47 @@ public class DocumentResourceTest extends AbstractProdWebServerTest {
                 should().haveType("application/pdf").contain("PDF-1.3").haveHeader("Content-Disposition", "attachment;filename=\"6abb969509.pdf\"");;
     }
 
+    @Test
+    public void test_get_source_file_with_range() throws Exception {
+        File txtFile = new File(temp.getRoot(), "file.txt");
+        write(txtFile, "text content");
+        indexFile("local-datashare", "id_txt", txtFile.toPath(), null, null);
+
+        get("/api/local-datashare/documents/src/id_txt").withHeader("Range", "bytes=5-11").should().respond(206).
+                contain("content").not().contain("text").
+                haveHeader("Content-Range", "bytes 5-11/12").
+                haveHeader("ETag", "\"id_txt\"");
+    }
+
+    @Test
+    public void test_get_source_file_with_unsatisfiable_range() throws Exception {
+        File txtFile = new File(temp.getRoot(), "file.txt");
+        write(txtFile, "text content");
+        indexFile("local-datashare", "id_txt", txtFile.toPath(), null, null);
+
+        get("/api/local-datashare/documents/src/id_txt").withHeader("Range", "bytes=12-").should().respond(416).
+                haveHeader("Content-Range", "bytes */12");
+    }
+
+    @Test
+    public void test_get_source_file_not_modified() throws Exception {
+        File txtFile = new File(temp.getRoot(), "file.txt");
+        write(txtFile, "text content");
+        indexFile("local-datashare", "id_txt", txtFile.toPath(), null, null);
+
+        get("/api/local-datashare/documents/src/id_txt").withHeader("If-None-Match", "\"id_txt\"").should().respond(304);
+        get("/api/local-datashare/documents/src/id_txt").withHeader("If-None-Match", "\"other\"").should().respond(200).contain("text content");
+    }
+
+    @Test
+    public void test_get_embedded_source_file_with_range() {
+        String path = getClass().getResource("/docs/embedded_doc.eml").getPath();
+        indexFile("local-datashare", "d365f488df3c84ecd6d7aa752ca268b78589f2082e4fe2fbe9f62dff6b3a6b74bedc645ec6df9ae5599dab7631433623", Paths.get(path), "application/pdf", "id_eml");
+
+        get("/api/local-datashare/documents/src/d365f488df3c84ecd6d7aa752ca268b78589f2082e4fe2fbe9f62dff6b3a6b74bedc645ec6df9ae5599dab7631433623?routing=id_eml").
+                withHeader("Range", "bytes=0-7").should().respond(206).contain("%PDF-1.3").haveHeader("Content-Length", "8");
+    }
+
     @Test
     public void test_source_file_not_found_should_return_404() {
         indexFile("local-datashare", "missing_file", Paths.get("missing/file"), null, null);
@@ -10,6 +10,7 @@ import org.icij.datashare.text.nlp.Annotations;
 import org.icij.datashare.text.nlp.NlpStage;
 import org.icij.datashare.text.nlp.Pipeline;
 import org.icij.datashare.web.testhelpers.AbstractProdWebServerTest;
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Mock;
@@ -20,29 +21,39 @@ import java.util.Map;
 
 import static java.util.Arrays.asList;
 import static java.util.Collections.emptyList;
+import static java.util.stream.Collectors.toList;
 import static org.fest.assertions.Assertions.assertThat;
 import static org.fest.assertions.MapAssert.entry;
 import static org.icij.datashare.CollectionUtils.asSet;
 import static org.icij.datashare.text.Language.ENGLISH;
+import static org.icij.datashare.text.Language.FRENCH;
 import static org.icij.datashare.text.nlp.Pipeline.Type.CORENLP;
 import static org.mockito.Matchers.*;
 import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.MockitoAnnotations.initMocks;
 
 public class NerResourceTest extends AbstractProdWebServerTest {
     @Mock Pipeline pipeline;
     @Mock PipelineRegistry registry;
+    private NerResource nerResource;
 
     @Before
     public void setUp() throws Exception {
         initMocks(this);
         doReturn(true).when(pipeline).initialize(any());
         doReturn(pipeline).when(registry).get(any());
-        NerResource nerResource = new NerResource(registry, l -> ENGLISH);
+        nerResource = new NerResource(registry, l -> ENGLISH);
         configure(routes -> routes.add(nerResource));
     }
 
+    @After
+    public void tearDown() {
+        nerResource.close();
+    }
+
     @Test
     public void test_post_empty_text() throws Exception {
         Document doc = DocumentBuilder.createDoc("inline").with("").with(ENGLISH).build();
@@ -78,4 +89,56 @@ public class NerResourceTest extends AbstractProdWebServerTest {
                 entry("offsets", asList(10))
         );
     }
+
+    @Test
+    public void test_post_ndjson_batch_returns_ndjson_lines() throws Exception {
+        doReturn(asList(NamedEntity.create(NamedEntity.Category.PERSON, "John", asList(0L), "id", "root", CORENLP, ENGLISH))).when(pipeline).process(any());
+
+        Response response = post("/api/ner/findNames/CORENLP/batch",
+                "{\"id\": \"1\", \"text\": \"John\"}\n" +
+                "{\"id\": \"2\", \"text\": \"John\", \"language\": \"FRENCH\"}\n" +
+                "{\"id\": \"3\", \"text\": \"John\"}\n").response();
+
+        assertThat(response.code()).isEqualTo(200);
+        String[] lines = response.content().split("\n");
+        assertThat(lines).hasSize(3);
+        assertThat(asList(lines).stream().map(l -> (String) TypeConvert.fromJson(l, Map.class).get("id")).collect(toList())).containsOnly("1", "2", "3");
+        assertThat((List) TypeConvert.fromJson(lines[0], Map.class).get("entities")).hasSize(1);
+        verify(pipeline, times(1)).initialize(ENGLISH);
+        verify(pipeline, times(1)).initialize(FRENCH);
+    }
+
+    @Test
+    public void test_post_ndjson_batch_with_bad_line() throws Exception {
+        doReturn(emptyList()).when(pipeline).process(any());
+
+        post("/api/ner/findNames/CORENLP/batch", "not json\n{\"id\": \"1\", \"text\": \"John\"}\n").should()
+                .respond(200).contain("\"error\"").contain("\"id\":\"1\"");
+    }
+
+    @Test
+    public void test_post_ndjson_batch_with_line_without_text() throws Exception {
+        doReturn(emptyList()).when(pipeline).process(any());
+
+        Response response = post("/api/ner/findNames/CORENLP/batch", "{\"id\": \"1\"}\n{\"id\": \"2\", \"text\": \"John\"}\n").response();
+
+        assertThat(response.code()).isEqualTo(200);
+        String[] lines = response.content().split("\n");
+        assertThat(lines).hasSize(2);
+        assertThat(TypeConvert.fromJson(lines[0], Map.class)).includes(entry("id", "1"));
+        assertThat((String) TypeConvert.fromJson(lines[0], Map.class).get("error")).contains("missing id or text");
+        assertThat(TypeConvert.fromJson(lines[1], Map.class)).includes(entry("id", "2"), entry("entities", emptyList()));
+        verify(pipeline, times(1)).process(any());
+    }
+
+    @Test
+    public void test_post_ndjson_batch_ends_with_error_line_when_batch_fails() throws Exception {
+        doThrow(new StackOverflowError()).when(pipeline).process(any());
+
+        Response response = post("/api/ner/findNames/CORENLP/batch", "{\"id\": \"1\", \"text\": \"John\"}\n").response();
+
+        assertThat(response.code()).isEqualTo(200);
+        String[] lines = response.content().split("\n");
+        assertThat((String) TypeConvert.fromJson(lines[lines.length - 1], Map.class).get("error")).contains("StackOverflowError");
+    }
 }
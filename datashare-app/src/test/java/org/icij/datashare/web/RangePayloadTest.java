@@ -0,0 +1,55 @@
+package org.icij.datashare.web;
+
+import org.icij.datashare.web.RangePayload.ByteRange;
+import org.junit.Test;
+
+import static org.fest.assertions.Assertions.assertThat;
+
+public class RangePayloadTest {
+    @Test
+    public void test_parse_no_range() {
+        assertThat(ByteRange.parse(null, 100)).isNull();
+        assertThat(ByteRange.parse("bytes=-", 100)).isNull();
+        assertThat(ByteRange.parse("items=0-10", 100)).isNull();
+    }
+
+    @Test
+    public void test_parse_range() {
+        ByteRange range = ByteRange.parse("bytes=10-19", 100);
+        assertThat(range.start).isEqualTo(10);
+        assertThat(range.end).isEqualTo(19);
+        assertThat(range.length()).isEqualTo(10);
+    }
+
+    @Test
+    public void test_parse_open_range() {
+        ByteRange range = ByteRange.parse("bytes=90-", 100);
+        assertThat(range.start).isEqualTo(90);
+        assertThat(range.end).isEqualTo(99);
+    }
+
+    @Test
+    public void test_parse_range_after_end_is_truncated() {
+        assertThat(ByteRange.parse("bytes=90-200", 100).end).isEqualTo(99);
+    }
+
+    @Test
+    public void test_parse_suffix_range() {
+        ByteRange range = ByteRange.parse("bytes=-10", 100);
+        assertThat(range.start).isEqualTo(90);
+        assertThat(range.end).isEqualTo(99);
+        assertThat(ByteRange.parse("bytes=-200", 100).start).isEqualTo(0);
+    }
+
+    @Test
+    public void test_parse_unsatisfiable_range() {
+        assertThat(ByteRange.parse("bytes=100-", 100).isSatisfiable()).isFalse();
+        assertThat(ByteRange.parse("bytes=-0", 100).isSatisfiable()).isFalse();
+    }
+
+    @Test
+    public void test_parse_multiple_or_invalid_ranges_are_ignored() {
+        assertThat(ByteRange.parse("bytes=0-10,20-30", 100)).isNull();
+        assertThat(ByteRange.parse("bytes=20-10", 100)).isNull();
+    }
+}
@@ -244,6 +244,34 @@ public class TaskResourceTest extends AbstractProdWebServerTest {
         verify(taskFactory).createDownloadRunner(eq(new BatchDownload(Collections.singletonList(project("test-datashare")), local(), "{\"match_all\":{}}", Paths.get("app", "tmp"), false)), any());
     }
 
+    @Test
+    public void test_batch_download_estimate() throws Exception {
+        BatchDownloadRunner runner = mock(BatchDownloadRunner.class);
+        when(runner.estimate()).thenReturn(new BatchDownloadEstimate(10, 1000, 5, 500, 1, true));
+        when(taskFactory.createDownloadRunner(any(), any())).thenReturn(runner);
+
+        post("/api/task/batchDownload/estimate", "{\"options\":{ \"projectIds\":[\"test-datashare\"], \"query\": \"*\" }}").
+                should().respond(200).haveType("application/json").
+                contain("\"nbDocuments\":10").
+                contain("\"nbFiles\":5").
+                contain("\"truncated\":true");
+        verify(runner, never()).call();
+    }
+
+    @Test
+    public void test_batch_download_stream() throws Exception {
+        BatchDownloadRunner runner = mock(BatchDownloadRunner.class);
+        when(runner.streamingTo(any())).thenReturn(runner);
+        when(taskFactory.createDownloadRunner(any(), any())).thenReturn(runner);
+
+        post("/api/task/batchDownload/stream", "{\"options\":{ \"projectIds\":[\"test-datashare\"], \"query\": \"*\" }}").
+                should().respond(200).haveType("application/zip");
+
+        verify(taskFactory).createDownloadRunner(eq(new BatchDownload(Collections.singletonList(project("test-datashare")), local(), "*", Paths.get("app", "tmp"), false)), any());
+        verify(runner).streamingTo(any());
+        verify(runner).call();
+    }
+
     @Test
     public void test_clean_tasks() {
         post("/api/task/batchUpdate/index/file/" + getClass().getResource("/docs/doc.txt").getPath().substring(1), "{}").response();
@@ -14,11 +14,14 @@ import org.icij.datashare.user.User;
 import org.icij.datashare.user.UserTask;
 import org.icij.datashare.web.testhelpers.AbstractProdWebServerTest;
 import org.junit.After;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import java.io.File;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Properties;
@@ -30,6 +33,7 @@ import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.mockito.Mockito.mock;
 
 public class UserTaskResourceTest extends AbstractProdWebServerTest {
+    @Rule public TemporaryFolder temp = new TemporaryFolder();
     private TaskManagerMemory taskManager;
 
     @After
@@ -103,6 +107,38 @@ public class UserTaskResourceTest extends AbstractProdWebServerTest {
         get("/api/task/" + t.name + "/result").withPreemptiveAuthentication("foo", "qux").should().respond(200);
     }
 
+    @Test
+    public void test_get_task_result_with_file_result_and_range() throws Exception {
+        setupAppWith("foo");
+        File zip = temp.newFile("archive.zip");
+        Files.write(zip.toPath(), "zip content".getBytes());
+        TaskView<File> t = taskManager.startTask(new DummyUserTask<>("foo", () -> zip));
+
+        get("/api/task/" + t.name + "/result").withPreemptiveAuthentication("foo", "qux").
+                should().respond(200).
+                should().haveHeader("Content-Length", "11").
+                should().haveHeader("Accept-Ranges", "bytes").
+                should().haveHeader("Content-Disposition", "attachment;filename=\"archive.zip\"");
+        get("/api/task/" + t.name + "/result").withPreemptiveAuthentication("foo", "qux").withHeader("Range", "bytes=4-").
+                should().respond(206).
+                should().haveHeader("Content-Range", "bytes 4-10/11").
+                should().contain("content").not().contain("zip");
+    }
+
+    @Test
+    public void test_get_task_result_with_file_result_not_modified() throws Exception {
+        setupAppWith("foo");
+        File zip = temp.newFile("archive.zip");
+        Files.write(zip.toPath(), "zip content".getBytes());
+        String etag = "\"" + Long.toHexString(11) + "-" + Long.toHexString(zip.lastModified()) + "\"";
+        TaskView<File> t = taskManager.startTask(new DummyUserTask<>("foo", () -> zip));
+
+        get("/api/task/" + t.name + "/result").withPreemptiveAuthentication("foo", "qux").should().respond(200).haveHeader("ETag", etag);
+        get("/api/task/" + t.name + "/result").withPreemptiveAuthentication("foo", "qux").withHeader("If-None-Match", etag).should().respond(304);
+        get("/api/task/" + t.name + "/result").withPreemptiveAuthentication("foo", "qux").
+                withHeader("Range", "bytes=0-2").withHeader("If-Range", "\"other\"").should().respond(200).contain("zip content");
+    }
+
     @Test
     public void test_get_task_result_when_task_threw_exception__should_show_error() throws Exception {
         setupAppWith("foo");
@@ -69,16 +69,32 @@ public class DatashareCli {
         DatashareCliOptions.parallelism(parser);
         DatashareCliOptions.fileParserParallelism(parser);
         DatashareCliOptions.nlpParallelism(parser);
+        DatashareCliOptions.nlpVisibilityTimeout(parser);
+        DatashareCliOptions.nlpMaxAttempts(parser);
+        DatashareCliOptions.nlpGroupTtl(parser);
+        DatashareCliOptions.nlpCombined(parser);
+        DatashareCliOptions.nlpCacheSize(parser);
         DatashareCliOptions.followSymlinks(parser);
         DatashareCliOptions.enableBrowserOpenLink(parser);
         DatashareCliOptions.batchSearchMaxTime(parser);
+        DatashareCliOptions.batchSearchParallelism(parser);
+        DatashareCliOptions.batchSearchWorkers(parser);
+        DatashareCliOptions.batchSearchMaxRunningPerUser(parser);
+        DatashareCliOptions.batchSearchHeartbeatTimeout(parser);
+        DatashareCliOptions.batchSearchResultsFetchSize(parser);
+        DatashareCliOptions.batchSearchResultCache(parser);
         DatashareCliOptions.batchThrottle(parser);
         DatashareCliOptions.batchSearchQueueType(parser);
         DatashareCliOptions.sessionStoreType(parser);
         DatashareCliOptions.batchDownloadTimeToLive(parser);
+        DatashareCliOptions.batchDownloadDirMaxSize(parser);
         DatashareCliOptions.batchDownloadMaxNbFiles(parser);
         DatashareCliOptions.batchDownloadMaxSize(parser);
+        DatashareCliOptions.batchDownloadParallelism(parser);
+        DatashareCliOptions.batchDownloadBufferSize(parser);
         DatashareCliOptions.batchDownloadEncrypt(parser);
+        DatashareCliOptions.embeddedSourceCacheDir(parser);
+        DatashareCliOptions.embeddedSourceCacheSize(parser);
         DatashareCliOptions.smtpUrl(parser);
 
         DatashareCliOptions.maxContentLength(parser);
@@ -23,10 +23,21 @@ public final class DatashareCliOptions {
     public static final String NLP_PIPELINES_OPT = "nlpPipelines";
     public static final String BATCH_THROTTLE = "batchThrottleMilliseconds";
     public static final String BATCH_SEARCH_MAX_TIME = "batchSearchMaxTimeSeconds";
+    public static final String BATCH_SEARCH_PARALLELISM = "batchSearchParallelism";
+    public static final String BATCH_SEARCH_WORKERS = "batchSearchWorkers";
+    public static final String BATCH_SEARCH_MAX_RUNNING_PER_USER = "batchSearchMaxRunningPerUser";
+    public static final String BATCH_SEARCH_HEARTBEAT_TIMEOUT = "batchSearchHeartbeatTimeoutSeconds";
+    public static final String BATCH_SEARCH_RESULTS_FETCH_SIZE = "batchSearchResultsFetchSize";
+    public static final String BATCH_SEARCH_RESULT_CACHE = "batchSearchResultCache";
     public static final String BATCH_DOWNLOAD_ZIP_TTL = "batchDownloadTimeToLive";
+    public static final String BATCH_DOWNLOAD_DIR_MAX_SIZE = "batchDownloadDirMaxSize";
     public static final String SCROLL_SIZE = "scrollSize";
     public static final String BATCH_DOWNLOAD_MAX_NB_FILES = "batchDownloadMaxNbFiles";
     public static final String BATCH_DOWNLOAD_MAX_SIZE = "batchDownloadMaxSize";
+    public static final String BATCH_DOWNLOAD_PARALLELISM = "batchDownloadParallelism";
+    public static final String BATCH_DOWNLOAD_BUFFER_SIZE = "batchDownloadBufferSize";
+    public static final String EMBEDDED_SOURCE_CACHE_DIR = "embeddedSourceCacheDir";
+    public static final String EMBEDDED_SOURCE_CACHE_SIZE = "embeddedSourceCacheSize";
 
     static final String MESSAGE_BUS_OPT = "messageBusAddress";
     static final String ROOT_HOST = "rootHost";
@@ -44,6 +55,11 @@ public final class DatashareCliOptions {
     public static final String PARALLELISM = "parallelism";
     public static final String OPEN_LINK = "browserOpenLink";
     public static final String NLP_PARALLELISM_OPT = "nlpParallelism";
+    public static final String NLP_VISIBILITY_TIMEOUT_OPT = "nlpVisibilityTimeoutSeconds";
+    public static final String NLP_MAX_ATTEMPTS_OPT = "nlpMaxAttempts";
+    public static final String NLP_GROUP_TTL_OPT = "nlpGroupTtlHours";
+    public static final String NLP_COMBINED_OPT = "nlpCombined";
+    public static final String NLP_CACHE_SIZE_OPT = "nlpCacheSize";
     public static final String DEFAULT_USER_NAME = "defaultUserName";
 
     static void stages(OptionParser parser) {
@@ -259,6 +275,48 @@ public final class DatashareCliOptions {
                 .defaultsTo(DEFAULT_NLP_PARALLELISM);
     }
 
+    static void nlpVisibilityTimeout(OptionParser parser) {
+        parser.acceptsAll(
+                singletonList(NLP_VISIBILITY_TIMEOUT_OPT),
+                "Time in seconds after which an unacknowledged NLP message is redelivered (Default 600)")
+                .withRequiredArg()
+                .ofType( Integer.class );
+    }
+
+    static void nlpMaxAttempts(OptionParser parser) {
+        parser.acceptsAll(
+                singletonList(NLP_MAX_ATTEMPTS_OPT),
+                "Number of NLP message deliveries before it is moved to dead letters (Default 3)")
+                .withRequiredArg()
+                .ofType( Integer.class );
+    }
+
+    static void nlpGroupTtl(OptionParser parser) {
+        parser.acceptsAll(
+                singletonList(NLP_GROUP_TTL_OPT),
+                "Time in hours after which an NLP work queue group without consumer is removed with its messages, 0 to keep the groups (Default 168)")
+                .withRequiredArg()
+                .ofType( Integer.class );
+    }
+
+    static void nlpCombined(OptionParser parser) {
+        parser.acceptsAll(
+                singletonList(NLP_COMBINED_OPT),
+                "Run all the NLP pipelines in one pass per document (document fetched once, one bulk per document)")
+                .withRequiredArg()
+                .ofType( Boolean.class )
+                .defaultsTo(false);
+    }
+
+    static void nlpCacheSize(OptionParser parser) {
+        parser.acceptsAll(
+                singletonList(NLP_CACHE_SIZE_OPT),
+                "Max number of entries of the named entities cache keyed by content digest (0 to disable the cache)")
+                .withRequiredArg()
+                .ofType( Integer.class )
+                .defaultsTo(0);
+    }
+
     public static void batchSearchMaxTime(OptionParser parser) {
          parser.acceptsAll(
                  singletonList(BATCH_SEARCH_MAX_TIME), "Max time for batch search in seconds")
@@ -266,6 +324,55 @@ public final class DatashareCliOptions {
                          .ofType(Integer.class);
     }
 
+    public static void batchSearchParallelism(OptionParser parser) {
+         parser.acceptsAll(
+                 singletonList(BATCH_SEARCH_PARALLELISM), "Number of queries of a batch search that are run concurrently")
+                         .withRequiredArg()
+                         .ofType(Integer.class)
+                         .defaultsTo(1);
+    }
+
+    public static void batchSearchWorkers(OptionParser parser) {
+         parser.acceptsAll(
+                 singletonList(BATCH_SEARCH_WORKERS), "Number of batch searches that are run concurrently by this process")
+                         .withRequiredArg()
+                         .ofType(Integer.class)
+                         .defaultsTo(1);
+    }
+
+    public static void batchSearchMaxRunningPerUser(OptionParser parser) {
+         parser.acceptsAll(
+                 singletonList(BATCH_SEARCH_MAX_RUNNING_PER_USER), "Max number of running batch searches for a user (0 for no limit)")
+                         .withRequiredArg()
+                         .ofType(Integer.class)
+                         .defaultsTo(0);
+    }
+
+    public static void batchSearchHeartbeatTimeout(OptionParser parser) {
+         parser.acceptsAll(
+                 singletonList(BATCH_SEARCH_HEARTBEAT_TIMEOUT), "Time in seconds without heartbeat after which a running batch search is queued again")
+                         .withRequiredArg()
+                         .ofType(Integer.class)
+                         .defaultsTo(60);
+    }
+
+    public static void batchSearchResultsFetchSize(OptionParser parser) {
+         parser.acceptsAll(
+                 singletonList(BATCH_SEARCH_RESULTS_FETCH_SIZE), "Number of batch search results read from the database at once when exporting them")
+                         .withRequiredArg()
+                         .ofType(Integer.class)
+                         .defaultsTo(1000);
+    }
+
+    public static void batchSearchResultCache(OptionParser parser) {
+         parser.acceptsAll(
+                 singletonList(BATCH_SEARCH_RESULT_CACHE), "Copy the results of a query already run by another batch search " +
+                         "with the same parameters when the searched indexes have not changed")
+                         .withRequiredArg()
+                         .ofType(Boolean.class)
+                         .defaultsTo(true);
+    }
+
     public static void batchThrottle(OptionParser parser) {
          parser.acceptsAll(
                  singletonList(BATCH_THROTTLE), "Throttle for batch in milliseconds")
@@ -454,6 +561,13 @@ public final class DatashareCliOptions {
                 .ofType(Integer.class);
     }
 
+    public static void batchDownloadDirMaxSize(OptionParser parser) {
+        parser.acceptsAll(
+                singletonList(BATCH_DOWNLOAD_DIR_MAX_SIZE), "Maximum size of the batch download zip files, the oldest are deleted first (0 for no limit). Human readable suffix K/M/G for KB/MB/GB (Default 0)")
+                .withRequiredArg()
+                .withValuesConvertedBy(regex("[0-9]+[KMG]?"));
+    }
+
     public static void batchDownloadMaxNbFiles(OptionParser parser) {
         parser.acceptsAll(
                 singletonList(BATCH_DOWNLOAD_MAX_NB_FILES), "Maximum file number that can be archived in a zip (Default 10,000)")
@@ -461,6 +575,35 @@ public final class DatashareCliOptions {
                 .ofType(Integer.class);
     }
 
+    public static void batchDownloadParallelism(OptionParser parser) {
+        parser.acceptsAll(
+                singletonList(BATCH_DOWNLOAD_PARALLELISM), "Number of document sources extracted concurrently for a batch download")
+                .withRequiredArg()
+                .ofType(Integer.class)
+                .defaultsTo(1);
+    }
+
+    public static void batchDownloadBufferSize(OptionParser parser) {
+        parser.acceptsAll(
+                singletonList(BATCH_DOWNLOAD_BUFFER_SIZE), "Maximum size of the extracted sources waiting to be zipped. Human readable suffix K/M/G for KB/MB/GB (Default 64M)")
+                .withRequiredArg()
+                .withValuesConvertedBy(regex("[0-9]+[KMG]?"));
+    }
+
+    public static void embeddedSourceCacheDir(OptionParser parser) {
+        parser.acceptsAll(
+                singletonList(EMBEDDED_SOURCE_CACHE_DIR), "Directory of the extracted embedded documents cache (Default <java tmp dir>/datashare-embedded-sources)")
+                .withRequiredArg()
+                .ofType(String.class);
+    }
+
+    public static void embeddedSourceCacheSize(OptionParser parser) {
+        parser.acceptsAll(
+                singletonList(EMBEDDED_SOURCE_CACHE_SIZE), "Maximum size of the extracted embedded documents cache, 0 to disable it. Human readable suffix K/M/G for KB/MB/GB (Default 1G)")
+                .withRequiredArg()
+                .withValuesConvertedBy(regex("[0-9]+[KMG]?"));
+    }
+
     public static void batchDownloadEncrypt(OptionParser parser) {
         parser.acceptsAll(
                 singletonList("batchDownloadEncrypt"), "Whether Batch download zip files are encrypted or not. SmtpUrl should be set to send the password. (default false)")
@@ -0,0 +1,105 @@
+package org.icij.datashare.db;
+
+import org.icij.datashare.batch.SearchResult;
+import org.icij.datashare.db.tables.records.BatchSearchResultRecord;
+import org.jooq.Condition;
+import org.jooq.SortField;
+import org.jooq.TableField;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+import static java.util.Arrays.asList;
+import static java.util.stream.Collectors.toList;
+import static org.icij.datashare.db.tables.BatchSearchResult.BATCH_SEARCH_RESULT;
+import static org.jooq.impl.DSL.row;
+
+/**
+ * Keyset of a page of batch search results : the results are sorted by the sort column,
+ * then by query and document id that are unique for a batch search. The next page is read
+ * with the values of the last result instead of an offset, with the help of the
+ * (search_uuid, sort column...) indexes.
+ *
+ * The values are given to the web clients as an opaque base64 token.
+ * Only the not null columns can be used for keyset pagination.
+ */
+public class BatchSearchResultCursor {
+    private static final List<TableField<BatchSearchResultRecord, ?>> DEFAULT_KEY = asList(BATCH_SEARCH_RESULT.QUERY, BATCH_SEARCH_RESULT.DOC_NB, BATCH_SEARCH_RESULT.DOC_ID);
+    private static final List<TableField<BatchSearchResultRecord, ?>> SORTABLE = asList(BATCH_SEARCH_RESULT.QUERY, BATCH_SEARCH_RESULT.DOC_NB,
+            BATCH_SEARCH_RESULT.DOC_ID, BATCH_SEARCH_RESULT.ROOT_ID, BATCH_SEARCH_RESULT.DOC_PATH);
+
+    final List<TableField<BatchSearchResultRecord, ?>> key;
+    private final boolean desc;
+
+    private BatchSearchResultCursor(List<TableField<BatchSearchResultRecord, ?>> key, boolean desc) {
+        this.key = key;
+        this.desc = desc;
+    }
+
+    /**
+     * @param sort the sort column name or null for the default sort (query, doc_nb)
+     * @return null if the results cannot be paginated with a keyset for this sort column
+     */
+    static BatchSearchResultCursor forSort(String sort, String order) {
+        boolean desc = "desc".equalsIgnoreCase(order);
+        if (sort == null) {
+            return new BatchSearchResultCursor(DEFAULT_KEY, desc);
+        }
+        return SORTABLE.stream().filter(f -> f.getName().equals(sort)).findFirst().map(sortField -> {
+            List<TableField<BatchSearchResultRecord, ?>> key = new ArrayList<>(asList(sortField, BATCH_SEARCH_RESULT.QUERY, BATCH_SEARCH_RESULT.DOC_ID));
+            return new BatchSearchResultCursor(key.stream().distinct().collect(toList()), desc);
+        }).orElse(null);
+    }
+
+    List<SortField<?>> orderBy() {
+        return key.stream().map(f -> desc ? f.desc() : f.asc()).collect(toList());
+    }
+
+    Condition after(String token) {
+        Object[] values = decode(token);
+        return desc ? row(key).lt(values) : row(key).gt(values);
+    }
+
+    String token(SearchResult last) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            for (TableField<BatchSearchResultRecord, ?> field : key) {
+                if (field == BATCH_SEARCH_RESULT.DOC_NB) {
+                    out.writeInt(last.documentNumber);
+                } else {
+                    out.writeUTF(stringValue(field, last));
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes.toByteArray());
+    }
+
+    private Object[] decode(String token) {
+        Object[] values = new Object[key.size()];
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(Base64.getUrlDecoder().decode(token)))) {
+            for (int i = 0; i < key.size(); i++) {
+                values[i] = key.get(i) == BATCH_SEARCH_RESULT.DOC_NB ? (Object) in.readInt() : in.readUTF();
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            throw new InvalidCursorException(token);
+        }
+        return values;
+    }
+
+    private static String stringValue(TableField<BatchSearchResultRecord, ?> field, SearchResult result) {
+        if (field == BATCH_SEARCH_RESULT.QUERY) return result.query;
+        if (field == BATCH_SEARCH_RESULT.DOC_ID) return result.documentId;
+        if (field == BATCH_SEARCH_RESULT.ROOT_ID) return result.rootId;
+        return result.documentPath.toString();
+    }
+
+    public static class InvalidCursorException extends IllegalArgumentException {
+        public InvalidCursorException(String token) {
+            super("invalid cursor " + token);
+        }
+    }
+}
@@ -7,6 +7,7 @@ import org.icij.datashare.db.tables.records.BatchSearchQueryRecord;
 import org.icij.datashare.db.tables.records.BatchSearchResultRecord;
 import org.icij.datashare.text.Document;
 import org.icij.datashare.text.Project;
+import org.icij.datashare.time.DatashareTime;
 import org.icij.datashare.user.User;
 import org.jooq.*;
 import org.jooq.impl.DSL;
@@ -17,6 +18,7 @@ import java.io.IOException;
 import java.nio.file.Paths;
 import java.sql.Timestamp;
 import java.util.*;
+import java.util.function.Consumer;
 import java.util.stream.IntStream;
 
 import static java.lang.String.join;
@@ -88,6 +90,87 @@ public class JooqBatchSearchRepository implements BatchSearchRepository {
         });
     }
 
+    /**
+     * saves several pages of results in one transaction : the counters are updated once per query
+     * and the results are inserted with a single JDBC batch. The queries of the "done" pages are
+     * marked as done in the same transaction, so a query is only marked done with all its results.
+     * The cache key of a done page is saved with the query (see copyCachedResults).
+     * For an incremental run, the results of the previous batch search are merged when the query is done.
+     */
+    public boolean saveResultPages(String batchSearchId, List<ResultPage> pages) {
+        if (pages.isEmpty()) {
+            return false;
+        }
+        return DSL.using(dataSource, dialect).transactionResult(configuration -> {
+            DSLContext inner = using(configuration);
+            Map<String, Integer> nbResultsByQuery = pages.stream().collect(
+                    groupingBy(page -> page.query, LinkedHashMap::new, summingInt(page -> page.documents.size())));
+            nbResultsByQuery.forEach((query, nbResults) -> inner.update(BATCH_SEARCH_QUERY).set(BATCH_SEARCH_QUERY.QUERY_RESULTS,
+                    BATCH_SEARCH_QUERY.QUERY_RESULTS.plus(nbResults)).
+                    where(BATCH_SEARCH_QUERY.SEARCH_UUID.eq(batchSearchId).
+                            and(BATCH_SEARCH_QUERY.QUERY.eq(query))).execute());
+
+            inner.update(BATCH_SEARCH).set(BATCH_SEARCH.BATCH_RESULTS,
+                    BATCH_SEARCH.BATCH_RESULTS.plus(nbResultsByQuery.values().stream().mapToInt(Integer::intValue).sum())).
+                    where(BATCH_SEARCH.UUID.eq(batchSearchId)).execute();
+
+            List<BatchSearchResultRecord> records = new ArrayList<>();
+            for (ResultPage page : pages) {
+                IntStream.range(0, page.documents.size()).forEach(i -> records.add(createResultRecord(inner, batchSearchId, page.query, i, page.documents.get(i))));
+            }
+            if (!records.isEmpty()) {
+                inner.batchInsert(records).execute();
+            }
+
+            List<ResultPage> donePages = pages.stream().filter(page -> page.queryDone).collect(toList());
+            for (ResultPage page : donePages) {
+                int nbMerged = page.mergedFrom == null ? 0 : mergePreviousResults(inner, batchSearchId, page.query, page.mergedFrom);
+                inner.update(BATCH_SEARCH_QUERY).set(BATCH_SEARCH_QUERY.QUERY_DONE, 1).
+                        set(BATCH_SEARCH_QUERY.CACHE_KEY, page.cacheKey).
+                        set(BATCH_SEARCH_QUERY.QUERY_RESULTS, BATCH_SEARCH_QUERY.QUERY_RESULTS.plus(nbMerged)).
+                        where(BATCH_SEARCH_QUERY.SEARCH_UUID.eq(batchSearchId).and(BATCH_SEARCH_QUERY.QUERY.eq(page.query))).execute();
+                if (nbMerged > 0) {
+                    inner.update(BATCH_SEARCH).set(BATCH_SEARCH.BATCH_RESULTS, BATCH_SEARCH.BATCH_RESULTS.plus(nbMerged)).
+                            where(BATCH_SEARCH.UUID.eq(batchSearchId)).execute();
+                }
+            }
+            return !records.isEmpty() || !donePages.isEmpty();
+        });
+    }
+
+    /**
+     * copies the results of the query from the previous batch search that are not already found by this run
+     * (documents extracted again since the previous run).
+     */
+    private int mergePreviousResults(DSLContext inner, String batchSearchId, String query, String previousBatchId) {
+        org.icij.datashare.db.tables.BatchSearchResult newResult = BATCH_SEARCH_RESULT.as("new_result");
+        return inner.insertInto(BATCH_SEARCH_RESULT, BATCH_SEARCH_RESULT.SEARCH_UUID, BATCH_SEARCH_RESULT.QUERY, BATCH_SEARCH_RESULT.DOC_NB,
+                BATCH_SEARCH_RESULT.DOC_ID, BATCH_SEARCH_RESULT.ROOT_ID, BATCH_SEARCH_RESULT.DOC_PATH, BATCH_SEARCH_RESULT.CREATION_DATE,
+                BATCH_SEARCH_RESULT.CONTENT_TYPE, BATCH_SEARCH_RESULT.CONTENT_LENGTH, BATCH_SEARCH_RESULT.PRJ_ID).
+                select(select(val(batchSearchId), val(query), BATCH_SEARCH_RESULT.DOC_NB,
+                        BATCH_SEARCH_RESULT.DOC_ID, BATCH_SEARCH_RESULT.ROOT_ID, BATCH_SEARCH_RESULT.DOC_PATH, BATCH_SEARCH_RESULT.CREATION_DATE,
+                        BATCH_SEARCH_RESULT.CONTENT_TYPE, BATCH_SEARCH_RESULT.CONTENT_LENGTH, BATCH_SEARCH_RESULT.PRJ_ID).
+                        from(BATCH_SEARCH_RESULT).where(BATCH_SEARCH_RESULT.SEARCH_UUID.eq(previousBatchId).
+                                and(BATCH_SEARCH_RESULT.QUERY.eq(query)).
+                                andNotExists(selectOne().from(newResult).where(newResult.SEARCH_UUID.eq(batchSearchId).
+                                        and(newResult.QUERY.eq(query)).and(newResult.DOC_ID.eq(BATCH_SEARCH_RESULT.DOC_ID)))))).execute();
+    }
+
+    private BatchSearchResultRecord createResultRecord(DSLContext create, String batchSearchId, String query, int docNb, Document document) {
+        BatchSearchResultRecord record = create.newRecord(BATCH_SEARCH_RESULT);
+        record.setSearchUuid(batchSearchId);
+        record.setQuery(query);
+        record.setDocNb(docNb);
+        record.setDocId(document.getId());
+        record.setRootId(document.getRootDocument());
+        record.setDocPath(document.getPath().toString());
+        record.setCreationDate(document.getCreationDate() == null ? null : new Timestamp(document.getCreationDate().getTime()));
+        record.setContentType(document.getContentType());
+        record.setContentLength(document.getContentLength());
+        record.setPrjId(document.getProject().getId());
+        return record;
+    }
+
     @Override
     public boolean setState(String batchSearchId, State state) {
         return DSL.using(dataSource, dialect).update(BATCH_SEARCH).
@@ -189,11 +272,196 @@ public class JooqBatchSearchRepository implements BatchSearchRepository {
     public boolean reset(String batchId) {
         return DSL.using(dataSource, dialect).transactionResult(configuration -> {
             DSLContext inner = using(configuration);
-            inner.update(BATCH_SEARCH).set(BATCH_SEARCH.STATE, State.QUEUED.name()).where(BATCH_SEARCH.UUID.eq(batchId)).execute();
+            inner.update(BATCH_SEARCH).set(BATCH_SEARCH.STATE, State.QUEUED.name()).set(BATCH_SEARCH.BATCH_RESULTS, 0).
+                    set(BATCH_SEARCH.WORKER_ID, (String) null).set(BATCH_SEARCH.HEARTBEAT, (Timestamp) null).
+                    set(BATCH_SEARCH.HIGH_WATER_MARK, (Timestamp) null).
+                    where(BATCH_SEARCH.UUID.eq(batchId)).execute();
+            inner.update(BATCH_SEARCH_QUERY).set(BATCH_SEARCH_QUERY.QUERY_RESULTS, 0).set(BATCH_SEARCH_QUERY.QUERY_DONE, 0).
+                    set(BATCH_SEARCH_QUERY.CACHE_KEY, (String) null).where(BATCH_SEARCH_QUERY.SEARCH_UUID.eq(batchId)).execute();
             return inner.deleteFrom(BATCH_SEARCH_RESULT).where(BATCH_SEARCH_RESULT.SEARCH_UUID.eq(batchId)).execute() > 0;
         });
     }
 
+    /**
+     * puts the batch search back in QUEUED state, keeping the results of the done queries.
+     */
+    public boolean requeue(String batchId) {
+        return DSL.using(dataSource, dialect).update(BATCH_SEARCH).set(BATCH_SEARCH.STATE, State.QUEUED.name()).
+                set(BATCH_SEARCH.WORKER_ID, (String) null).set(BATCH_SEARCH.HEARTBEAT, (Timestamp) null).
+                where(BATCH_SEARCH.UUID.eq(batchId)).execute() > 0;
+    }
+
+    /**
+     * the batch search will be run incrementally : only the documents extracted after the high-water mark
+     * of the previous batch search are searched, and the previous results are merged with the new ones.
+     */
+    public boolean setPreviousBatchSearch(String batchId, String previousBatchId) {
+        return DSL.using(dataSource, dialect).update(BATCH_SEARCH).set(BATCH_SEARCH.PREVIOUS_BATCH_ID, previousBatchId).
+                where(BATCH_SEARCH.UUID.eq(batchId)).execute() > 0;
+    }
+
+    public String getPreviousBatchSearch(String batchId) {
+        return DSL.using(dataSource, dialect).select(BATCH_SEARCH.PREVIOUS_BATCH_ID).from(BATCH_SEARCH).
+                where(BATCH_SEARCH.UUID.eq(batchId)).fetchOne(BATCH_SEARCH.PREVIOUS_BATCH_ID);
+    }
+
+    /**
+     * saves the last extraction date of the searched documents, read when the batch search was started.
+     * It is saved once, when the batch search has succeeded with all its results : the batch searches
+     * without mark cannot be the previous batch search of an incremental run.
+     */
+    public boolean setHighWaterMark(String batchId, Date highWaterMark) {
+        return DSL.using(dataSource, dialect).update(BATCH_SEARCH).set(BATCH_SEARCH.HIGH_WATER_MARK, new Timestamp(highWaterMark.getTime())).
+                where(BATCH_SEARCH.UUID.eq(batchId).and(BATCH_SEARCH.HIGH_WATER_MARK.isNull())).execute() > 0;
+    }
+
+    /**
+     * @return the high-water mark of the batch search or null if it has not been run or does not exist anymore
+     */
+    public Date getHighWaterMark(String batchId) {
+        Timestamp highWaterMark = DSL.using(dataSource, dialect).select(BATCH_SEARCH.HIGH_WATER_MARK).from(BATCH_SEARCH).
+                where(BATCH_SEARCH.UUID.eq(batchId)).fetchOne(BATCH_SEARCH.HIGH_WATER_MARK);
+        return highWaterMark == null ? null : new Date(highWaterMark.getTime());
+    }
+
+    public Set<String> getDoneQueries(String batchId) {
+        return new LinkedHashSet<>(DSL.using(dataSource, dialect).select(BATCH_SEARCH_QUERY.QUERY).from(BATCH_SEARCH_QUERY).
+                where(BATCH_SEARCH_QUERY.SEARCH_UUID.eq(batchId).and(BATCH_SEARCH_QUERY.QUERY_DONE.eq(1))).
+                fetch(BATCH_SEARCH_QUERY.QUERY));
+    }
+
+    /**
+     * @return the number of results of a query done by another batch search with the same cache key, or -1 if there is none
+     */
+    public int cachedResultsCount(String batchId, String cacheKey) {
+        Integer nbResults = DSL.using(dataSource, dialect).select(BATCH_SEARCH_QUERY.QUERY_RESULTS).from(BATCH_SEARCH_QUERY).
+                where(cachedQuery(batchId, cacheKey)).limit(1).fetchOne(BATCH_SEARCH_QUERY.QUERY_RESULTS);
+        return nbResults == null ? -1 : nbResults;
+    }
+
+    /**
+     * copies the results of a query done by another batch search with the same cache key, with an INSERT ... SELECT
+     * so that the results are not read by the application. The query is marked as done with its cache key
+     * in the same transaction.
+     *
+     * @return the number of copied results, or -1 if there is no cached query anymore (the other batch search has been deleted)
+     */
+    public int copyCachedResults(String batchId, String query, String cacheKey) {
+        return DSL.using(dataSource, dialect).transactionResult(configuration -> {
+            DSLContext inner = using(configuration);
+            Record2<String, String> source = inner.select(BATCH_SEARCH_QUERY.SEARCH_UUID, BATCH_SEARCH_QUERY.QUERY).from(BATCH_SEARCH_QUERY).
+                    where(cachedQuery(batchId, cacheKey)).limit(1).fetchOne();
+            if (source == null) {
+                return -1;
+            }
+            int nbResults = inner.insertInto(BATCH_SEARCH_RESULT, BATCH_SEARCH_RESULT.SEARCH_UUID, BATCH_SEARCH_RESULT.QUERY, BATCH_SEARCH_RESULT.DOC_NB,
+                    BATCH_SEARCH_RESULT.DOC_ID, BATCH_SEARCH_RESULT.ROOT_ID, BATCH_SEARCH_RESULT.DOC_PATH, BATCH_SEARCH_RESULT.CREATION_DATE,
+                    BATCH_SEARCH_RESULT.CONTENT_TYPE, BATCH_SEARCH_RESULT.CONTENT_LENGTH, BATCH_SEARCH_RESULT.PRJ_ID).
+                    select(select(val(batchId), val(query), BATCH_SEARCH_RESULT.DOC_NB,
+                            BATCH_SEARCH_RESULT.DOC_ID, BATCH_SEARCH_RESULT.ROOT_ID, BATCH_SEARCH_RESULT.DOC_PATH, BATCH_SEARCH_RESULT.CREATION_DATE,
+                            BATCH_SEARCH_RESULT.CONTENT_TYPE, BATCH_SEARCH_RESULT.CONTENT_LENGTH, BATCH_SEARCH_RESULT.PRJ_ID).
+                            from(BATCH_SEARCH_RESULT).where(BATCH_SEARCH_RESULT.SEARCH_UUID.eq(source.value1()).
+                                    and(BATCH_SEARCH_RESULT.QUERY.eq(source.value2())))).execute();
+            inner.update(BATCH_SEARCH_QUERY).set(BATCH_SEARCH_QUERY.QUERY_RESULTS, nbResults).
+                    set(BATCH_SEARCH_QUERY.QUERY_DONE, 1).set(BATCH_SEARCH_QUERY.CACHE_KEY, cacheKey).
+                    where(BATCH_SEARCH_QUERY.SEARCH_UUID.eq(batchId).and(BATCH_SEARCH_QUERY.QUERY.eq(query))).execute();
+            inner.update(BATCH_SEARCH).set(BATCH_SEARCH.BATCH_RESULTS, BATCH_SEARCH.BATCH_RESULTS.plus(nbResults)).
+                    where(BATCH_SEARCH.UUID.eq(batchId)).execute();
+            return nbResults;
+        });
+    }
+
+    private static Condition cachedQuery(String batchId, String cacheKey) {
+        return BATCH_SEARCH_QUERY.CACHE_KEY.eq(cacheKey).and(BATCH_SEARCH_QUERY.QUERY_DONE.eq(1)).
+                and(BATCH_SEARCH_QUERY.SEARCH_UUID.ne(batchId));
+    }
+
+    /**
+     * moves the batch search from QUEUED to RUNNING for the given worker. Only one worker can claim a batch search.
+     * The results of the queries that were not done by a previous run are removed.
+     *
+     * When maxRunningPerUser is greater than 0, the batch search is not claimed if its user has already
+     * that number of running batch searches. This check is not atomic with the claim : concurrent claims
+     * for the same user can exceed the limit by the number of claiming workers.
+     */
+    public Claim claim(String batchId, String workerId, int maxRunningPerUser) {
+        DSLContext create = DSL.using(dataSource, dialect);
+        if (maxRunningPerUser > 0) {
+            String userId = create.select(BATCH_SEARCH.USER_ID).from(BATCH_SEARCH).
+                    where(BATCH_SEARCH.UUID.eq(batchId)).fetchOne(BATCH_SEARCH.USER_ID);
+            if (userId != null && create.fetchCount(BATCH_SEARCH,
+                    BATCH_SEARCH.USER_ID.eq(userId).and(BATCH_SEARCH.STATE.eq(State.RUNNING.name()))) >= maxRunningPerUser) {
+                return Claim.USER_LIMIT_REACHED;
+            }
+        }
+        return create.transactionResult(configuration -> {
+            DSLContext inner = using(configuration);
+            if (inner.update(BATCH_SEARCH).set(BATCH_SEARCH.STATE, State.RUNNING.name()).
+                    set(BATCH_SEARCH.WORKER_ID, workerId).set(BATCH_SEARCH.HEARTBEAT, heartbeatTime()).
+                    where(BATCH_SEARCH.UUID.eq(batchId).and(BATCH_SEARCH.STATE.eq(State.QUEUED.name()))).execute() == 0) {
+                return Claim.NOT_QUEUED;
+            }
+            removeUnfinishedResults(inner, batchId);
+            return Claim.CLAIMED;
+        });
+    }
+
+    /**
+     * removes the results saved by a previous run for the queries that are not done,
+     * so that they can be run again without duplicates.
+     */
+    private void removeUnfinishedResults(DSLContext inner, String batchId) {
+        Condition unfinished = BATCH_SEARCH_QUERY.SEARCH_UUID.eq(batchId).
+                and(BATCH_SEARCH_QUERY.QUERY_DONE.eq(0).or(BATCH_SEARCH_QUERY.QUERY_DONE.isNull())).
+                and(BATCH_SEARCH_QUERY.QUERY_RESULTS.gt(0));
+        List<String> unfinishedQueries = inner.select(BATCH_SEARCH_QUERY.QUERY).from(BATCH_SEARCH_QUERY).where(unfinished).fetch(BATCH_SEARCH_QUERY.QUERY);
+        if (unfinishedQueries.isEmpty()) {
+            return;
+        }
+        inner.deleteFrom(BATCH_SEARCH_RESULT).where(BATCH_SEARCH_RESULT.SEARCH_UUID.eq(batchId).
+                and(BATCH_SEARCH_RESULT.QUERY.in(unfinishedQueries))).execute();
+        inner.update(BATCH_SEARCH_QUERY).set(BATCH_SEARCH_QUERY.QUERY_RESULTS, 0).where(unfinished).execute();
+        Integer nbResults = inner.select(sum(BATCH_SEARCH_QUERY.QUERY_RESULTS)).from(BATCH_SEARCH_QUERY).
+                where(BATCH_SEARCH_QUERY.SEARCH_UUID.eq(batchId)).fetchOne(0, Integer.class);
+        inner.update(BATCH_SEARCH).set(BATCH_SEARCH.BATCH_RESULTS, nbResults == null ? 0 : nbResults).
+                where(BATCH_SEARCH.UUID.eq(batchId)).execute();
+    }
+
+    /**
+     * @return false if the batch search is not running anymore for this worker (it has been reclaimed)
+     */
+    public boolean heartbeat(String batchId, String workerId) {
+        return DSL.using(dataSource, dialect).update(BATCH_SEARCH).set(BATCH_SEARCH.HEARTBEAT, heartbeatTime()).
+                where(BATCH_SEARCH.UUID.eq(batchId).and(BATCH_SEARCH.WORKER_ID.eq(workerId)).
+                        and(BATCH_SEARCH.STATE.eq(State.RUNNING.name()))).execute() > 0;
+    }
+
+    /**
+     * puts back in QUEUED state the running batch searches whose worker has not sent a heartbeat
+     * for more than heartbeatTimeoutMillis, or that have no heartbeat (set RUNNING without being claimed, for example
+     * by a version without heartbeats). The results of their done queries are kept.
+     *
+     * @return the ids of the reclaimed batch searches
+     */
+    public List<String> reclaimExpired(long heartbeatTimeoutMillis) {
+        Timestamp expiredBefore = new Timestamp(DatashareTime.getInstance().currentTimeMillis() - heartbeatTimeoutMillis);
+        Condition expired = BATCH_SEARCH.STATE.eq(State.RUNNING.name()).and(BATCH_SEARCH.HEARTBEAT.lt(expiredBefore).or(BATCH_SEARCH.HEARTBEAT.isNull()));
+        return DSL.using(dataSource, dialect).select(BATCH_SEARCH.UUID).from(BATCH_SEARCH).where(expired).
+                fetch(BATCH_SEARCH.UUID).stream().filter(batchId -> DSL.using(dataSource, dialect).transactionResult(configuration -> {
+                    DSLContext inner = using(configuration);
+                    if (inner.update(BATCH_SEARCH).set(BATCH_SEARCH.STATE, State.QUEUED.name()).
+                            set(BATCH_SEARCH.WORKER_ID, (String) null).set(BATCH_SEARCH.HEARTBEAT, (Timestamp) null).
+                            where(BATCH_SEARCH.UUID.eq(batchId).and(expired)).execute() == 0) {
+                        return false;
+                    }
+                    return true;
+                })).collect(toList());
+    }
+
+    private static Timestamp heartbeatTime() {
+        return new Timestamp(DatashareTime.getInstance().currentTimeMillis());
+    }
+
     @Override
     public List<String> getQueued() {
         return  DSL.using(dataSource,dialect).select(BATCH_SEARCH.UUID).from(BATCH_SEARCH)
@@ -224,6 +492,54 @@ public class JooqBatchSearchRepository implements BatchSearchRepository {
         return query.fetch().stream().map(r -> createSearchResult(user, r)).collect(toList());
     }
 
+    /**
+     * Keyset pagination of the results : the page is read after the cursor (from the previous page) instead of
+     * skipping webQuery.from results. The cursor of the next page is returned with the results.
+     * If the sort column cannot be used for keyset pagination, it falls back to getResults with offset.
+     *
+     * @param cursor token of the previous page or null for the first page
+     */
+    public ResultsWithCursor getResults(User user, String batchSearchId, WebQuery webQuery, String cursor) {
+        BatchSearchResultCursor keyset = BatchSearchResultCursor.forSort(webQuery.isSorted() ? webQuery.sort : null, webQuery.order);
+        if (keyset == null) {
+            if (cursor != null) {
+                throw new BatchSearchResultCursor.InvalidCursorException(cursor);
+            }
+            return new ResultsWithCursor(getResults(user, batchSearchId, webQuery), null);
+        }
+        SelectConditionStep<Record> query = DSL.using(dataSource, dialect).select().from(BATCH_SEARCH_RESULT).
+                join(BATCH_SEARCH).on(BATCH_SEARCH.UUID.equal(BATCH_SEARCH_RESULT.SEARCH_UUID)).
+                where(BATCH_SEARCH_RESULT.SEARCH_UUID.eq(batchSearchId));
+        if (webQuery.hasFilteredQueries()) query.and(BATCH_SEARCH_RESULT.QUERY.in(webQuery.queries));
+        if (cursor != null) query.and(keyset.after(cursor));
+        query.orderBy(keyset.orderBy());
+        if (webQuery.size > 0) query.limit(webQuery.size);
+        if (cursor == null && webQuery.from > 0) query.offset(webQuery.from);
+
+        List<SearchResult> results = query.fetch().stream().map(r -> createSearchResult(user, r)).collect(toList());
+        boolean hasNext = webQuery.size > 0 && results.size() == webQuery.size;
+        return new ResultsWithCursor(results, hasNext ? keyset.token(results.get(results.size() - 1)) : null);
+    }
+
+    /**
+     * gives the results to the consumer one by one, read with a lazy cursor of fetchSize rows.
+     * The results are never all loaded in memory. The cursor is opened in a transaction because
+     * postgresql JDBC driver only uses the fetch size when auto commit is off.
+     */
+    public void streamResults(User user, String batchSearchId, int fetchSize, Consumer<SearchResult> consumer) {
+        DSL.using(dataSource, dialect).transaction(configuration -> {
+            try (Cursor<Record> cursor = using(configuration).select().from(BATCH_SEARCH_RESULT).
+                    join(BATCH_SEARCH).on(BATCH_SEARCH.UUID.equal(BATCH_SEARCH_RESULT.SEARCH_UUID)).
+                    where(BATCH_SEARCH_RESULT.SEARCH_UUID.eq(batchSearchId)).
+                    orderBy(BATCH_SEARCH_RESULT.QUERY, BATCH_SEARCH_RESULT.DOC_NB).
+                    fetchSize(fetchSize).fetchLazy()) {
+                for (Record record : cursor) {
+                    consumer.accept(createSearchResult(user, record));
+                }
+            }
+        });
+    }
+
     @Override
     public boolean publish(User user, String batchId, boolean published) {
         return DSL.using(dataSource, dialect).update(BATCH_SEARCH).
@@ -380,6 +696,56 @@ public class JooqBatchSearchRepository implements BatchSearchRepository {
         }
     }
 
+    public enum Claim { CLAIMED, NOT_QUEUED, USER_LIMIT_REACHED }
+
+    public static class ResultsWithCursor {
+        public final List<SearchResult> results;
+        /** null if there is no next page */
+        public final String nextCursor;
+
+        public ResultsWithCursor(List<SearchResult> results, String nextCursor) {
+            this.results = results;
+            this.nextCursor = nextCursor;
+        }
+    }
+
+    public static class ResultPage {
+        public final String query;
+        public final List<Document> documents;
+        public final boolean queryDone;
+        /** key of the query results in the cache of done queries, null if they cannot be reused */
+        public final String cacheKey;
+        /** id of the previous batch search whose results are merged when the query is done (incremental run) */
+        public final String mergedFrom;
+
+        public ResultPage(String query, List<Document> documents) {
+            this(query, documents, false, null, null);
+        }
+
+        private ResultPage(String query, List<Document> documents, boolean queryDone, String cacheKey, String mergedFrom) {
+            this.query = query;
+            this.documents = documents;
+            this.queryDone = queryDone;
+            this.cacheKey = cacheKey;
+            this.mergedFrom = mergedFrom;
+        }
+
+        /**
+         * @return an empty page marking that all the results of the query have been given
+         */
+        public static ResultPage queryDone(String query) {
+            return queryDone(query, null);
+        }
+
+        public static ResultPage queryDone(String query, String cacheKey) {
+            return queryDone(query, cacheKey, null);
+        }
+
+        public static ResultPage queryDone(String query, String cacheKey, String mergedFrom) {
+            return new ResultPage(query, new ArrayList<>(), true, cacheKey, mergedFrom);
+        }
+    }
+
     public static class UnauthorizedUserException extends RuntimeException {
         public UnauthorizedUserException(String searchId, String owner, String actualUser) {
             super("user " + actualUser + " requested results for search " + searchId + " that belongs to user " + owner);
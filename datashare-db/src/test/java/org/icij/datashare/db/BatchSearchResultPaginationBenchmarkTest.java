@@ -0,0 +1,87 @@
+package org.icij.datashare.db;
+
+import org.icij.datashare.batch.BatchSearch;
+import org.icij.datashare.batch.BatchSearchRepository.WebQuery;
+import org.icij.datashare.batch.SearchResult;
+import org.icij.datashare.text.Document;
+import org.icij.datashare.user.User;
+import org.junit.Ignore;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Supplier;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singletonList;
+import static java.util.stream.Collectors.toList;
+import static java.util.stream.IntStream.range;
+import static org.fest.assertions.Assertions.assertThat;
+import static org.icij.datashare.CollectionUtils.asSet;
+import static org.icij.datashare.text.DocumentBuilder.createDoc;
+import static org.icij.datashare.text.Project.project;
+
+/**
+ * compares the time to get a deep page of results with an offset and with a cursor, on 1M results.
+ * It takes several minutes to insert the results : run it manually.
+ */
+@Ignore("benchmark")
+@RunWith(Parameterized.class)
+public class BatchSearchResultPaginationBenchmarkTest {
+    private static final Logger LOGGER = LoggerFactory.getLogger(BatchSearchResultPaginationBenchmarkTest.class);
+    private static final int NB_QUERIES = 100;
+    private static final int NB_RESULTS_PER_QUERY = 10_000;
+    private static final int PAGE_SIZE = 100;
+    private static final int INSERT_SIZE = 2_000;
+    @Rule public DbSetupRule dbRule;
+    private final JooqBatchSearchRepository repository;
+
+    @Parameterized.Parameters
+    public static Collection<Object[]> dataSources() {
+        return asList(new Object[][]{
+                {new DbSetupRule("jdbc:sqlite:file:memorydb.db?mode=memory&cache=shared")},
+                {new DbSetupRule("jdbc:postgresql://postgres/test?user=test&password=test")}
+        });
+    }
+
+    public BatchSearchResultPaginationBenchmarkTest(DbSetupRule rule) {
+        dbRule = rule;
+        repository = (JooqBatchSearchRepository) rule.createBatchSearchRepository();
+    }
+
+    @Test
+    public void test_deep_page_with_offset_and_with_cursor() {
+        List<String> queries = range(0, NB_QUERIES).mapToObj(i -> String.format("query%03d", i)).collect(toList());
+        BatchSearch batchSearch = new BatchSearch(singletonList(project("prj")), "name", "desc", asSet(queries.toArray(new String[0])), User.local());
+        repository.save(batchSearch);
+        for (String query : queries) {
+            for (int from = 0; from < NB_RESULTS_PER_QUERY; from += INSERT_SIZE) {
+                List<Document> documents = range(from, from + INSERT_SIZE).mapToObj(i -> createDoc(query + "-doc" + i).build()).collect(toList());
+                repository.saveResultPages(batchSearch.uuid, singletonList(new JooqBatchSearchRepository.ResultPage(query, documents)));
+            }
+        }
+        int deepOffset = NB_QUERIES * NB_RESULTS_PER_QUERY - 10 * PAGE_SIZE;
+        String cursor = repository.getResults(User.local(), batchSearch.uuid, new WebQuery(PAGE_SIZE, deepOffset - PAGE_SIZE), null).nextCursor;
+
+        List<SearchResult> withOffset = time("offset", () -> repository.getResults(User.local(), batchSearch.uuid, new WebQuery(PAGE_SIZE, deepOffset), null).results);
+        List<SearchResult> withCursor = time("cursor", () -> repository.getResults(User.local(), batchSearch.uuid, new WebQuery(PAGE_SIZE, 0), cursor).results);
+
+        assertThat(withCursor.stream().map(r -> r.documentId).collect(toList())).isEqualTo(withOffset.stream().map(r -> r.documentId).collect(toList()));
+    }
+
+    private <T> T time(String name, Supplier<T> supplier) {
+        supplier.get(); // warm up
+        long start = System.nanoTime();
+        T result = null;
+        for (int i = 0; i < 10; i++) {
+            result = supplier.get();
+        }
+        LOGGER.info("{} page with {} : {} ms", dbRule.dataSourceUrl, name, (System.nanoTime() - start) / 10_000_000);
+        return result;
+    }
+}
@@ -12,6 +12,7 @@ import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
 import java.util.List;
@@ -19,11 +20,13 @@ import java.util.stream.IntStream;
 
 import static java.util.Arrays.asList;
 import static java.util.Collections.singletonList;
+import static java.util.stream.Collectors.toList;
 import static org.fest.assertions.Assertions.assertThat;
 import static org.fest.assertions.MapAssert.entry;
 import static org.icij.datashare.CollectionUtils.asSet;
 import static org.icij.datashare.text.DocumentBuilder.createDoc;
 import static org.icij.datashare.text.Project.project;
+import static org.junit.Assert.assertThrows;
 
 @RunWith(Parameterized.class)
 public class JooqBatchSearchRepositoryTest {
@@ -301,6 +304,60 @@ public class JooqBatchSearchRepositoryTest {
                 resultFrom(createDoc("doc3").build(), 3, "query"), resultFrom(createDoc("doc4").build(), 4, "query"));
     }
 
+    @Test
+    public void test_get_results_with_cursor() {
+        BatchSearch batchSearch = new BatchSearch(singletonList(project("prj")), "name", "description", asSet("q1", "q2"), User.local());
+        repository.save(batchSearch);
+        repository.saveResults(batchSearch.uuid, "q1", asList(createDoc("a").build(), createDoc("c").build(), createDoc("e").build()));
+        repository.saveResults(batchSearch.uuid, "q2", asList(createDoc("b").build(), createDoc("d").build()));
+
+        JooqBatchSearchRepository.ResultsWithCursor page1 = jooqRepository().getResults(User.local(), batchSearch.uuid, new BatchSearchRepository.WebQuery(2, 0), null);
+        JooqBatchSearchRepository.ResultsWithCursor page2 = jooqRepository().getResults(User.local(), batchSearch.uuid, new BatchSearchRepository.WebQuery(2, 0), page1.nextCursor);
+        JooqBatchSearchRepository.ResultsWithCursor page3 = jooqRepository().getResults(User.local(), batchSearch.uuid, new BatchSearchRepository.WebQuery(2, 0), page2.nextCursor);
+
+        assertThat(page1.results.stream().map(r -> r.documentId).collect(toList())).containsExactly("a", "c");
+        assertThat(page2.results.stream().map(r -> r.documentId).collect(toList())).containsExactly("e", "b");
+        assertThat(page3.results.stream().map(r -> r.documentId).collect(toList())).containsExactly("d");
+        assertThat(page3.nextCursor).isNull();
+    }
+
+    @Test
+    public void test_get_results_with_cursor_sorted_desc() {
+        BatchSearch batchSearch = new BatchSearch(singletonList(project("prj")), "name", "description", asSet("q1", "q2"), User.local());
+        repository.save(batchSearch);
+        repository.saveResults(batchSearch.uuid, "q1", asList(createDoc("a").build(), createDoc("c").build()));
+        repository.saveResults(batchSearch.uuid, "q2", asList(createDoc("b").build(), createDoc("d").build()));
+        BatchSearchRepository.WebQuery webQuery = new BatchSearchRepository.WebQuery(3, 0, "doc_path", "desc", "*", "all", null);
+
+        JooqBatchSearchRepository.ResultsWithCursor page1 = jooqRepository().getResults(User.local(), batchSearch.uuid, webQuery, null);
+        JooqBatchSearchRepository.ResultsWithCursor page2 = jooqRepository().getResults(User.local(), batchSearch.uuid, webQuery, page1.nextCursor);
+
+        assertThat(page1.results.stream().map(r -> r.documentId).collect(toList())).containsExactly("d", "c", "b");
+        assertThat(page2.results.stream().map(r -> r.documentId).collect(toList())).containsExactly("a");
+    }
+
+    @Test
+    public void test_get_results_with_cursor_for_nullable_sort_field_uses_offset() {
+        BatchSearch batchSearch = new BatchSearch(singletonList(project("prj")), "name", "description", asSet("q1"), User.local());
+        repository.save(batchSearch);
+        repository.saveResults(batchSearch.uuid, "q1", asList(createDoc("a").build(), createDoc("b").build()));
+        BatchSearchRepository.WebQuery webQuery = new BatchSearchRepository.WebQuery(1, 1, "creation_date", "asc", "*", "all", null);
+
+        JooqBatchSearchRepository.ResultsWithCursor page = jooqRepository().getResults(User.local(), batchSearch.uuid, webQuery, null);
+
+        assertThat(page.results).hasSize(1);
+        assertThat(page.nextCursor).isNull();
+        assertThrows(BatchSearchResultCursor.InvalidCursorException.class, () -> jooqRepository().getResults(User.local(), batchSearch.uuid, webQuery, "cursor"));
+    }
+
+    @Test(expected = BatchSearchResultCursor.InvalidCursorException.class)
+    public void test_get_results_with_invalid_cursor() {
+        BatchSearch batchSearch = new BatchSearch(singletonList(project("prj")), "name", "description", asSet("q1"), User.local());
+        repository.save(batchSearch);
+
+        jooqRepository().getResults(User.local(), batchSearch.uuid, new BatchSearchRepository.WebQuery(2, 0), "not a cursor");
+    }
+
     @Test
     public void test_get_results_filtered_by_query() {
         BatchSearch batchSearch = new BatchSearch(singletonList(project("prj")), "name", "description", asSet("q1", "q2"), User.local());
@@ -458,6 +515,254 @@ public class JooqBatchSearchRepositoryTest {
         assertThat(repository.getResults(User.local(), batchSearch.uuid)).hasSize(0);
     }
 
+    @Test
+    public void test_claim_batch_search_once() {
+        BatchSearch batchSearch = new BatchSearch("uuid", singletonList(project("prj")), "name1", "description1",
+                asSet("q1", "q2"), new Date(), State.QUEUED, User.local());
+        repository.save(batchSearch);
+
+        assertThat(jooqRepository().claim(batchSearch.uuid, "worker1", 0)).isEqualTo(JooqBatchSearchRepository.Claim.CLAIMED);
+        assertThat(jooqRepository().claim(batchSearch.uuid, "worker2", 0)).isEqualTo(JooqBatchSearchRepository.Claim.NOT_QUEUED);
+        assertThat(repository.get(batchSearch.uuid).state).isEqualTo(State.RUNNING);
+        assertThat(jooqRepository().heartbeat(batchSearch.uuid, "worker1")).isTrue();
+        assertThat(jooqRepository().heartbeat(batchSearch.uuid, "worker2")).isFalse();
+    }
+
+    @Test
+    public void test_claim_batch_search_with_max_running_per_user() {
+        BatchSearch batchSearch1 = new BatchSearch("uuid1", singletonList(project("prj")), "name1", "description1",
+                asSet("q1"), new Date(), State.QUEUED, User.local());
+        BatchSearch batchSearch2 = new BatchSearch("uuid2", singletonList(project("prj")), "name2", "description2",
+                asSet("q2"), new Date(), State.QUEUED, User.local());
+        BatchSearch otherUserBatchSearch = new BatchSearch("uuid3", singletonList(project("prj")), "name3", "description3",
+                asSet("q3"), new Date(), State.QUEUED, new User("foo"));
+        repository.save(batchSearch1);
+        repository.save(batchSearch2);
+        repository.save(otherUserBatchSearch);
+
+        assertThat(jooqRepository().claim(batchSearch1.uuid, "worker1", 1)).isEqualTo(JooqBatchSearchRepository.Claim.CLAIMED);
+        assertThat(jooqRepository().claim(batchSearch2.uuid, "worker2", 1)).isEqualTo(JooqBatchSearchRepository.Claim.USER_LIMIT_REACHED);
+        assertThat(jooqRepository().claim(otherUserBatchSearch.uuid, "worker2", 1)).isEqualTo(JooqBatchSearchRepository.Claim.CLAIMED);
+        assertThat(repository.get(batchSearch2.uuid).state).isEqualTo(State.QUEUED);
+    }
+
+    @Test
+    public void test_reclaim_expired_batch_searches() {
+        BatchSearch batchSearch = new BatchSearch("uuid", singletonList(project("prj")), "name1", "description1",
+                asSet("q1", "q2"), new Date(), State.QUEUED, User.local());
+        repository.save(batchSearch);
+        jooqRepository().claim(batchSearch.uuid, "worker1", 0);
+        repository.saveResults(batchSearch.uuid, "q1", singletonList(createDoc("doc1").build()));
+
+        DatashareTime.getInstance().addMilliseconds(30000);
+        jooqRepository().heartbeat(batchSearch.uuid, "worker1");
+        DatashareTime.getInstance().addMilliseconds(40000);
+        assertThat(jooqRepository().reclaimExpired(60000)).isEmpty();
+
+        DatashareTime.getInstance().addMilliseconds(30000);
+        assertThat(jooqRepository().reclaimExpired(60000)).containsExactly(batchSearch.uuid);
+        assertThat(repository.get(batchSearch.uuid).state).isEqualTo(State.QUEUED);
+        assertThat(jooqRepository().heartbeat(batchSearch.uuid, "worker1")).isFalse();
+
+        jooqRepository().claim(batchSearch.uuid, "worker2", 0);
+        assertThat(repository.getResults(User.local(), batchSearch.uuid)).isEmpty();
+    }
+
+    @Test
+    public void test_reclaim_running_batch_search_without_heartbeat() {
+        BatchSearch batchSearch = new BatchSearch("uuid", singletonList(project("prj")), "name1", "description1",
+                asSet("q1"), new Date(), State.QUEUED, User.local());
+        repository.save(batchSearch);
+        repository.setState(batchSearch.uuid, State.RUNNING);
+
+        assertThat(jooqRepository().reclaimExpired(60000)).containsExactly(batchSearch.uuid);
+        assertThat(repository.get(batchSearch.uuid).state).isEqualTo(State.QUEUED);
+    }
+
+    @Test
+    public void test_save_result_pages() {
+        BatchSearch batchSearch = new BatchSearch("uuid", singletonList(project("prj")), "name1", "description1",
+                asSet("q1", "q2"), new Date(), State.RUNNING, User.local());
+        repository.save(batchSearch);
+
+        assertThat(jooqRepository().saveResultPages(batchSearch.uuid, asList(
+                new JooqBatchSearchRepository.ResultPage("q1", asList(createDoc("doc1").build(), createDoc("doc2").build())),
+                new JooqBatchSearchRepository.ResultPage("q2", singletonList(createDoc("doc3").build())),
+                new JooqBatchSearchRepository.ResultPage("q1", singletonList(createDoc("doc4").build()))))).isTrue();
+
+        assertThat(repository.getResults(User.local(), batchSearch.uuid)).hasSize(4);
+        assertThat(repository.get(batchSearch.uuid).nbResults).isEqualTo(4);
+        assertThat(repository.get(batchSearch.uuid).queries).includes(entry("q1", 3), entry("q2", 1));
+    }
+
+    @Test
+    public void test_save_result_pages_with_done_queries() {
+        BatchSearch batchSearch = new BatchSearch("uuid", singletonList(project("prj")), "name1", "description1",
+                asSet("q1", "q2"), new Date(), State.RUNNING, User.local());
+        repository.save(batchSearch);
+
+        assertThat(jooqRepository().saveResultPages(batchSearch.uuid, asList(
+                new JooqBatchSearchRepository.ResultPage("q1", singletonList(createDoc("doc1").build())),
+                JooqBatchSearchRepository.ResultPage.queryDone("q1")))).isTrue();
+
+        assertThat(jooqRepository().getDoneQueries(batchSearch.uuid)).containsOnly("q1");
+        assertThat(repository.get(batchSearch.uuid).nbResults).isEqualTo(1);
+    }
+
+    @Test
+    public void test_claim_requeued_batch_search_keeps_results_of_done_queries() {
+        BatchSearch batchSearch = new BatchSearch("uuid", singletonList(project("prj")), "name1", "description1",
+                asSet("q1", "q2"), new Date(), State.QUEUED, User.local());
+        repository.save(batchSearch);
+        jooqRepository().claim(batchSearch.uuid, "worker1", 0);
+        jooqRepository().saveResultPages(batchSearch.uuid, asList(
+                new JooqBatchSearchRepository.ResultPage("q1", asList(createDoc("doc1").build(), createDoc("doc2").build())),
+                JooqBatchSearchRepository.ResultPage.queryDone("q1"),
+                new JooqBatchSearchRepository.ResultPage("q2", singletonList(createDoc("doc3").build()))));
+
+        assertThat(jooqRepository().requeue(batchSearch.uuid)).isTrue();
+        assertThat(repository.get(batchSearch.uuid).state).isEqualTo(State.QUEUED);
+        assertThat(jooqRepository().claim(batchSearch.uuid, "worker2", 0)).isEqualTo(JooqBatchSearchRepository.Claim.CLAIMED);
+
+        assertThat(repository.getResults(User.local(), batchSearch.uuid)).hasSize(2);
+        assertThat(repository.get(batchSearch.uuid).nbResults).isEqualTo(2);
+        assertThat(repository.get(batchSearch.uuid).queries).includes(entry("q1", 2), entry("q2", 0));
+        assertThat(jooqRepository().getDoneQueries(batchSearch.uuid)).containsOnly("q1");
+    }
+
+    @Test
+    public void test_reset_batch_search_clears_done_queries() {
+        BatchSearch batchSearch = new BatchSearch("uuid", singletonList(project("prj")), "name1", "description1",
+                asSet("q1", "q2"), new Date(), State.RUNNING, User.local());
+        repository.save(batchSearch);
+        jooqRepository().saveResultPages(batchSearch.uuid, asList(
+                new JooqBatchSearchRepository.ResultPage("q1", singletonList(createDoc("doc1").build())),
+                JooqBatchSearchRepository.ResultPage.queryDone("q1")));
+
+        repository.reset(batchSearch.uuid);
+
+        assertThat(jooqRepository().getDoneQueries(batchSearch.uuid)).isEmpty();
+        assertThat(repository.get(batchSearch.uuid).nbResults).isEqualTo(0);
+    }
+
+    @Test
+    public void test_copy_cached_results() {
+        BatchSearch cached = new BatchSearch("uuid1", singletonList(project("prj")), "name1", "description1",
+                asSet("q1"), new Date(), State.RUNNING, User.local());
+        BatchSearch batchSearch = new BatchSearch("uuid2", singletonList(project("prj")), "name2", "description2",
+                asSet("q1 ", "q2"), new Date(), State.RUNNING, User.local());
+        repository.save(cached);
+        repository.save(batchSearch);
+        jooqRepository().saveResultPages(cached.uuid, asList(
+                new JooqBatchSearchRepository.ResultPage("q1", asList(createDoc("doc1").build(), createDoc("doc2").build())),
+                JooqBatchSearchRepository.ResultPage.queryDone("q1", "key1")));
+
+        assertThat(jooqRepository().cachedResultsCount(batchSearch.uuid, "key1")).isEqualTo(2);
+        assertThat(jooqRepository().cachedResultsCount(batchSearch.uuid, "key2")).isEqualTo(-1);
+        assertThat(jooqRepository().copyCachedResults(batchSearch.uuid, "q1 ", "key1")).isEqualTo(2);
+
+        assertThat(repository.getResults(User.local(), batchSearch.uuid).stream().map(r -> r.documentId).collect(toList())).containsExactly("doc1", "doc2");
+        assertThat(repository.getResults(User.local(), batchSearch.uuid).stream().map(r -> r.query).collect(toList())).containsExactly("q1 ", "q1 ");
+        assertThat(repository.get(batchSearch.uuid).nbResults).isEqualTo(2);
+        assertThat(repository.get(batchSearch.uuid).queries).includes(entry("q1 ", 2), entry("q2", 0));
+        assertThat(jooqRepository().getDoneQueries(batchSearch.uuid)).containsOnly("q1 ");
+    }
+
+    @Test
+    public void test_copy_cached_results_not_from_same_batch_search() {
+        BatchSearch batchSearch = new BatchSearch("uuid", singletonList(project("prj")), "name1", "description1",
+                asSet("q1", "q2"), new Date(), State.RUNNING, User.local());
+        repository.save(batchSearch);
+        jooqRepository().saveResultPages(batchSearch.uuid, asList(
+                new JooqBatchSearchRepository.ResultPage("q1", singletonList(createDoc("doc1").build())),
+                JooqBatchSearchRepository.ResultPage.queryDone("q1", "key1")));
+
+        assertThat(jooqRepository().cachedResultsCount(batchSearch.uuid, "key1")).isEqualTo(-1);
+        assertThat(jooqRepository().copyCachedResults(batchSearch.uuid, "q2", "key1")).isEqualTo(-1);
+        assertThat(repository.get(batchSearch.uuid).nbResults).isEqualTo(1);
+    }
+
+    @Test
+    public void test_reset_batch_search_clears_cache_keys() {
+        BatchSearch cached = new BatchSearch("uuid1", singletonList(project("prj")), "name1", "description1",
+                asSet("q1"), new Date(), State.RUNNING, User.local());
+        repository.save(cached);
+        jooqRepository().saveResultPages(cached.uuid, asList(
+                new JooqBatchSearchRepository.ResultPage("q1", singletonList(createDoc("doc1").build())),
+                JooqBatchSearchRepository.ResultPage.queryDone("q1", "key1")));
+
+        repository.reset(cached.uuid);
+
+        assertThat(jooqRepository().cachedResultsCount("uuid2", "key1")).isEqualTo(-1);
+    }
+
+    @Test
+    public void test_high_water_mark_is_set_once() {
+        BatchSearch batchSearch = new BatchSearch("uuid", singletonList(project("prj")), "name1", "description1",
+                asSet("q1"), new Date(), State.RUNNING, User.local());
+        repository.save(batchSearch);
+
+        assertThat(jooqRepository().getHighWaterMark(batchSearch.uuid)).isNull();
+        assertThat(jooqRepository().setHighWaterMark(batchSearch.uuid, new Date(1000))).isTrue();
+        assertThat(jooqRepository().setHighWaterMark(batchSearch.uuid, new Date(2000))).isFalse();
+        assertThat(jooqRepository().getHighWaterMark(batchSearch.uuid)).isEqualTo(new Date(1000));
+
+        repository.reset(batchSearch.uuid);
+        assertThat(jooqRepository().getHighWaterMark(batchSearch.uuid)).isNull();
+    }
+
+    @Test
+    public void test_merge_previous_results_when_query_is_done() {
+        BatchSearch previous = new BatchSearch("uuid1", singletonList(project("prj")), "name1", "description1",
+                asSet("q1", "q2"), new Date(), State.SUCCESS, User.local());
+        BatchSearch batchSearch = new BatchSearch("uuid2", singletonList(project("prj")), "name1", "description1",
+                asSet("q1", "q2"), new Date(), State.RUNNING, User.local());
+        repository.save(previous);
+        repository.save(batchSearch);
+        jooqRepository().saveResultPages(previous.uuid, asList(
+                new JooqBatchSearchRepository.ResultPage("q1", asList(createDoc("doc1").build(), createDoc("doc2").build())),
+                new JooqBatchSearchRepository.ResultPage("q2", singletonList(createDoc("doc3").build()))));
+        assertThat(jooqRepository().setPreviousBatchSearch(batchSearch.uuid, previous.uuid)).isTrue();
+        assertThat(jooqRepository().getPreviousBatchSearch(batchSearch.uuid)).isEqualTo(previous.uuid);
+
+        jooqRepository().saveResultPages(batchSearch.uuid, asList(
+                new JooqBatchSearchRepository.ResultPage("q1", asList(createDoc("doc2").build(), createDoc("doc4").build())),
+                JooqBatchSearchRepository.ResultPage.queryDone("q1", null, previous.uuid)));
+
+        assertThat(repository.getResults(User.local(), batchSearch.uuid).stream().map(r -> r.documentId).collect(toList())).containsOnly("doc1", "doc2", "doc4");
+        assertThat(repository.get(batchSearch.uuid).nbResults).isEqualTo(3);
+        assertThat(repository.get(batchSearch.uuid).queries).includes(entry("q1", 3), entry("q2", 0));
+    }
+
+    @Test
+    public void test_stream_results() {
+        BatchSearch batchSearch = new BatchSearch("uuid", singletonList(project("prj")), "name1", "description1",
+                asSet("q1", "q2"), new Date(), State.RUNNING, User.local());
+        repository.save(batchSearch);
+        repository.saveResults(batchSearch.uuid, "q2", singletonList(createDoc("doc3").build()));
+        repository.saveResults(batchSearch.uuid, "q1", asList(createDoc("doc1").build(), createDoc("doc2").build()));
+
+        List<SearchResult> results = new ArrayList<>();
+        jooqRepository().streamResults(User.local(), batchSearch.uuid, 2, results::add);
+
+        assertThat(results.stream().map(r -> r.documentId).collect(toList())).containsExactly("doc1", "doc2", "doc3");
+        assertThat(results.stream().map(r -> r.query).collect(toList())).containsExactly("q1", "q1", "q2");
+    }
+
+    @Test(expected = JooqBatchSearchRepository.UnauthorizedUserException.class)
+    public void test_stream_results_with_bad_user() {
+        BatchSearch batchSearch = new BatchSearch("uuid", singletonList(project("prj")), "name1", "description1",
+                asSet("q1"), new Date(), State.RUNNING, User.local());
+        repository.save(batchSearch);
+        repository.saveResults(batchSearch.uuid, "q1", singletonList(createDoc("doc1").build()));
+
+        jooqRepository().streamResults(new User("other"), batchSearch.uuid, 10, result -> {});
+    }
+
+    private JooqBatchSearchRepository jooqRepository() {
+        return (JooqBatchSearchRepository) repository;
+    }
+
     private SearchResult resultFrom(Document doc, int docNb, String queryName) {
         return new SearchResult(queryName, doc.getId(), doc.getRootDocument(), doc.getPath(), doc.getCreationDate(), doc.getContentType(), doc.getContentLength(), docNb);
     }
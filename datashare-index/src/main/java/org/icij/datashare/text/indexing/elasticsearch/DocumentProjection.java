@@ -0,0 +1,89 @@
+package org.icij.datashare.text.indexing.elasticsearch;
+
+import org.elasticsearch.search.SearchHit;
+import org.icij.datashare.text.Document;
+import org.icij.datashare.text.Language;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.time.format.DateTimeParseException;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import static java.util.Optional.ofNullable;
+import static org.icij.datashare.text.Project.project;
+
+/**
+ * Light documents for the scrolls of batch searches and batch downloads.
+ *
+ * Only the fields used to save a batch search result or to extract the document source are read from the index
+ * (source includes), so the hits don't carry the content nor the whole tika metadata. The documents are built
+ * from the source map with the Document constructor, without the JSON mapping of the whole source.
+ * The other fields of the documents are empty.
+ */
+public class DocumentProjection {
+    static final String[] METADATA_FIELDS = {"tika_metadata_creation_date", "tika_metadata_dcterms_created"};
+    static final String[] FIELDS = {"path", "contentType", "contentLength", "contentEncoding", "language", "status",
+            "extractionDate", "extractionLevel", "parentDocument", "rootDocument",
+            "metadata." + METADATA_FIELDS[0], "metadata." + METADATA_FIELDS[1]};
+
+    /** elasticsearch date_time format, with "Z", "+01:00" or "+0100" offsets */
+    private static final DateTimeFormatter DATE_TIME = new DateTimeFormatterBuilder().append(DateTimeFormatter.ISO_LOCAL_DATE_TIME).
+            optionalStart().appendOffset("+HH:MM", "Z").optionalEnd().
+            optionalStart().appendOffset("+HHMM", "Z").optionalEnd().toFormatter();
+
+    private DocumentProjection() {}
+
+    static Document fromHit(SearchHit hit) {
+        Map<String, Object> source = hit.getSourceAsMap();
+        Map<String, Object> metadata = new HashMap<>();
+        Map<String, Object> sourceMetadata = (Map<String, Object>) source.get("metadata");
+        if (sourceMetadata != null) {
+            for (String field : METADATA_FIELDS) {
+                if (sourceMetadata.containsKey(field)) metadata.put(field, sourceMetadata.get(field));
+            }
+        }
+        Object extractionLevel = source.get("extractionLevel");
+        Object contentLength = source.get("contentLength");
+        return new Document(project(hit.getIndex()), hit.getId(), Paths.get((String) source.get("path")), "",
+                language((String) source.get("language")), charset((String) source.get("contentEncoding")),
+                (String) source.get("contentType"), metadata,
+                Document.Status.valueOf((String) ofNullable(source.get("status")).orElse(Document.Status.INDEXED.name())),
+                new HashSet<>(), date(source.get("extractionDate")), (String) source.get("parentDocument"), (String) source.get("rootDocument"),
+                extractionLevel == null ? 0 : ((Number) extractionLevel).shortValue(),
+                contentLength == null ? null : ((Number) contentLength).longValue());
+    }
+
+    private static Language language(String name) {
+        try {
+            return name == null ? Language.UNKNOWN : Language.parse(name);
+        } catch (IllegalArgumentException e) {
+            return Language.UNKNOWN;
+        }
+    }
+
+    private static Charset charset(String name) {
+        try {
+            return name == null ? StandardCharsets.UTF_8 : Charset.forName(name);
+        } catch (IllegalArgumentException e) {
+            return StandardCharsets.UTF_8;
+        }
+    }
+
+    private static Date date(Object value) {
+        if (value instanceof Number) {
+            return new Date(((Number) value).longValue());
+        }
+        try {
+            return value == null ? null : Date.from(OffsetDateTime.parse((String) value, DATE_TIME).toInstant());
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+}
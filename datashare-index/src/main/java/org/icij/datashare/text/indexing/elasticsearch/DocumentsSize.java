@@ -0,0 +1,20 @@
+package org.icij.datashare.text.indexing.elasticsearch;
+
+/**
+ * Number of documents matching a query and sum of their content lengths, read with an aggregation
+ * without the hits of the documents.
+ */
+public class DocumentsSize {
+    public final long count;
+    public final long contentLength;
+
+    public DocumentsSize(long count, long contentLength) {
+        this.count = count;
+        this.contentLength = contentLength;
+    }
+
+    @Override
+    public String toString() {
+        return "DocumentsSize{count=" + count + ", contentLength=" + contentLength + '}';
+    }
+}
@@ -30,8 +30,14 @@ import org.elasticsearch.rest.RestStatus;
 import org.elasticsearch.script.Script;
 import org.elasticsearch.script.ScriptType;
 import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.aggregations.metrics.Max;
+import org.elasticsearch.search.aggregations.metrics.Sum;
 import org.elasticsearch.search.builder.SearchSourceBuilder;
 import org.elasticsearch.search.slice.SliceBuilder;
+import org.elasticsearch.search.sort.SortBuilder;
+import org.elasticsearch.search.sort.SortBuilders;
+import org.elasticsearch.search.sort.SortOrder;
 import org.icij.datashare.Entity;
 import org.icij.datashare.PropertiesProvider;
 import org.icij.datashare.json.JsonObjectMapper;
@@ -82,6 +88,14 @@ public class ElasticsearchIndexer implements Indexer {
 
     @Override
     public boolean bulkAdd(final String indexName, Pipeline.Type nerType, List<NamedEntity> namedEntities, Document parent) throws IOException {
+        return bulkAdd(indexName, Collections.singletonList(nerType), namedEntities, parent);
+    }
+
+    /**
+     * adds the named entities of several pipelines with a single bulk request,
+     * and sets all the pipelines nerTags with one update of the parent document.
+     */
+    public boolean bulkAdd(final String indexName, Collection<Pipeline.Type> nerTypes, List<NamedEntity> namedEntities, Document parent) throws IOException {
         BulkRequest bulkRequest = new BulkRequest();
 
         String routing = ofNullable(parent.getRootDocument()).orElse(parent.getId());
@@ -91,9 +105,9 @@ public class ElasticsearchIndexer implements Indexer {
                         .endObject()).routing(routing));
         bulkRequest.add(new UpdateRequest(indexName, parent.getId())
                 .script(new Script(ScriptType.INLINE, "painless",
-                        "if (!ctx._source.nerTags.contains(params.nerTag)) ctx._source.nerTags.add(params.nerTag);",
+                        "for (nerTag in params.nerTags) { if (!ctx._source.nerTags.contains(nerTag)) ctx._source.nerTags.add(nerTag); }",
                         new HashMap<String, Object>() {{
-                            put("nerTag", nerType.toString());
+                            put("nerTags", nerTypes.stream().map(Pipeline.Type::toString).collect(toList()));
                         }})).routing(routing));
 
         for (Entity child : namedEntities) {
@@ -330,6 +344,103 @@ public class ElasticsearchIndexer implements Indexer {
         return new ElasticsearchSearcher(client, esCfg, indexesNames, entityClass);
     }
 
+    /**
+     * searcher of light documents : only the {@link DocumentProjection} fields are read from the index.
+     * For scrolls that only need the document location and the batch search result fields.
+     */
+    public Searcher searchDocumentProjection(final List<String> indexesNames) {
+        return new ElasticsearchSearcher(client, esCfg, indexesNames, Document.class).withDocumentProjection();
+    }
+
+    /**
+     * same as searchDocumentProjection, only for the documents extracted after the given date (all documents if it is null)
+     */
+    public Searcher searchDocumentProjection(final List<String> indexesNames, Date extractedAfter) {
+        ElasticsearchSearcher searcher = new ElasticsearchSearcher(client, esCfg, indexesNames, Document.class).withDocumentProjection();
+        return extractedAfter == null ? searcher : searcher.extractedAfter(extractedAfter);
+    }
+
+    /**
+     * @return the last extraction date of the documents of the indexes, or null if there are no documents
+     */
+    public Date lastExtractionDate(List<String> indexesNames) throws IOException {
+        SearchRequest searchRequest = new SearchRequest(indexesNames.toArray(new String[0])).source(new SearchSourceBuilder().size(0).
+                query(matchQuery("type", JsonObjectMapper.getType(Document.class))).
+                aggregation(AggregationBuilders.max("lastExtraction").field("extractionDate")));
+        Max lastExtraction = client.search(searchRequest, RequestOptions.DEFAULT).getAggregations().get("lastExtraction");
+        return Double.isInfinite(lastExtraction.getValue()) ? null : new Date((long) lastExtraction.getValue());
+    }
+
+    /**
+     * @return the number of documents matching the query of the searcher and the sum of their content lengths
+     */
+    public DocumentsSize documentsSize(Searcher searcher) throws IOException {
+        ElasticsearchSearcher esSearcher = (ElasticsearchSearcher) searcher;
+        SearchRequest searchRequest = new SearchRequest(esSearcher.indexesNames.toArray(new String[0])).source(new SearchSourceBuilder().
+                size(0).trackTotalHits(true).query(esSearcher.boolQuery).
+                aggregation(AggregationBuilders.sum("contentLength").field("contentLength")));
+        SearchResponse response = client.search(searchRequest, RequestOptions.DEFAULT);
+        Sum contentLength = response.getAggregations().get("contentLength");
+        return new DocumentsSize(response.getHits().getTotalHits().value, (long) contentLength.getValue());
+    }
+
+    /**
+     * sorts the documents of the searcher by content length, the smallest first.
+     * The documents without content length are the last ones.
+     */
+    public Searcher smallestFirst(Searcher searcher) {
+        return ((ElasticsearchSearcher) searcher).sortedBy(SortBuilders.fieldSort("contentLength").order(SortOrder.ASC).missing("_last"));
+    }
+
+    /**
+     * marker of the state of the indexes : it changes when documents are added, removed or indexed again
+     * (number of documents and last extraction date of each index).
+     */
+    public String indexGeneration(List<String> indexesNames) throws IOException {
+        List<String> indexes = indexesNames.stream().sorted().distinct().collect(toList());
+        MultiSearchRequest multiSearchRequest = new MultiSearchRequest();
+        indexes.forEach(index -> multiSearchRequest.add(new SearchRequest(index).source(new SearchSourceBuilder().size(0).trackTotalHits(true).
+                query(matchQuery("type", JsonObjectMapper.getType(Document.class))).
+                aggregation(AggregationBuilders.max("lastExtraction").field("extractionDate")))));
+        MultiSearchResponse.Item[] responses = client.msearch(multiSearchRequest, RequestOptions.DEFAULT).getResponses();
+        StringBuilder generation = new StringBuilder();
+        for (int i = 0; i < responses.length; i++) {
+            if (responses[i].isFailure()) {
+                throw new IOException("cannot get generation of index " + indexes.get(i), responses[i].getFailure());
+            }
+            SearchResponse response = responses[i].getResponse();
+            Max lastExtraction = response.getAggregations().get("lastExtraction");
+            generation.append(indexes.get(i)).append(':').append(response.getHits().getTotalHits().value).
+                    append(':').append((long) lastExtraction.getValue()).append(';');
+        }
+        return generation.toString();
+    }
+
+    /**
+     * runs the first page of each searcher in a single _msearch request.
+     * The pages are returned in the searchers order. A searcher that failed in the multi search
+     * has a null page : it should be run again on its own to get the error.
+     */
+    public List<List<? extends Entity>> multiSearch(List<Searcher> searchers) throws IOException {
+        if (searchers.isEmpty()) {
+            return new ArrayList<>();
+        }
+        MultiSearchRequest multiSearchRequest = new MultiSearchRequest();
+        searchers.forEach(s -> multiSearchRequest.add(((ElasticsearchSearcher) s).searchRequest()));
+        MultiSearchResponse.Item[] responses = client.msearch(multiSearchRequest, RequestOptions.DEFAULT).getResponses();
+        List<List<? extends Entity>> pages = new ArrayList<>(responses.length);
+        for (int i = 0; i < responses.length; i++) {
+            if (responses[i].isFailure()) {
+                LOGGER.warn("multi search failed for {}: {}", searchers.get(i), responses[i].getFailureMessage());
+                pages.add(null);
+            } else {
+                SearchResponse response = responses[i].getResponse();
+                pages.add(((ElasticsearchSearcher) searchers.get(i)).resultStream(() -> response.getHits().iterator()).collect(toList()));
+            }
+        }
+        return pages;
+    }
+
     @Override
     public boolean createIndex(final String indexName) {
         return ElasticsearchConfiguration.createIndex(client, indexName);
@@ -386,14 +497,15 @@ public class ElasticsearchIndexer implements Indexer {
 
     static class ElasticsearchSearcher implements Searcher {
         static final TimeValue KEEP_ALIVE = new TimeValue(60000);
-        private BoolQueryBuilder boolQuery;
+        BoolQueryBuilder boolQuery;
         private final RestHighLevelClient client;
         private final ElasticsearchConfiguration config;
-        private final List<String> indexesNames;
+        final List<String> indexesNames;
         private final Class<? extends Entity> cls;
         private final SearchSourceBuilder sourceBuilder;
         private String scrollId;
         private long totalHits;
+        private boolean documentProjection = false;
 
         ElasticsearchSearcher(RestHighLevelClient client, ElasticsearchConfiguration config, final List<String> indexesNames, final Class<? extends Entity> cls) {
             this.client = client;
@@ -412,11 +524,14 @@ public class ElasticsearchIndexer implements Indexer {
 
         @Override
         public Stream<? extends Entity> execute() throws IOException {
+            SearchResponse search = client.search(searchRequest(), RequestOptions.DEFAULT);
+            return resultStream(() -> search.getHits().iterator());
+        }
+
+        SearchRequest searchRequest() {
             sourceBuilder.query(boolQuery);
             Object[] indexesArray = indexesNames.toArray();
-            SearchRequest searchRequest = new SearchRequest(Arrays.copyOf(indexesArray, indexesArray.length, String[].class), sourceBuilder);
-            SearchResponse search = client.search(searchRequest, RequestOptions.DEFAULT);
-            return resultStream(this.cls, () -> search.getHits().iterator());
+            return new SearchRequest(Arrays.copyOf(indexesArray, indexesArray.length, String[].class), sourceBuilder);
         }
 
         @Override
@@ -441,7 +556,30 @@ public class ElasticsearchIndexer implements Indexer {
                 search = client.scroll(new SearchScrollRequest(scrollId).scroll(KEEP_ALIVE), RequestOptions.DEFAULT);
                 scrollId = search.getScrollId();
             }
-            return resultStream(this.cls, () -> search.getHits().iterator());
+            return resultStream(() -> search.getHits().iterator());
+        }
+
+        Stream<? extends Entity> resultStream(Iterable<SearchHit> hits) {
+            if (documentProjection) {
+                return searchHitStream(hits).map(DocumentProjection::fromHit);
+            }
+            return ElasticsearchIndexer.resultStream(cls, hits);
+        }
+
+        ElasticsearchSearcher withDocumentProjection() {
+            sourceBuilder.fetchSource(DocumentProjection.FIELDS, new String[]{});
+            documentProjection = true;
+            return this;
+        }
+
+        ElasticsearchSearcher sortedBy(SortBuilder<?> sort) {
+            sourceBuilder.sort(sort);
+            return this;
+        }
+
+        ElasticsearchSearcher extractedAfter(Date date) {
+            this.boolQuery.filter(rangeQuery("extractionDate").gt(date.getTime()));
+            return this;
         }
 
         @Override
@@ -0,0 +1,255 @@
+package org.icij.datashare.text.indexing.elasticsearch;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import org.icij.datashare.HumanReadableSize;
+import org.icij.datashare.PropertiesProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.regex.Pattern;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.util.Optional.ofNullable;
+
+/**
+ * Disk cache of the extracted sources of embedded documents, so a root document is not parsed again
+ * each time one of its embedded documents is previewed or downloaded.
+ *
+ * The sources are files named with the document id (that is a hash of the source), with a suffix for the
+ * variants (sources without metadata). The cache size is limited to embeddedSourceCacheSize bytes:
+ * the least recently used sources are deleted first. When several threads ask for the same source,
+ * it is extracted only once and the other threads wait for it.
+ *
+ * The sources are streamed to a temporary file then moved, so a cached file is always complete.
+ * A source is given with a {@link Lease}: it is not evicted until the lease is closed, so it can be
+ * read after {@link #get(String, SourceLoader)} returns (for example while a response is streamed).
+ * The cache content is read again at startup (ordered by last access).
+ */
+@Singleton
+public class EmbeddedSourceCache {
+    public static final String CACHE_DIR_PROP = "embeddedSourceCacheDir";
+    public static final String CACHE_SIZE_PROP = "embeddedSourceCacheSize";
+    static final String DEFAULT_CACHE_SIZE = "1G";
+    private static final Pattern KEY = Pattern.compile("[A-Za-z0-9_-]{1,200}");
+    private static final String TMP_SUFFIX = ".tmp";
+    private final Logger logger = LoggerFactory.getLogger(getClass());
+
+    private final Path cacheDir;
+    private final long maxSize;
+    private final Map<String, Long> sizes = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, Integer> leases = new HashMap<>();
+    private final ConcurrentHashMap<String, CompletableFuture<Void>> loading = new ConcurrentHashMap<>();
+    private long totalSize = 0;
+
+    @Inject
+    public EmbeddedSourceCache(PropertiesProvider propertiesProvider) throws IOException {
+        this(Paths.get(propertiesProvider.get(CACHE_DIR_PROP).orElse(
+                Paths.get(System.getProperty("java.io.tmpdir"), "datashare-embedded-sources").toString())),
+                HumanReadableSize.parse(propertiesProvider.get(CACHE_SIZE_PROP).orElse(DEFAULT_CACHE_SIZE)));
+    }
+
+    public EmbeddedSourceCache(Path cacheDir, long maxSize) throws IOException {
+        this.cacheDir = cacheDir;
+        this.maxSize = maxSize;
+        if (isEnabled()) {
+            Files.createDirectories(cacheDir);
+            load();
+        }
+    }
+
+    public boolean isEnabled() {
+        return maxSize > 0;
+    }
+
+    public static boolean isValidKey(String key) {
+        return key != null && KEY.matcher(key).matches();
+    }
+
+    /**
+     * @param key document id, with a suffix for the variants
+     * @param loader writes the source if it is not in the cache
+     * @return a lease on the cached source file, that must be closed when the file has been read
+     */
+    public Lease get(String key, SourceLoader loader) throws IOException {
+        if (!isValidKey(key)) {
+            throw new IllegalArgumentException("invalid cache key " + key);
+        }
+        Path cached = cacheDir.resolve(key);
+        while (true) {
+            Lease lease = leaseIfCached(key, cached);
+            if (lease != null) {
+                return lease;
+            }
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            CompletableFuture<Void> current = loading.putIfAbsent(key, future);
+            if (current != null) {
+                waitFor(current);
+                continue;
+            }
+            try {
+                // another thread may have loaded the source between the cache lookup and putIfAbsent
+                lease = leaseIfCached(key, cached);
+                lease = lease == null ? load(key, cached, loader) : lease;
+                future.complete(null);
+                return lease;
+            } catch (IOException | RuntimeException e) {
+                future.completeExceptionally(e);
+                throw e;
+            } finally {
+                loading.remove(key);
+            }
+        }
+    }
+
+    private synchronized Lease leaseIfCached(String key, Path cached) {
+        if (sizes.get(key) != null && Files.exists(cached)) {
+            touch(cached);
+            return new Lease(key, cached);
+        }
+        return null;
+    }
+
+    private Lease load(String key, Path cached, SourceLoader loader) throws IOException {
+        Path tmp = Files.createTempFile(cacheDir, key, TMP_SUFFIX);
+        try {
+            try (OutputStream output = Files.newOutputStream(tmp)) {
+                loader.load(output);
+            }
+            Files.move(tmp, cached, ATOMIC_MOVE, REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        return add(key, cached, Files.size(cached));
+    }
+
+    private static void waitFor(CompletableFuture<Void> future) throws IOException {
+        try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while waiting for cached source", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private synchronized Lease add(String key, Path cached, long size) {
+        Long previous = sizes.put(key, size);
+        totalSize += size - ofNullable(previous).orElse(0L);
+        Lease lease = new Lease(key, cached);
+        evict();
+        return lease;
+    }
+
+    /**
+     * deletes the least recently used sources that are not leased until the cache fits in its size.
+     * The leased sources are evicted later, when their lease is closed.
+     */
+    private void evict() {
+        Iterator<Map.Entry<String, Long>> lru = sizes.entrySet().iterator();
+        while (totalSize > maxSize && lru.hasNext()) {
+            Map.Entry<String, Long> eldest = lru.next();
+            if (leases.containsKey(eldest.getKey())) {
+                continue;
+            }
+            try {
+                Files.deleteIfExists(cacheDir.resolve(eldest.getKey()));
+                totalSize -= eldest.getValue();
+                lru.remove();
+            } catch (IOException e) {
+                logger.warn("cannot evict cached source {}", eldest.getKey(), e);
+            }
+        }
+    }
+
+    private synchronized void release(String key) {
+        Integer nbLeases = leases.get(key);
+        if (nbLeases == null || nbLeases <= 1) {
+            leases.remove(key);
+        } else {
+            leases.put(key, nbLeases - 1);
+        }
+        evict();
+    }
+
+    private void touch(Path cached) {
+        try {
+            Files.setLastModifiedTime(cached, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            logger.debug("cannot update access time of {}", cached, e);
+        }
+    }
+
+    private void load() throws IOException {
+        File[] files = ofNullable(cacheDir.toFile().listFiles()).orElse(new File[0]);
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        for (File file : files) {
+            if (file.getName().endsWith(TMP_SUFFIX)) {
+                Files.deleteIfExists(file.toPath());
+            } else if (file.isFile() && isValidKey(file.getName())) {
+                sizes.put(file.getName(), file.length());
+                totalSize += file.length();
+            }
+        }
+        evict();
+        logger.info("embedded sources cache {} loaded with {} sources ({} bytes)", cacheDir, sizes.size(), totalSize);
+    }
+
+    synchronized long size() {
+        return totalSize;
+    }
+
+    synchronized boolean isLeased(String key) {
+        return leases.containsKey(key);
+    }
+
+    public interface SourceLoader {
+        void load(OutputStream output) throws IOException;
+    }
+
+    /**
+     * keeps a cached source from being evicted until it is closed. Closing it several times releases it once.
+     */
+    public class Lease implements Closeable {
+        private final String key;
+        private final Path path;
+        private boolean closed = false;
+
+        private Lease(String key, Path path) {
+            this.key = key;
+            this.path = path;
+            leases.merge(key, 1, Integer::sum);
+        }
+
+        public Path getPath() {
+            return path;
+        }
+
+        @Override
+        public synchronized void close() {
+            if (!closed) {
+                closed = true;
+                release(key);
+            }
+        }
+    }
+}
@@ -1,6 +1,16 @@
 package org.icij.datashare.text.indexing.elasticsearch;
 
 import org.apache.tika.exception.TikaException;
+import org.apache.tika.extractor.EmbeddedDocumentExtractor;
+import org.apache.tika.io.IOUtils;
+import org.apache.tika.io.TemporaryResources;
+import org.apache.tika.io.TikaInputStream;
+import org.apache.tika.metadata.Metadata;
+import org.apache.tika.metadata.TikaCoreProperties;
+import org.apache.tika.parser.AutoDetectParser;
+import org.apache.tika.parser.DigestingParser;
+import org.apache.tika.parser.ParseContext;
+import org.apache.tika.parser.Parser;
 import org.apache.tika.parser.utils.CommonsDigester;
 import org.icij.datashare.text.Document;
 import org.icij.datashare.text.Hasher;
@@ -8,27 +18,44 @@ import org.icij.datashare.text.Project;
 import org.icij.extract.cleaner.MetadataCleaner;
 import org.icij.extract.document.*;
 import org.icij.extract.extractor.EmbeddedDocumentMemoryExtractor;
+import org.icij.extract.extractor.EmbeddedDocumentMemoryExtractor.ContentNotFoundException;
 import org.icij.extract.extractor.UpdatableDigester;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.xml.sax.ContentHandler;
 import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
 
 import java.io.*;
 import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.util.List;
+import java.util.Set;
+
+import static java.util.Collections.singletonList;
+import static java.util.stream.Collectors.toSet;
 
 import static org.icij.datashare.text.Hasher.SHA_384;
 
 public class SourceExtractor {
+    private static final String DIGEST_PREFIX = TikaCoreProperties.TIKA_META_PREFIX + "digest";
     Logger LOGGER = LoggerFactory.getLogger(SourceExtractor.class);
     private final boolean filterMetadata;
     private final MetadataCleaner metadataCleaner = new MetadataCleaner();
+    private final EmbeddedSourceCache cache;
 
     public SourceExtractor() {
         this(false);
     }
 
     public SourceExtractor(boolean filterMetadata) {
+        this(filterMetadata, null);
+    }
+
+    public SourceExtractor(boolean filterMetadata, EmbeddedSourceCache cache) {
         this.filterMetadata = filterMetadata;
+        this.cache = cache;
     }
 
     public InputStream getSource(final Document document) throws FileNotFoundException {
@@ -36,39 +63,196 @@ public class SourceExtractor {
     }
 
     public InputStream getSource(final Project project, final Document document) throws FileNotFoundException {
+        if (document.isRootDocument() && !filterMetadata) {
+            return new FileInputStream(document.getPath().toFile());
+        }
+        return new ByteArrayInputStream(getSourceContent(project, document));
+    }
+
+    /**
+     * gets the source in memory, without copy of the extraction buffer for the embedded documents.
+     * The root documents are read from disk, as the embedded documents when there is a cache.
+     */
+    public byte[] getSourceContent(final Project project, final Document document) throws FileNotFoundException {
         if (document.isRootDocument()) {
-            if (filterMetadata) {
-                try {
-                    return new ByteArrayInputStream(metadataCleaner.clean(new FileInputStream(document.getPath().toFile())).getContent());
-                } catch (IOException e) {
-                    throw new ExtractException("content cleaner error ", e);
-                }
-            } else {
-                return new FileInputStream(document.getPath().toFile());
+            try {
+                return filterMetadata ?
+                        metadataCleaner.clean(new FileInputStream(document.getPath().toFile())).getContent() :
+                        Files.readAllBytes(document.getPath());
+            } catch (NoSuchFileException e) {
+                throw new FileNotFoundException(e.getMessage());
+            } catch (IOException e) {
+                throw new ExtractException("content cleaner error ", e);
+            }
+        }
+        if (isCached()) {
+            try (EmbeddedSourceCache.Lease source = getCachedSource(project, document)) {
+                return Files.readAllBytes(source.getPath());
+            } catch (NoSuchFileException e) {
+                throw new FileNotFoundException(e.getMessage());
+            } catch (FileNotFoundException e) {
+                throw e;
+            } catch (IOException e) {
+                throw new ExtractException("cache error for embedded document " + document.getId(), e);
+            }
+        }
+        return extractEmbedded(project, document);
+    }
+
+    /**
+     * gets the source file of an embedded document from the cache. It is extracted if it is not in the cache yet,
+     * streaming it from the root document parse to the cache file.
+     *
+     * @return a lease on the cached source that must be closed once the file has been read, or null for the
+     * root documents or when there is no cache
+     */
+    public EmbeddedSourceCache.Lease getCachedSource(final Project project, final Document document) throws IOException {
+        if (document.isRootDocument() || !isCached()) {
+            return null;
+        }
+        return cache.get(document.getId() + (filterMetadata ? "-filtered" : ""), output -> {
+            Set<String> remaining = parseEmbedded(project, singletonList(document), (id, source) -> IOUtils.copy(source, output));
+            if (!remaining.isEmpty()) {
+                output.write(extractEmbedded(project, document));
             }
+        });
+    }
+
+    private boolean isCached() {
+        return cache != null && cache.isEnabled();
+    }
+
+    private byte[] extractEmbedded(final Project project, final Document document) {
+        LOGGER.info("extracting embedded document " + Identifier.shorten(document.getId(), 4) + " from root document " + document.getPath());
+        TikaDocumentSource source;
+        EmbeddedDocumentMemoryExtractor embeddedExtractor;
+        DigestIdentifier identifier;
+        if (document.getId().length() == SHA_384.digestLength) {
+            embeddedExtractor = new EmbeddedDocumentMemoryExtractor(new UpdatableDigester(project.getId(), SHA_384.toString()));
+            identifier = new DigestIdentifier(SHA_384.toString(), Charset.defaultCharset());
         } else {
-            LOGGER.info("extracting embedded document " + Identifier.shorten(document.getId(), 4) + " from root document " + document.getPath());
-            TikaDocumentSource source;
-            EmbeddedDocumentMemoryExtractor embeddedExtractor;
-            DigestIdentifier identifier;
-            if (document.getId().length() == SHA_384.digestLength) {
-                embeddedExtractor = new EmbeddedDocumentMemoryExtractor(new UpdatableDigester(project.getId(), SHA_384.toString()));
-                identifier = new DigestIdentifier(SHA_384.toString(), Charset.defaultCharset());
-            } else {
-                // backward compatibility
-                Hasher hasher = Hasher.valueOf(document.getId().length());
-                embeddedExtractor = new EmbeddedDocumentMemoryExtractor(
-                        new CommonsDigester(20 * 1024 * 1024, hasher.toString().replace("-", "")), hasher.toString(), false);
-                identifier = new DigestIdentifier(hasher.toString(), Charset.defaultCharset());
+            // backward compatibility
+            Hasher hasher = Hasher.valueOf(document.getId().length());
+            embeddedExtractor = new EmbeddedDocumentMemoryExtractor(
+                    new CommonsDigester(20 * 1024 * 1024, hasher.toString().replace("-", "")), hasher.toString(), false);
+            identifier = new DigestIdentifier(hasher.toString(), Charset.defaultCharset());
+        }
+        TikaDocument rootDocument = new DocumentFactory().withIdentifier(identifier).create(document.getPath());
+        try {
+            source = embeddedExtractor.extract(rootDocument, document.getId());
+            return filterMetadata ? metadataCleaner.clean(new ByteArrayInputStream(source.content)).getContent() : source.content;
+        } catch (SAXException | TikaException | IOException e) {
+            throw new ExtractException("extract error for embedded document " + document.getId(), e);
+        }
+    }
+
+    /**
+     * extracts several embedded documents of the same root document, parsing the root document only once.
+     * The documents that are not found in this parse (for example documents indexed with another digester)
+     * are extracted one by one with getSource. The documents that cannot be extracted are skipped.
+     *
+     * @param documents embedded documents with the same root document (same path)
+     * @param consumer called with each extracted document source, that is only readable during the call
+     */
+    public void getEmbeddedSources(final Project project, final List<Document> documents, final EmbeddedSourceConsumer consumer) throws IOException {
+        if (documents.isEmpty()) {
+            return;
+        }
+        Set<String> remaining = parseEmbedded(project, documents, consumer);
+        for (Document document : documents) {
+            if (remaining.contains(document.getId())) {
+                try (InputStream source = getSource(project, document)) {
+                    consumer.accept(document.getId(), source);
+                } catch (ExtractException | ContentNotFoundException e) {
+                    LOGGER.warn("cannot extract embedded document " + document.getId(), e);
+                }
             }
-            TikaDocument rootDocument = new DocumentFactory().withIdentifier(identifier).create(document.getPath());
-            try {
-                source = embeddedExtractor.extract(rootDocument, document.getId());
-                return filterMetadata ? new ByteArrayInputStream(metadataCleaner.clean(new ByteArrayInputStream(source.content)).getContent())
-                        : new ByteArrayInputStream(source.content);
-            } catch (SAXException | TikaException | IOException e) {
-                throw new ExtractException("extract error for embedded document " + document.getId(), e);
+        }
+    }
+
+    /**
+     * @return the ids of the documents that have not been found in the root document parse
+     */
+    private Set<String> parseEmbedded(final Project project, final List<Document> documents, final EmbeddedSourceConsumer consumer) throws IOException {
+        Set<String> remaining = documents.stream().map(Document::getId).collect(toSet());
+        LOGGER.info("extracting " + remaining.size() + " embedded documents from root document " + documents.get(0).getPath());
+        AutoDetectParser parser = new AutoDetectParser();
+        ParseContext context = new ParseContext();
+        context.set(Parser.class, parser);
+        context.set(EmbeddedDocumentExtractor.class, new MultiTargetEmbeddedExtractor(
+                remaining, digester(project, documents.get(0).getId()), parser, context, consumer));
+        try (TikaInputStream rootStream = TikaInputStream.get(documents.get(0).getPath())) {
+            parser.parse(rootStream, new DefaultHandler(), new Metadata(), context);
+        } catch (SAXException | TikaException e) {
+            LOGGER.warn("parse error of root document " + documents.get(0).getPath() + ", extracting remaining documents one by one", e);
+        }
+        return remaining;
+    }
+
+    private DigestingParser.Digester digester(Project project, String documentId) {
+        if (documentId.length() == SHA_384.digestLength) {
+            return new UpdatableDigester(project.getId(), SHA_384.toString());
+        }
+        Hasher hasher = Hasher.valueOf(documentId.length());
+        return new CommonsDigester(20 * 1024 * 1024, hasher.toString().replace("-", ""));
+    }
+
+    public interface EmbeddedSourceConsumer {
+        void accept(String documentId, InputStream source) throws IOException;
+    }
+
+    /**
+     * digests every embedded document like the extraction does, gives the requested ones to the consumer
+     * and parses them to find their own embedded documents. The parse stops when all the documents are found.
+     */
+    private class MultiTargetEmbeddedExtractor implements EmbeddedDocumentExtractor {
+        private final Set<String> remaining;
+        private final DigestingParser.Digester digester;
+        private final Parser parser;
+        private final ParseContext context;
+        private final EmbeddedSourceConsumer consumer;
+
+        MultiTargetEmbeddedExtractor(Set<String> remaining, DigestingParser.Digester digester, Parser parser, ParseContext context, EmbeddedSourceConsumer consumer) {
+            this.remaining = remaining;
+            this.digester = digester;
+            this.parser = parser;
+            this.context = context;
+            this.consumer = consumer;
+        }
+
+        @Override
+        public boolean shouldParseEmbedded(Metadata metadata) {
+            return !remaining.isEmpty();
+        }
+
+        @Override
+        public void parseEmbedded(InputStream stream, ContentHandler handler, Metadata metadata, boolean outputHtml) throws SAXException, IOException {
+            try (TemporaryResources tmp = new TemporaryResources()) {
+                TikaInputStream embeddedStream = TikaInputStream.get(stream, tmp);
+                digester.digest(embeddedStream, metadata, context);
+                String id = digest(metadata);
+                if (id != null && remaining.remove(id)) {
+                    try (InputStream source = filterMetadata ?
+                            new ByteArrayInputStream(metadataCleaner.clean(Files.newInputStream(embeddedStream.getPath())).getContent()) :
+                            Files.newInputStream(embeddedStream.getPath())) {
+                        consumer.accept(id, source);
+                    }
+                }
+                if (!remaining.isEmpty()) {
+                    parser.parse(embeddedStream, new DefaultHandler(), metadata, context);
+                }
+            } catch (TikaException e) {
+                LOGGER.debug("cannot parse embedded document " + metadata.get(Metadata.RESOURCE_NAME_KEY), e);
+            }
+        }
+
+        private String digest(Metadata metadata) {
+            for (String name : metadata.names()) {
+                if (name.startsWith(DIGEST_PREFIX)) {
+                    return metadata.get(name);
+                }
             }
+            return null;
         }
     }
 }
@@ -111,6 +111,22 @@ public class ElasticsearchIndexerTest {
         assertThat((ArrayList<String>) resp.getSourceAsMap().get("nerTags")).containsExactly("OPENNLP");
     }
 
+    @Test
+    public void test_bulk_add_named_entities_for_several_pipelines() throws IOException {
+        Document doc = new org.icij.datashare.text.Document("id", project("prj"), Paths.get("doc.txt"), "content",
+                Language.FRENCH, Charset.defaultCharset(), "application/pdf", new HashMap<>(),
+                INDEXED, new HashSet<Pipeline.Type>() {{ add(OPENNLP);}}, 4324L);
+        indexer.add(TEST_INDEX, doc);
+        NamedEntity ne1 = create(PERSON, "John Doe", asList(12L), "doc.txt", "root", CORENLP, Language.FRENCH);
+        NamedEntity ne2 = create(ORGANIZATION, "AAA", asList(123L), "doc.txt", "root", OPENNLP, Language.FRENCH);
+
+        assertThat(indexer.bulkAdd(TEST_INDEX, asList(CORENLP, OPENNLP), asList(ne1, ne2), doc)).isTrue();
+
+        assertThat(((Document) indexer.get(TEST_INDEX, doc.getId())).getNerTags()).containsOnly(CORENLP, OPENNLP);
+        assertThat((NamedEntity) indexer.get(TEST_INDEX, ne1.getId(), doc.getId())).isNotNull();
+        assertThat((NamedEntity) indexer.get(TEST_INDEX, ne2.getId(), doc.getId())).isNotNull();
+    }
+
     @Test
     public void test_bulk_add_for_embedded_doc() throws IOException {
         Document parent = new org.icij.datashare.text.Document("id", project("prj"), Paths.get("mail.eml"), "content",
@@ -320,6 +336,88 @@ public class ElasticsearchIndexerTest {
         assertThat(indexer.search(singletonList(TEST_INDEX),Document.class).execute().count()).isEqualTo(20);
     }
 
+    @Test
+    public void test_multi_search_returns_first_page_of_each_searcher() throws IOException {
+        for (int i = 0 ; i < 3; i++) {
+            Document doc = new org.icij.datashare.text.Document("id" + i, project("prj"), Paths.get(format("doc%d.txt", i)), format("content %d", i), Language.ENGLISH,
+                Charset.defaultCharset(), "text/plain", new HashMap<>(), DONE, new HashSet<>(), 345L);
+            indexer.add(TEST_INDEX,doc);
+        }
+
+        List<List<? extends Entity>> pages = indexer.multiSearch(asList(
+                indexer.search(singletonList(TEST_INDEX), Document.class).with("content").limit(2),
+                indexer.search(singletonList(TEST_INDEX), Document.class).with("1"),
+                indexer.search(singletonList(TEST_INDEX), Document.class).with("unknown")));
+
+        assertThat(pages).hasSize(3);
+        assertThat(pages.get(0)).hasSize(2);
+        assertThat(pages.get(1).stream().map(Entity::getId).collect(toList())).containsExactly("id1");
+        assertThat(pages.get(2)).isEmpty();
+    }
+
+    @Test
+    public void test_index_generation_changes_when_documents_are_added() throws IOException {
+        indexer.add(TEST_INDEX, createDoc("doc1").build());
+        String generation = indexer.indexGeneration(singletonList(TEST_INDEX));
+
+        assertThat(indexer.indexGeneration(singletonList(TEST_INDEX))).isEqualTo(generation);
+        indexer.add(TEST_INDEX, createDoc("doc2").build());
+
+        assertThat(indexer.indexGeneration(singletonList(TEST_INDEX))).isNotEqualTo(generation);
+    }
+
+    @Test
+    public void test_documents_size() throws IOException {
+        indexer.add(TEST_INDEX, documentOfLength("doc1", 12L));
+        indexer.add(TEST_INDEX, documentOfLength("doc2", 30L));
+        indexer.add(TEST_INDEX, documentOfLength("doc3", 100L));
+
+        DocumentsSize size = indexer.documentsSize(indexer.search(singletonList(TEST_INDEX), Document.class).with("doc1 OR doc2"));
+
+        assertThat(size.count).isEqualTo(2);
+        assertThat(size.contentLength).isEqualTo(42);
+    }
+
+    @Test
+    public void test_smallest_first() throws IOException {
+        indexer.add(TEST_INDEX, documentOfLength("doc1", 100L));
+        indexer.add(TEST_INDEX, documentOfLength("doc2", 12L));
+        indexer.add(TEST_INDEX, documentOfLength("doc3", 30L));
+
+        List<? extends Entity> documents = indexer.smallestFirst(indexer.searchDocumentProjection(singletonList(TEST_INDEX)).with("*")).scroll().collect(toList());
+
+        assertThat(documents.stream().map(Entity::getId).collect(toList())).containsExactly("doc2", "doc3", "doc1");
+    }
+
+    @Test
+    public void test_search_document_projection() throws IOException {
+        Document parent = new Document("id", project("prj"), Paths.get("mail.eml"), "content",
+                FRENCH, Charset.defaultCharset(), "message/rfc822", new HashMap<String, Object>() {{
+                    put("tika_metadata_author", "author");
+                }}, INDEXED, new HashSet<>(), 321L);
+        Document child = new Document(project("prj"), "childId", Paths.get("mail.eml"), "mail body",
+                FRENCH, Charset.defaultCharset(), "text/plain", new HashMap<>(), INDEXED,
+                new HashSet<>(), new Date(), "id", "id", (short) 1, 123L);
+        indexer.add(TEST_INDEX, parent);
+        indexer.add(TEST_INDEX, child);
+
+        List<Document> documents = indexer.searchDocumentProjection(singletonList(TEST_INDEX)).with("mail").scroll().
+                map(e -> (Document) e).collect(toList());
+
+        assertThat(documents).hasSize(1);
+        Document projected = documents.get(0);
+        assertThat(projected.getId()).isEqualTo("childId");
+        assertThat(projected.getPath().toString()).isEqualTo(Paths.get("mail.eml").toString());
+        assertThat(projected.getContentType()).isEqualTo("text/plain");
+        assertThat(projected.getContentLength()).isEqualTo(123L);
+        assertThat(projected.getRootDocument()).isEqualTo("id");
+        assertThat(projected.getParentDocument()).isEqualTo("id");
+        assertThat(projected.getProject().getId()).isEqualTo(TEST_INDEX);
+        assertThat(projected.getContent()).isEmpty();
+        assertThat(indexer.searchDocumentProjection(singletonList(TEST_INDEX)).with("content").execute().
+                map(e -> ((Document) e).getMetadata()).findFirst().get()).isEmpty();
+    }
+
     @Test
     public void test_search_with_scroll() throws IOException {
         for (int i = 0 ; i < 12; i++) {
@@ -501,4 +599,9 @@ public class ElasticsearchIndexerTest {
     public void test_get_slice_of_document_not_found() throws Exception {
         ExtractedText actual = indexer.getExtractedText(TEST_INDEX, "id", 10, 18);
     }
+
+    private static Document documentOfLength(String id, long contentLength) {
+        return new Document(id, project("prj"), Paths.get(id + ".txt"), id, FRENCH, Charset.defaultCharset(), "text/plain",
+                new HashMap<>(), INDEXED, new HashSet<>(), contentLength);
+    }
 }
@@ -0,0 +1,164 @@
+package org.icij.datashare.text.indexing.elasticsearch;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.stream.Collectors.toList;
+import static java.util.stream.IntStream.range;
+import static org.fest.assertions.Assertions.assertThat;
+
+public class EmbeddedSourceCacheTest {
+    @Rule public TemporaryFolder cacheDir = new TemporaryFolder();
+
+    @Test
+    public void test_get_extracts_source_once() throws Exception {
+        EmbeddedSourceCache cache = new EmbeddedSourceCache(cacheDir.getRoot().toPath(), 1024);
+        AtomicInteger nbExtractions = new AtomicInteger(0);
+
+        Path first = get(cache, "docId", () -> {nbExtractions.incrementAndGet(); return "content".getBytes(UTF_8);});
+        Path second = get(cache, "docId", () -> {nbExtractions.incrementAndGet(); return "content".getBytes(UTF_8);});
+
+        assertThat(first.toString()).isEqualTo(second.toString());
+        assertThat(new String(Files.readAllBytes(first), UTF_8)).isEqualTo("content");
+        assertThat(nbExtractions.get()).isEqualTo(1);
+        assertThat(cache.size()).isEqualTo(7);
+    }
+
+    @Test
+    public void test_concurrent_gets_extract_source_once() throws Exception {
+        EmbeddedSourceCache cache = new EmbeddedSourceCache(cacheDir.getRoot().toPath(), 1024);
+        AtomicInteger nbExtractions = new AtomicInteger(0);
+        CountDownLatch extracting = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+
+        List<Future<Path>> paths = range(0, 4).mapToObj(i -> executor.submit(() -> get(cache, "docId", () -> {
+            nbExtractions.incrementAndGet();
+            try {
+                extracting.await(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return "content".getBytes(UTF_8);
+        }))).collect(toList());
+        extracting.countDown();
+
+        for (Future<Path> path : paths) {
+            assertThat(new String(Files.readAllBytes(path.get()), UTF_8)).isEqualTo("content");
+        }
+        executor.shutdown();
+        assertThat(nbExtractions.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void test_least_recently_used_sources_are_evicted() throws Exception {
+        EmbeddedSourceCache cache = new EmbeddedSourceCache(cacheDir.getRoot().toPath(), 20);
+        Path first = get(cache, "first", () -> new byte[8]);
+        Path second = get(cache, "second", () -> new byte[8]);
+        get(cache, "first", () -> new byte[8]);
+
+        Path third = get(cache, "third", () -> new byte[8]);
+
+        assertThat(first.toFile()).exists();
+        assertThat(second.toFile()).doesNotExist();
+        assertThat(third.toFile()).exists();
+        assertThat(cache.size()).isEqualTo(16);
+    }
+
+    @Test
+    public void test_leased_source_is_not_evicted_until_released() throws Exception {
+        EmbeddedSourceCache cache = new EmbeddedSourceCache(cacheDir.getRoot().toPath(), 10);
+        EmbeddedSourceCache.Lease first = cache.get("first", output -> output.write(new byte[8]));
+        EmbeddedSourceCache.Lease second = cache.get("second", output -> output.write(new byte[8]));
+
+        assertThat(first.getPath().toFile()).exists();
+        assertThat(second.getPath().toFile()).exists();
+        assertThat(cache.size()).isEqualTo(16);
+
+        first.close();
+        first.close();
+
+        assertThat(first.getPath().toFile()).doesNotExist();
+        assertThat(second.getPath().toFile()).exists();
+        assertThat(cache.isLeased("first")).isFalse();
+        assertThat(cache.isLeased("second")).isTrue();
+        assertThat(cache.size()).isEqualTo(8);
+        second.close();
+    }
+
+    @Test
+    public void test_unleased_source_is_evicted_before_leased_one() throws Exception {
+        EmbeddedSourceCache cache = new EmbeddedSourceCache(cacheDir.getRoot().toPath(), 10);
+        try (EmbeddedSourceCache.Lease lease = cache.get("first", output -> output.write(new byte[8]))) {
+            Path second = get(cache, "second", () -> new byte[8]);
+
+            assertThat(lease.getPath().toFile()).exists();
+            assertThat(second.toFile()).doesNotExist();
+        }
+    }
+
+    @Test
+    public void test_source_bigger_than_cache_is_kept_while_leased() throws Exception {
+        EmbeddedSourceCache cache = new EmbeddedSourceCache(cacheDir.getRoot().toPath(), 10);
+
+        try (EmbeddedSourceCache.Lease lease = cache.get("big", output -> output.write(new byte[16]))) {
+            assertThat(lease.getPath().toFile()).exists();
+        }
+        assertThat(cache.size()).isEqualTo(0);
+    }
+
+    @Test
+    public void test_failed_load_leaves_no_file() throws Exception {
+        EmbeddedSourceCache cache = new EmbeddedSourceCache(cacheDir.getRoot().toPath(), 1024);
+
+        try {
+            cache.get("docId", output -> {
+                output.write(new byte[8]);
+                throw new IllegalStateException("extraction error");
+            });
+        } catch (IllegalStateException expected) {
+            assertThat(cacheDir.getRoot().listFiles()).isEmpty();
+            assertThat(cache.size()).isEqualTo(0);
+            return;
+        }
+        throw new AssertionError("load should have failed");
+    }
+
+    @Test
+    public void test_cache_is_loaded_at_startup() throws Exception {
+        get(new EmbeddedSourceCache(cacheDir.getRoot().toPath(), 1024), "docId", () -> "content".getBytes(UTF_8));
+        Files.write(cacheDir.getRoot().toPath().resolve("docId123.tmp"), new byte[8]);
+
+        EmbeddedSourceCache cache = new EmbeddedSourceCache(cacheDir.getRoot().toPath(), 1024);
+
+        assertThat(cache.size()).isEqualTo(7);
+        assertThat(cacheDir.getRoot().toPath().resolve("docId123.tmp").toFile()).doesNotExist();
+        assertThat(get(cache, "docId", () -> {throw new IllegalStateException("should be cached");}).toFile()).exists();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void test_invalid_key() throws Exception {
+        new EmbeddedSourceCache(cacheDir.getRoot().toPath(), 1024).get("../docId", output -> {});
+    }
+
+    private static Path get(EmbeddedSourceCache cache, String key, Callable<byte[]> content) throws Exception {
+        try (EmbeddedSourceCache.Lease lease = cache.get(key, output -> {
+            try {
+                output.write(content.call());
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        })) {
+            return lease.getPath();
+        }
+    }
+}
@@ -12,17 +12,22 @@ import org.icij.extract.extractor.UpdatableDigester;
 import org.icij.spewer.FieldNames;
 import org.icij.task.Options;
 import org.junit.ClassRule;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.mockito.Mockito;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.Charset;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.HashMap;
+import java.util.Map;
 
 import static java.nio.file.Paths.get;
+import static java.util.Collections.singletonList;
 import static org.elasticsearch.action.support.WriteRequest.RefreshPolicy.IMMEDIATE;
 import static org.fest.assertions.Assertions.assertThat;
 import static org.icij.datashare.test.ElasticsearchRule.TEST_INDEX;
@@ -31,6 +36,7 @@ import static org.icij.datashare.text.Project.project;
 public class SourceExtractorTest {
     @ClassRule
     public static ElasticsearchRule es = new ElasticsearchRule();
+    @Rule public TemporaryFolder cacheDir = new TemporaryFolder();
 
     @Test
     public void test_get_source_for_root_doc() throws IOException {
@@ -103,6 +109,61 @@ public class SourceExtractorTest {
         assertThat(getBytes(source).length).isNotEqualTo(49779);
     }
 
+    @Test
+    public void test_get_embedded_sources_of_root_doc() throws Exception {
+        DocumentFactory tikaFactory = new DocumentFactory().configure(Options.from(new HashMap<String, String>() {{
+            put("idDigestMethod", Document.HASHER.toString());
+        }}));
+        Path path = get(getClass().getResource("/docs/embedded_doc.eml").getPath());
+        Extractor extractor = new Extractor(tikaFactory);
+        extractor.setDigester(new UpdatableDigester(TEST_INDEX, Document.HASHER.toString()));
+        final TikaDocument document = extractor.extract(path);
+        ElasticsearchSpewer spewer = new ElasticsearchSpewer(es.client,
+                l -> Language.ENGLISH, new FieldNames(), Mockito.mock(Publisher.class), new PropertiesProvider()).withRefresh(IMMEDIATE).withIndex(TEST_INDEX);
+        spewer.write(document);
+
+        Document attachedPdf = new ElasticsearchIndexer(es.client, new PropertiesProvider()).
+                get(TEST_INDEX, "1bf2b6aa27dd8b45c7db58875004b8cb27a78ced5200b4976b63e351ebbae5ececb86076d90e156a7cdea06cde9573ca",
+                        "f4078910c3e73a192e3a82d205f3c0bdb749c4e7b23c1d05a622db0f07d7f0ededb335abdb62aef41ace5d3cdb9298bc");
+
+        Map<String, Integer> sizes = new HashMap<>();
+        new SourceExtractor().getEmbeddedSources(project(TEST_INDEX), singletonList(attachedPdf), (id, source) -> sizes.put(id, getBytes(source).length));
+
+        assertThat(sizes).isEqualTo(new HashMap<String, Integer>() {{
+            put(attachedPdf.getId(), 49779);
+        }});
+    }
+
+    @Test
+    public void test_get_cached_source_for_embedded_doc() throws Exception {
+        DocumentFactory tikaFactory = new DocumentFactory().configure(Options.from(new HashMap<String, String>() {{
+            put("idDigestMethod", Document.HASHER.toString());
+        }}));
+        Path path = get(getClass().getResource("/docs/embedded_doc.eml").getPath());
+        Extractor extractor = new Extractor(tikaFactory);
+        extractor.setDigester(new UpdatableDigester(TEST_INDEX, Document.HASHER.toString()));
+        final TikaDocument document = extractor.extract(path);
+        ElasticsearchSpewer spewer = new ElasticsearchSpewer(es.client,
+                l -> Language.ENGLISH, new FieldNames(), Mockito.mock(Publisher.class), new PropertiesProvider()).withRefresh(IMMEDIATE).withIndex(TEST_INDEX);
+        spewer.write(document);
+
+        Document attachedPdf = new ElasticsearchIndexer(es.client, new PropertiesProvider()).
+                get(TEST_INDEX, "1bf2b6aa27dd8b45c7db58875004b8cb27a78ced5200b4976b63e351ebbae5ececb86076d90e156a7cdea06cde9573ca",
+                        "f4078910c3e73a192e3a82d205f3c0bdb749c4e7b23c1d05a622db0f07d7f0ededb335abdb62aef41ace5d3cdb9298bc");
+        EmbeddedSourceCache cache = new EmbeddedSourceCache(cacheDir.getRoot().toPath(), 1024 * 1024);
+
+        assertThat(new SourceExtractor(false).getCachedSource(project(TEST_INDEX), attachedPdf)).isNull();
+        try (EmbeddedSourceCache.Lease cached = new SourceExtractor(false, cache).getCachedSource(project(TEST_INDEX), attachedPdf)) {
+            assertThat(cached.getPath().toString()).isEqualTo(cacheDir.getRoot().toPath().resolve(attachedPdf.getId()).toString());
+            assertThat(Files.size(cached.getPath())).isEqualTo(49779);
+        }
+        try (EmbeddedSourceCache.Lease filtered = new SourceExtractor(true, cache).getCachedSource(project(TEST_INDEX), attachedPdf)) {
+            assertThat(filtered.getPath().toString()).isEqualTo(cacheDir.getRoot().toPath().resolve(attachedPdf.getId() + "-filtered").toString());
+            assertThat(Files.size(filtered.getPath())).isNotEqualTo(49779);
+        }
+        assertThat(new SourceExtractor(false, cache).getSourceContent(project(TEST_INDEX), attachedPdf)).hasSize(49779);
+    }
+
     private byte[] getBytes(InputStream source) throws IOException {
         ByteArrayOutputStream buffer = new ByteArrayOutputStream();
         int nbTmpBytesRead;
@@ -20,6 +20,7 @@ import org.icij.datashare.text.nlp.Annotations;
 import org.icij.datashare.text.nlp.NlpStage;
 import org.icij.datashare.text.nlp.Pipeline;
 import org.icij.datashare.text.nlp.corenlp.models.CoreNlpAnnotator;
+import org.icij.datashare.text.nlp.corenlp.models.CoreNlpAnnotatorPool;
 import org.icij.datashare.text.nlp.corenlp.models.CoreNlpNerModels;
 import org.icij.datashare.text.nlp.corenlp.models.CoreNlpPipelineModels;
 import org.icij.datashare.text.nlp.corenlp.models.CoreNlpPosModels;
@@ -27,7 +28,9 @@ import org.icij.datashare.text.nlp.corenlp.models.CoreNlpPosModels;
 import java.io.StringReader;
 import java.util.*;
 
+import static java.lang.Integer.parseInt;
 import static java.util.Collections.singletonList;
+import static org.icij.datashare.cli.DatashareCliOptions.NLP_PARALLELISM_OPT;
 import static org.icij.datashare.text.NamedEntity.allFrom;
 import static org.icij.datashare.text.nlp.NlpStage.*;
 
@@ -50,6 +53,8 @@ public final class CorenlpPipeline extends AbstractPipeline {
     @Inject
     public CorenlpPipeline(final PropertiesProvider propertiesProvider) {
         super(propertiesProvider.getProperties());
+        // one NER classifier instance per NLP consumer thread
+        CoreNlpNerModels.getInstance().setPoolSize(parseInt(propertiesProvider.get(NLP_PARALLELISM_OPT).orElse("1")));
 
         // TOKEN <-- SENTENCE <-- POS <-- LEMMA <-- NER
         stageDependencies.get(SENTENCE).add(TOKEN);
@@ -111,12 +116,21 @@ public final class CorenlpPipeline extends AbstractPipeline {
         // (Don't) keep pipelines and models
         if ( ! caching) {
             CoreNlpPipelineModels.getInstance().unload(language);
+            CoreNlpNerModels.getInstance().releasePool(language);
             CoreNlpNerModels.getInstance().unload(language);
             CoreNlpPosModels.getInstance().unload(language);
         }
     }
 
 
+    /**
+     * the NER classifier pools stats (instances, leases, waits and memory), logged when the NLP consumers exit.
+     */
+    @Override
+    public String toString() {
+        return "CorenlpPipeline{caching=" + caching + ", pools=" + CoreNlpNerModels.getInstance().getPoolStats() + '}';
+    }
+
     private boolean initializePipelineAnnotator(Language language) throws InterruptedException {
         CoreNlpPipelineModels.getInstance().get(language);
         return true;
@@ -194,10 +208,11 @@ public final class CorenlpPipeline extends AbstractPipeline {
         NamedEntitiesBuilder namedEntitiesBuilder = new NamedEntitiesBuilder(getType(), doc.getId(), doc.getLanguage()).withRoot(doc.getRootDocument());
         LOGGER.info("name-finding for {} in document {} (offset {})", doc.getLanguage(), doc.getId(), contentOffset);
         // Recognize named entities from input
-        final CoreNlpAnnotator<AbstractSequenceClassifier<CoreLabel>> abstractSequenceClassifierCoreNlpAnnotator;
-        abstractSequenceClassifierCoreNlpAnnotator = CoreNlpNerModels.getInstance().get(doc.getLanguage());
         String chunk = doc.getContent().substring(contentOffset, Math.min(contentOffset + contentLength, doc.getContentTextLength()));
-        List<Triple<String, Integer, Integer>> items = abstractSequenceClassifierCoreNlpAnnotator.annotator.classifyToCharacterOffsets(chunk);
+        List<Triple<String, Integer, Integer>> items;
+        try (CoreNlpAnnotatorPool<AbstractSequenceClassifier<CoreLabel>>.Lease lease = CoreNlpNerModels.getInstance().lease(doc.getLanguage())) {
+            items = lease.annotator.classifyToCharacterOffsets(chunk);
+        }
         // For each recognized named entity
         for (Triple<String, Integer, Integer> item : items) {
             // Triple: <category, begin, end>
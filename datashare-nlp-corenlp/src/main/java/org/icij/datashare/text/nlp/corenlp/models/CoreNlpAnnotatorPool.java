@@ -0,0 +1,133 @@
+package org.icij.datashare.text.nlp.corenlp.models;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of annotator instances for one language.
+ *
+ * CoreNLP classifiers keep per call state, so a single instance shared by all the NLP consumers
+ * serializes (or corrupts) the work. Each consumer leases an instance for the duration of one call and
+ * returns it when the lease is closed. Instances are created lazily up to the max size, then lease calls
+ * wait for an instance to be returned. Waits are counted to measure contention.
+ *
+ * The memory cost of an instance is given by the caller (the serialized model size for CoreNLP classifiers):
+ * measuring the heap while loading is not reliable as the other consumers allocate at the same time.
+ */
+public class CoreNlpAnnotatorPool<T> {
+    private static final Logger LOGGER = LoggerFactory.getLogger(CoreNlpAnnotatorPool.class);
+    private final String name;
+    private final int maxSize;
+    private final Loader<T> loader;
+    private final LinkedBlockingQueue<CoreNlpAnnotator<T>> idle = new LinkedBlockingQueue<>();
+    private final AtomicInteger size = new AtomicInteger(0);
+    private final AtomicLong leases = new AtomicLong(0);
+    private final AtomicLong waits = new AtomicLong(0);
+    private final AtomicLong waitNanos = new AtomicLong(0);
+    private final long bytesPerInstance;
+
+    @FunctionalInterface
+    public interface Loader<T> {
+        CoreNlpAnnotator<T> load() throws InterruptedException;
+    }
+
+    public CoreNlpAnnotatorPool(String name, int maxSize, Loader<T> loader) {
+        this(name, maxSize, 0, loader);
+    }
+
+    public CoreNlpAnnotatorPool(String name, int maxSize, long bytesPerInstance, Loader<T> loader) {
+        this.name = name;
+        this.maxSize = Math.max(1, maxSize);
+        this.bytesPerInstance = bytesPerInstance;
+        this.loader = loader;
+    }
+
+    public Lease lease() throws InterruptedException {
+        leases.incrementAndGet();
+        CoreNlpAnnotator<T> annotator = idle.poll();
+        if (annotator == null) {
+            annotator = createIfBelowMaxSize();
+        }
+        if (annotator == null) {
+            waits.incrementAndGet();
+            long start = System.nanoTime();
+            annotator = idle.take();
+            waitNanos.addAndGet(System.nanoTime() - start);
+        }
+        return new Lease(annotator);
+    }
+
+    private CoreNlpAnnotator<T> createIfBelowMaxSize() throws InterruptedException {
+        int current;
+        do {
+            current = size.get();
+            if (current >= maxSize) {
+                return null;
+            }
+        } while (!size.compareAndSet(current, current + 1));
+        try {
+            CoreNlpAnnotator<T> annotator = loader.load();
+            LOGGER.info("created annotator {}/{} for {}. {}", current + 1, maxSize, name, getStats());
+            return annotator;
+        } catch (InterruptedException | RuntimeException e) {
+            size.decrementAndGet();
+            throw e;
+        }
+    }
+
+    public Stats getStats() {
+        return new Stats(name, size.get(), maxSize, leases.get(), waits.get(),
+                TimeUnit.NANOSECONDS.toMillis(waitNanos.get()), bytesPerInstance);
+    }
+
+    public class Lease implements AutoCloseable {
+        public final T annotator;
+        private final CoreNlpAnnotator<T> instance;
+
+        private Lease(CoreNlpAnnotator<T> instance) {
+            this.instance = instance;
+            this.annotator = instance.annotator;
+        }
+
+        @Override
+        public void close() {
+            idle.offer(instance);
+        }
+    }
+
+    public static class Stats {
+        public final String name;
+        public final int size;
+        public final int maxSize;
+        public final long leases;
+        public final long waits;
+        public final long waitMillis;
+        /** memory cost of one instance given to the pool (0 if unknown) */
+        public final long bytesPerInstance;
+
+        Stats(String name, int size, int maxSize, long leases, long waits, long waitMillis, long bytesPerInstance) {
+            this.name = name;
+            this.size = size;
+            this.maxSize = maxSize;
+            this.leases = leases;
+            this.waits = waits;
+            this.waitMillis = waitMillis;
+            this.bytesPerInstance = bytesPerInstance;
+        }
+
+        public double contentionRate() {
+            return leases == 0 ? 0 : (double) waits / leases;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("pool %s: %d/%d instances, %d leases, %d waits (%.1f%%), %d ms waiting, %d MB per instance (%d MB for the pool)",
+                    name, size, maxSize, leases, waits, contentionRate() * 100, waitMillis, bytesPerInstance / (1024 * 1024), size * bytesPerInstance / (1024 * 1024));
+        }
+    }
+}
@@ -2,13 +2,23 @@ package org.icij.datashare.text.nlp.corenlp.models;
 
 import edu.stanford.nlp.ie.AbstractSequenceClassifier;
 import edu.stanford.nlp.ie.crf.CRFClassifier;
+import edu.stanford.nlp.io.IOUtils;
 import edu.stanford.nlp.ling.CoreLabel;
 import org.icij.datashare.text.Language;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.nio.file.Path;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
 
 import static org.icij.datashare.text.Language.*;
 import static org.icij.datashare.text.nlp.NlpStage.NER;
@@ -37,8 +47,12 @@ import static org.icij.datashare.text.nlp.NlpStage.NER;
  * Created by julien on 8/31/16.
  */
 public class CoreNlpNerModels extends CoreNlpModels<AbstractSequenceClassifier<CoreLabel>> {
+    private static final Logger LOGGER = LoggerFactory.getLogger(CoreNlpNerModels.class);
     private static volatile CoreNlpNerModels instance;
     private static final Object mutex = new Object();
+    private final Map<Language, CoreNlpAnnotatorPool<AbstractSequenceClassifier<CoreLabel>>> pools = new ConcurrentHashMap<>();
+    private final Map<Language, Long> modelSizes = new ConcurrentHashMap<>();
+    private volatile int poolSize = 1;
 
     public static final Map<Language, String> POS_TAGSET = new HashMap<Language, String>() {{
         put(ENGLISH, "PENN TREEBANK");
@@ -72,9 +86,59 @@ public class CoreNlpNerModels extends CoreNlpModels<AbstractSequenceClassifier<C
         }
         super.addResourceToContextClassLoader(modelFilePath);
         try {
-            return new CoreNlpAnnotator<>(CRFClassifier.getClassifier(getInJarModelPath(language)));
+            return loadClassifier(language);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * sets the max number of classifier instances per language (usually the number of NLP consumers).
+     * Pools already created keep their size.
+     */
+    public void setPoolSize(int poolSize) {
+        this.poolSize = poolSize;
+    }
+
+    /**
+     * leases a classifier for the language. The first instance is the one loaded by {@link #get(Language)},
+     * others are loaded from the same model jar when all the instances are leased.
+     * The lease must be closed to give the instance back.
+     */
+    public CoreNlpAnnotatorPool<AbstractSequenceClassifier<CoreLabel>>.Lease lease(Language language) throws InterruptedException {
+        CoreNlpAnnotator<AbstractSequenceClassifier<CoreLabel>> first = get(language);
+        AtomicBoolean firstLeased = new AtomicBoolean(false);
+        return pools.computeIfAbsent(language, l -> new CoreNlpAnnotatorPool<>("CORENLP-NER-" + l.iso6391Code(), poolSize, modelSizes.getOrDefault(l, 0L), () -> {
+            if (firstLeased.compareAndSet(false, true)) {
+                return first;
+            }
+            return loadClassifier(l);
+        })).lease();
+    }
+
+    public void releasePool(Language language) {
+        CoreNlpAnnotatorPool<AbstractSequenceClassifier<CoreLabel>> pool = pools.remove(language);
+        if (pool != null) {
+            LOGGER.info("releasing {}", pool.getStats());
+        }
+    }
+
+    /**
+     * @return the stats of the classifier pools. The memory per instance is the uncompressed size of the serialized model.
+     */
+    public List<CoreNlpAnnotatorPool.Stats> getPoolStats() {
+        return pools.values().stream().map(CoreNlpAnnotatorPool::getStats).collect(Collectors.toList());
+    }
+
+    private CoreNlpAnnotator<AbstractSequenceClassifier<CoreLabel>> loadClassifier(Language language) {
+        try (CountingInputStream model = new CountingInputStream(IOUtils.getInputStreamFromURLOrClasspathOrFileSystem(getInJarModelPath(language)))) {
+            AbstractSequenceClassifier<CoreLabel> classifier = CRFClassifier.getClassifier(model);
+            modelSizes.put(language, model.count);
+            return new CoreNlpAnnotator<>(classifier);
         } catch (ClassNotFoundException e) {
             throw new IllegalStateException("cannot find CRFClassifier class", e);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
     }
 
@@ -88,4 +152,31 @@ public class CoreNlpNerModels extends CoreNlpModels<AbstractSequenceClassifier<C
     }
     @Override
     String getPropertyName() { return "ner.model";}
+
+    private static class CountingInputStream extends FilterInputStream {
+        private long count = 0;
+
+        CountingInputStream(InputStream in) { super(in);}
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) count++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int nbRead = super.read(b, off, len);
+            if (nbRead > 0) count += nbRead;
+            return nbRead;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
 }
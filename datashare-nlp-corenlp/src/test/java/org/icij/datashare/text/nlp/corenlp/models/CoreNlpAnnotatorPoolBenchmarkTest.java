@@ -0,0 +1,64 @@
+package org.icij.datashare.text.nlp.corenlp.models;
+
+import org.junit.Ignore;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * compares the throughput of consumers holding their instance during a fixed time (like a classifier call)
+ * with one instance and with one instance per consumer. It depends on the machine load : run it manually.
+ */
+@Ignore("benchmark")
+public class CoreNlpAnnotatorPoolBenchmarkTest {
+    private static final Logger LOGGER = LoggerFactory.getLogger(CoreNlpAnnotatorPoolBenchmarkTest.class);
+    private static final int NB_LEASES_PER_THREAD = 50;
+    private static final int LEASE_MILLIS = 20;
+
+    @Test
+    public void test_throughput_with_one_instance_and_with_pool() throws Exception {
+        int nbThreads = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+        long durationWithOneInstance = runConsumers(new CoreNlpAnnotatorPool<>("test", 1, () -> new CoreNlpAnnotator<>(0)), nbThreads);
+        CoreNlpAnnotatorPool<Integer> pool = new CoreNlpAnnotatorPool<>("test", nbThreads, () -> new CoreNlpAnnotator<>(0));
+        long durationWithPool = runConsumers(pool, nbThreads);
+
+        LOGGER.info("{} threads: {} ms with one instance, {} ms with {} instances (speedup {})", nbThreads,
+                TimeUnit.NANOSECONDS.toMillis(durationWithOneInstance), TimeUnit.NANOSECONDS.toMillis(durationWithPool),
+                pool.getStats().size, String.format("%.2f", (double) durationWithOneInstance / durationWithPool));
+    }
+
+    private long runConsumers(CoreNlpAnnotatorPool<Integer> pool, int nbThreads) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(nbThreads);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < nbThreads; i++) {
+            futures.add(executor.submit(() -> {
+                start.await();
+                for (int j = 0; j < NB_LEASES_PER_THREAD; j++) {
+                    try (CoreNlpAnnotatorPool<Integer>.Lease ignored = pool.lease()) {
+                        Thread.sleep(LEASE_MILLIS);
+                    }
+                }
+                return null;
+            }));
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        long duration = System.nanoTime() - begin;
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.SECONDS);
+        return duration;
+    }
+}
@@ -0,0 +1,105 @@
+package org.icij.datashare.text.nlp.corenlp.models;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.stream.Collectors.toSet;
+import static org.fest.assertions.Assertions.assertThat;
+
+public class CoreNlpAnnotatorPoolTest {
+    private final AtomicInteger nbLoaded = new AtomicInteger(0);
+
+    @Test
+    public void test_lease_reuses_returned_instance() throws Exception {
+        CoreNlpAnnotatorPool<Integer> pool = new CoreNlpAnnotatorPool<>("test", 2, () -> new CoreNlpAnnotator<>(nbLoaded.incrementAndGet()));
+
+        try (CoreNlpAnnotatorPool<Integer>.Lease lease = pool.lease()) {
+            assertThat(lease.annotator).isEqualTo(1);
+        }
+        try (CoreNlpAnnotatorPool<Integer>.Lease lease = pool.lease()) {
+            assertThat(lease.annotator).isEqualTo(1);
+        }
+        assertThat(pool.getStats().size).isEqualTo(1);
+        assertThat(pool.getStats().leases).isEqualTo(2);
+        assertThat(pool.getStats().waits).isEqualTo(0);
+    }
+
+    @Test
+    public void test_lease_creates_instances_up_to_max_size() throws Exception {
+        CoreNlpAnnotatorPool<Integer> pool = new CoreNlpAnnotatorPool<>("test", 2, () -> new CoreNlpAnnotator<>(nbLoaded.incrementAndGet()));
+
+        try (CoreNlpAnnotatorPool<Integer>.Lease lease1 = pool.lease(); CoreNlpAnnotatorPool<Integer>.Lease lease2 = pool.lease()) {
+            assertThat(lease1.annotator).isEqualTo(1);
+            assertThat(lease2.annotator).isEqualTo(2);
+        }
+        assertThat(pool.getStats().size).isEqualTo(2);
+    }
+
+    @Test
+    public void test_stats_memory_per_instance() throws Exception {
+        CoreNlpAnnotatorPool<Integer> pool = new CoreNlpAnnotatorPool<>("test", 2, 3 * 1024 * 1024, () -> new CoreNlpAnnotator<>(nbLoaded.incrementAndGet()));
+
+        try (CoreNlpAnnotatorPool<Integer>.Lease lease1 = pool.lease(); CoreNlpAnnotatorPool<Integer>.Lease lease2 = pool.lease()) {
+            assertThat(pool.getStats().bytesPerInstance).isEqualTo(3 * 1024 * 1024);
+        }
+        assertThat(pool.getStats().toString()).contains("3 MB per instance (6 MB for the pool)");
+    }
+
+    @Test(timeout = 5000)
+    public void test_lease_waits_for_returned_instance_when_pool_is_full() throws Exception {
+        CoreNlpAnnotatorPool<Integer> pool = new CoreNlpAnnotatorPool<>("test", 1, () -> new CoreNlpAnnotator<>(nbLoaded.incrementAndGet()));
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        CoreNlpAnnotatorPool<Integer>.Lease lease = pool.lease();
+
+        Future<Integer> waiting = executor.submit(() -> {
+            try (CoreNlpAnnotatorPool<Integer>.Lease other = pool.lease()) {
+                return other.annotator;
+            }
+        });
+        Thread.sleep(100);
+        assertThat(waiting.isDone()).isFalse();
+        lease.close();
+
+        assertThat(waiting.get()).isEqualTo(1);
+        assertThat(pool.getStats().waits).isEqualTo(1);
+        assertThat(pool.getStats().contentionRate()).isEqualTo(0.5);
+        executor.shutdown();
+    }
+
+    @Test(timeout = 5000)
+    public void test_pool_gives_max_size_concurrent_leases_and_blocks_the_next_one() throws Exception {
+        int maxSize = 3;
+        CoreNlpAnnotatorPool<Integer> pool = new CoreNlpAnnotatorPool<>("test", maxSize, () -> new CoreNlpAnnotator<>(nbLoaded.incrementAndGet()));
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        List<CoreNlpAnnotatorPool<Integer>.Lease> leases = new ArrayList<>();
+        for (int i = 0; i < maxSize; i++) {
+            leases.add(pool.lease());
+        }
+        assertThat(leases.stream().map(l -> l.annotator).collect(toSet())).hasSize(maxSize);
+        assertThat(pool.getStats().waits).isEqualTo(0);
+
+        Future<Integer> next = executor.submit(() -> {
+            try (CoreNlpAnnotatorPool<Integer>.Lease lease = pool.lease()) {
+                return lease.annotator;
+            }
+        });
+        while (pool.getStats().waits == 0) {
+            Thread.yield();
+        }
+        assertThat(next.isDone()).isFalse();
+
+        leases.get(1).close();
+
+        assertThat(next.get()).isEqualTo(leases.get(1).annotator);
+        assertThat(pool.getStats().size).isEqualTo(maxSize);
+        leases.get(0).close();
+        leases.get(2).close();
+        executor.shutdown();
+    }
+}